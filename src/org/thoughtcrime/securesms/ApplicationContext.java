@@ -32,18 +32,28 @@ import android.support.v4.app.NotificationManagerCompat;
 import com.google.android.gms.security.ProviderInstaller;
 
 import org.thoughtcrime.securesms.crypto.PRNGFixes;
+import org.thoughtcrime.securesms.crypto.storage.TextSecureSessionStore;
 import org.thoughtcrime.securesms.dependencies.AxolotlStorageModule;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
 import org.thoughtcrime.securesms.dependencies.SignalCommunicationModule;
 import org.thoughtcrime.securesms.jobmanager.JobManager;
 import org.thoughtcrime.securesms.jobmanager.dependencies.DependencyInjector;
-import org.thoughtcrime.securesms.jobmanager.persistence.JavaJobSerializer;
+import org.thoughtcrime.securesms.jobmanager.persistence.BinaryJobSerializer;
+import org.thoughtcrime.securesms.jobmanager.requirements.NetworkBackoffRequirement;
+import org.thoughtcrime.securesms.jobmanager.requirements.NetworkRequirement;
 import org.thoughtcrime.securesms.jobmanager.requirements.NetworkRequirementProvider;
+import org.thoughtcrime.securesms.jobs.ApplyPendingReceiptsJob;
+import org.thoughtcrime.securesms.jobs.AttachmentDownloadJob;
 import org.thoughtcrime.securesms.jobs.CreateSignedPreKeyJob;
 import org.thoughtcrime.securesms.jobs.GcmRefreshJob;
 import org.thoughtcrime.securesms.jobs.MultiDeviceContactUpdateJob;
+import org.thoughtcrime.securesms.jobs.PushDecryptJob;
+import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
 import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirementProvider;
+import org.thoughtcrime.securesms.jobs.requirements.NetworkOrServiceRequirement;
+import org.thoughtcrime.securesms.jobs.requirements.ServiceRequirement;
 import org.thoughtcrime.securesms.jobs.requirements.ServiceRequirementProvider;
+import org.thoughtcrime.securesms.jobs.requirements.SqlCipherMigrationRequirement;
 import org.thoughtcrime.securesms.jobs.requirements.SqlCipherMigrationRequirementProvider;
 import org.thoughtcrime.securesms.logging.AndroidLogger;
 import org.thoughtcrime.securesms.logging.CustomSignalProtocolLogger;
@@ -101,6 +111,7 @@ public class ApplicationContext extends MultiDexApplication implements Dependenc
     initializeCrashHandling();
     initializeDependencyInjection();
     initializeJobManager();
+    initializePendingReceipts();
     initializeExpiringMessageManager();
     initializeGcmCheck();
     initializeSignedPreKeyCheck();
@@ -167,15 +178,29 @@ public class ApplicationContext extends MultiDexApplication implements Dependenc
     this.jobManager = JobManager.newBuilder(this)
                                 .withName("TextSecureJobs")
                                 .withDependencyInjector(this)
-                                .withJobSerializer(new JavaJobSerializer())
+                                .withJobSerializer(new BinaryJobSerializer.Builder(this)
+                                                       .withJob(1, PushDecryptJob.class, new PushDecryptJob.Factory())
+                                                       .withJob(2, AttachmentDownloadJob.class, new AttachmentDownloadJob.Factory())
+                                                       .withRequirement(1, MasterSecretRequirement.class, MasterSecretRequirement::new)
+                                                       .withRequirement(2, NetworkRequirement.class, NetworkRequirement::new)
+                                                       .withRequirement(3, NetworkBackoffRequirement.class, NetworkBackoffRequirement::new)
+                                                       .withRequirement(4, NetworkOrServiceRequirement.class, NetworkOrServiceRequirement::new)
+                                                       .withRequirement(5, ServiceRequirement.class, ServiceRequirement::new)
+                                                       .withRequirement(6, SqlCipherMigrationRequirement.class, SqlCipherMigrationRequirement::new)
+                                                       .build())
                                 .withRequirementProviders(new MasterSecretRequirementProvider(this),
                                                           new ServiceRequirementProvider(this),
                                                           new NetworkRequirementProvider(this),
                                                           new SqlCipherMigrationRequirementProvider())
+                                .withJobListener(job -> new TextSecureSessionStore(this).flush())
                                 .withConsumerThreads(5)
                                 .build();
   }
 
+  private void initializePendingReceipts() {
+    ApplyPendingReceiptsJob.schedule(this);
+  }
+
   private void initializeDependencyInjection() {
     this.objectGraph = ObjectGraph.create(new SignalCommunicationModule(this, new SignalServiceNetworkAccess(this)),
                                           new AxolotlStorageModule(this));
@@ -60,6 +60,7 @@ import org.thoughtcrime.securesms.contactshare.SharedContactDetailsActivity;
 import org.thoughtcrime.securesms.contactshare.Contact;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.ConversationKey;
 import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.database.loaders.ConversationLoader;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
@@ -91,8 +92,8 @@ import java.util.Set;
 public class ConversationFragment extends Fragment
   implements LoaderManager.LoaderCallbacks<Cursor>
 {
-  private static final String TAG       = ConversationFragment.class.getSimpleName();
-  private static final String KEY_LIMIT = "limit";
+  private static final String TAG           = ConversationFragment.class.getSimpleName();
+  private static final String KEY_LOAD_MORE = "load_more";
 
   private static final int PARTIAL_CONVERSATION_LIMIT = 500;
   private static final int SCROLL_ANIMATION_THRESHOLD = 50;
@@ -107,7 +108,7 @@ public class ConversationFragment extends Fragment
   private long                        threadId;
   private long                        lastSeen;
   private int                         startingPosition;
-  private int                         previousOffset;
+  private ConversationKey             oldestLoaded;
   private boolean                     firstLoad;
   private long                        loaderStartTime;
   private ActionMode                  actionMode;
@@ -115,7 +116,6 @@ public class ConversationFragment extends Fragment
   private RecyclerView                list;
   private RecyclerView.ItemDecoration lastSeenDecoration;
   private ViewSwitcher                topLoadMoreView;
-  private ViewSwitcher                bottomLoadMoreView;
   private UnknownSenderView           unknownSenderView;
   private View                        composeDivider;
   private View                        scrollToBottomButton;
@@ -142,10 +142,8 @@ public class ConversationFragment extends Fragment
     list.setLayoutManager(layoutManager);
     list.setItemAnimator(null);
 
-    topLoadMoreView    = (ViewSwitcher) inflater.inflate(R.layout.load_more_header, container, false);
-    bottomLoadMoreView = (ViewSwitcher) inflater.inflate(R.layout.load_more_header, container, false);
+    topLoadMoreView = (ViewSwitcher) inflater.inflate(R.layout.load_more_header, container, false);
     initializeLoadMoreView(topLoadMoreView);
-    initializeLoadMoreView(bottomLoadMoreView);
 
     return view;
   }
@@ -231,7 +229,7 @@ public class ConversationFragment extends Fragment
   private void initializeLoadMoreView(ViewSwitcher loadMoreView) {
     loadMoreView.setOnClickListener(v -> {
       Bundle args = new Bundle();
-      args.putInt(KEY_LIMIT, 0);
+      args.putBoolean(KEY_LOAD_MORE, true);
       getLoaderManager().restartLoader(0, args, ConversationFragment.this);
       loadMoreView.showNext();
       loadMoreView.setOnClickListener(null);
@@ -463,14 +461,14 @@ public class ConversationFragment extends Fragment
     Log.i(TAG, "onCreateLoader");
     loaderStartTime = System.currentTimeMillis();
 
-    int limit  = args.getInt(KEY_LIMIT, PARTIAL_CONVERSATION_LIMIT);
-    int offset = 0;
-    if (limit != 0 && startingPosition > limit) {
-      offset = Math.max(startingPosition - (limit / 2) + 1, 0);
-      startingPosition -= offset - 1;
+    ConversationKey loadedThrough = args.getBoolean(KEY_LOAD_MORE, false) ? oldestLoaded : null;
+    int             limit         = PARTIAL_CONVERSATION_LIMIT;
+
+    if (loadedThrough == null && startingPosition >= limit) {
+      limit = startingPosition + (limit / 2);
     }
 
-    return new ConversationLoader(getActivity(), threadId, offset, limit, lastSeen);
+    return new ConversationLoader(getActivity(), threadId, loadedThrough, limit, lastSeen);
   }
 
   @Override
@@ -485,7 +483,11 @@ public class ConversationFragment extends Fragment
       return;
     }
 
-    if (cursor.getCount() >= PARTIAL_CONVERSATION_LIMIT && loader.hasLimit()) {
+    oldestLoaded = loader.getOldest();
+
+    if (loader.hasMore()) {
+      topLoadMoreView.setDisplayedChild(0);
+      initializeLoadMoreView(topLoadMoreView);
       adapter.setFooterView(topLoadMoreView);
     } else {
       adapter.setFooterView(null);
@@ -501,11 +503,6 @@ public class ConversationFragment extends Fragment
       adapter.setHeaderView(null);
     }
 
-    if (loader.hasOffset()) {
-      adapter.setHeaderView(bottomLoadMoreView);
-      previousOffset = loader.getOffset();
-    }
-
     adapter.changeCursor(cursor);
 
     int lastSeenPosition = adapter.findLastSeenPosition(lastSeen);
@@ -517,15 +514,6 @@ public class ConversationFragment extends Fragment
         scrollToLastSeenPosition(lastSeenPosition);
       }
       firstLoad = false;
-    } else if (previousOffset > 0) {
-      int scrollPosition = previousOffset + ((LinearLayoutManager) list.getLayoutManager()).findFirstVisibleItemPosition();
-      scrollPosition = Math.min(scrollPosition, count - 1);
-
-      View firstView = list.getLayoutManager().getChildAt(scrollPosition);
-      int pixelOffset = (firstView == null) ? 0 : (firstView.getBottom() - list.getPaddingBottom());
-
-      ((LinearLayoutManager) list.getLayoutManager()).scrollToPositionWithOffset(scrollPosition, pixelOffset);
-      previousOffset = 0;
     }
 
     if (lastSeenPosition <= 0) {
@@ -376,7 +376,7 @@ public class RegistrationActivity extends BaseActionBarActivity implements Verif
 
                 FullBackupImporter.importFile(context,
                                               AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
-                                              database, backup.getFile(), passphrase);
+                                              database, backup.getFile(), backup.getDeltas(), passphrase);
 
                 DatabaseFactory.upgradeRestored(context, database);
                 NotificationChannels.restoreContactNotificationChannels(context);
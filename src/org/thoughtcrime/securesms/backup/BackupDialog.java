@@ -78,6 +78,8 @@ public class BackupDialog {
                      TextSecurePreferences.setBackupPassphrase(context, null);
                      TextSecurePreferences.setBackupEnabled(context, false);
                      BackupUtil.deleteAllBackups();
+                     BackupManifest.delete(context);
+                     BackupKeyCache.clear(context);
                      preference.setChecked(false);
                    })
                    .create()
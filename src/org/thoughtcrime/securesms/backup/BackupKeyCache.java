@@ -0,0 +1,104 @@
+package org.thoughtcrime.securesms.backup;
+
+
+import android.content.Context;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.thoughtcrime.securesms.crypto.KeyStoreHelper;
+import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.whispersystems.libsignal.util.ByteUtil;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Remembers the key stretched from the backup passphrase, along with the salt it was stretched
+ * with, so that scheduled exports don't have to spend 250,000 hash rounds re-deriving it.
+ *
+ * The cached key is sealed with a KeyStore key, so nothing is cached on platforms before M. It's
+ * only returned for the passphrase it was derived from. If it can no longer be unsealed, for
+ * instance because the KeyStore key was lost, it's dropped and the key is derived again.
+ */
+class BackupKeyCache {
+
+  private static final String TAG = BackupKeyCache.class.getSimpleName();
+
+  private static final int SALT_LENGTH   = 32;
+  private static final int DIGEST_LENGTH = 32;
+  private static final int KEY_LENGTH    = 32;
+
+  static @Nullable CachedKey get(@NonNull Context context, @NonNull String passphrase) {
+    String serialized = TextSecurePreferences.getBackupKeyCache(context);
+
+    if (serialized == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+      return null;
+    }
+
+    byte[] unsealed;
+
+    try {
+      unsealed = KeyStoreHelper.unseal(KeyStoreHelper.SealedData.fromString(serialized));
+    } catch (AssertionError e) {
+      Log.w(TAG, "Failed to unseal the cached backup key, clearing it.", e);
+      clear(context);
+      return null;
+    }
+
+    if (unsealed.length != SALT_LENGTH + DIGEST_LENGTH + KEY_LENGTH) {
+      return null;
+    }
+
+    byte[][] parts = ByteUtil.split(unsealed, SALT_LENGTH, DIGEST_LENGTH, KEY_LENGTH);
+
+    if (!MessageDigest.isEqual(parts[1], getPassphraseDigest(passphrase, parts[0]))) {
+      return null;
+    }
+
+    return new CachedKey(parts[0], parts[2]);
+  }
+
+  static void set(@NonNull Context context, @NonNull String passphrase, @NonNull byte[] salt, @NonNull byte[] key) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+      return;
+    }
+
+    KeyStoreHelper.SealedData sealed = KeyStoreHelper.seal(ByteUtil.combine(salt, getPassphraseDigest(passphrase, salt), key));
+    TextSecurePreferences.setBackupKeyCache(context, sealed.serialize());
+  }
+
+  static void clear(@NonNull Context context) {
+    TextSecurePreferences.setBackupKeyCache(context, null);
+  }
+
+  private static @NonNull byte[] getPassphraseDigest(@NonNull String passphrase, @NonNull byte[] salt) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(salt);
+      return digest.digest(passphrase.replace(" ", "").getBytes());
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  static class CachedKey {
+
+    private final byte[] salt;
+    private final byte[] key;
+
+    private CachedKey(@NonNull byte[] salt, @NonNull byte[] key) {
+      this.salt = salt;
+      this.key  = key;
+    }
+
+    @NonNull byte[] getSalt() {
+      return salt;
+    }
+
+    @NonNull byte[] getKey() {
+      return key;
+    }
+  }
+}
@@ -0,0 +1,291 @@
+package org.thoughtcrime.securesms.backup;
+
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.thoughtcrime.securesms.logging.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Describes the chain of local backup files written so far: a full base snapshot followed by zero
+ * or more delta files, each holding only what changed since the previous file in the chain.
+ *
+ * To know what changed, the manifest keeps a digest of every exported row, keyed by table and
+ * row id. It lives in private app storage rather than next to the backups, since the digests
+ * could otherwise be used to confirm guesses about message contents.
+ */
+public class BackupManifest {
+
+  private static final String TAG = BackupManifest.class.getSimpleName();
+
+  private static final String FILE_NAME      = "backup.manifest";
+  private static final int    FORMAT_VERSION = 1;
+  private static final int    MAX_DELTAS     = 6;
+
+  private final String                  baseName;
+  private final int                     deltaCount;
+  private final int                     databaseVersion;
+  private final byte[]                  passphraseDigest;
+  private final Map<String, RowDigests> tables;
+
+  private BackupManifest(@NonNull String baseName,
+                         int deltaCount,
+                         int databaseVersion,
+                         @NonNull byte[] passphraseDigest,
+                         @NonNull Map<String, RowDigests> tables)
+  {
+    this.baseName         = baseName;
+    this.deltaCount       = deltaCount;
+    this.databaseVersion  = databaseVersion;
+    this.passphraseDigest = passphraseDigest;
+    this.tables           = tables;
+  }
+
+  public static @Nullable BackupManifest read(@NonNull Context context) {
+    File file = new File(context.getFilesDir(), FILE_NAME);
+
+    if (!file.exists()) return null;
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != FORMAT_VERSION) return null;
+
+      String baseName         = in.readUTF();
+      int    deltaCount       = in.readInt();
+      int    databaseVersion  = in.readInt();
+      byte[] passphraseDigest = new byte[in.readInt()];
+
+      in.readFully(passphraseDigest);
+
+      int                     tableCount = in.readInt();
+      Map<String, RowDigests> tables     = new HashMap<>(tableCount);
+
+      for (int i=0;i<tableCount;i++) {
+        String table   = in.readUTF();
+        int    size    = in.readInt();
+        long[] ids     = new long[size];
+        long[] digests = new long[size];
+
+        for (int j=0;j<size;j++) {
+          ids[j]     = in.readLong();
+          digests[j] = in.readLong();
+        }
+
+        tables.put(table, new RowDigests(ids, digests, size));
+      }
+
+      return new BackupManifest(baseName, deltaCount, databaseVersion, passphraseDigest, tables);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+
+  public void write(@NonNull Context context) throws IOException {
+    File file     = new File(context.getFilesDir(), FILE_NAME);
+    File tempFile = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+      out.writeInt(FORMAT_VERSION);
+      out.writeUTF(baseName);
+      out.writeInt(deltaCount);
+      out.writeInt(databaseVersion);
+      out.writeInt(passphraseDigest.length);
+      out.write(passphraseDigest);
+      out.writeInt(tables.size());
+
+      for (Map.Entry<String, RowDigests> table : tables.entrySet()) {
+        RowDigests rows = table.getValue();
+
+        out.writeUTF(table.getKey());
+        out.writeInt(rows.size());
+
+        for (int i=0;i<rows.size();i++) {
+          out.writeLong(rows.getId(i));
+          out.writeLong(rows.getDigest(i));
+        }
+      }
+    }
+
+    if (!tempFile.renameTo(file)) {
+      tempFile.delete();
+      throw new IOException("Renaming temporary manifest failed!");
+    }
+  }
+
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  public static void delete(@NonNull Context context) {
+    new File(context.getFilesDir(), FILE_NAME).delete();
+  }
+
+  /**
+   * @return True if the next backup can be written as a delta on top of this chain, false if a new
+   *         base snapshot has to be written instead.
+   */
+  public boolean canAppendDelta(@NonNull File backupDirectory, @NonNull String passphrase, int databaseVersion) {
+    if (deltaCount >= MAX_DELTAS)                       return false;
+    if (this.databaseVersion != databaseVersion)        return false;
+    if (!new File(backupDirectory, baseName).exists())  return false;
+
+    if (!MessageDigest.isEqual(passphraseDigest, getPassphraseDigest(passphrase))) {
+      return false;
+    }
+
+    for (int i=1;i<=deltaCount;i++) {
+      if (!new File(backupDirectory, getDeltaName(baseName, i)).exists()) return false;
+    }
+
+    return !new File(backupDirectory, getNextDeltaName()).exists();
+  }
+
+  public @NonNull String getNextDeltaName() {
+    return getDeltaName(baseName, deltaCount + 1);
+  }
+
+  /**
+   * Deltas are named after their base, so "signal-2018-01-01-00-00-00.backup" is followed by
+   * "signal-2018-01-01-00-00-00.1.delta", "signal-2018-01-01-00-00-00.2.delta", and so on.
+   */
+  public static @NonNull String getDeltaName(@NonNull String baseName, int sequence) {
+    return getDeltaPrefix(baseName) + sequence + ".delta";
+  }
+
+  public static @NonNull String getDeltaPrefix(@NonNull String baseName) {
+    int extension = baseName.lastIndexOf('.');
+    return (extension == -1 ? baseName : baseName.substring(0, extension)) + ".";
+  }
+
+  static @NonNull Builder newBase(@NonNull String baseName, int databaseVersion, @NonNull String passphrase) {
+    return new Builder(null, baseName, 0, databaseVersion, getPassphraseDigest(passphrase));
+  }
+
+  @NonNull Builder newDelta() {
+    return new Builder(this, baseName, deltaCount + 1, databaseVersion, passphraseDigest);
+  }
+
+  private static @NonNull byte[] getPassphraseDigest(@NonNull String passphrase) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(passphrase.replace(" ", "").getBytes());
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  static class Builder {
+
+    private final BackupManifest          previous;
+    private final String                  baseName;
+    private final int                     deltaCount;
+    private final int                     databaseVersion;
+    private final byte[]                  passphraseDigest;
+    private final Map<String, RowDigests> tables = new HashMap<>();
+
+    private Builder(@Nullable BackupManifest previous,
+                    @NonNull String baseName,
+                    int deltaCount,
+                    int databaseVersion,
+                    @NonNull byte[] passphraseDigest)
+    {
+      this.previous         = previous;
+      this.baseName         = baseName;
+      this.deltaCount       = deltaCount;
+      this.databaseVersion  = databaseVersion;
+      this.passphraseDigest = passphraseDigest;
+    }
+
+    boolean isDelta() {
+      return previous != null;
+    }
+
+    /**
+     * @return The rows of this table as of the previous backup in the chain, or null if this is a
+     *         base snapshot or the table wasn't exported before.
+     */
+    @Nullable RowDigests getPreviousRows(@NonNull String table) {
+      return previous != null ? previous.tables.get(table) : null;
+    }
+
+    void putRows(@NonNull String table, @NonNull RowDigests rows) {
+      tables.put(table, rows);
+    }
+
+    @NonNull BackupManifest build() {
+      return new BackupManifest(baseName, deltaCount, databaseVersion, passphraseDigest, tables);
+    }
+  }
+
+  /**
+   * Row ids and row digests for a single table, sorted by row id.
+   */
+  static class RowDigests {
+
+    private final long[] ids;
+    private final long[] digests;
+    private final int    size;
+
+    private RowDigests(@NonNull long[] ids, @NonNull long[] digests, int size) {
+      this.ids     = ids;
+      this.digests = digests;
+      this.size    = size;
+    }
+
+    int size() {
+      return size;
+    }
+
+    long getId(int index) {
+      return ids[index];
+    }
+
+    long getDigest(int index) {
+      return digests[index];
+    }
+
+    /**
+     * @return The index of the row with this id, or a negative value if there is none.
+     */
+    int indexOf(long id) {
+      return Arrays.binarySearch(ids, 0, size, id);
+    }
+
+    static class Builder {
+
+      private long[] ids     = new long[64];
+      private long[] digests = new long[64];
+      private int    size;
+
+      void add(long id, long digest) {
+        if (size > 0 && id <= ids[size - 1]) {
+          throw new IllegalStateException("Rows must be added in increasing id order!");
+        }
+
+        if (size == ids.length) {
+          ids     = Arrays.copyOf(ids, size * 2);
+          digests = Arrays.copyOf(digests, size * 2);
+        }
+
+        ids[size]     = id;
+        digests[size] = digest;
+        size++;
+      }
+
+      @NonNull RowDigests build() {
+        return new RowDigests(ids, digests, size);
+      }
+    }
+  }
+}
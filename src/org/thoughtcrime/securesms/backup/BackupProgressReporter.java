@@ -0,0 +1,59 @@
+package org.thoughtcrime.securesms.backup;
+
+
+import org.greenrobot.eventbus.EventBus;
+import org.thoughtcrime.securesms.backup.FullBackupBase.BackupEvent;
+
+/**
+ * Posts {@link BackupEvent}s for a running backup export or import at a bounded rate.
+ *
+ * Callers can report every row they process, but an event is only posted if at least
+ * {@link #REPORT_INTERVAL_MILLIS} have passed since the previous one. When the expected total
+ * size is known, each event also carries an estimate of the time remaining, extrapolated from
+ * the rate so far.
+ */
+class BackupProgressReporter {
+
+  private static final long REPORT_INTERVAL_MILLIS = 250;
+
+  private final long expectedBytes;
+  private final long startTime;
+
+  private long lastReportTime;
+
+  /**
+   * @param expectedBytes The number of bytes expected to be processed in total, or a value less
+   *                      than or equal to zero if unknown.
+   */
+  BackupProgressReporter(long expectedBytes) {
+    this.expectedBytes = expectedBytes;
+    this.startTime     = System.currentTimeMillis();
+  }
+
+  void onProgress(int count, long bytes) {
+    long now = System.currentTimeMillis();
+
+    if (lastReportTime != 0 && now - lastReportTime < REPORT_INTERVAL_MILLIS) {
+      return;
+    }
+
+    lastReportTime = now;
+
+    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count, bytes, getEstimatedTimeRemaining(bytes, now)));
+  }
+
+  void onFinished(int count, long bytes) {
+    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, count, bytes, 0));
+  }
+
+  private long getEstimatedTimeRemaining(long bytes, long now) {
+    if (expectedBytes <= 0 || bytes <= 0) {
+      return -1;
+    }
+
+    double remainingBytes = Math.max(expectedBytes - bytes, 0);
+    double millisPerByte  = (double)(now - startTime) / bytes;
+
+    return (long)(remainingBytes * millisPerByte);
+  }
+}
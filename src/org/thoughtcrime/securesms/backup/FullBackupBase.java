@@ -4,9 +4,9 @@ package org.thoughtcrime.securesms.backup;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import org.greenrobot.eventbus.EventBus;
 import org.whispersystems.libsignal.util.ByteUtil;
 
+import java.io.InterruptedIOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -16,9 +16,14 @@ public abstract class FullBackupBase {
   private static final String TAG = FullBackupBase.class.getSimpleName();
 
   static class BackupStream {
-    static @NonNull byte[] getBackupKey(@NonNull String passphrase, @Nullable byte[] salt) {
+    /**
+     * Stretches the passphrase into a backup key. This takes a while, and can be cancelled by
+     * interrupting the calling thread.
+     */
+    static @NonNull byte[] getBackupKey(@NonNull String passphrase, @Nullable byte[] salt) throws InterruptedIOException {
       try {
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, 0));
+        BackupProgressReporter progress = new BackupProgressReporter(-1);
+        progress.onProgress(0, 0);
 
         MessageDigest digest = MessageDigest.getInstance("SHA-512");
         byte[]        input  = passphrase.replace(" ", "").getBytes();
@@ -27,7 +32,11 @@ public abstract class FullBackupBase {
         if (salt != null) digest.update(salt);
 
         for (int i=0;i<250000;i++) {
-          if (i % 1000 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, 0));
+          if (i % 1000 == 0) {
+            if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException("Key derivation cancelled");
+            progress.onProgress(0, 0);
+          }
+
           digest.update(hash);
           hash = digest.digest(input);
         }
@@ -46,11 +55,15 @@ public abstract class FullBackupBase {
     }
 
     private final Type type;
-    private final int count;
-
-    BackupEvent(Type type, int count) {
-      this.type  = type;
-      this.count = count;
+    private final int  count;
+    private final long bytes;
+    private final long estimatedTimeRemaining;
+
+    BackupEvent(Type type, int count, long bytes, long estimatedTimeRemaining) {
+      this.type                   = type;
+      this.count                  = count;
+      this.bytes                  = bytes;
+      this.estimatedTimeRemaining = estimatedTimeRemaining;
     }
 
     public Type getType() {
@@ -60,6 +73,17 @@ public abstract class FullBackupBase {
     public int getCount() {
       return count;
     }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * @return The estimated number of milliseconds until the backup completes, or -1 if unknown.
+     */
+    public long getEstimatedTimeRemaining() {
+      return estimatedTimeRemaining;
+    }
   }
 
 }
@@ -13,17 +13,19 @@ import com.google.protobuf.ByteString;
 
 import net.sqlcipher.database.SQLiteDatabase;
 
-import org.greenrobot.eventbus.EventBus;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ClassicDecryptingPartInputStream;
 import org.thoughtcrime.securesms.crypto.IdentityKeyUtil;
 import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.AttachmentSummary;
+import org.thoughtcrime.securesms.database.EarlyReceiptStore;
 import org.thoughtcrime.securesms.database.GroupReceiptDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.database.MmsSmsColumns;
 import org.thoughtcrime.securesms.database.OneTimePreKeyDatabase;
+import org.thoughtcrime.securesms.database.PendingReceiptStore;
 import org.thoughtcrime.securesms.database.SearchDatabase;
 import org.thoughtcrime.securesms.database.SessionDatabase;
 import org.thoughtcrime.securesms.database.SignedPreKeyDatabase;
@@ -41,68 +43,98 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-
 public class FullBackupExporter extends FullBackupBase {
 
   @SuppressWarnings("unused")
   private static final String TAG = FullBackupExporter.class.getSimpleName();
 
-  public static void export(@NonNull Context context,
-                            @NonNull AttachmentSecret attachmentSecret,
-                            @NonNull SQLiteDatabase input,
-                            @NonNull File output,
-                            @NonNull String passphrase)
+  private static final String ID = "_id";
+
+  /**
+   * Writes a backup of the database, attachments, avatars and preferences to the output file.
+   *
+   * @param backupName The name the backup will be published under.
+   * @param previous The manifest of the backup chain to extend, or null to write a new base
+   *                 snapshot. When extending a chain, the output only holds rows that were added,
+   *                 changed or removed since the previous backup, and attachments for those rows.
+   * @return A manifest describing the backup chain, including this backup.
+   */
+  public static @NonNull BackupManifest export(@NonNull Context context,
+                                               @NonNull AttachmentSecret attachmentSecret,
+                                               @NonNull SQLiteDatabase input,
+                                               @NonNull File output,
+                                               @NonNull String passphrase,
+                                               @NonNull String backupName,
+                                               @Nullable BackupManifest previous)
+      throws IOException
+  {
+    BackupFrameOutputStream outputStream = new BackupFrameOutputStream(context, output, passphrase);
+    BackupProgressReporter  progress     = new BackupProgressReporter(previous == null ? estimateExportSize(input) : -1);
+    BackupManifest.Builder  manifest     = previous == null ? BackupManifest.newBase(backupName, input.getVersion(), passphrase)
+                                                            : previous.newDelta();
+    int                     count;
+
+    try {
+      count = export(context, attachmentSecret, input, outputStream, progress, manifest);
+    } finally {
+      outputStream.close();
+    }
+
+    progress.onFinished(++count, outputStream.getBytesWritten());
+
+    return manifest.build();
+  }
+
+  private static int export(@NonNull Context context,
+                             @NonNull AttachmentSecret attachmentSecret,
+                             @NonNull SQLiteDatabase input,
+                             @NonNull BackupFrameOutputStream outputStream,
+                             @NonNull BackupProgressReporter progress,
+                             @NonNull BackupManifest.Builder manifest)
       throws IOException
   {
-    BackupFrameOutputStream outputStream = new BackupFrameOutputStream(output, passphrase);
     outputStream.writeDatabaseVersion(input.getVersion());
 
-    List<String> tables = exportSchema(input, outputStream);
+    List<String> tables = manifest.isDelta() ? getTables(input) : exportSchema(input, outputStream);
     int          count  = 0;
 
     for (String table : tables) {
       if (table.equals(SmsDatabase.TABLE_NAME) || table.equals(MmsDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> cursor.getInt(cursor.getColumnIndexOrThrow(MmsSmsColumns.EXPIRES_IN)) <= 0, null, count);
+        count = exportTable(table, selectAll(table), input, outputStream, progress, manifest, cursor -> cursor.getInt(cursor.getColumnIndexOrThrow(MmsSmsColumns.EXPIRES_IN)) <= 0, null, count);
       } else if (table.equals(GroupReceiptDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptDatabase.MMS_ID))), null, count);
+        count = exportTable(table, selectForNonExpiringMessages(table, GroupReceiptDatabase.MMS_ID), input, outputStream, progress, manifest, null, null, count);
       } else if (table.equals(AttachmentDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID))), cursor -> exportAttachment(attachmentSecret, cursor, outputStream), count);
+        count = exportTable(table, selectForNonExpiringMessages(table, AttachmentDatabase.MMS_ID), input, outputStream, progress, manifest, null, cursor -> exportAttachment(attachmentSecret, cursor, outputStream), count);
       } else if (!table.equals(SignedPreKeyDatabase.TABLE_NAME)       &&
+                 !table.equals(AttachmentSummary.TABLE_NAME)          &&
+                 !table.equals(EarlyReceiptStore.TABLE_NAME)          &&
+                 !table.equals(PendingReceiptStore.TABLE_NAME)        &&
                  !table.equals(OneTimePreKeyDatabase.TABLE_NAME)      &&
                  !table.equals(SessionDatabase.TABLE_NAME)            &&
                  !table.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME) &&
                  !table.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME))
       {
-        count = exportTable(table, input, outputStream, null, null, count);
+        count = exportTable(table, selectAll(table), input, outputStream, progress, manifest, null, null, count);
       }
     }
 
     for (BackupProtos.SharedPreference preference : IdentityKeyUtil.getBackupRecord(context)) {
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+      progress.onProgress(++count, outputStream.getBytesWritten());
       outputStream.write(preference);
     }
 
     for (File avatar : AvatarHelper.getAvatarFiles(context)) {
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+      progress.onProgress(++count, outputStream.getBytesWritten());
       outputStream.write(avatar.getName(), new FileInputStream(avatar), avatar.length());
     }
 
     outputStream.writeEnd();
-    outputStream.close();
-    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, ++count));
+
+    return count;
   }
 
   private static List<String> exportSchema(@NonNull SQLiteDatabase input, @NonNull BackupFrameOutputStream outputStream)
@@ -135,60 +167,178 @@ public class FullBackupExporter extends FullBackupBase {
     return tables;
   }
 
+  private static List<String> getTables(@NonNull SQLiteDatabase input) {
+    List<String> tables = new LinkedList<>();
+
+    try (Cursor cursor = input.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND sql IS NOT NULL", null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        tables.add(cursor.getString(0));
+      }
+    }
+
+    return tables;
+  }
+
+  /**
+   * A rough estimate of the plaintext size of an export, used only to extrapolate the time
+   * remaining: the size of the database file plus the size of every attachment.
+   */
+  private static long estimateExportSize(@NonNull SQLiteDatabase input) {
+    long size = new File(input.getPath()).length();
+
+    try (Cursor cursor = input.rawQuery("SELECT SUM(" + AttachmentDatabase.SIZE + ") FROM " + AttachmentDatabase.TABLE_NAME, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        size += cursor.getLong(0);
+      }
+    }
+
+    return size;
+  }
+
+  private static String selectAll(@NonNull String table) {
+    return "SELECT * FROM " + table + " ORDER BY rowid";
+  }
+
+  /**
+   * Selects the rows of a table that belong to an MMS which exists and doesn't expire. This used to
+   * be a separate lookup against the MMS table for every row, which dominated the export time of
+   * the part and group receipt tables.
+   */
+  private static String selectForNonExpiringMessages(@NonNull String table, @NonNull String mmsIdColumn) {
+    return "SELECT " + table + ".* FROM " + table + " INNER JOIN " + MmsDatabase.TABLE_NAME +
+           " ON " + table + "." + mmsIdColumn + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID +
+           " WHERE " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.EXPIRES_IN + " = 0" +
+           " ORDER BY " + table + ".rowid";
+  }
+
   private static int exportTable(@NonNull   String table,
+                                 @NonNull   String query,
                                  @NonNull   SQLiteDatabase input,
                                  @NonNull   BackupFrameOutputStream outputStream,
+                                 @NonNull   BackupProgressReporter progress,
+                                 @NonNull   BackupManifest.Builder manifest,
                                  @Nullable  Predicate<Cursor> predicate,
                                  @Nullable  Consumer<Cursor> postProcess,
                                             int count)
       throws IOException
   {
-    String template = "INSERT INTO " + table + " VALUES ";
+    String                            template     = "INSERT INTO " + table + " VALUES ";
+    BackupManifest.RowDigests         previousRows = manifest.getPreviousRows(table);
+    BitSet                            previousSeen = new BitSet();
+    BackupManifest.RowDigests.Builder rows         = new BackupManifest.RowDigests.Builder();
+    long                              startTime    = System.currentTimeMillis();
+    long                              startSize    = outputStream.getBytesWritten();
+    int                               scanned      = 0;
+    int                               exported     = 0;
+
+    try (Cursor cursor = input.rawQuery(query, null)) {
+      int idColumn = cursor != null ? cursor.getColumnIndex(ID) : -1;
+
+      // Rows without an id can't be matched up with the previous backup, so a delta replaces
+      // the whole table instead. Only tiny bookkeeping tables like android_metadata lack one.
+      if (manifest.isDelta() && idColumn == -1) {
+        outputStream.write(BackupProtos.SqlStatement.newBuilder().setStatement("DELETE FROM " + table).build());
+      }
 
-    try (Cursor cursor = input.rawQuery("SELECT * FROM " + table, null)) {
       while (cursor != null && cursor.moveToNext()) {
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+        progress.onProgress(++count, outputStream.getBytesWritten());
+        scanned++;
 
         if (predicate == null || predicate.test(cursor)) {
-          StringBuilder                     statement        = new StringBuilder(template);
-          BackupProtos.SqlStatement.Builder statementBuilder = BackupProtos.SqlStatement.newBuilder();
-
-          statement.append('(');
-
-          for (int i=0;i<cursor.getColumnCount();i++) {
-            statement.append('?');
-
-            if (cursor.getType(i) == Cursor.FIELD_TYPE_STRING) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter(cursor.getString(i)));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_FLOAT) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setDoubleParameter(cursor.getDouble(i)));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(cursor.getLong(i)));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setBlobParameter(ByteString.copyFrom(cursor.getBlob(i))));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_NULL) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setNullparameter(true));
-            } else {
-              throw new AssertionError("unknown type?"  + cursor.getType(i));
-            }
+          BackupProtos.SqlStatement statement = getInsertStatement(template, cursor);
+
+          if (idColumn != -1) {
+            long id     = cursor.getLong(idColumn);
+            long digest = getDigest(statement.toByteArray());
+            int  index  = previousRows != null ? previousRows.indexOf(id) : -1;
+
+            rows.add(id, digest);
 
-            if (i < cursor.getColumnCount()-1) {
-              statement.append(',');
+            if (index >= 0) {
+              previousSeen.set(index);
+
+              if (previousRows.getDigest(index) == digest) continue;
+              else                                         outputStream.write(getDeleteStatement(table, id));
             }
           }
 
-          statement.append(')');
-
-          outputStream.write(statementBuilder.setStatement(statement.toString()).build());
+          exported++;
+          outputStream.write(statement);
 
           if (postProcess != null) postProcess.accept(cursor);
         }
       }
     }
 
+    if (previousRows != null) {
+      for (int i=previousSeen.nextClearBit(0);i<previousRows.size();i=previousSeen.nextClearBit(i + 1)) {
+        outputStream.write(getDeleteStatement(table, previousRows.getId(i)));
+      }
+    }
+
+    manifest.putRows(table, rows.build());
+
+    Log.i(TAG, "Exported " + table + ": " + exported + "/" + scanned + " rows, " +
+               (outputStream.getBytesWritten() - startSize) + " bytes, " +
+               (System.currentTimeMillis() - startTime) + "ms");
+
     return count;
   }
 
+  private static BackupProtos.SqlStatement getInsertStatement(@NonNull String template, @NonNull Cursor cursor) {
+    StringBuilder                     statement        = new StringBuilder(template);
+    BackupProtos.SqlStatement.Builder statementBuilder = BackupProtos.SqlStatement.newBuilder();
+
+    statement.append('(');
+
+    for (int i=0;i<cursor.getColumnCount();i++) {
+      statement.append('?');
+
+      if (cursor.getType(i) == Cursor.FIELD_TYPE_STRING) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter(cursor.getString(i)));
+      } else if (cursor.getType(i) == Cursor.FIELD_TYPE_FLOAT) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setDoubleParameter(cursor.getDouble(i)));
+      } else if (cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(cursor.getLong(i)));
+      } else if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setBlobParameter(ByteString.copyFrom(cursor.getBlob(i))));
+      } else if (cursor.getType(i) == Cursor.FIELD_TYPE_NULL) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setNullparameter(true));
+      } else {
+        throw new AssertionError("unknown type?"  + cursor.getType(i));
+      }
+
+      if (i < cursor.getColumnCount()-1) {
+        statement.append(',');
+      }
+    }
+
+    statement.append(')');
+
+    return statementBuilder.setStatement(statement.toString()).build();
+  }
+
+  private static BackupProtos.SqlStatement getDeleteStatement(@NonNull String table, long id) {
+    return BackupProtos.SqlStatement.newBuilder()
+                                    .setStatement("DELETE FROM " + table + " WHERE " + ID + " = ?")
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(id))
+                                    .build();
+  }
+
+  /**
+   * A 64-bit FNV-1a hash, used to notice when a row has changed between backups.
+   */
+  private static long getDigest(@NonNull byte[] bytes) {
+    long digest = 0xcbf29ce484222325L;
+
+    for (byte b : bytes) {
+      digest ^= (b & 0xff);
+      digest *= 0x100000001b3L;
+    }
+
+    return digest;
+  }
+
   private static void exportAttachment(@NonNull AttachmentSecret attachmentSecret, @NonNull Cursor cursor, @NonNull BackupFrameOutputStream outputStream) {
     try {
       long rowId    = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.ROW_ID));
@@ -232,153 +382,99 @@ public class FullBackupExporter extends FullBackupBase {
     return result;
   }
 
-  private static boolean isForNonExpiringMessage(@NonNull SQLiteDatabase db, long mmsId) {
-    String[] columns = new String[] { MmsDatabase.EXPIRES_IN };
-    String   where   = MmsDatabase.ID + " = ?";
-    String[] args    = new String[] { String.valueOf(mmsId) };
-
-    try (Cursor mmsCursor = db.query(MmsDatabase.TABLE_NAME, columns, where, args, null, null, null)) {
-      if (mmsCursor != null && mmsCursor.moveToFirst()) {
-        return mmsCursor.getLong(0) == 0;
-      }
-    }
-
-    return false;
-  }
-
-
   private static class BackupFrameOutputStream extends BackupStream {
 
-    private final OutputStream outputStream;
-    private final Cipher       cipher;
-    private final Mac          mac;
+    private final PipelinedBackupWriter writer;
+
+    private long bytesWritten;
 
-    private final byte[]       cipherKey;
-    private final byte[]       macKey;
+    private BackupFrameOutputStream(@NonNull Context context, @NonNull File output, @NonNull String passphrase) throws IOException {
+      BackupKeyCache.CachedKey cachedKey = BackupKeyCache.get(context, passphrase);
+      byte[]                   salt;
+      byte[]                   key;
 
-    private byte[] iv;
-    private int    counter;
+      if (cachedKey != null) {
+        salt = cachedKey.getSalt();
+        key  = cachedKey.getKey();
+      } else {
+        salt = Util.getSecretBytes(32);
+        key  = getBackupKey(passphrase, salt);
 
-    private BackupFrameOutputStream(@NonNull File output, @NonNull String passphrase) throws IOException {
-      try {
-        byte[]   salt    = Util.getSecretBytes(32);
-        byte[]   key     = getBackupKey(passphrase, salt);
-        byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
-        byte[][] split   = ByteUtil.split(derived, 32, 32);
+        BackupKeyCache.set(context, passphrase, salt, key);
+      }
 
-        this.cipherKey = split[0];
-        this.macKey    = split[1];
+      byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
+      byte[][] split   = ByteUtil.split(derived, 32, 32);
+      byte[]   iv      = Util.getSecretBytes(16);
 
-        this.cipher       = Cipher.getInstance("AES/CTR/NoPadding");
-        this.mac          = Mac.getInstance("HmacSHA256");
-        this.outputStream = new FileOutputStream(output);
-        this.iv           = Util.getSecretBytes(16);
-        this.counter      = Conversions.byteArrayToInt(iv);
+      OutputStream outputStream = new FileOutputStream(output);
 
-        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+      byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(BackupProtos.Header.newBuilder()
+                                                                                         .setIv(ByteString.copyFrom(iv))
+                                                                                         .setSalt(ByteString.copyFrom(salt)))
+                                              .build().toByteArray();
 
-        byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(BackupProtos.Header.newBuilder()
-                                                                                           .setIv(ByteString.copyFrom(iv))
-                                                                                           .setSalt(ByteString.copyFrom(salt)))
-                                                .build().toByteArray();
+      outputStream.write(Conversions.intToByteArray(header.length));
+      outputStream.write(header);
 
-        outputStream.write(Conversions.intToByteArray(header.length));
-        outputStream.write(header);
-      } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
-        throw new AssertionError(e);
-      }
+      this.writer = new PipelinedBackupWriter(outputStream, split[0], split[1], iv, Runtime.getRuntime().availableProcessors());
     }
 
     public void write(BackupProtos.SharedPreference preference) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
+      write(BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
     }
 
     public void write(BackupProtos.SqlStatement statement) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
+      write(BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
     }
 
     public void write(@NonNull String avatarName, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setAvatar(BackupProtos.Avatar.newBuilder()
-                                                                                .setName(avatarName)
-                                                                                .setLength(Util.toIntExact(size))
-                                                                                .build())
-                                                  .build());
-
-      writeStream(in);
+      write(BackupProtos.BackupFrame.newBuilder()
+                                    .setAvatar(BackupProtos.Avatar.newBuilder()
+                                                                  .setName(avatarName)
+                                                                  .setLength(Util.toIntExact(size))
+                                                                  .build())
+                                    .build(),
+            in, size);
     }
 
     public void write(@NonNull AttachmentId attachmentId, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setAttachment(BackupProtos.Attachment.newBuilder()
-                                                                                        .setRowId(attachmentId.getRowId())
-                                                                                        .setAttachmentId(attachmentId.getUniqueId())
-                                                                                        .setLength(Util.toIntExact(size))
-                                                                                        .build())
-                                                  .build());
-
-      writeStream(in);
+      write(BackupProtos.BackupFrame.newBuilder()
+                                    .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                          .setRowId(attachmentId.getRowId())
+                                                                          .setAttachmentId(attachmentId.getUniqueId())
+                                                                          .setLength(Util.toIntExact(size))
+                                                                          .build())
+                                    .build(),
+            in, size);
     }
 
     void writeDatabaseVersion(int version) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
-                                                  .build());
+      write(BackupProtos.BackupFrame.newBuilder()
+                                    .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
+                                    .build());
     }
 
     void writeEnd() throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+      write(BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
     }
 
-    private void writeStream(@NonNull InputStream inputStream) throws IOException {
-      try {
-        Conversions.intToByteArray(iv, 0, counter++);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
-        mac.update(iv);
-
-        byte[] buffer = new byte[8192];
-        int read;
-
-        while ((read = inputStream.read(buffer)) != -1) {
-          byte[] ciphertext = cipher.update(buffer, 0, read);
-
-          if (ciphertext != null) {
-            outputStream.write(ciphertext);
-            mac.update(ciphertext);
-          }
-        }
-
-        byte[] remainder = cipher.doFinal();
-        outputStream.write(remainder);
-        mac.update(remainder);
-
-        byte[] attachmentDigest = mac.doFinal();
-        outputStream.write(attachmentDigest, 0, 10);
-      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-        throw new AssertionError(e);
-      }
+    long getBytesWritten() {
+      return bytesWritten;
     }
 
-    private void write(@NonNull OutputStream out, @NonNull BackupProtos.BackupFrame frame) throws IOException {
-      try {
-        Conversions.intToByteArray(iv, 0, counter++);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
-
-        byte[] frameCiphertext = cipher.doFinal(frame.toByteArray());
-        byte[] frameMac        = mac.doFinal(frameCiphertext);
-        byte[] length          = Conversions.intToByteArray(frameCiphertext.length + 10);
-
-        out.write(length);
-        out.write(frameCiphertext);
-        out.write(frameMac, 0, 10);
-      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-        throw new AssertionError(e);
-      }
+    private void write(@NonNull BackupProtos.BackupFrame frame) throws IOException {
+      bytesWritten += frame.getSerializedSize();
+      writer.write(frame);
     }
 
+    private void write(@NonNull BackupProtos.BackupFrame frame, @NonNull InputStream in, long size) throws IOException {
+      bytesWritten += frame.getSerializedSize() + size;
+      writer.write(frame, in, size);
+    }
 
     public void close() throws IOException {
-      outputStream.close();
+      writer.close();
     }
   }
 }
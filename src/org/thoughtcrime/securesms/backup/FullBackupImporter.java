@@ -7,14 +7,15 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.logging.Log;
 import android.util.Pair;
 
 import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
 
-import org.greenrobot.eventbus.EventBus;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.backup.BackupProtos.Attachment;
 import org.thoughtcrime.securesms.backup.BackupProtos.BackupFrame;
@@ -25,15 +26,19 @@ import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
 import org.thoughtcrime.securesms.database.Address;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.AttachmentSummary;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.GroupReceiptDatabase;
+import org.thoughtcrime.securesms.database.InvalidationBus;
 import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.database.SearchDatabase;
+import org.thoughtcrime.securesms.database.SmsDatabase;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
 import org.thoughtcrime.securesms.notifications.NotificationChannels;
 import org.thoughtcrime.securesms.profiles.AvatarHelper;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.util.Conversions;
+import org.thoughtcrime.securesms.util.Hex;
 import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libsignal.kdf.HKDFv3;
 import org.whispersystems.libsignal.util.ByteUtil;
@@ -43,13 +48,23 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -68,34 +83,99 @@ public class FullBackupImporter extends FullBackupBase {
                                 @NonNull SQLiteDatabase db, @NonNull File file, @NonNull String passphrase)
       throws IOException
   {
-    BackupRecordInputStream inputStream = new BackupRecordInputStream(file, passphrase);
-    int                     count       = 0;
+    importFile(context, attachmentSecret, db, file, Collections.<File>emptyList(), passphrase);
+  }
+
+  /**
+   * Restores a base backup followed by the deltas written on top of it, in order, as a single
+   * transaction.
+   */
+  public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                @NonNull SQLiteDatabase db, @NonNull File file, @NonNull List<File> deltas,
+                                @NonNull String passphrase)
+      throws IOException
+  {
+    List<File> files = new LinkedList<>();
+    files.add(file);
+    files.addAll(deltas);
+
+    BackupProgressReporter       progress           = new BackupProgressReporter(getTotalLength(files));
+    List<File>                   restoredFiles      = new LinkedList<>();
+    Map<String, SQLiteStatement> compiledStatements = new HashMap<>();
+    List<String>                 deferredStatements = new LinkedList<>();
+    int                          count              = 0;
+    long                         bytesRead          = 0;
+
+    BackupKeyDerivation           keys            = new BackupKeyDerivation(passphrase);
+    List<BackupRecordInputStream> inputStreams    = new LinkedList<>();
+    InvalidationBus               invalidationBus = DatabaseFactory.getInvalidationBus(context);
+
+    invalidationBus.suspend();
 
     try {
+      for (File backup : files) {
+        inputStreams.add(new BackupRecordInputStream(backup, keys));
+      }
+
       db.beginTransaction();
 
-      dropAllTables(db);
+      try {
+        dropAllTables(db);
 
-      BackupFrame frame;
+        for (BackupRecordInputStream inputStream : inputStreams) {
+          BackupFrame frame;
 
-      while (!(frame = inputStream.readFrame()).getEnd()) {
-        if (count++ % 100 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count));
+          while (!(frame = inputStream.readFrame()).getEnd()) {
+            progress.onProgress(++count, bytesRead + inputStream.getBytesRead());
 
-        if      (frame.hasVersion())    processVersion(db, frame.getVersion());
-        else if (frame.hasStatement())  processStatement(db, frame.getStatement());
-        else if (frame.hasPreference()) processPreference(context, frame.getPreference());
-        else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream);
-        else if (frame.hasAvatar())     processAvatar(context, frame.getAvatar(), inputStream);
-      }
+            if      (frame.hasVersion())    processVersion(db, frame.getVersion());
+            else if (frame.hasStatement())  processStatement(db, frame.getStatement(), compiledStatements, deferredStatements);
+            else if (frame.hasPreference()) processPreference(context, frame.getPreference());
+            else if (frame.hasAttachment()) restoredFiles.add(processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream));
+            else if (frame.hasAvatar())     processAvatar(context, frame.getAvatar(), inputStream);
+          }
 
-      trimEntriesForExpiredMessages(context, db);
+          bytesRead += inputStream.getBytesRead();
+        }
+
+        for (String statement : deferredStatements) {
+          db.execSQL(statement);
+        }
+
+        populateSearchIndex(db);
+        rebuildAttachmentSummaries(db);
+        trimEntriesForExpiredMessages(context, db);
+
+        if (!deltas.isEmpty()) deleteUnreferencedAttachments(db, restoredFiles);
+
+        db.setTransactionSuccessful();
+      } finally {
+        for (SQLiteStatement statement : compiledStatements.values()) {
+          statement.close();
+        }
 
-      db.setTransactionSuccessful();
+        db.endTransaction();
+      }
     } finally {
-      db.endTransaction();
+      for (BackupRecordInputStream inputStream : inputStreams) {
+        inputStream.close();
+      }
+
+      keys.shutdown();
+      invalidationBus.resume();
     }
 
-    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, count));
+    progress.onFinished(count, bytesRead);
+  }
+
+  private static long getTotalLength(@NonNull List<File> files) {
+    long length = 0;
+
+    for (File file : files) {
+      length += file.length();
+    }
+
+    return length;
   }
 
   private static void processVersion(@NonNull SQLiteDatabase db, DatabaseVersion version) throws IOException {
@@ -106,7 +186,17 @@ public class FullBackupImporter extends FullBackupBase {
     db.setVersion(version.getVersion());
   }
 
-  private static void processStatement(@NonNull SQLiteDatabase db, SqlStatement statement) {
+  /**
+   * Rows are inserted through statements compiled once per distinct statement text, which for a
+   * table means once in total. Index and trigger creation is deferred until after the rows are
+   * loaded, so that indexes are built in a single pass and the search index triggers don't fire
+   * for every row.
+   */
+  private static void processStatement(@NonNull SQLiteDatabase db,
+                                       @NonNull SqlStatement statement,
+                                       @NonNull Map<String, SQLiteStatement> compiledStatements,
+                                       @NonNull List<String> deferredStatements)
+  {
     boolean isForSmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.SMS_FTS_TABLE_NAME + "_");
     boolean isForMmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.MMS_FTS_TABLE_NAME + "_");
 
@@ -115,21 +205,79 @@ public class FullBackupImporter extends FullBackupBase {
       return;
     }
 
-    List<Object> parameters = new LinkedList<>();
+    if (statement.getParametersCount() == 0) {
+      if (isIndexOrTrigger(statement.getStatement())) deferredStatements.add(statement.getStatement());
+      else                                            db.execSQL(statement.getStatement());
+      return;
+    }
+
+    SQLiteStatement compiled = compiledStatements.get(statement.getStatement());
+
+    if (compiled == null) {
+      compiled = db.compileStatement(statement.getStatement());
+      compiledStatements.put(statement.getStatement(), compiled);
+    }
+
+    compiled.clearBindings();
+
+    int index = 1;
 
     for (SqlStatement.SqlParameter parameter : statement.getParametersList()) {
-      if      (parameter.hasStringParamter())   parameters.add(parameter.getStringParamter());
-      else if (parameter.hasDoubleParameter())  parameters.add(parameter.getDoubleParameter());
-      else if (parameter.hasIntegerParameter()) parameters.add(parameter.getIntegerParameter());
-      else if (parameter.hasBlobParameter())    parameters.add(parameter.getBlobParameter().toByteArray());
-      else if (parameter.hasNullparameter())    parameters.add(null);
+      if      (parameter.hasStringParamter())   compiled.bindString(index++, parameter.getStringParamter());
+      else if (parameter.hasDoubleParameter())  compiled.bindDouble(index++, parameter.getDoubleParameter());
+      else if (parameter.hasIntegerParameter()) compiled.bindLong(index++, parameter.getIntegerParameter());
+      else if (parameter.hasBlobParameter())    compiled.bindBlob(index++, parameter.getBlobParameter().toByteArray());
+      else if (parameter.hasNullparameter())    compiled.bindNull(index++);
+    }
+
+    compiled.execute();
+  }
+
+  private static boolean isIndexOrTrigger(@NonNull String statement) {
+    return startsWithIgnoreCase(statement, "CREATE INDEX")        ||
+           startsWithIgnoreCase(statement, "CREATE UNIQUE INDEX") ||
+           startsWithIgnoreCase(statement, "CREATE TRIGGER");
+  }
+
+  private static boolean startsWithIgnoreCase(@NonNull String value, @NonNull String prefix) {
+    return value.regionMatches(true, 0, prefix, 0, prefix.length());
+  }
+
+  /**
+   * The search index triggers were deferred while the messages were loaded, so the index is
+   * populated here in one pass instead, the same way the original search migration did.
+   */
+  private static void populateSearchIndex(@NonNull SQLiteDatabase db) {
+    if (tableExists(db, SearchDatabase.SMS_FTS_TABLE_NAME)) {
+      db.execSQL("INSERT INTO " + SearchDatabase.SMS_FTS_TABLE_NAME + " (" + SearchDatabase.ID + ", " + SearchDatabase.BODY + ") " +
+                 "SELECT " + SmsDatabase.ID + ", " + SmsDatabase.BODY + " FROM " + SmsDatabase.TABLE_NAME);
+    }
+
+    if (tableExists(db, SearchDatabase.MMS_FTS_TABLE_NAME)) {
+      db.execSQL("INSERT INTO " + SearchDatabase.MMS_FTS_TABLE_NAME + " (" + SearchDatabase.ID + ", " + SearchDatabase.BODY + ") " +
+                 "SELECT " + MmsDatabase.ID + ", " + MmsDatabase.BODY + " FROM " + MmsDatabase.TABLE_NAME);
+    }
+  }
+
+  /**
+   * The attachment summaries aren't exported, and their triggers were deferred along with the
+   * others, so they're rebuilt from the restored part table here.
+   */
+  private static void rebuildAttachmentSummaries(@NonNull SQLiteDatabase db) {
+    if (tableExists(db, AttachmentSummary.TABLE_NAME)) {
+      for (String statement : AttachmentSummary.REBUILD) {
+        db.execSQL(statement);
+      }
     }
+  }
 
-    if (parameters.size() > 0) db.execSQL(statement.getStatement(), parameters.toArray());
-    else                       db.execSQL(statement.getStatement());
+  private static boolean tableExists(@NonNull SQLiteDatabase db, @NonNull String table) {
+    try (Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?", new String[] { table })) {
+      return cursor != null && cursor.moveToFirst();
+    }
   }
 
-  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
+  private static @NonNull File processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
       throws IOException
   {
     File partsDirectory = context.getDir(AttachmentDatabase.DIRECTORY, Context.MODE_PRIVATE);
@@ -147,6 +295,8 @@ public class FullBackupImporter extends FullBackupBase {
     db.update(AttachmentDatabase.TABLE_NAME, contentValues,
               AttachmentDatabase.ROW_ID + " = ? AND " + AttachmentDatabase.UNIQUE_ID + " = ?",
               new String[] {String.valueOf(attachment.getRowId()), String.valueOf(attachment.getAttachmentId())});
+
+    return dataFile;
   }
 
   private static void processAvatar(@NonNull Context context, @NonNull BackupProtos.Avatar avatar, @NonNull BackupRecordInputStream inputStream) throws IOException {
@@ -194,19 +344,76 @@ public class FullBackupImporter extends FullBackupBase {
   }
 
 
+  /**
+   * A delta replaces a changed attachment row along with its data, and removes deleted ones
+   * outright, which leaves the files restored for the earlier versions of those rows behind.
+   */
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  private static void deleteUnreferencedAttachments(@NonNull SQLiteDatabase db, @NonNull List<File> restoredFiles) {
+    Set<String> referenced = new HashSet<>();
+    String[]    columns    = new String[] { AttachmentDatabase.DATA };
+    String      where      = AttachmentDatabase.DATA + " IS NOT NULL";
+
+    try (Cursor cursor = db.query(AttachmentDatabase.TABLE_NAME, columns, where, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        referenced.add(cursor.getString(0));
+      }
+    }
+
+    for (File file : restoredFiles) {
+      if (!referenced.contains(file.getAbsolutePath())) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Stretches the passphrase on a background thread, so that the key is derived while the backup
+   * files are opened and the database is prepared for the import. A base and its deltas usually
+   * share a salt, in which case they share a single derivation.
+   */
+  private static class BackupKeyDerivation {
+
+    private final ExecutorService             executor = Executors.newSingleThreadExecutor();
+    private final Map<String, Future<byte[]>> keys     = new HashMap<>();
+    private final String                      passphrase;
+
+    private BackupKeyDerivation(@NonNull String passphrase) {
+      this.passphrase = passphrase;
+    }
+
+    @NonNull Future<byte[]> getKey(@Nullable byte[] salt) {
+      String         id  = salt != null ? Hex.toStringCondensed(salt) : "";
+      Future<byte[]> key = keys.get(id);
+
+      if (key == null) {
+        key = executor.submit(() -> BackupStream.getBackupKey(passphrase, salt));
+        keys.put(id, key);
+      }
+
+      return key;
+    }
+
+    void shutdown() {
+      executor.shutdownNow();
+    }
+  }
+
   private static class BackupRecordInputStream extends BackupStream {
 
-    private final InputStream in;
-    private final Cipher      cipher;
-    private final Mac         mac;
+    private final InputStream    in;
+    private final Cipher         cipher;
+    private final Mac            mac;
+    private final Future<byte[]> key;
 
-    private final byte[] cipherKey;
-    private final byte[] macKey;
+    private byte[] cipherKey;
+    private byte[] macKey;
 
     private byte[] iv;
     private int    counter;
+    private long   bytesRead;
 
-    private BackupRecordInputStream(@NonNull File file, @NonNull String passphrase) throws IOException {
+    private BackupRecordInputStream(@NonNull File file, @NonNull BackupKeyDerivation keys) throws IOException {
       try {
         this.in     = new FileInputStream(file);
 
@@ -217,6 +424,8 @@ public class FullBackupImporter extends FullBackupBase {
         byte[] headerFrame = new byte[headerLength];
         Util.readFully(in, headerFrame);
 
+        this.bytesRead = headerLengthBytes.length + headerFrame.length;
+
         BackupFrame frame = BackupFrame.parseFrom(headerFrame);
 
         if (!frame.hasHeader()) {
@@ -231,27 +440,50 @@ public class FullBackupImporter extends FullBackupBase {
           throw new IOException("Invalid IV length!");
         }
 
-        byte[]   key     = getBackupKey(passphrase, header.hasSalt() ? header.getSalt().toByteArray() : null);
-        byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
+        this.key     = keys.getKey(header.hasSalt() ? header.getSalt().toByteArray() : null);
+        this.cipher  = Cipher.getInstance("AES/CTR/NoPadding");
+        this.mac     = Mac.getInstance("HmacSHA256");
+        this.counter = Conversions.byteArrayToInt(iv);
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    BackupFrame readFrame() throws IOException {
+      awaitKey();
+      return readFrame(in);
+    }
+
+    long getBytesRead() {
+      return bytesRead;
+    }
+
+    void close() throws IOException {
+      in.close();
+    }
+
+    private void awaitKey() throws IOException {
+      if (cipherKey != null) return;
+
+      try {
+        byte[]   derived = new HKDFv3().deriveSecrets(key.get(), "Backup Export".getBytes(), 64);
         byte[][] split   = ByteUtil.split(derived, 32, 32);
 
         this.cipherKey = split[0];
         this.macKey    = split[1];
 
-        this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
-        this.mac    = Mac.getInstance("HmacSHA256");
         this.mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
-
-        this.counter = Conversions.byteArrayToInt(iv);
-      } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+      } catch (InterruptedException e) {
+        key.cancel(true);
+        throw new InterruptedIOException("Key derivation cancelled");
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+        else                                     throw new AssertionError(e);
+      } catch (InvalidKeyException e) {
         throw new AssertionError(e);
       }
     }
 
-    BackupFrame readFrame() throws IOException {
-      return readFrame(in);
-    }
-
     void readAttachmentTo(OutputStream out, int length) throws IOException {
       try {
         Conversions.intToByteArray(iv, 0, counter++);
@@ -272,7 +504,8 @@ public class FullBackupImporter extends FullBackupBase {
             out.write(plaintext, 0, plaintext.length);
           }
 
-          length -= read;
+          length    -= read;
+          bytesRead += read;
         }
 
         byte[] plaintext = cipher.doFinal();
@@ -288,6 +521,7 @@ public class FullBackupImporter extends FullBackupBase {
 
         try {
           Util.readFully(in, theirMac);
+          bytesRead += theirMac.length;
         } catch (IOException e) {
           //destination.delete();
           throw new IOException(e);
@@ -310,6 +544,8 @@ public class FullBackupImporter extends FullBackupBase {
         byte[] frame = new byte[Conversions.byteArrayToInt(length)];
         Util.readFully(in, frame);
 
+        bytesRead += length.length + frame.length;
+
         byte[] theirMac = new byte[10];
         System.arraycopy(frame, frame.length - 10, theirMac, 0, theirMac.length);
 
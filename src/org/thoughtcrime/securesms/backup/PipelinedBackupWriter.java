@@ -0,0 +1,353 @@
+package org.thoughtcrime.securesms.backup;
+
+
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.util.Conversions;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and writes backup frames in three stages: the caller builds frames, a pool of workers
+ * encrypts and MACs them, and a writer thread puts the results on disk in order.
+ *
+ * Every frame (and every attachment or avatar stream) is encrypted with its own IV, derived from
+ * a counter that's assigned in submission order, and its MAC is computed independently of every
+ * other frame. That means frames can be encrypted on any thread and the output is byte-for-byte
+ * what a serial writer would produce, as long as it's written in order.
+ *
+ * Small frames are encrypted in batches, and streams up to {@link #MAX_PREFETCH_SIZE} are read
+ * (and so decrypted from local storage) on the worker pool ahead of the writer. Larger streams are
+ * encrypted by the writer thread itself, as they're reached, so memory stays bounded by
+ * {@link #MAX_BYTES_IN_FLIGHT}.
+ */
+class PipelinedBackupWriter implements Closeable {
+
+  private static final String TAG = PipelinedBackupWriter.class.getSimpleName();
+
+  private static final int MAX_BATCH_FRAMES    = 128;
+  private static final int MAX_BATCH_BYTES     = 64 * 1024;
+  private static final int MAX_PREFETCH_SIZE   = 1024 * 1024;
+  private static final int MAX_BYTES_IN_FLIGHT = 8 * 1024 * 1024;
+  private static final int MAX_PENDING_ITEMS   = 64;
+
+  private final OutputStream                outputStream;
+  private final SecretKeySpec               cipherKey;
+  private final SecretKeySpec               macKey;
+  private final byte[]                      iv;
+  private final ExecutorService             executor;
+  private final BlockingQueue<PendingWrite> pendingWrites = new ArrayBlockingQueue<>(MAX_PENDING_ITEMS);
+  private final Semaphore                   bytesInFlight = new Semaphore(MAX_BYTES_IN_FLIGHT);
+  private final Thread                      writerThread;
+  private final FrameCrypto                 writerCrypto;
+  private final ThreadLocal<FrameCrypto>    workerCrypto;
+
+  private List<byte[]> batch = new LinkedList<>();
+  private int          batchBytes;
+  private int          batchCounter;
+  private int          counter;
+
+  private volatile Throwable failure;
+  private          boolean   closed;
+
+  PipelinedBackupWriter(@NonNull OutputStream outputStream,
+                        @NonNull byte[] cipherKey,
+                        @NonNull byte[] macKey,
+                        @NonNull byte[] iv,
+                        int threads)
+  {
+    this.outputStream = outputStream;
+    this.cipherKey    = new SecretKeySpec(cipherKey, "AES");
+    this.macKey       = new SecretKeySpec(macKey, "HmacSHA256");
+    this.iv           = iv.clone();
+    this.counter      = Conversions.byteArrayToInt(iv);
+    this.executor     = Executors.newFixedThreadPool(threads);
+    this.writerCrypto = new FrameCrypto();
+    this.workerCrypto = new ThreadLocal<FrameCrypto>() {
+      @Override
+      protected FrameCrypto initialValue() {
+        return new FrameCrypto();
+      }
+    };
+
+    this.writerThread = new Thread(this::runWriter, "PipelinedBackupWriter");
+    this.writerThread.start();
+  }
+
+  void write(@NonNull BackupProtos.BackupFrame frame) throws IOException {
+    byte[] plaintext = frame.toByteArray();
+
+    if (batch.isEmpty()) batchCounter = counter;
+
+    batch.add(plaintext);
+    batchBytes += plaintext.length;
+    counter++;
+
+    if (batch.size() >= MAX_BATCH_FRAMES || batchBytes >= MAX_BATCH_BYTES) {
+      submitBatch();
+    }
+  }
+
+  /**
+   * Writes a frame describing a stream, followed by the stream itself. The stream is closed once
+   * it has been consumed.
+   */
+  void write(@NonNull BackupProtos.BackupFrame frame, @NonNull InputStream inputStream, long size) throws IOException {
+    write(frame);
+    submitBatch();
+
+    final int streamCounter = counter++;
+
+    if (size <= MAX_PREFETCH_SIZE) {
+      final int permits = Util.toIntExact(size) + 32;
+
+      acquire(permits);
+
+      Future<byte[]> future = executor.submit(() -> {
+        try (InputStream in = inputStream) {
+          ByteArrayOutputStream ciphertext = new ByteArrayOutputStream(permits);
+          workerCrypto.get().encryptStream(streamCounter, in, ciphertext);
+          return ciphertext.toByteArray();
+        }
+      });
+
+      enqueue(new PendingWrite(future, permits));
+    } else {
+      enqueue(new PendingWrite(out -> {
+        try (InputStream in = inputStream) {
+          writerCrypto.encryptStream(streamCounter, in, out);
+        }
+      }));
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+
+    try {
+      if (failure == null) submitBatch();
+    } finally {
+      try {
+        pendingWrites.put(PendingWrite.END);
+        writerThread.join();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException(e.getMessage());
+      } finally {
+        executor.shutdownNow();
+        outputStream.close();
+      }
+    }
+
+    throwIfFailed();
+  }
+
+  private void submitBatch() throws IOException {
+    if (batch.isEmpty()) return;
+
+    final List<byte[]> frames       = batch;
+    final int          firstCounter = batchCounter;
+    final int          permits      = batchBytes + frames.size() * 32;
+
+    batch      = new LinkedList<>();
+    batchBytes = 0;
+
+    acquire(permits);
+
+    Future<byte[]> future = executor.submit(() -> {
+      ByteArrayOutputStream ciphertext   = new ByteArrayOutputStream(permits);
+      FrameCrypto           crypto       = workerCrypto.get();
+      int                   frameCounter = firstCounter;
+
+      for (byte[] frame : frames) {
+        crypto.encryptFrame(frameCounter++, frame, ciphertext);
+      }
+
+      return ciphertext.toByteArray();
+    });
+
+    enqueue(new PendingWrite(future, permits));
+  }
+
+  private void acquire(int permits) throws IOException {
+    try {
+      bytesInFlight.acquire(Math.min(permits, MAX_BYTES_IN_FLIGHT));
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException(e.getMessage());
+    }
+  }
+
+  private void enqueue(@NonNull PendingWrite write) throws IOException {
+    throwIfFailed();
+
+    try {
+      pendingWrites.put(write);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException(e.getMessage());
+    }
+  }
+
+  private void runWriter() {
+    while (true) {
+      PendingWrite write;
+
+      try {
+        write = pendingWrites.take();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+
+      if (write == PendingWrite.END) return;
+
+      try {
+        if (failure == null) write.writeTo(outputStream);
+      } catch (Throwable t) {
+        Log.w(TAG, t);
+        failure = t;
+      } finally {
+        if (write.permits > 0) bytesInFlight.release(Math.min(write.permits, MAX_BYTES_IN_FLIGHT));
+      }
+    }
+  }
+
+  /**
+   * Rethrows whatever stopped the writer thread. After a failure the writer keeps taking and
+   * discarding queued writes, so callers blocked on the queue or on bytes in flight get through
+   * and see the failure here.
+   */
+  private void throwIfFailed() throws IOException {
+    Throwable failure = this.failure;
+
+    if      (failure == null)                     return;
+    else if (failure instanceof IOException)      throw (IOException)failure;
+    else if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+    else if (failure instanceof Error)            throw (Error)failure;
+    else                                          throw new IOException(failure);
+  }
+
+  private class FrameCrypto {
+
+    private final Cipher cipher;
+    private final Mac    mac;
+    private final byte[] frameIv = iv.clone();
+
+    private FrameCrypto() {
+      try {
+        this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        this.mac    = Mac.getInstance("HmacSHA256");
+        this.mac.init(macKey);
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private void encryptFrame(int frameCounter, @NonNull byte[] plaintext, @NonNull OutputStream out) throws IOException {
+      try {
+        Conversions.intToByteArray(frameIv, 0, frameCounter);
+        cipher.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(frameIv));
+
+        byte[] frameCiphertext = cipher.doFinal(plaintext);
+        byte[] frameMac        = mac.doFinal(frameCiphertext);
+
+        out.write(Conversions.intToByteArray(frameCiphertext.length + 10));
+        out.write(frameCiphertext);
+        out.write(frameMac, 0, 10);
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private void encryptStream(int streamCounter, @NonNull InputStream in, @NonNull OutputStream out) throws IOException {
+      try {
+        Conversions.intToByteArray(frameIv, 0, streamCounter);
+        cipher.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(frameIv));
+        mac.update(frameIv);
+
+        byte[] buffer = new byte[8192];
+        int    read;
+
+        while ((read = in.read(buffer)) != -1) {
+          byte[] ciphertext = cipher.update(buffer, 0, read);
+
+          if (ciphertext != null) {
+            out.write(ciphertext);
+            mac.update(ciphertext);
+          }
+        }
+
+        byte[] remainder = cipher.doFinal();
+        out.write(remainder);
+        mac.update(remainder);
+
+        byte[] attachmentDigest = mac.doFinal();
+        out.write(attachmentDigest, 0, 10);
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  private interface StreamWriter {
+    void writeTo(@NonNull OutputStream out) throws IOException;
+  }
+
+  private static class PendingWrite {
+
+    private static final PendingWrite END = new PendingWrite(null, 0);
+
+    private final Future<byte[]> future;
+    private final StreamWriter   streamWriter;
+    private final int            permits;
+
+    private PendingWrite(Future<byte[]> future, int permits) {
+      this.future       = future;
+      this.streamWriter = null;
+      this.permits      = permits;
+    }
+
+    private PendingWrite(@NonNull StreamWriter streamWriter) {
+      this.future       = null;
+      this.streamWriter = streamWriter;
+      this.permits      = 0;
+    }
+
+    private void writeTo(@NonNull OutputStream out) throws IOException {
+      if (streamWriter != null) {
+        streamWriter.writeTo(out);
+        return;
+      }
+
+      try {
+        out.write(future.get());
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException(e.getMessage());
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+        throw new IOException(e.getCause());
+      }
+    }
+  }
+}
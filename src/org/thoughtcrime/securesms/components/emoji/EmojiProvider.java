@@ -24,9 +24,12 @@ import org.thoughtcrime.securesms.components.emoji.parsing.EmojiParser;
 import org.thoughtcrime.securesms.components.emoji.parsing.EmojiTree;
 import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.util.FutureTaskListener;
+import org.thoughtcrime.securesms.util.LRUCache;
 import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libsignal.util.Pair;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 class EmojiProvider {
@@ -35,13 +38,19 @@ class EmojiProvider {
   private static volatile EmojiProvider instance = null;
   private static final    Paint         paint    = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
 
-  private final EmojiTree emojiTree = new EmojiTree();
+  private final EmojiTree   emojiTree   = new EmojiTree();
+  private final EmojiParser emojiParser = new EmojiParser(emojiTree);
+
+  private final Map<String, EmojiParser.CandidateList> candidateCache = Collections.synchronizedMap(new LRUCache<>(CANDIDATE_CACHE_SIZE));
 
   private static final int EMOJI_RAW_HEIGHT = 64;
   private static final int EMOJI_RAW_WIDTH  = 64;
   private static final int EMOJI_VERT_PAD   = 0;
   private static final int EMOJI_PER_ROW    = 32;
 
+  private static final int CANDIDATE_CACHE_SIZE       = 500;
+  private static final int CANDIDATE_CACHE_MAX_LENGTH = 2000;
+
   private final float decodeScale;
   private final float verticalPad;
 
@@ -76,8 +85,18 @@ class EmojiProvider {
   }
 
   @Nullable EmojiParser.CandidateList getCandidates(@Nullable CharSequence text) {
-    if (text == null) return null;
-    return new EmojiParser(emojiTree).findCandidates(text);
+    if (text == null)                               return null;
+    if (text.length() > CANDIDATE_CACHE_MAX_LENGTH) return emojiParser.findCandidates(text);
+
+    String                    key        = text.toString();
+    EmojiParser.CandidateList candidates = candidateCache.get(key);
+
+    if (candidates == null) {
+      candidates = emojiParser.findCandidates(key);
+      candidateCache.put(key, candidates);
+    }
+
+    return candidates;
   }
 
   @Nullable Spannable emojify(@Nullable CharSequence text, @NonNull TextView tv) {
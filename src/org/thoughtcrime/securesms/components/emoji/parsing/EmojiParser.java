@@ -24,12 +24,17 @@ package org.thoughtcrime.securesms.components.emoji.parsing;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
  * Based in part on code from emoji-java
+ *
+ * Finds the longest emoji at each position in a single walk of the compiled {@link EmojiTree},
+ * continuing after the end of every emoji found, so each char is only looked at as often as the
+ * emoji that could start before it are long.
  */
 public class EmojiParser {
 
@@ -40,24 +45,37 @@ public class EmojiParser {
   }
 
   public @NonNull CandidateList findCandidates(@Nullable CharSequence text) {
-    List<Candidate> results = new LinkedList<>();
+    if (text == null) return new CandidateList(Collections.<Candidate>emptyList(), false);
 
-    if (text == null) return new CandidateList(results, false);
+    EmojiTree.Automaton automaton = emojiTree.getAutomaton();
+    List<Candidate>     results   = null;
+    int                 length    = text.length();
+    boolean             allEmojis = length > 0;
 
-    boolean allEmojis = text.length() > 0;
+    for (int i = 0; i < length; i++) {
+      int           node     = EmojiTree.Automaton.ROOT;
+      int           emojiEnd = -1;
+      EmojiDrawInfo drawInfo = null;
 
-    for (int i = 0; i < text.length(); i++) {
-      int emojiEnd = getEmojiEndPos(text, i);
+      for (int j = i; j < length; j++) {
+        node = automaton.getChild(node, text.charAt(j));
 
-      if (emojiEnd != -1) {
-        EmojiDrawInfo drawInfo = emojiTree.getEmoji(text, i, emojiEnd);
+        if (node == -1) break;
 
-        if (emojiEnd + 2 <= text.length()) {
-          if (Fitzpatrick.fitzpatrickFromUnicode(text, emojiEnd) != null) {
-            emojiEnd += 2;
-          }
+        EmojiDrawInfo match = automaton.getMatch(node);
+
+        if (match != null) {
+          emojiEnd = j + 1;
+          drawInfo = match;
+        }
+      }
+
+      if (emojiEnd != -1) {
+        if (Fitzpatrick.isModifier(text, emojiEnd)) {
+          emojiEnd += 2;
         }
 
+        if (results == null) results = new ArrayList<>();
         results.add(new Candidate(i, emojiEnd, drawInfo));
 
         i = emojiEnd - 1;
@@ -66,23 +84,8 @@ public class EmojiParser {
       }
     }
 
-    return new CandidateList(results, allEmojis);
-  }
-
-  private int getEmojiEndPos(CharSequence text, int startPos) {
-    int best = -1;
-
-    for (int j = startPos + 1; j <= text.length(); j++) {
-      EmojiTree.Matches status = emojiTree.isEmoji(text, startPos, j);
-
-      if (status.exactMatch()) {
-        best = j;
-      } else if (status.impossibleMatch()) {
-        return best;
-      }
-    }
-
-    return best;
+    if (results == null) return new CandidateList(Collections.<Candidate>emptyList(), allEmojis);
+    else                 return new CandidateList(Collections.unmodifiableList(results), allEmojis);
   }
 
   public static class Candidate {
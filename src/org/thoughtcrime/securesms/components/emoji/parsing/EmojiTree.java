@@ -20,9 +20,13 @@
 
 package org.thoughtcrime.securesms.components.emoji.parsing;
 
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -34,6 +38,8 @@ public class EmojiTree {
 
   private static final char TERMINATOR = '\ufe0f';
 
+  private volatile Automaton automaton;
+
   public void add(String emojiEncoding, EmojiDrawInfo emoji) {
     EmojiTreeNode tree = root;
 
@@ -46,52 +52,132 @@ public class EmojiTree {
     }
 
     tree.setEmoji(emoji);
+    automaton = null;
   }
 
-  public Matches isEmoji(CharSequence sequence, int startPosition, int endPosition) {
-    if (sequence == null) {
-      return Matches.POSSIBLY;
-    }
-
+  public @Nullable EmojiDrawInfo getEmoji(CharSequence unicode, int startPosition, int endPostiion) {
     EmojiTreeNode tree = root;
 
-    for (int i=startPosition; i<endPosition; i++) {
-      char character = sequence.charAt(i);
+    for (int i=startPosition; i<endPostiion; i++) {
+      char character = unicode.charAt(i);
 
       if (!tree.hasChild(character)) {
-        return Matches.IMPOSSIBLE;
+        return null;
       }
 
       tree = tree.getChild(character);
     }
 
-    if (tree.isEndOfEmoji()) {
-      return Matches.EXACTLY;
-    } else if (sequence.charAt(endPosition-1) != TERMINATOR && tree.hasChild(TERMINATOR) && tree.getChild(TERMINATOR).isEndOfEmoji()) {
-      return Matches.EXACTLY;
-    } else {
-      return Matches.POSSIBLY;
+    if      (tree.getEmoji() != null)                                                  return tree.getEmoji();
+    else if (unicode.charAt(endPostiion-1) != TERMINATOR && tree.hasChild(TERMINATOR)) return tree.getChild(TERMINATOR).getEmoji();
+    else    return null;
+  }
+
+  /**
+   * The tree compiled for matching. It's built the first time it's needed after the last emoji
+   * was added.
+   */
+  @NonNull Automaton getAutomaton() {
+    Automaton automaton = this.automaton;
+
+    if (automaton == null) {
+      synchronized (this) {
+        automaton = this.automaton;
+
+        if (automaton == null) {
+          automaton      = new Automaton(root);
+          this.automaton = automaton;
+        }
+      }
     }
+
+    return automaton;
   }
 
-  public @Nullable EmojiDrawInfo getEmoji(CharSequence unicode, int startPosition, int endPostiion) {
-    EmojiTreeNode tree = root;
+  /**
+   * The tree flattened into arrays. Nodes are numbered breadth first with their children sorted,
+   * so the children of a node are consecutive, and every node but the root is the target of
+   * exactly one edge, numbered one less than the node. Following an edge is a binary search over
+   * the chars of those children, without boxing or allocating.
+   *
+   * The emoji a node matches already accounts for a missing variation selector, so a walk only
+   * needs to remember the last node that matched anything.
+   */
+  static final class Automaton {
 
-    for (int i=startPosition; i<endPostiion; i++) {
-      char character = unicode.charAt(i);
+    static final int ROOT = 0;
 
-      if (!tree.hasChild(character)) {
-        return null;
+    private final int[]           firstEdge;
+    private final char[]          edges;
+    private final EmojiDrawInfo[] matches;
+
+    private Automaton(@NonNull EmojiTreeNode root) {
+      List<EmojiTreeNode> nodes  = new ArrayList<>();
+      List<Integer>       starts = new ArrayList<>();
+
+      nodes.add(root);
+
+      for (int i = 0; i < nodes.size(); i++) {
+        EmojiTreeNode node = nodes.get(i);
+
+        starts.add(nodes.size() - 1);
+
+        for (char child : node.getSortedChildren()) {
+          nodes.add(node.getChild(child));
+        }
       }
 
-      tree = tree.getChild(character);
+      this.firstEdge = new int[nodes.size() + 1];
+      this.edges     = new char[nodes.size() - 1];
+      this.matches   = new EmojiDrawInfo[nodes.size()];
+
+      for (int i = 0; i < nodes.size(); i++) {
+        EmojiTreeNode node = nodes.get(i);
+        int           edge = starts.get(i);
+
+        firstEdge[i] = edge;
+
+        for (char child : node.getSortedChildren()) {
+          edges[edge++] = child;
+        }
+      }
+
+      firstEdge[nodes.size()] = edges.length;
+
+      for (int i = 1; i < nodes.size(); i++) {
+        EmojiTreeNode node = nodes.get(i);
+
+        if (node.getEmoji() != null) {
+          matches[i] = node.getEmoji();
+        } else if (edges[i - 1] != TERMINATOR && node.hasChild(TERMINATOR)) {
+          matches[i] = node.getChild(TERMINATOR).getEmoji();
+        }
+      }
     }
 
-    if      (tree.getEmoji() != null)                                                  return tree.getEmoji();
-    else if (unicode.charAt(endPostiion-1) != TERMINATOR && tree.hasChild(TERMINATOR)) return tree.getChild(TERMINATOR).getEmoji();
-    else    return null;
-  }
+    /**
+     * @return The child of the node along the given char, or -1 if there is none.
+     */
+    int getChild(int node, char c) {
+      int low  = firstEdge[node];
+      int high = firstEdge[node + 1] - 1;
 
+      while (low <= high) {
+        int  middle = (low + high) >>> 1;
+        char edge   = edges[middle];
+
+        if      (edge < c) low  = middle + 1;
+        else if (edge > c) high = middle - 1;
+        else               return middle + 1;
+      }
+
+      return -1;
+    }
+
+    @Nullable EmojiDrawInfo getMatch(int node) {
+      return matches[node];
+    }
+  }
 
   private static class EmojiTreeNode {
 
@@ -118,20 +204,16 @@ public class EmojiTree {
       return children.get(child);
     }
 
-    boolean isEndOfEmoji() {
-      return emoji != null;
-    }
-  }
-
-  public enum Matches {
-    EXACTLY, POSSIBLY, IMPOSSIBLE;
+    char[] getSortedChildren() {
+      char[] sorted = new char[children.size()];
+      int    i      = 0;
 
-    public boolean exactMatch() {
-      return this == EXACTLY;
-    }
+      for (char child : children.keySet()) {
+        sorted[i++] = child;
+      }
 
-    public boolean impossibleMatch() {
-      return this == IMPOSSIBLE;
+      Arrays.sort(sorted);
+      return sorted;
     }
   }
 
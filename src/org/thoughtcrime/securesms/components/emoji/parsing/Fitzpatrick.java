@@ -53,6 +53,19 @@ public enum Fitzpatrick {
     return null;
   }
 
+  /**
+   * Whether a Fitzpatrick modifier starts at the given index, without allocating
+   */
+  public static boolean isModifier(CharSequence unicode, int index) {
+    if (index + 2 > unicode.length() || unicode.charAt(index) != '\uD83C') {
+      return false;
+    }
+
+    char low = unicode.charAt(index + 1);
+
+    return low >= '\uDFFB' && low <= '\uDFFF';
+  }
+
   public static Fitzpatrick fitzpatrickFromType(String type) {
     try {
       return Fitzpatrick.valueOf(type.toUpperCase());
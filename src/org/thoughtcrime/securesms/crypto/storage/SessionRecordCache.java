@@ -0,0 +1,206 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import org.thoughtcrime.securesms.logging.Log;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps recently used session records in memory, serialized, so that loading a session doesn't
+ * have to query the database and storing one doesn't have to write to it.
+ *
+ * Records are grouped into stripes by the name of their address, and each stripe is guarded by its
+ * own lock, so sessions with unrelated recipients can be used concurrently while every device of
+ * the same recipient shares a lock. Stored records are written back to the {@link Persistence} in
+ * batches, either after a short window or when {@link #flush()} is called, and stay pending until
+ * they have been written so that a record evicted in the meantime is never read back stale.
+ */
+class SessionRecordCache {
+
+  private static final String TAG = SessionRecordCache.class.getSimpleName();
+
+  private static final int  STRIPES            = 16;
+  private static final int  RECORDS_PER_STRIPE = 32;
+  private static final long WINDOW_MILLIS      = 250;
+
+  private static final byte[] ABSENT = new byte[0];
+
+  private final Persistence              persistence;
+  private final Stripe[]                 stripes;
+  private final long                     windowMillis;
+  private final Object                   flushLock = new Object();
+  private final ScheduledExecutorService executor  = Executors.newSingleThreadScheduledExecutor();
+
+  private final Map<SignalProtocolAddress, byte[]> pending = new HashMap<>();
+  private boolean                                  flushScheduled;
+
+  SessionRecordCache(@NonNull Persistence persistence) {
+    this(persistence, WINDOW_MILLIS);
+  }
+
+  @VisibleForTesting
+  SessionRecordCache(@NonNull Persistence persistence, long windowMillis) {
+    this.persistence  = persistence;
+    this.stripes      = new Stripe[STRIPES];
+    this.windowMillis = windowMillis;
+
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  /**
+   * The lock guarding every session with the given name. Holding it makes a sequence of calls for
+   * that name atomic with respect to other callers.
+   */
+  @NonNull Object getLock(@NonNull String name) {
+    return stripeFor(name);
+  }
+
+  @Nullable byte[] get(@NonNull SignalProtocolAddress address) {
+    Stripe stripe = stripeFor(address.getName());
+
+    synchronized (stripe) {
+      byte[] record = stripe.records.get(address);
+
+      if (record == null) {
+        synchronized (pending) {
+          record = pending.get(address);
+        }
+
+        if (record == null) {
+          record = persistence.load(address);
+        }
+
+        stripe.records.put(address, record != null ? record : ABSENT);
+      }
+
+      return record != ABSENT ? record : null;
+    }
+  }
+
+  void put(@NonNull SignalProtocolAddress address, @NonNull byte[] record) {
+    write(address, record);
+  }
+
+  void remove(@NonNull SignalProtocolAddress address) {
+    write(address, ABSENT);
+  }
+
+  /**
+   * The devices that have a session under the given name.
+   */
+  @NonNull List<Integer> getDevices(@NonNull String name) {
+    synchronized (stripeFor(name)) {
+      flush();
+      return persistence.getDevices(name);
+    }
+  }
+
+  @NonNull List<SignalProtocolAddress> getAll() {
+    flush();
+    return persistence.getAll();
+  }
+
+  /**
+   * Writes every pending record back in a single batch.
+   */
+  void flush() {
+    synchronized (flushLock) {
+      Map<SignalProtocolAddress, byte[]> batch;
+
+      synchronized (pending) {
+        if (pending.isEmpty()) return;
+        batch = new HashMap<>(pending);
+      }
+
+      Map<SignalProtocolAddress, byte[]> records = new HashMap<>(batch.size() * 2);
+
+      for (Map.Entry<SignalProtocolAddress, byte[]> entry : batch.entrySet()) {
+        records.put(entry.getKey(), entry.getValue() != ABSENT ? entry.getValue() : null);
+      }
+
+      persistence.write(records);
+
+      synchronized (pending) {
+        for (Map.Entry<SignalProtocolAddress, byte[]> entry : batch.entrySet()) {
+          if (pending.get(entry.getKey()) == entry.getValue()) {
+            pending.remove(entry.getKey());
+          }
+        }
+      }
+    }
+  }
+
+  @VisibleForTesting
+  int getPendingCount() {
+    synchronized (pending) {
+      return pending.size();
+    }
+  }
+
+  private void write(@NonNull SignalProtocolAddress address, @NonNull byte[] record) {
+    Stripe stripe = stripeFor(address.getName());
+
+    synchronized (stripe) {
+      stripe.records.put(address, record);
+
+      synchronized (pending) {
+        pending.put(address, record);
+
+        if (!flushScheduled) {
+          flushScheduled = true;
+          executor.schedule(this::flushScheduled, windowMillis, TimeUnit.MILLISECONDS);
+        }
+      }
+    }
+  }
+
+  private void flushScheduled() {
+    synchronized (pending) {
+      flushScheduled = false;
+    }
+
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      Log.w(TAG, e);
+    }
+  }
+
+  private @NonNull Stripe stripeFor(@NonNull String name) {
+    int hash = name.hashCode();
+    return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+  }
+
+  /**
+   * The most recently used records for the names that hash to it. A record that is pending
+   * write-back can still be evicted, since it's read from the pending set until it's written.
+   */
+  private static class Stripe {
+
+    private final Map<SignalProtocolAddress, byte[]> records = new LinkedHashMap<SignalProtocolAddress, byte[]>(RECORDS_PER_STRIPE, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<SignalProtocolAddress, byte[]> eldest) {
+        return size() > RECORDS_PER_STRIPE;
+      }
+    };
+  }
+
+  interface Persistence {
+    @Nullable byte[] load(@NonNull SignalProtocolAddress address);
+    void write(@NonNull Map<SignalProtocolAddress, byte[]> records);
+    @NonNull List<Integer> getDevices(@NonNull String name);
+    @NonNull List<SignalProtocolAddress> getAll();
+  }
+}
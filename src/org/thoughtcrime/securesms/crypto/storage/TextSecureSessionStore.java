@@ -2,104 +2,189 @@ package org.thoughtcrime.securesms.crypto.storage;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 
 import org.thoughtcrime.securesms.database.Address;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
-import org.thoughtcrime.securesms.database.SessionDatabase;
 import org.thoughtcrime.securesms.logging.Log;
 import org.whispersystems.libsignal.SignalProtocolAddress;
 import org.whispersystems.libsignal.protocol.CiphertextMessage;
 import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.libsignal.state.SessionStore;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 
+import java.io.IOException;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 public class TextSecureSessionStore implements SessionStore {
 
   private static final String TAG = TextSecureSessionStore.class.getSimpleName();
 
-  private static final Object FILE_LOCK = new Object();
+  private static volatile SessionRecordCache instance;
 
-  @NonNull  private final Context context;
+  @NonNull  private final SessionRecordCache cache;
 
   public TextSecureSessionStore(@NonNull Context context) {
-    this.context = context;
+    this(getCache(context));
+  }
+
+  @VisibleForTesting
+  TextSecureSessionStore(@NonNull SessionRecordCache cache) {
+    this.cache = cache;
   }
 
   @Override
   public SessionRecord loadSession(@NonNull SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
-      SessionRecord sessionRecord = DatabaseFactory.getSessionDatabase(context).load(Address.fromSerialized(address.getName()), address.getDeviceId());
-
-      if (sessionRecord == null) {
-        Log.w(TAG, "No existing session information found.");
-        return new SessionRecord();
-      }
+    SessionRecord sessionRecord = getSessionRecord(address);
 
-      return sessionRecord;
+    if (sessionRecord == null) {
+      Log.w(TAG, "No existing session information found.");
+      return new SessionRecord();
     }
+
+    return sessionRecord;
   }
 
   @Override
   public void storeSession(@NonNull SignalProtocolAddress address, @NonNull SessionRecord record) {
-    synchronized (FILE_LOCK) {
-      DatabaseFactory.getSessionDatabase(context).store(Address.fromSerialized(address.getName()), address.getDeviceId(), record);
-    }
+    cache.put(address, record.serialize());
   }
 
   @Override
   public boolean containsSession(SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
-      SessionRecord sessionRecord = DatabaseFactory.getSessionDatabase(context).load(Address.fromSerialized(address.getName()), address.getDeviceId());
+    SessionRecord sessionRecord = getSessionRecord(address);
 
-      return sessionRecord != null &&
-             sessionRecord.getSessionState().hasSenderChain() &&
-             sessionRecord.getSessionState().getSessionVersion() == CiphertextMessage.CURRENT_VERSION;
-    }
+    return sessionRecord != null &&
+           sessionRecord.getSessionState().hasSenderChain() &&
+           sessionRecord.getSessionState().getSessionVersion() == CiphertextMessage.CURRENT_VERSION;
   }
 
   @Override
   public void deleteSession(SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
-      DatabaseFactory.getSessionDatabase(context).delete(Address.fromSerialized(address.getName()), address.getDeviceId());
-    }
+    cache.remove(address);
+    cache.flush();
   }
 
   @Override
   public void deleteAllSessions(String name) {
-    synchronized (FILE_LOCK) {
-      DatabaseFactory.getSessionDatabase(context).deleteAllFor(Address.fromSerialized(name));
+    synchronized (cache.getLock(name)) {
+      for (int deviceId : cache.getDevices(name)) {
+        cache.remove(new SignalProtocolAddress(name, deviceId));
+      }
+
+      cache.flush();
     }
   }
 
   @Override
   public List<Integer> getSubDeviceSessions(String name) {
-    synchronized (FILE_LOCK) {
-      return DatabaseFactory.getSessionDatabase(context).getSubDevices(Address.fromSerialized(name));
+    List<Integer> results = new LinkedList<>();
+
+    for (int deviceId : cache.getDevices(name)) {
+      if (deviceId != SignalServiceAddress.DEFAULT_DEVICE_ID) {
+        results.add(deviceId);
+      }
     }
+
+    return results;
   }
 
   public void archiveSiblingSessions(@NonNull SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
-      List<SessionDatabase.SessionRow> sessions = DatabaseFactory.getSessionDatabase(context).getAllFor(Address.fromSerialized(address.getName()));
-
-      for (SessionDatabase.SessionRow row : sessions) {
-        if (row.getDeviceId() != address.getDeviceId()) {
-          row.getRecord().archiveCurrentState();
-          storeSession(new SignalProtocolAddress(row.getAddress().serialize(), row.getDeviceId()), row.getRecord());
+    synchronized (cache.getLock(address.getName())) {
+      for (int deviceId : cache.getDevices(address.getName())) {
+        if (deviceId != address.getDeviceId()) {
+          archiveSession(new SignalProtocolAddress(address.getName(), deviceId));
         }
       }
+
+      cache.flush();
     }
   }
 
   public void archiveAllSessions() {
-    synchronized (FILE_LOCK) {
-      List<SessionDatabase.SessionRow> sessions = DatabaseFactory.getSessionDatabase(context).getAll();
+    for (SignalProtocolAddress address : cache.getAll()) {
+      synchronized (cache.getLock(address.getName())) {
+        archiveSession(address);
+      }
+    }
+
+    cache.flush();
+  }
+
+  /**
+   * Writes back any session records that have been stored but not yet persisted. The job manager
+   * calls this after every job has run, so code that encrypts or decrypts outside of a job has to
+   * call it once it's done.
+   */
+  public void flush() {
+    cache.flush();
+  }
+
+  private void archiveSession(@NonNull SignalProtocolAddress address) {
+    SessionRecord sessionRecord = getSessionRecord(address);
+
+    if (sessionRecord != null) {
+      sessionRecord.archiveCurrentState();
+      storeSession(address, sessionRecord);
+    }
+  }
+
+  private @Nullable SessionRecord getSessionRecord(@NonNull SignalProtocolAddress address) {
+    byte[] serialized = cache.get(address);
+
+    if (serialized == null) {
+      return null;
+    }
+
+    try {
+      return new SessionRecord(serialized);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
 
-      for (SessionDatabase.SessionRow row : sessions) {
-        row.getRecord().archiveCurrentState();
-        storeSession(new SignalProtocolAddress(row.getAddress().serialize(), row.getDeviceId()), row.getRecord());
+  private static @NonNull SessionRecordCache getCache(@NonNull Context context) {
+    if (instance == null) {
+      synchronized (TextSecureSessionStore.class) {
+        if (instance == null) {
+          instance = new SessionRecordCache(new DatabasePersistence(context.getApplicationContext()));
+        }
       }
     }
+
+    return instance;
+  }
+
+  private static class DatabasePersistence implements SessionRecordCache.Persistence {
+
+    private final Context context;
+
+    private DatabasePersistence(@NonNull Context context) {
+      this.context = context;
+    }
+
+    @Override
+    public @Nullable byte[] load(@NonNull SignalProtocolAddress address) {
+      return DatabaseFactory.getSessionDatabase(context).loadSerialized(Address.fromSerialized(address.getName()), address.getDeviceId());
+    }
+
+    @Override
+    public void write(@NonNull Map<SignalProtocolAddress, byte[]> records) {
+      DatabaseFactory.getSessionDatabase(context).storeSerialized(records);
+    }
+
+    @Override
+    public @NonNull List<Integer> getDevices(@NonNull String name) {
+      return DatabaseFactory.getSessionDatabase(context).getDevices(Address.fromSerialized(name));
+    }
+
+    @Override
+    public @NonNull List<SignalProtocolAddress> getAll() {
+      return DatabaseFactory.getSessionDatabase(context).getAllAddresses();
+    }
   }
 }
@@ -33,8 +33,6 @@ import android.util.Pair;
 
 import net.sqlcipher.database.SQLiteDatabase;
 
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.thoughtcrime.securesms.attachments.Attachment;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
@@ -46,12 +44,14 @@ import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.mms.MediaStream;
 import org.thoughtcrime.securesms.mms.MmsException;
 import org.thoughtcrime.securesms.mms.PartAuthority;
+import org.thoughtcrime.securesms.notifications.MessageNotifier;
 import org.thoughtcrime.securesms.util.BitmapDecodingException;
 import org.thoughtcrime.securesms.util.BitmapUtil;
-import org.thoughtcrime.securesms.util.JsonUtils;
+import org.thoughtcrime.securesms.util.Hex;
 import org.thoughtcrime.securesms.util.MediaUtil;
 import org.thoughtcrime.securesms.util.MediaUtil.ThumbnailData;
 import org.thoughtcrime.securesms.util.StorageUtil;
+import org.thoughtcrime.securesms.util.ThreadUtil;
 import org.thoughtcrime.securesms.util.Util;
 import org.thoughtcrime.securesms.video.EncryptedMediaDataSource;
 
@@ -60,6 +60,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -68,6 +72,7 @@ import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class AttachmentDatabase extends Database {
   
@@ -75,7 +80,7 @@ public class AttachmentDatabase extends Database {
 
   public  static final String TABLE_NAME             = "part";
   public  static final String ROW_ID                 = "_id";
-          static final String ATTACHMENT_JSON_ALIAS  = "attachment_json";
+          static final String ATTACHMENT_ALIAS       = "attachments";
   public  static final String MMS_ID                 = "mid";
           static final String CONTENT_TYPE           = "ct";
           static final String NAME                   = "name";
@@ -96,6 +101,7 @@ public class AttachmentDatabase extends Database {
   private static final String THUMBNAIL_RANDOM       = "thumbnail_random";
           static final String WIDTH                  = "width";
           static final String HEIGHT                 = "height";
+          static final String DATA_HASH              = "data_hash";
 
   public  static final String DIRECTORY              = "parts";
 
@@ -123,14 +129,20 @@ public class AttachmentDatabase extends Database {
     FILE_NAME + " TEXT, " + THUMBNAIL + " TEXT, " + THUMBNAIL_ASPECT_RATIO + " REAL, " +
     UNIQUE_ID + " INTEGER NOT NULL, " + DIGEST + " BLOB, " + FAST_PREFLIGHT_ID + " TEXT, " +
     VOICE_NOTE + " INTEGER DEFAULT 0, " + DATA_RANDOM + " BLOB, " + THUMBNAIL_RANDOM + " BLOB, " +
-    QUOTE + " INTEGER DEFAULT 0, " + WIDTH + " INTEGER DEFAULT 0, " + HEIGHT + " INTEGER DEFAULT 0);";
+    QUOTE + " INTEGER DEFAULT 0, " + WIDTH + " INTEGER DEFAULT 0, " + HEIGHT + " INTEGER DEFAULT 0, " +
+    DATA_HASH + " TEXT DEFAULT NULL);";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS part_mms_id_index ON " + TABLE_NAME + " (" + MMS_ID + ");",
     "CREATE INDEX IF NOT EXISTS pending_push_index ON " + TABLE_NAME + " (" + TRANSFER_STATE + ");",
+    "CREATE INDEX IF NOT EXISTS part_data_index ON " + TABLE_NAME + " (" + DATA + ");",
+    "CREATE INDEX IF NOT EXISTS part_data_hash_index ON " + TABLE_NAME + " (" + DATA_HASH + ");",
   };
 
-  private final ExecutorService thumbnailExecutor = Util.newSingleThreadedLifoExecutor();
+  private static final int ATTACHMENT_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  private final ExecutorService thumbnailExecutor  = Util.newSingleThreadedLifoExecutor();
+  private final ExecutorService attachmentExecutor = ThreadUtil.newDynamicFixedThreadPool(ATTACHMENT_THREADS);
 
   private final AttachmentSecret attachmentSecret;
 
@@ -242,30 +254,49 @@ public class AttachmentDatabase extends Database {
     return attachments;
   }
 
-  @SuppressWarnings("ResultOfMethodCallIgnored")
   void deleteAttachmentsForMessage(long mmsId) {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    Cursor cursor           = null;
+    List<String>   data     = new LinkedList<>();
+    List<String>   unused   = new LinkedList<>();
+    Cursor         cursor   = null;
 
+    database.beginTransaction();
     try {
       cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL}, MMS_ID + " = ?",
                               new String[] {mmsId+""}, null, null, null);
 
       while (cursor != null && cursor.moveToNext()) {
-        deleteAttachmentOnDisk(cursor.getString(0), cursor.getString(1));
+        data.add(cursor.getString(0));
+        unused.add(cursor.getString(1));
       }
+
+      database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId + ""});
+
+      for (String file : data) {
+        if (isUnreferenced(database, file)) unused.add(file);
+      }
+
+      database.setTransactionSuccessful();
     } finally {
       if (cursor != null)
         cursor.close();
+
+      database.endTransaction();
+    }
+
+    for (String file : unused) {
+      deleteAttachmentOnDisk(file, null);
     }
 
-    database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId + ""});
     notifyAttachmentListeners();
   }
 
   public void deleteAttachment(@NonNull AttachmentId id) {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    String         data;
+    String         thumbnail;
 
+    database.beginTransaction();
     try (Cursor cursor = database.query(TABLE_NAME,
                                         new String[]{DATA, THUMBNAIL},
                                         PART_ID_WHERE,
@@ -278,13 +309,22 @@ public class AttachmentDatabase extends Database {
         Log.w(TAG, "Tried to delete an attachment, but it didn't exist.");
         return;
       }
-      String data      = cursor.getString(0);
-      String thumbnail = cursor.getString(1);
+      data      = cursor.getString(0);
+      thumbnail = cursor.getString(1);
 
       database.delete(TABLE_NAME, PART_ID_WHERE, id.toStrings());
-      deleteAttachmentOnDisk(data, thumbnail);
-      notifyAttachmentListeners();
+
+      if (!isUnreferenced(database, data)) {
+        data = null;
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
+
+    deleteAttachmentOnDisk(data, thumbnail);
+    notifyAttachmentListeners();
   }
 
   @SuppressWarnings("ResultOfMethodCallIgnored")
@@ -302,6 +342,47 @@ public class AttachmentDatabase extends Database {
     notifyAttachmentListeners();
   }
 
+  /**
+   * Attachments with the same content share a data file, so a file is only deleted once no row
+   * refers to it anymore. This has to be checked in the same transaction that removes or
+   * repoints the row, so that a concurrent insert can't pick up a file that's about to go away.
+   */
+  private boolean isUnreferenced(@NonNull SQLiteDatabase database, @Nullable String data) {
+    if (TextUtils.isEmpty(data)) return false;
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ROW_ID}, DATA + " = ?", new String[] {data}, null, null, null, "1")) {
+      return cursor == null || !cursor.moveToFirst();
+    }
+  }
+
+  /**
+   * Returns the data of an existing attachment with the same content as a newly written file, if
+   * there is one, and deletes the new file. Otherwise returns the new file unchanged. Must be
+   * called in the transaction the returned data is inserted in.
+   */
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  private @NonNull DataInfo deduplicate(@NonNull SQLiteDatabase database, @NonNull DataInfo dataInfo) {
+    if (dataInfo.hash == null) return dataInfo;
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {DATA, DATA_RANDOM},
+                                        DATA_HASH + " = ? AND " + SIZE + " = ? AND " + DATA + " IS NOT NULL",
+                                        new String[] {dataInfo.hash, String.valueOf(dataInfo.length)},
+                                        null, null, null, "1"))
+    {
+      if (cursor != null && cursor.moveToFirst()) {
+        File existing = new File(cursor.getString(0));
+
+        if (existing.exists() && !existing.equals(dataInfo.file)) {
+          Log.i(TAG, "Sharing data file with an existing attachment, saved " + dataInfo.file.length() + " bytes.");
+          dataInfo.file.delete();
+          return new DataInfo(existing, dataInfo.length, cursor.getBlob(1), dataInfo.hash);
+        }
+      }
+    }
+
+    return dataInfo;
+  }
+
   @SuppressWarnings("ResultOfMethodCallIgnored")
   private void deleteAttachmentOnDisk(@Nullable String data, @Nullable String thumbnail) {
     if (!TextUtils.isEmpty(data)) {
@@ -320,27 +401,46 @@ public class AttachmentDatabase extends Database {
     SQLiteDatabase     database    = databaseHelper.getWritableDatabase();
     ContentValues      values      = new ContentValues();
     DataInfo           dataInfo    = setAttachmentData(inputStream);
+    boolean            thumbnail   = placeholder != null && placeholder.isQuote() && !placeholder.getContentType().startsWith("image");
+    int                updated;
 
-    if (placeholder != null && placeholder.isQuote() && !placeholder.getContentType().startsWith("image")) {
-      values.put(THUMBNAIL, dataInfo.file.getAbsolutePath());
-      values.put(THUMBNAIL_RANDOM, dataInfo.random);
-    } else {
-      values.put(DATA, dataInfo.file.getAbsolutePath());
-      values.put(SIZE, dataInfo.length);
-      values.put(DATA_RANDOM, dataInfo.random);
-    }
+    database.beginTransaction();
+    try {
+      if (thumbnail) {
+        values.put(THUMBNAIL, dataInfo.file.getAbsolutePath());
+        values.put(THUMBNAIL_RANDOM, dataInfo.random);
+      } else {
+        dataInfo = deduplicate(database, dataInfo);
 
-    values.put(TRANSFER_STATE, TRANSFER_PROGRESS_DONE);
-    values.put(CONTENT_LOCATION, (String)null);
-    values.put(CONTENT_DISPOSITION, (String)null);
-    values.put(DIGEST, (byte[])null);
-    values.put(NAME, (String) null);
-    values.put(FAST_PREFLIGHT_ID, (String)null);
+        values.put(DATA, dataInfo.file.getAbsolutePath());
+        values.put(SIZE, dataInfo.length);
+        values.put(DATA_RANDOM, dataInfo.random);
+        values.put(DATA_HASH, dataInfo.hash);
+      }
+
+      values.put(TRANSFER_STATE, TRANSFER_PROGRESS_DONE);
+      values.put(CONTENT_LOCATION, (String)null);
+      values.put(CONTENT_DISPOSITION, (String)null);
+      values.put(DIGEST, (byte[])null);
+      values.put(NAME, (String) null);
+      values.put(FAST_PREFLIGHT_ID, (String)null);
+
+      updated = database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings());
+
+      if (updated == 0 && !thumbnail && !isUnreferenced(database, dataInfo.file.getAbsolutePath())) {
+        dataInfo = null;
+      }
 
-    if (database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) == 0) {
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    if (updated == 0) {
       //noinspection ResultOfMethodCallIgnored
-      dataInfo.file.delete();
+      if (dataInfo != null) dataInfo.file.delete();
     } else {
+      MessageNotifier.invalidateNotificationItem(mmsId, true);
       notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(mmsId));
       notifyConversationListListeners();
     }
@@ -348,23 +448,85 @@ public class AttachmentDatabase extends Database {
     thumbnailExecutor.submit(new ThumbnailFetchCallable(attachmentId));
   }
 
-  @NonNull Map<Attachment, AttachmentId> insertAttachmentsForMessage(long mmsId, @NonNull List<Attachment> attachments, @NonNull List<Attachment> quoteAttachment)
+  /**
+   * Copies and encrypts the data and thumbnails of a message's attachments to disk, fanning the
+   * work out across the attachment pool. This doesn't touch the database, so it should be done
+   * before opening the transaction the attachments are inserted in.
+   */
+  @NonNull PreparedAttachments prepareAttachmentsForMessage(@NonNull List<Attachment> attachments, @NonNull List<Attachment> quoteAttachments)
       throws MmsException
   {
-    Log.d(TAG, "insertParts(" + attachments.size() + ")");
+    if (attachments.size() + quoteAttachments.size() <= 1) {
+      List<PreparedAttachment> prepared = new ArrayList<>(1);
+
+      for (Attachment attachment : attachments)      prepared.add(prepareAttachment(attachment, attachment.isQuote()));
+      for (Attachment attachment : quoteAttachments) prepared.add(prepareAttachment(attachment, true));
+
+      return new PreparedAttachments(prepared);
+    }
 
+    int                              count    = attachments.size() + quoteAttachments.size();
+    List<Future<PreparedAttachment>> futures  = new ArrayList<>(count);
+    List<PreparedAttachment>         prepared = new ArrayList<>(count);
+    MmsException                     failure  = null;
+
+    for (Attachment attachment : attachments)      futures.add(attachmentExecutor.submit(() -> prepareAttachment(attachment, attachment.isQuote())));
+    for (Attachment attachment : quoteAttachments) futures.add(attachmentExecutor.submit(() -> prepareAttachment(attachment, true)));
+
+    for (Future<PreparedAttachment> future : futures) {
+      try {
+        prepared.add(future.get());
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      } catch (ExecutionException e) {
+        Log.w(TAG, e);
+        if (failure == null) {
+          failure = e.getCause() instanceof MmsException ? (MmsException) e.getCause() : new MmsException(e.getCause());
+        }
+      }
+    }
+
+    if (failure != null) {
+      new PreparedAttachments(prepared).discard();
+      throw failure;
+    }
+
+    return new PreparedAttachments(prepared);
+  }
+
+  /**
+   * Inserts prepared attachments in a single transaction, in the order they were given to
+   * {@link #prepareAttachmentsForMessage(List, List)}: the message's attachments first, then its
+   * quoted attachments.
+   */
+  @NonNull Map<Attachment, AttachmentId> insertAttachmentsForMessage(long mmsId, @NonNull PreparedAttachments preparedAttachments) {
+    Log.d(TAG, "insertParts(" + preparedAttachments.attachments.size() + ")");
+
+    SQLiteDatabase                database            = databaseHelper.getWritableDatabase();
     Map<Attachment, AttachmentId> insertedAttachments = new HashMap<>();
+    List<AttachmentId>            missingThumbnails   = new LinkedList<>();
+
+    database.beginTransaction();
+    try {
+      for (PreparedAttachment prepared : preparedAttachments.attachments) {
+        AttachmentId attachmentId = insertAttachment(mmsId, prepared);
+        insertedAttachments.put(prepared.attachment, attachmentId);
+
+        if (prepared.fetchThumbnail) {
+          missingThumbnails.add(attachmentId);
+        }
+
+        Log.i(TAG, "Inserted " + (prepared.quote ? "quoted " : "") + "attachment at ID: " + attachmentId);
+      }
 
-    for (Attachment attachment : attachments) {
-      AttachmentId attachmentId = insertAttachment(mmsId, attachment, attachment.isQuote());
-      insertedAttachments.put(attachment, attachmentId);
-      Log.i(TAG, "Inserted attachment at ID: " + attachmentId);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
 
-    for (Attachment attachment : quoteAttachment) {
-      AttachmentId attachmentId = insertAttachment(mmsId, attachment, true);
-      insertedAttachments.put(attachment, attachmentId);
-      Log.i(TAG, "Inserted quoted attachment at ID: " + attachmentId);
+    for (AttachmentId attachmentId : missingThumbnails) {
+      Log.i(TAG, "Submitting thumbnail generation job...");
+      thumbnailExecutor.submit(new ThumbnailFetchCallable(attachmentId));
     }
 
     return insertedAttachments;
@@ -376,22 +538,40 @@ public class AttachmentDatabase extends Database {
   {
     SQLiteDatabase     database           = databaseHelper.getWritableDatabase();
     DatabaseAttachment databaseAttachment = (DatabaseAttachment) attachment;
-    DataInfo           dataInfo           = getAttachmentDataFileInfo(databaseAttachment.getAttachmentId(), DATA);
+    DataInfo           oldDataInfo        = getAttachmentDataFileInfo(databaseAttachment.getAttachmentId(), DATA);
 
-    if (dataInfo == null) {
+    if (oldDataInfo == null) {
       throw new MmsException("No attachment data found!");
     }
 
-    dataInfo = setAttachmentData(dataInfo.file, mediaStream.getStream());
+    DataInfo dataInfo = setAttachmentData(mediaStream.getStream());
+    boolean  unused;
 
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(SIZE, dataInfo.length);
-    contentValues.put(CONTENT_TYPE, mediaStream.getMimeType());
-    contentValues.put(WIDTH, mediaStream.getWidth());
-    contentValues.put(HEIGHT, mediaStream.getHeight());
-    contentValues.put(DATA_RANDOM, dataInfo.random);
+    database.beginTransaction();
+    try {
+      dataInfo = deduplicate(database, dataInfo);
 
-    database.update(TABLE_NAME, contentValues, PART_ID_WHERE, databaseAttachment.getAttachmentId().toStrings());
+      ContentValues contentValues = new ContentValues();
+      contentValues.put(DATA, dataInfo.file.getAbsolutePath());
+      contentValues.put(SIZE, dataInfo.length);
+      contentValues.put(CONTENT_TYPE, mediaStream.getMimeType());
+      contentValues.put(WIDTH, mediaStream.getWidth());
+      contentValues.put(HEIGHT, mediaStream.getHeight());
+      contentValues.put(DATA_RANDOM, dataInfo.random);
+      contentValues.put(DATA_HASH, dataInfo.hash);
+
+      database.update(TABLE_NAME, contentValues, PART_ID_WHERE, databaseAttachment.getAttachmentId().toStrings());
+
+      unused = isUnreferenced(database, oldDataInfo.file.getAbsolutePath());
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    if (unused) {
+      deleteAttachmentOnDisk(oldDataInfo.file.getAbsolutePath(), null);
+    }
 
     return new DatabaseAttachment(databaseAttachment.getAttachmentId(),
                                   databaseAttachment.getMmsId(),
@@ -451,6 +631,113 @@ public class AttachmentDatabase extends Database {
     notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(messageId));
   }
 
+  /**
+   * Hashes the content of attachments written before content hashes were recorded, then points
+   * every attachment at one data file per distinct content and deletes the other copies.
+   *
+   * @return the number of bytes reclaimed.
+   */
+  public long deduplicateExistingAttachments() {
+    SQLiteDatabase     database = databaseHelper.getWritableDatabase();
+    List<AttachmentId> unhashed = new LinkedList<>();
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ROW_ID, UNIQUE_ID}, DATA + " IS NOT NULL AND " + DATA_HASH + " IS NULL", null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        unhashed.add(new AttachmentId(cursor.getLong(0), cursor.getLong(1)));
+      }
+    }
+
+    Log.i(TAG, "Hashing " + unhashed.size() + " attachments...");
+
+    for (AttachmentId attachmentId : unhashed) {
+      DataInfo dataInfo = getAttachmentDataFileInfo(attachmentId, DATA);
+
+      if (dataInfo == null) continue;
+
+      try (InputStream in = getDataStream(attachmentId, DATA, 0)) {
+        if (in == null) continue;
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[]        buffer = new byte[8192];
+        int           read;
+
+        while ((read = in.read(buffer)) != -1) {
+          digest.update(buffer, 0, read);
+        }
+
+        ContentValues values = new ContentValues(1);
+        values.put(DATA_HASH, Hex.toStringCondensed(digest.digest()));
+
+        database.update(TABLE_NAME, values, PART_ID_WHERE + " AND " + DATA + " = ?",
+                        new String[] {String.valueOf(attachmentId.getRowId()), String.valueOf(attachmentId.getUniqueId()), dataInfo.file.getAbsolutePath()});
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to hash attachment " + attachmentId, e);
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    List<String> duplicated = new LinkedList<>();
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {DATA_HASH}, DATA_HASH + " IS NOT NULL AND " + DATA + " IS NOT NULL",
+                                        null, DATA_HASH, "COUNT(DISTINCT " + DATA + ") > 1", null))
+    {
+      while (cursor != null && cursor.moveToNext()) {
+        duplicated.add(cursor.getString(0));
+      }
+    }
+
+    long reclaimed = 0;
+
+    for (String hash : duplicated) {
+      List<File> unused = new LinkedList<>();
+
+      database.beginTransaction();
+      try {
+        List<DuplicateData> copies = new LinkedList<>();
+
+        try (Cursor cursor = database.query(TABLE_NAME, new String[] {ROW_ID, DATA, SIZE, DATA_RANDOM},
+                                            DATA_HASH + " = ? AND " + DATA + " IS NOT NULL", new String[] {hash},
+                                            null, null, ROW_ID + " ASC"))
+        {
+          while (cursor != null && cursor.moveToNext()) {
+            copies.add(new DuplicateData(cursor.getLong(0), cursor.getString(1), cursor.getLong(2), cursor.getBlob(3)));
+          }
+        }
+
+        DuplicateData canonical = null;
+
+        for (DuplicateData copy : copies) {
+          if (canonical == null) {
+            if (new File(copy.data).exists()) canonical = copy;
+          } else if (!canonical.data.equals(copy.data) && canonical.size == copy.size) {
+            ContentValues values = new ContentValues(2);
+            values.put(DATA, canonical.data);
+            values.put(DATA_RANDOM, canonical.random);
+
+            database.update(TABLE_NAME, values, ROW_ID + " = ?", new String[] {String.valueOf(copy.rowId)});
+
+            if (isUnreferenced(database, copy.data)) unused.add(new File(copy.data));
+          }
+        }
+
+        database.setTransactionSuccessful();
+      } finally {
+        database.endTransaction();
+      }
+
+      for (File file : unused) {
+        long length = file.length();
+
+        if (file.delete()) reclaimed += length;
+      }
+    }
+
+    Log.i(TAG, "Merged " + duplicated.size() + " duplicated attachments, reclaimed " + reclaimed + " bytes.");
+
+    return reclaimed;
+  }
+
   @SuppressWarnings("WeakerAccess")
   @VisibleForTesting
   protected @Nullable InputStream getDataStream(AttachmentId attachmentId, String dataType, long offset)
@@ -505,7 +792,8 @@ public class AttachmentDatabase extends Database {
 
         return new DataInfo(new File(cursor.getString(0)),
                             cursor.getLong(1),
-                            cursor.getBlob(2));
+                            cursor.getBlob(2),
+                            null);
       } else {
         return null;
       }
@@ -543,89 +831,99 @@ public class AttachmentDatabase extends Database {
       throws MmsException
   {
     try {
+      MessageDigest              digest = MessageDigest.getInstance("SHA-256");
       Pair<byte[], OutputStream> out    = ModernEncryptingPartOutputStream.createFor(attachmentSecret, destination, false);
-      long                       length = Util.copy(in, out.second);
+      long                       length = Util.copy(new DigestInputStream(in, digest), out.second);
 
-      return new DataInfo(destination, length, out.first);
+      return new DataInfo(destination, length, out.first, Hex.toStringCondensed(digest.digest()));
     } catch (IOException e) {
       throw new MmsException(e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
     }
   }
 
   public List<DatabaseAttachment> getAttachment(@NonNull Cursor cursor) {
+    int summaryIndex = cursor.getColumnIndex(ATTACHMENT_ALIAS);
+
+    if (summaryIndex != -1) {
+      return AttachmentSummary.decode(cursor.getString(summaryIndex));
+    } else {
+      return Collections.singletonList(new DatabaseAttachment(new AttachmentId(cursor.getLong(cursor.getColumnIndexOrThrow(ROW_ID)),
+                                                                               cursor.getLong(cursor.getColumnIndexOrThrow(UNIQUE_ID))),
+                                                              cursor.getLong(cursor.getColumnIndexOrThrow(MMS_ID)),
+                                                              !cursor.isNull(cursor.getColumnIndexOrThrow(DATA)),
+                                                              !cursor.isNull(cursor.getColumnIndexOrThrow(THUMBNAIL)),
+                                                              cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_TYPE)),
+                                                              cursor.getInt(cursor.getColumnIndexOrThrow(TRANSFER_STATE)),
+                                                              cursor.getLong(cursor.getColumnIndexOrThrow(SIZE)),
+                                                              cursor.getString(cursor.getColumnIndexOrThrow(FILE_NAME)),
+                                                              cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_LOCATION)),
+                                                              cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_DISPOSITION)),
+                                                              cursor.getString(cursor.getColumnIndexOrThrow(NAME)),
+                                                              cursor.getBlob(cursor.getColumnIndexOrThrow(DIGEST)),
+                                                              cursor.getString(cursor.getColumnIndexOrThrow(FAST_PREFLIGHT_ID)),
+                                                              cursor.getInt(cursor.getColumnIndexOrThrow(VOICE_NOTE)) == 1,
+                                                              cursor.getInt(cursor.getColumnIndexOrThrow(WIDTH)),
+                                                              cursor.getInt(cursor.getColumnIndexOrThrow(HEIGHT)),
+                                                              cursor.getInt(cursor.getColumnIndexOrThrow(QUOTE)) == 1));
+    }
+  }
+
+
+  private @NonNull PreparedAttachment prepareAttachment(@NonNull Attachment attachment, boolean quote)
+      throws MmsException
+  {
+    DataInfo dataInfo      = null;
+    DataInfo thumbnailInfo = null;
+    float    aspectRatio   = 0;
+
     try {
-      if (cursor.getColumnIndex(AttachmentDatabase.ATTACHMENT_JSON_ALIAS) != -1) {
-        if (cursor.isNull(cursor.getColumnIndexOrThrow(ATTACHMENT_JSON_ALIAS))) {
-          return new LinkedList<>();
+      if (attachment.getDataUri() != null) {
+        dataInfo = setAttachmentData(attachment.getDataUri());
+        Log.d(TAG, "Wrote part to file: " + dataInfo.file.getAbsolutePath());
+      }
+
+      Uri thumbnailUri = attachment.getThumbnailUri();
+
+      if (thumbnailUri != null) {
+        try (InputStream attachmentStream = PartAuthority.getAttachmentStream(context, thumbnailUri)) {
+          Pair<Integer, Integer> dimens = BitmapUtil.getDimensions(attachmentStream);
+          thumbnailInfo = setAttachmentData(PartAuthority.getAttachmentStream(context, thumbnailUri));
+          aspectRatio   = (float) dimens.first / (float) dimens.second;
+        } catch (IOException | BitmapDecodingException e) {
+          Log.w(TAG, "Failed to save existing thumbnail.", e);
         }
+      }
+
+      if (thumbnailInfo == null && dataInfo != null) {
+        if (MediaUtil.hasVideoThumbnail(attachment.getDataUri())) {
+          Bitmap bitmap = MediaUtil.getVideoThumbnail(context, attachment.getDataUri());
 
-        List<DatabaseAttachment> result = new LinkedList<>();
-        JSONArray                array  = new JSONArray(cursor.getString(cursor.getColumnIndexOrThrow(ATTACHMENT_JSON_ALIAS)));
-
-        for (int i=0;i<array.length();i++) {
-          JsonUtils.SaneJSONObject object = new JsonUtils.SaneJSONObject(array.getJSONObject(i));
-
-          if (!object.isNull(ROW_ID)) {
-            result.add(new DatabaseAttachment(new AttachmentId(object.getLong(ROW_ID), object.getLong(UNIQUE_ID)),
-                                              object.getLong(MMS_ID),
-                                              !TextUtils.isEmpty(object.getString(DATA)),
-                                              !TextUtils.isEmpty(object.getString(THUMBNAIL)),
-                                              object.getString(CONTENT_TYPE),
-                                              object.getInt(TRANSFER_STATE),
-                                              object.getLong(SIZE),
-                                              object.getString(FILE_NAME),
-                                              object.getString(CONTENT_LOCATION),
-                                              object.getString(CONTENT_DISPOSITION),
-                                              object.getString(NAME),
-                                              null,
-                                              object.getString(FAST_PREFLIGHT_ID),
-                                              object.getInt(VOICE_NOTE) == 1,
-                                              object.getInt(WIDTH),
-                                              object.getInt(HEIGHT),
-                                              object.getInt(QUOTE) == 1));
+          if (bitmap != null) {
+            ThumbnailData thumbnailData = new ThumbnailData(bitmap);
+            thumbnailInfo = setAttachmentData(thumbnailData.toDataStream());
+            aspectRatio   = thumbnailData.getAspectRatio();
+          } else {
+            Log.w(TAG, "Retrieving video thumbnail failed, will submit thumbnail generation job...");
           }
         }
-
-        return result;
-      } else {
-        return Collections.singletonList(new DatabaseAttachment(new AttachmentId(cursor.getLong(cursor.getColumnIndexOrThrow(ROW_ID)),
-                                                                                 cursor.getLong(cursor.getColumnIndexOrThrow(UNIQUE_ID))),
-                                                                cursor.getLong(cursor.getColumnIndexOrThrow(MMS_ID)),
-                                                                !cursor.isNull(cursor.getColumnIndexOrThrow(DATA)),
-                                                                !cursor.isNull(cursor.getColumnIndexOrThrow(THUMBNAIL)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_TYPE)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(TRANSFER_STATE)),
-                                                                cursor.getLong(cursor.getColumnIndexOrThrow(SIZE)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(FILE_NAME)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_LOCATION)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_DISPOSITION)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(NAME)),
-                                                                cursor.getBlob(cursor.getColumnIndexOrThrow(DIGEST)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(FAST_PREFLIGHT_ID)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(VOICE_NOTE)) == 1,
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(WIDTH)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(HEIGHT)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(QUOTE)) == 1));
       }
-    } catch (JSONException e) {
-      throw new AssertionError(e);
+    } catch (MmsException | RuntimeException e) {
+      deleteAttachmentOnDisk(dataInfo != null ? dataInfo.file.getAbsolutePath() : null, null);
+      throw e;
     }
-  }
 
+    return new PreparedAttachment(attachment, quote, dataInfo, thumbnailInfo, aspectRatio, thumbnailInfo == null && dataInfo != null);
+  }
 
-  private AttachmentId insertAttachment(long mmsId, Attachment attachment, boolean quote)
-      throws MmsException
-  {
+  private AttachmentId insertAttachment(long mmsId, @NonNull PreparedAttachment prepared) {
     Log.d(TAG, "Inserting attachment for mms id: " + mmsId);
 
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    DataInfo       dataInfo = null;
-    long           uniqueId = System.currentTimeMillis();
-
-    if (attachment.getDataUri() != null) {
-      dataInfo = setAttachmentData(attachment.getDataUri());
-      Log.d(TAG, "Wrote part to file: " + dataInfo.file.getAbsolutePath());
-    }
+    SQLiteDatabase database   = databaseHelper.getWritableDatabase();
+    Attachment     attachment = prepared.attachment;
+    DataInfo       dataInfo   = prepared.data != null ? deduplicate(database, prepared.data) : null;
+    long           uniqueId   = System.currentTimeMillis();
 
     ContentValues contentValues = new ContentValues();
     contentValues.put(MMS_ID, mmsId);
@@ -642,49 +940,24 @@ public class AttachmentDatabase extends Database {
     contentValues.put(VOICE_NOTE, attachment.isVoiceNote() ? 1 : 0);
     contentValues.put(WIDTH, attachment.getWidth());
     contentValues.put(HEIGHT, attachment.getHeight());
-    contentValues.put(QUOTE, quote);
+    contentValues.put(QUOTE, prepared.quote);
 
     if (dataInfo != null) {
       contentValues.put(DATA, dataInfo.file.getAbsolutePath());
       contentValues.put(SIZE, dataInfo.length);
       contentValues.put(DATA_RANDOM, dataInfo.random);
+      contentValues.put(DATA_HASH, dataInfo.hash);
     }
 
-    long         rowId        = database.insert(TABLE_NAME, null, contentValues);
-    AttachmentId attachmentId = new AttachmentId(rowId, uniqueId);
-    Uri          thumbnailUri = attachment.getThumbnailUri();
-    boolean      hasThumbnail = false;
-
-    if (thumbnailUri != null) {
-      try (InputStream attachmentStream = PartAuthority.getAttachmentStream(context, thumbnailUri)) {
-        Pair<Integer, Integer> dimens = BitmapUtil.getDimensions(attachmentStream);
-        updateAttachmentThumbnail(attachmentId,
-                                  PartAuthority.getAttachmentStream(context, thumbnailUri),
-                                  (float) dimens.first / (float) dimens.second);
-        hasThumbnail = true;
-      } catch (IOException | BitmapDecodingException e) {
-        Log.w(TAG, "Failed to save existing thumbnail.", e);
-      }
+    if (prepared.thumbnail != null) {
+      contentValues.put(THUMBNAIL, prepared.thumbnail.file.getAbsolutePath());
+      contentValues.put(THUMBNAIL_ASPECT_RATIO, prepared.thumbnailAspectRatio);
+      contentValues.put(THUMBNAIL_RANDOM, prepared.thumbnail.random);
     }
 
-    if (!hasThumbnail && dataInfo != null) {
-      if (MediaUtil.hasVideoThumbnail(attachment.getDataUri())) {
-        Bitmap bitmap = MediaUtil.getVideoThumbnail(context, attachment.getDataUri());
-
-        if (bitmap != null) {
-          ThumbnailData thumbnailData = new ThumbnailData(bitmap);
-          updateAttachmentThumbnail(attachmentId, thumbnailData.toDataStream(), thumbnailData.getAspectRatio());
-        } else {
-          Log.w(TAG, "Retrieving video thumbnail failed, submitting thumbnail generation job...");
-          thumbnailExecutor.submit(new ThumbnailFetchCallable(attachmentId));
-        }
-      } else {
-        Log.i(TAG, "Submitting thumbnail generation job...");
-        thumbnailExecutor.submit(new ThumbnailFetchCallable(attachmentId));
-      }
-    }
+    long rowId = database.insert(TABLE_NAME, null, contentValues);
 
-    return attachmentId;
+    return new AttachmentId(rowId, uniqueId);
   }
 
   @SuppressWarnings("WeakerAccess")
@@ -781,15 +1054,70 @@ public class AttachmentDatabase extends Database {
     }
   }
 
+  /**
+   * The encrypted files for a message's attachments, ready to be inserted. If they end up not
+   * being inserted, {@link #discard()} deletes them.
+   */
+  static class PreparedAttachments {
+
+    private final List<PreparedAttachment> attachments;
+
+    private PreparedAttachments(@NonNull List<PreparedAttachment> attachments) {
+      this.attachments = attachments;
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    void discard() {
+      for (PreparedAttachment prepared : attachments) {
+        if (prepared.data != null)      prepared.data.file.delete();
+        if (prepared.thumbnail != null) prepared.thumbnail.file.delete();
+      }
+    }
+  }
+
+  private static class PreparedAttachment {
+    private final Attachment attachment;
+    private final boolean    quote;
+    private final DataInfo   data;
+    private final DataInfo   thumbnail;
+    private final float      thumbnailAspectRatio;
+    private final boolean    fetchThumbnail;
+
+    private PreparedAttachment(Attachment attachment, boolean quote, DataInfo data, DataInfo thumbnail, float thumbnailAspectRatio, boolean fetchThumbnail) {
+      this.attachment           = attachment;
+      this.quote                = quote;
+      this.data                 = data;
+      this.thumbnail            = thumbnail;
+      this.thumbnailAspectRatio = thumbnailAspectRatio;
+      this.fetchThumbnail       = fetchThumbnail;
+    }
+  }
+
+  private static class DuplicateData {
+    private final long   rowId;
+    private final String data;
+    private final long   size;
+    private final byte[] random;
+
+    private DuplicateData(long rowId, String data, long size, byte[] random) {
+      this.rowId  = rowId;
+      this.data   = data;
+      this.size   = size;
+      this.random = random;
+    }
+  }
+
   private static class DataInfo {
     private final File   file;
     private final long   length;
     private final byte[] random;
+    private final String hash;
 
-    private DataInfo(File file, long length, byte[] random) {
+    private DataInfo(File file, long length, byte[] random, String hash) {
       this.file = file;
       this.length = length;
       this.random = random;
+      this.hash = hash;
     }
   }
 }
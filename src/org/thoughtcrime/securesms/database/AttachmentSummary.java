@@ -0,0 +1,229 @@
+package org.thoughtcrime.securesms.database;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A pre-serialized summary of the attachments of each MMS, kept in a side table by triggers on
+ * the part table. Conversation queries join it by primary key instead of aggregating the part
+ * table for every message they return.
+ *
+ * A summary is a list of records separated by {@link #RECORD_SEPARATOR}, each a fixed sequence
+ * of fields separated by {@link #FIELD_SEPARATOR}. Text fields escape both separators and the
+ * escape character itself, and a SQL NULL is written as the escape character followed by
+ * {@link #NULL_FIELD}.
+ */
+public final class AttachmentSummary {
+
+  public static final String TABLE_NAME = "attachment_summary";
+  static final String        MMS_ID     = "mms_id";
+  static final String        SUMMARY    = "summary";
+
+  private static final char   ESCAPE           = 27;
+  private static final char   RECORD_SEPARATOR = 30;
+  private static final char   FIELD_SEPARATOR  = 31;
+  private static final char   NULL_FIELD       = '0';
+
+  private static final int FIELD_COUNT = 17;
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + MMS_ID + " INTEGER PRIMARY KEY, " + SUMMARY + " TEXT);";
+
+  private static final String RECORD = Util.join(new String[] {
+      number(AttachmentDatabase.ROW_ID),
+      number(AttachmentDatabase.UNIQUE_ID),
+      number(AttachmentDatabase.MMS_ID),
+      present(AttachmentDatabase.DATA),
+      present(AttachmentDatabase.THUMBNAIL),
+      text(AttachmentDatabase.CONTENT_TYPE),
+      number(AttachmentDatabase.TRANSFER_STATE),
+      number(AttachmentDatabase.SIZE),
+      text(AttachmentDatabase.FILE_NAME),
+      text(AttachmentDatabase.CONTENT_LOCATION),
+      text(AttachmentDatabase.CONTENT_DISPOSITION),
+      text(AttachmentDatabase.NAME),
+      text(AttachmentDatabase.FAST_PREFLIGHT_ID),
+      number(AttachmentDatabase.VOICE_NOTE),
+      number(AttachmentDatabase.WIDTH),
+      number(AttachmentDatabase.HEIGHT),
+      number(AttachmentDatabase.QUOTE)
+  }, " || char(" + (int) FIELD_SEPARATOR + ") || ");
+
+  private static final String[] SUMMARY_COLUMNS = {AttachmentDatabase.MMS_ID, AttachmentDatabase.UNIQUE_ID,
+                                                   AttachmentDatabase.DATA, AttachmentDatabase.THUMBNAIL,
+                                                   AttachmentDatabase.CONTENT_TYPE, AttachmentDatabase.TRANSFER_STATE,
+                                                   AttachmentDatabase.SIZE, AttachmentDatabase.FILE_NAME,
+                                                   AttachmentDatabase.CONTENT_LOCATION, AttachmentDatabase.CONTENT_DISPOSITION,
+                                                   AttachmentDatabase.NAME, AttachmentDatabase.FAST_PREFLIGHT_ID,
+                                                   AttachmentDatabase.VOICE_NOTE, AttachmentDatabase.WIDTH,
+                                                   AttachmentDatabase.HEIGHT, AttachmentDatabase.QUOTE};
+
+  public static final String[] CREATE_TRIGGERS = {
+      "CREATE TRIGGER part_summary_ai AFTER INSERT ON " + AttachmentDatabase.TABLE_NAME + " BEGIN\n" +
+          refresh("new." + AttachmentDatabase.MMS_ID) +
+          "END;",
+      "CREATE TRIGGER part_summary_ad AFTER DELETE ON " + AttachmentDatabase.TABLE_NAME + " BEGIN\n" +
+          refresh("old." + AttachmentDatabase.MMS_ID) +
+          "END;",
+      "CREATE TRIGGER part_summary_au AFTER UPDATE OF " + Util.join(SUMMARY_COLUMNS, ", ") + " ON " + AttachmentDatabase.TABLE_NAME + " BEGIN\n" +
+          refresh("new." + AttachmentDatabase.MMS_ID) +
+          "END;",
+      "CREATE TRIGGER part_summary_move AFTER UPDATE OF " + AttachmentDatabase.MMS_ID + " ON " + AttachmentDatabase.TABLE_NAME +
+          " WHEN old." + AttachmentDatabase.MMS_ID + " != new." + AttachmentDatabase.MMS_ID + " BEGIN\n" +
+          refresh("old." + AttachmentDatabase.MMS_ID) +
+          "END;"
+  };
+
+  /**
+   * Recomputes every summary in one pass, for when the triggers weren't in place while the part
+   * table was written.
+   */
+  public static final String[] REBUILD = {
+      "DELETE FROM " + TABLE_NAME,
+      "INSERT INTO " + TABLE_NAME + " (" + MMS_ID + ", " + SUMMARY + ") " +
+          "SELECT " + AttachmentDatabase.MMS_ID + ", group_concat(record, char(" + (int) RECORD_SEPARATOR + ")) " +
+          "FROM (SELECT " + AttachmentDatabase.MMS_ID + ", " + RECORD + " AS record FROM " + AttachmentDatabase.TABLE_NAME +
+          " ORDER BY " + AttachmentDatabase.MMS_ID + ", " + AttachmentDatabase.ROW_ID + ") " +
+          "GROUP BY " + AttachmentDatabase.MMS_ID
+  };
+
+  private AttachmentSummary() {}
+
+  private static String refresh(@NonNull String mmsId) {
+    return "  DELETE FROM " + TABLE_NAME + " WHERE " + MMS_ID + " = " + mmsId + ";\n" +
+           "  INSERT INTO " + TABLE_NAME + " (" + MMS_ID + ", " + SUMMARY + ") " +
+           "SELECT " + mmsId + ", " + SUMMARY + " FROM (" +
+             "SELECT group_concat(record, char(" + (int) RECORD_SEPARATOR + ")) AS " + SUMMARY + " FROM (" +
+               "SELECT " + RECORD + " AS record FROM " + AttachmentDatabase.TABLE_NAME +
+               " WHERE " + AttachmentDatabase.MMS_ID + " = " + mmsId + " ORDER BY " + AttachmentDatabase.ROW_ID +
+             ")" +
+           ") WHERE " + SUMMARY + " IS NOT NULL;\n";
+  }
+
+  private static String number(@NonNull String column) {
+    return "ifnull(" + AttachmentDatabase.TABLE_NAME + "." + column + ", 0)";
+  }
+
+  private static String present(@NonNull String column) {
+    String qualified = AttachmentDatabase.TABLE_NAME + "." + column;
+    return "(" + qualified + " IS NOT NULL AND " + qualified + " != '')";
+  }
+
+  private static String text(@NonNull String column) {
+    String escape = "char(" + (int) ESCAPE + ")";
+
+    return "ifnull(" +
+             "replace(replace(replace(" + AttachmentDatabase.TABLE_NAME + "." + column + ", " +
+               escape + ", " + escape + " || " + escape + "), " +
+               "char(" + (int) FIELD_SEPARATOR + "), " + escape + " || 'f'), " +
+               "char(" + (int) RECORD_SEPARATOR + "), " + escape + " || 'r'), " +
+             escape + " || '0')";
+  }
+
+  /**
+   * Decodes a summary column without an intermediate object model. A null summary means the
+   * message has no attachments.
+   */
+  public static @NonNull List<DatabaseAttachment> decode(@Nullable String summary) {
+    List<DatabaseAttachment> attachments = new LinkedList<>();
+
+    if (summary == null || summary.isEmpty()) {
+      return attachments;
+    }
+
+    Decoder decoder = new Decoder(summary);
+
+    while (decoder.hasNext()) {
+      attachments.add(decoder.next());
+    }
+
+    return attachments;
+  }
+
+  private static class Decoder {
+
+    private final String        summary;
+    private final String[]      fields  = new String[FIELD_COUNT];
+    private final StringBuilder builder = new StringBuilder();
+
+    private int     position;
+    private boolean isNull;
+
+    Decoder(@NonNull String summary) {
+      this.summary = summary;
+    }
+
+    boolean hasNext() {
+      return position < summary.length();
+    }
+
+    @NonNull DatabaseAttachment next() {
+      int field = 0;
+
+      builder.setLength(0);
+
+      while (position < summary.length()) {
+        char c = summary.charAt(position++);
+
+        if (c == ESCAPE && position < summary.length()) {
+          char escaped = summary.charAt(position++);
+
+          if      (escaped == 'f')        builder.append(FIELD_SEPARATOR);
+          else if (escaped == 'r')        builder.append(RECORD_SEPARATOR);
+          else if (escaped == NULL_FIELD) isNull = true;
+          else                            builder.append(escaped);
+        } else if (c == FIELD_SEPARATOR) {
+          field = setField(field);
+        } else if (c == RECORD_SEPARATOR) {
+          break;
+        } else {
+          builder.append(c);
+        }
+      }
+
+      setField(field);
+
+      return new DatabaseAttachment(new AttachmentId(getLong(0), getLong(1)),
+                                    getLong(2),
+                                    getInt(3) == 1,
+                                    getInt(4) == 1,
+                                    fields[5],
+                                    getInt(6),
+                                    getLong(7),
+                                    fields[8],
+                                    fields[9],
+                                    fields[10],
+                                    fields[11],
+                                    null,
+                                    fields[12],
+                                    getInt(13) == 1,
+                                    getInt(14),
+                                    getInt(15),
+                                    getInt(16) == 1);
+    }
+
+    private int setField(int field) {
+      if (field >= FIELD_COUNT) throw new AssertionError("Malformed attachment summary");
+
+      fields[field] = isNull ? null : builder.toString();
+      isNull        = false;
+      builder.setLength(0);
+
+      return field + 1;
+    }
+
+    private long getLong(int field) {
+      return fields[field] != null ? Long.parseLong(fields[field]) : 0;
+    }
+
+    private int getInt(int field) {
+      return fields[field] != null ? Integer.parseInt(fields[field]) : 0;
+    }
+  }
+}
@@ -47,11 +47,11 @@ public abstract class Database {
   }
 
   protected void notifyConversationListeners(long threadId) {
-    context.getContentResolver().notifyChange(Uri.parse(CONVERSATION_URI + threadId), null);
+    DatabaseFactory.getInvalidationBus(context).notifyChange(Uri.parse(CONVERSATION_URI + threadId));
   }
 
   protected void notifyConversationListListeners() {
-    context.getContentResolver().notifyChange(Uri.parse(CONVERSATION_LIST_URI), null);
+    DatabaseFactory.getInvalidationBus(context).notifyChange(Uri.parse(CONVERSATION_LIST_URI));
   }
 
   protected void setNotifyConverationListeners(Cursor cursor, long threadId) {
@@ -69,7 +69,7 @@ public abstract class Database {
   }
 
   protected void notifyAttachmentListeners() {
-    context.getContentResolver().notifyChange(Uri.parse(ATTACHMENT_URI), null);
+    DatabaseFactory.getInvalidationBus(context).notifyChange(Uri.parse(ATTACHMENT_URI));
   }
 
   public void reset(SQLCipherOpenHelper databaseHelper) {
@@ -57,6 +57,7 @@ public class DatabaseFactory {
   private final SignedPreKeyDatabase  signedPreKeyDatabase;
   private final SessionDatabase       sessionDatabase;
   private final SearchDatabase        searchDatabase;
+  private final InvalidationBus       invalidationBus;
 
   public static DatabaseFactory getInstance(Context context) {
     synchronized (lock) {
@@ -135,6 +136,10 @@ public class DatabaseFactory {
     return getInstance(context).searchDatabase;
   }
 
+  public static InvalidationBus getInvalidationBus(Context context) {
+    return getInstance(context).invalidationBus;
+  }
+
   public static SQLiteDatabase getBackupDatabase(Context context) {
     return getInstance(context).databaseHelper.getReadableDatabase();
   }
@@ -168,6 +173,7 @@ public class DatabaseFactory {
     this.signedPreKeyDatabase = new SignedPreKeyDatabase(context, databaseHelper);
     this.sessionDatabase      = new SessionDatabase(context, databaseHelper);
     this.searchDatabase       = new SearchDatabase(context, databaseHelper);
+    this.invalidationBus      = new InvalidationBus(context);
   }
 
   public void onApplicationLevelUpgrade(@NonNull Context context, @NonNull MasterSecret masterSecret,
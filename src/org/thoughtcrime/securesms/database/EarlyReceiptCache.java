@@ -1,44 +1,489 @@
 package org.thoughtcrime.securesms.database;
 
-import org.thoughtcrime.securesms.logging.Log;
-import org.thoughtcrime.securesms.util.LRUCache;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Holds receipts that arrived before the message they acknowledge was written, keyed by the sent
+ * timestamp of that message, until the message shows up.
+ *
+ * The cache is split into independently locked segments, each an open-addressed table with
+ * primitive long keys, so receipts for different messages don't contend and no key is boxed. It's
+ * bounded by an estimate of the memory it occupies rather than by a number of messages, since a
+ * single message sent to a large group can collect hundreds of receipts. Once it's full, the
+ * messages that least recently received a receipt are evicted first.
+ *
+ * If given a {@link Persistence}, every change is written through to it, and its contents are
+ * restored the first time the cache is used, so early receipts survive the process being killed.
+ * The persistence is typically a database that callers may already hold a transaction on, so it's
+ * never called under a lock that another caller could block on. Changes are queued in order under
+ * the segment lock and written out after it's released, by whichever caller gets to them first.
+ */
 public class EarlyReceiptCache {
 
-  private static final String TAG = EarlyReceiptCache.class.getSimpleName();
+  private static final int SEGMENTS         = 16;
+  private static final int INITIAL_CAPACITY = 16;
 
-  private final LRUCache<Long, Map<Address, Long>> cache = new LRUCache<>(100);
+  private static final int ENTRY_BYTES   = 96;
+  private static final int ORIGIN_BYTES  = 56;
+  private static final int MIN_BYTES     = 256 * 1024;
+  private static final int MAX_BYTES     = 2 * 1024 * 1024;
 
-  public synchronized void increment(long timestamp, Address origin) {
-    Log.i(TAG, this+"");
-    Log.i(TAG, String.format("Early receipt: (%d, %s)", timestamp, origin.serialize()));
+  private static final int INDEX_THRESHOLD = 8;
 
-    Map<Address, Long> receipts = cache.get(timestamp);
+  private final Segment[]     segments;
+  private final Persistence   persistence;
+  private final long          maxBytes;
+  private final AtomicLong    bytes       = new AtomicLong();
+  private final AtomicLong    clock       = new AtomicLong();
+  private final Queue<Change> changes     = new ConcurrentLinkedQueue<>();
+  private final ReentrantLock persistLock = new ReentrantLock();
 
-    if (receipts == null) {
-      receipts = new HashMap<>();
+  private volatile boolean restored;
+
+  public EarlyReceiptCache() {
+    this(getDefaultMaxBytes(), null);
+  }
+
+  public EarlyReceiptCache(@Nullable Persistence persistence) {
+    this(getDefaultMaxBytes(), persistence);
+  }
+
+  @VisibleForTesting
+  EarlyReceiptCache(long maxBytes, @Nullable Persistence persistence) {
+    this.segments    = new Segment[SEGMENTS];
+    this.persistence = persistence;
+    this.maxBytes    = maxBytes;
+    this.restored    = persistence == null;
+
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  public void increment(long timestamp, Address origin) {
+    increment(timestamp, origin, 1);
+  }
+
+  public void increment(long timestamp, @NonNull Address origin, long increment) {
+    restoreIfNecessary();
+    segmentFor(timestamp).increment(timestamp, origin, increment);
+
+    if (bytes.get() > maxBytes) {
+      evict(timestamp);
+    }
+
+    persistChanges();
+  }
+
+  public @NonNull Map<Address, Long> remove(long timestamp) {
+    restoreIfNecessary();
+
+    Map<Address, Long> receipts = segmentFor(timestamp).remove(timestamp);
+
+    persistChanges();
+
+    return receipts;
+  }
+
+  @VisibleForTesting
+  int size() {
+    int size = 0;
+
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size;
+      }
+    }
+
+    return size;
+  }
+
+  @VisibleForTesting
+  long getEstimatedBytes() {
+    return bytes.get();
+  }
+
+  /**
+   * Reads the persisted receipts without holding any lock, then loads them under the cache monitor.
+   * Concurrent first callers may each read them, but only one loads them.
+   */
+  private void restoreIfNecessary() {
+    if (restored) return;
+
+    List<Change> rows = new LinkedList<>();
+    persistence.restore((timestamp, origin, count) -> rows.add(Change.update(timestamp, origin, count)));
+
+    synchronized (this) {
+      if (!restored) {
+        for (Change row : rows) {
+          segmentFor(row.timestamp).load(row.timestamp, row.origin, row.count);
+          if (bytes.get() > maxBytes) evict(row.timestamp);
+        }
+
+        restored = true;
+      }
+    }
+
+    persistChanges();
+  }
+
+  /**
+   * Writes out queued changes in the order they were made. If another caller is already writing,
+   * it's left to pick these up too, so no caller ever blocks on another one's persistence.
+   */
+  private void persistChanges() {
+    while (!changes.isEmpty() && persistLock.tryLock()) {
+      try {
+        Change change;
+
+        while ((change = changes.poll()) != null) {
+          if (change.origin != null) persistence.update(change.timestamp, change.origin, change.count);
+          else                       persistence.remove(change.timestamp);
+        }
+      } finally {
+        persistLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Evicts the least recently used entries across all segments until the cache is back under its
+   * bound, sparing the entry that was just written to. Segments are locked one at a time, so
+   * concurrent writers may together evict slightly more than necessary.
+   */
+  private void evict(long spared) {
+    while (bytes.get() > maxBytes) {
+      Segment oldest    = null;
+      long    oldestUse = Long.MAX_VALUE;
+
+      for (Segment segment : segments) {
+        long use = segment.getEldestUse(spared);
+
+        if (use < oldestUse) {
+          oldest    = segment;
+          oldestUse = use;
+        }
+      }
+
+      if (oldest == null || !oldest.evictEldest(spared)) {
+        return;
+      }
+    }
+  }
+
+  private @NonNull Segment segmentFor(long timestamp) {
+    return segments[(int) (mix(timestamp) >>> 60)];
+  }
+
+  private static long mix(long key) {
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return hash ^ (hash >>> 29);
+  }
+
+  private static long getDefaultMaxBytes() {
+    return Math.max(MIN_BYTES, Math.min(MAX_BYTES, Runtime.getRuntime().maxMemory() / 512));
+  }
+
+  private static int sizeOf(@NonNull Address origin) {
+    return ORIGIN_BYTES + 2 * origin.serialize().length();
+  }
+
+  /**
+   * An open-addressed table of entries, also linked from least to most recently used.
+   */
+  private final class Segment {
+
+    private long[]  keys    = new long[INITIAL_CAPACITY];
+    private Entry[] entries = new Entry[INITIAL_CAPACITY];
+    private int     size;
+
+    private Entry eldest;
+    private Entry youngest;
+
+    synchronized void increment(long timestamp, @NonNull Address origin, long increment) {
+      long count = add(timestamp, origin, increment);
+
+      if (persistence != null) {
+        changes.add(Change.update(timestamp, origin, count));
+      }
+    }
+
+    synchronized void load(long timestamp, @NonNull Address origin, long count) {
+      add(timestamp, origin, count);
+    }
+
+    private long add(long timestamp, @NonNull Address origin, long increment) {
+      int   slot  = find(timestamp);
+      Entry entry = entries[slot];
+
+      if (entry == null) {
+        entry = new Entry(timestamp);
+        insert(slot, entry);
+      } else {
+        unlink(entry);
+      }
+
+      link(entry);
+
+      int  before = entry.bytes;
+      long count  = entry.add(origin, increment);
+
+      entry.lastUse = clock.incrementAndGet();
+      bytes.addAndGet(entry.bytes - before);
+
+      return count;
+    }
+
+    synchronized long getEldestUse(long spared) {
+      Entry candidate = getEvictionCandidate(spared);
+      return candidate != null ? candidate.lastUse : Long.MAX_VALUE;
+    }
+
+    synchronized boolean evictEldest(long spared) {
+      Entry candidate = getEvictionCandidate(spared);
+
+      if (candidate == null) return false;
+
+      delete(candidate.timestamp);
+
+      if (persistence != null) {
+        changes.add(Change.remove(candidate.timestamp));
+      }
+
+      return true;
+    }
+
+    private @Nullable Entry getEvictionCandidate(long spared) {
+      if (eldest != null && eldest.timestamp == spared) return eldest.younger;
+      else                                              return eldest;
+    }
+
+    synchronized @NonNull Map<Address, Long> remove(long timestamp) {
+      Entry entry = delete(timestamp);
+
+      if (entry == null) {
+        return new HashMap<>();
+      }
+
+      if (persistence != null) {
+        changes.add(Change.remove(timestamp));
+      }
+
+      Map<Address, Long> receipts = new HashMap<>(entry.size * 2);
+
+      for (int i = 0; i < entry.size; i++) {
+        receipts.put(entry.origins[i], entry.counts[i]);
+      }
+
+      return receipts;
+    }
+
+    private int find(long timestamp) {
+      int mask = keys.length - 1;
+      int slot = (int) mix(timestamp) & mask;
+
+      while (entries[slot] != null && keys[slot] != timestamp) {
+        slot = (slot + 1) & mask;
+      }
+
+      return slot;
     }
 
-    Long count = receipts.get(origin);
+    private void insert(int slot, @NonNull Entry entry) {
+      if ((size + 1) * 4 > keys.length * 3) {
+        resize();
+        slot = find(entry.timestamp);
+      }
 
-    if (count != null) {
-      receipts.put(origin, ++count);
-    } else {
-      receipts.put(origin, 1L);
+      keys[slot]    = entry.timestamp;
+      entries[slot] = entry;
+      size++;
+      bytes.addAndGet(entry.bytes);
     }
 
-    cache.put(timestamp, receipts);
+    private @Nullable Entry delete(long timestamp) {
+      int   slot  = find(timestamp);
+      Entry entry = entries[slot];
+
+      if (entry == null) return null;
+
+      unlink(entry);
+      entries[slot] = null;
+      size--;
+      bytes.addAndGet(-entry.bytes);
+
+      int mask = keys.length - 1;
+      int next = (slot + 1) & mask;
+
+      while (entries[next] != null) {
+        int home = (int) mix(keys[next]) & mask;
+
+        if (((next - home) & mask) >= ((next - slot) & mask)) {
+          keys[slot]    = keys[next];
+          entries[slot] = entries[next];
+          entries[next] = null;
+          slot          = next;
+        }
+
+        next = (next + 1) & mask;
+      }
+
+      return entry;
+    }
+
+    private void resize() {
+      long[]  oldKeys    = keys;
+      Entry[] oldEntries = entries;
+
+      keys    = new long[oldKeys.length * 2];
+      entries = new Entry[oldEntries.length * 2];
+
+      for (int i = 0; i < oldEntries.length; i++) {
+        if (oldEntries[i] != null) {
+          int slot = find(oldKeys[i]);
+
+          keys[slot]    = oldKeys[i];
+          entries[slot] = oldEntries[i];
+        }
+      }
+    }
+
+    private void link(@NonNull Entry entry) {
+      entry.older   = youngest;
+      entry.younger = null;
+
+      if (youngest != null) youngest.younger = entry;
+      else                  eldest           = entry;
+
+      youngest = entry;
+    }
+
+    private void unlink(@NonNull Entry entry) {
+      if (entry.older != null) entry.older.younger = entry.younger;
+      else                     eldest              = entry.younger;
+
+      if (entry.younger != null) entry.younger.older = entry.older;
+      else                       youngest            = entry.older;
+
+      entry.older   = null;
+      entry.younger = null;
+    }
+  }
+
+  /**
+   * The receipts for one sent timestamp, as parallel arrays of origins and counts. Most messages
+   * have a handful of recipients, for which a linear scan beats a map, so an index of the origins
+   * is only built once a message collects receipts from more than a few of them.
+   */
+  private static final class Entry {
+
+    private final long timestamp;
+
+    private Address[]             origins = new Address[2];
+    private long[]                counts  = new long[2];
+    private Map<Address, Integer> index;
+    private int                   size;
+    private int                   bytes   = ENTRY_BYTES;
+
+    private long  lastUse;
+    private Entry older;
+    private Entry younger;
+
+    Entry(long timestamp) {
+      this.timestamp = timestamp;
+    }
+
+    long add(@NonNull Address origin, long increment) {
+      int position = indexOf(origin);
+
+      if (position != -1) {
+        return counts[position] += increment;
+      }
+
+      if (size == origins.length) {
+        Address[] grownOrigins = new Address[size * 2];
+        long[]    grownCounts  = new long[size * 2];
+
+        System.arraycopy(origins, 0, grownOrigins, 0, size);
+        System.arraycopy(counts, 0, grownCounts, 0, size);
+
+        origins = grownOrigins;
+        counts  = grownCounts;
+      }
+
+      origins[size] = origin;
+      counts[size]  = increment;
+
+      if (index != null) {
+        index.put(origin, size);
+      } else if (size + 1 > INDEX_THRESHOLD) {
+        index = new HashMap<>(size * 4);
+        for (int i = 0; i <= size; i++) index.put(origins[i], i);
+      }
+
+      size++;
+      bytes += sizeOf(origin);
+
+      return increment;
+    }
+
+    private int indexOf(@NonNull Address origin) {
+      if (index != null) {
+        Integer position = index.get(origin);
+        return position != null ? position : -1;
+      }
+
+      for (int i = 0; i < size; i++) {
+        if (origins[i].equals(origin)) return i;
+      }
+
+      return -1;
+    }
   }
 
-  public synchronized Map<Address, Long> remove(long timestamp) {
-    Map<Address, Long> receipts = cache.remove(timestamp);
+  /**
+   * A change waiting to be persisted: the new count for an origin, or the removal of a timestamp
+   * when there's no origin.
+   */
+  private static final class Change {
+
+    private final long    timestamp;
+    private final Address origin;
+    private final long    count;
 
-    Log.i(TAG, this+"");
-    Log.i(TAG, String.format("Checking early receipts (%d): %d", timestamp, receipts == null ? 0 : receipts.size()));
+    private Change(long timestamp, @Nullable Address origin, long count) {
+      this.timestamp = timestamp;
+      this.origin    = origin;
+      this.count     = count;
+    }
+
+    static @NonNull Change update(long timestamp, @NonNull Address origin, long count) {
+      return new Change(timestamp, origin, count);
+    }
+
+    static @NonNull Change remove(long timestamp) {
+      return new Change(timestamp, null, 0);
+    }
+  }
+
+  public interface Persistence {
+    void restore(@NonNull Restorer restorer);
+    void update(long timestamp, @NonNull Address origin, long count);
+    void remove(long timestamp);
+  }
 
-    return receipts != null ? receipts : new HashMap<>();
+  public interface Restorer {
+    void restore(long timestamp, @NonNull Address origin, long count);
   }
 }
@@ -0,0 +1,80 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the contents of an {@link EarlyReceiptCache} in a table, so that receipts for messages
+ * that haven't been written yet aren't lost if the process dies in the meantime. Receipts for
+ * messages that still haven't shown up after {@link #MAX_AGE} are dropped when it's restored.
+ */
+public class EarlyReceiptStore implements EarlyReceiptCache.Persistence {
+
+  public static final String TABLE_NAME = "early_receipt";
+
+  private static final String ID        = "_id";
+  private static final String TYPE      = "type";
+  private static final String TIMESTAMP = "timestamp";
+  private static final String ADDRESS   = "address";
+  private static final String COUNT     = "count";
+
+  static final int TYPE_SMS_DELIVERY = 1;
+  static final int TYPE_SMS_READ     = 2;
+  static final int TYPE_MMS_DELIVERY = 3;
+  static final int TYPE_MMS_READ     = 4;
+
+  private static final long MAX_AGE = TimeUnit.DAYS.toMillis(7);
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+      TYPE + " INTEGER, " + TIMESTAMP + " INTEGER, " + ADDRESS + " TEXT, " + COUNT + " INTEGER, " +
+      "UNIQUE (" + TYPE + ", " + TIMESTAMP + ", " + ADDRESS + ") ON CONFLICT REPLACE);";
+
+  private static final String TYPE_AND_TIMESTAMP_WHERE = TYPE + " = ? AND " + TIMESTAMP + " = ?";
+
+  private final SQLCipherOpenHelper databaseHelper;
+  private final int                 type;
+
+  EarlyReceiptStore(@NonNull SQLCipherOpenHelper databaseHelper, int type) {
+    this.databaseHelper = databaseHelper;
+    this.type           = type;
+  }
+
+  @Override
+  public void restore(@NonNull EarlyReceiptCache.Restorer restorer) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+
+    database.delete(TABLE_NAME, TYPE + " = ? AND " + TIMESTAMP + " < ?",
+                    new String[] {String.valueOf(type), String.valueOf(System.currentTimeMillis() - MAX_AGE)});
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {TIMESTAMP, ADDRESS, COUNT}, TYPE + " = ?",
+                                        new String[] {String.valueOf(type)}, null, null, TIMESTAMP + " ASC"))
+    {
+      while (cursor != null && cursor.moveToNext()) {
+        restorer.restore(cursor.getLong(0), Address.fromSerialized(cursor.getString(1)), cursor.getLong(2));
+      }
+    }
+  }
+
+  @Override
+  public void update(long timestamp, @NonNull Address origin, long count) {
+    ContentValues values = new ContentValues(4);
+    values.put(TYPE, type);
+    values.put(TIMESTAMP, timestamp);
+    values.put(ADDRESS, origin.serialize());
+    values.put(COUNT, count);
+
+    databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
+  }
+
+  @Override
+  public void remove(long timestamp) {
+    databaseHelper.getWritableDatabase().delete(TABLE_NAME, TYPE_AND_TIMESTAMP_WHERE, new String[] {String.valueOf(type), String.valueOf(timestamp)});
+  }
+}
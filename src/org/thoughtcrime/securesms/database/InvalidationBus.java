@@ -0,0 +1,111 @@
+package org.thoughtcrime.securesms.database;
+
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the change notifications that database writes send to loaders and cursors.
+ *
+ * Every write used to notify its URIs right away, so a burst of incoming messages, receipts or
+ * expirations made the conversation and conversation list requery dozens of times a second.
+ * Notifications are now collected for a short window, and each distinct URI (and so each thread)
+ * is notified once per window. They can also be suspended for the duration of a bulk operation,
+ * in which case everything collected is delivered once it finishes.
+ */
+public class InvalidationBus {
+
+  private static final long WINDOW_MILLIS = 50;
+
+  private final Context                  context;
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+  private final Set<Uri>                 pending  = new LinkedHashSet<>();
+
+  private int     suspensions;
+  private boolean flushScheduled;
+  private long    requestedCount;
+  private long    deliveredCount;
+
+  InvalidationBus(@NonNull Context context) {
+    this.context = context.getApplicationContext();
+  }
+
+  synchronized void notifyChange(@NonNull Uri uri) {
+    requestedCount++;
+    pending.add(uri);
+
+    if (suspensions == 0 && !flushScheduled) {
+      flushScheduled = true;
+      executor.schedule(this::flush, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Holds back all notifications until a matching call to {@link #resume()}.
+   */
+  public synchronized void suspend() {
+    suspensions++;
+  }
+
+  public void resume() {
+    synchronized (this) {
+      if (suspensions == 0) throw new IllegalStateException("Not suspended!");
+
+      suspensions--;
+
+      if (suspensions > 0 || flushScheduled || pending.isEmpty()) return;
+
+      flushScheduled = true;
+    }
+
+    executor.execute(this::flush);
+  }
+
+  /**
+   * @return The number of notifications requested by database writes.
+   */
+  public synchronized long getRequestedCount() {
+    return requestedCount;
+  }
+
+  /**
+   * @return The number of notifications actually delivered to the content resolver.
+   */
+  public synchronized long getDeliveredCount() {
+    return deliveredCount;
+  }
+
+  /**
+   * @return The number of requested notifications that were folded into another one.
+   */
+  public synchronized long getCollapsedCount() {
+    return requestedCount - deliveredCount - pending.size();
+  }
+
+  private void flush() {
+    List<Uri> uris;
+
+    synchronized (this) {
+      flushScheduled = false;
+
+      if (suspensions > 0) return;
+
+      uris = new ArrayList<>(pending);
+      pending.clear();
+      deliveredCount += uris.size();
+    }
+
+    for (Uri uri : uris) {
+      context.getContentResolver().notifyChange(uri, null);
+    }
+  }
+}
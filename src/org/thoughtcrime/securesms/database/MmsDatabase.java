@@ -41,6 +41,8 @@ import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
 import org.thoughtcrime.securesms.attachments.MmsNotificationAttachment;
 import org.thoughtcrime.securesms.contactshare.Contact;
+import org.thoughtcrime.securesms.database.AttachmentDatabase.PreparedAttachments;
+import org.thoughtcrime.securesms.database.ReceiptAggregator.ReceiptCount;
 import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatch;
 import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatchList;
 import org.thoughtcrime.securesms.database.documents.NetworkFailure;
@@ -60,6 +62,7 @@ import org.thoughtcrime.securesms.mms.OutgoingMediaMessage;
 import org.thoughtcrime.securesms.mms.OutgoingSecureMediaMessage;
 import org.thoughtcrime.securesms.mms.QuoteModel;
 import org.thoughtcrime.securesms.mms.SlideDeck;
+import org.thoughtcrime.securesms.notifications.MessageNotifier;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFormattingException;
 import org.thoughtcrime.securesms.util.JsonUtils;
@@ -146,37 +149,21 @@ public class MmsDatabase extends MessagingDatabase {
       BODY, PART_COUNT, ADDRESS, ADDRESS_DEVICE_ID,
       DELIVERY_RECEIPT_COUNT, READ_RECEIPT_COUNT, MISMATCHED_IDENTITIES, NETWORK_FAILURE, SUBSCRIPTION_ID,
       EXPIRES_IN, EXPIRE_STARTED, NOTIFIED, QUOTE_ID, QUOTE_AUTHOR, QUOTE_BODY, QUOTE_ATTACHMENT, QUOTE_MISSING, SHARED_CONTACTS,
-      "json_group_array(json_object(" +
-          "'" + AttachmentDatabase.ROW_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + ", " +
-          "'" + AttachmentDatabase.UNIQUE_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UNIQUE_ID + ", " +
-          "'" + AttachmentDatabase.MMS_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + ", " +
-          "'" + AttachmentDatabase.SIZE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.SIZE + ", " +
-          "'" + AttachmentDatabase.FILE_NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FILE_NAME + ", " +
-          "'" + AttachmentDatabase.DATA + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.DATA + ", " +
-          "'" + AttachmentDatabase.THUMBNAIL + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.THUMBNAIL + ", " +
-          "'" + AttachmentDatabase.CONTENT_TYPE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_TYPE + ", " +
-          "'" + AttachmentDatabase.CONTENT_LOCATION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_LOCATION + ", " +
-          "'" + AttachmentDatabase.FAST_PREFLIGHT_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FAST_PREFLIGHT_ID + "," +
-          "'" + AttachmentDatabase.VOICE_NOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VOICE_NOTE + "," +
-          "'" + AttachmentDatabase.WIDTH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.WIDTH + "," +
-          "'" + AttachmentDatabase.HEIGHT + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.HEIGHT + "," +
-          "'" + AttachmentDatabase.QUOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.QUOTE + ", " +
-          "'" + AttachmentDatabase.CONTENT_DISPOSITION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_DISPOSITION + ", " +
-          "'" + AttachmentDatabase.NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.NAME + ", " +
-          "'" + AttachmentDatabase.TRANSFER_STATE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFER_STATE +
-          ")) AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS,
+      AttachmentSummary.TABLE_NAME + "." + AttachmentSummary.SUMMARY + " AS " + AttachmentDatabase.ATTACHMENT_ALIAS,
   };
 
   private static final String RAW_ID_WHERE = TABLE_NAME + "._id = ?";
 
-  private final EarlyReceiptCache earlyDeliveryReceiptCache = new EarlyReceiptCache();
-  private final EarlyReceiptCache earlyReadReceiptCache     = new EarlyReceiptCache();
+  private final EarlyReceiptCache earlyDeliveryReceiptCache;
+  private final EarlyReceiptCache earlyReadReceiptCache;
 
   private final JobManager jobManager;
 
   public MmsDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
-    this.jobManager = ApplicationContext.getInstance(context).getJobManager();
+    this.jobManager                = ApplicationContext.getInstance(context).getJobManager();
+    this.earlyDeliveryReceiptCache = new EarlyReceiptCache(new EarlyReceiptStore(databaseHelper, EarlyReceiptStore.TYPE_MMS_DELIVERY));
+    this.earlyReadReceiptCache     = new EarlyReceiptCache(new EarlyReceiptStore(databaseHelper, EarlyReceiptStore.TYPE_MMS_READ));
   }
 
   @Override
@@ -217,46 +204,71 @@ public class MmsDatabase extends MessagingDatabase {
     }
   }
 
-  public void incrementReceiptCount(SyncMessageId messageId, long timestamp, boolean deliveryReceipt, boolean readReceipt) {
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    Cursor         cursor   = null;
-    boolean        found    = false;
-
-    try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX, ADDRESS}, DATE_SENT + " = ?", new String[] {String.valueOf(messageId.getTimetamp())}, null, null, null, null);
+  /**
+   * Applies a batch of receipts for the messages sent at a single timestamp. A group message is
+   * updated with the receipts from every address in the batch. Receipts that don't match any
+   * message yet are kept as early receipts.
+   *
+   * @return The ids of the threads containing an updated message.
+   */
+  Set<Long> incrementReceiptCounts(long sentTimestamp, @NonNull Map<Address, ReceiptCount> receipts) {
+    SQLiteDatabase       database             = databaseHelper.getWritableDatabase();
+    GroupReceiptDatabase groupReceiptDatabase = DatabaseFactory.getGroupReceiptDatabase(context);
+    Set<Long>            threadIds            = new HashSet<>();
+    Set<Address>         found                = new HashSet<>();
 
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX, ADDRESS}, DATE_SENT + " = ?", new String[] {String.valueOf(sentTimestamp)}, null, null, null, null)) {
       while (cursor.moveToNext()) {
         if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_BOX)))) {
-          Address theirAddress = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
-          Address ourAddress   = messageId.getAddress();
-          String  columnName   = deliveryReceipt ? DELIVERY_RECEIPT_COUNT : READ_RECEIPT_COUNT;
-
-          if (ourAddress.equals(theirAddress) || theirAddress.isGroup()) {
-            long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-            long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
-            int  status   = deliveryReceipt ? GroupReceiptDatabase.STATUS_DELIVERED : GroupReceiptDatabase.STATUS_READ;
-
-            found = true;
+          Address theirAddress  = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
+          long    id            = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+          long    threadId      = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
+          int     deliveryCount = 0;
+          int     readCount     = 0;
+
+          for (Map.Entry<Address, ReceiptCount> entry : receipts.entrySet()) {
+            Address      ourAddress = entry.getKey();
+            ReceiptCount receipt    = entry.getValue();
+
+            if (ourAddress.equals(theirAddress) || theirAddress.isGroup()) {
+              deliveryCount += receipt.getDeliveryCount();
+              readCount     += receipt.getReadCount();
+
+              if (receipt.getDeliveryCount() > 0) {
+                groupReceiptDatabase.update(ourAddress, id, GroupReceiptDatabase.STATUS_DELIVERED, receipt.getDeliveryTimestamp());
+              }
+
+              if (receipt.getReadCount() > 0) {
+                groupReceiptDatabase.update(ourAddress, id, GroupReceiptDatabase.STATUS_READ, receipt.getReadTimestamp());
+              }
+
+              found.add(ourAddress);
+            }
+          }
 
+          if (deliveryCount > 0 || readCount > 0) {
             database.execSQL("UPDATE " + TABLE_NAME + " SET " +
-                             columnName + " = " + columnName + " + 1 WHERE " + ID + " = ?",
-                             new String[] {String.valueOf(id)});
+                             DELIVERY_RECEIPT_COUNT + " = " + DELIVERY_RECEIPT_COUNT + " + ?, " +
+                             READ_RECEIPT_COUNT + " = " + READ_RECEIPT_COUNT + " + ? WHERE " + ID + " = ?",
+                             new String[] {String.valueOf(deliveryCount), String.valueOf(readCount), String.valueOf(id)});
 
-            DatabaseFactory.getGroupReceiptDatabase(context).update(ourAddress, id, status, timestamp);
-            DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-            notifyConversationListeners(threadId);
+            threadIds.add(threadId);
           }
         }
       }
+    }
+
+    for (Map.Entry<Address, ReceiptCount> receipt : receipts.entrySet()) {
+      if (!found.contains(receipt.getKey())) {
+        int deliveryCount = receipt.getValue().getDeliveryCount();
+        int readCount     = receipt.getValue().getReadCount();
 
-      if (!found) {
-        if (deliveryReceipt) earlyDeliveryReceiptCache.increment(messageId.getTimetamp(), messageId.getAddress());
-        if (readReceipt)     earlyReadReceiptCache.increment(messageId.getTimetamp(), messageId.getAddress());
+        if (deliveryCount > 0) earlyDeliveryReceiptCache.increment(sentTimestamp, receipt.getKey(), deliveryCount);
+        if (readCount > 0)     earlyReadReceiptCache.increment(sentTimestamp, receipt.getKey(), readCount);
       }
-    } finally {
-      if (cursor != null)
-        cursor.close();
     }
+
+    return threadIds;
   }
 
   public long getThreadIdForMessage(long id) {
@@ -299,9 +311,9 @@ public class MmsDatabase extends MessagingDatabase {
   private Cursor rawQuery(@NonNull String where, @Nullable String[] arguments) {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
     return database.rawQuery("SELECT " + Util.join(MMS_PROJECTION, ",") +
-                             " FROM " + MmsDatabase.TABLE_NAME +  " LEFT OUTER JOIN " + AttachmentDatabase.TABLE_NAME +
-                             " ON (" + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " = " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + ")" +
-                             " WHERE " + where + " GROUP BY " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID, arguments);
+                             " FROM " + MmsDatabase.TABLE_NAME +  " LEFT OUTER JOIN " + AttachmentSummary.TABLE_NAME +
+                             " ON (" + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " = " + AttachmentSummary.TABLE_NAME + "." + AttachmentSummary.MMS_ID + ")" +
+                             " WHERE " + where, arguments);
   }
 
   public Cursor getMessage(long messageId) {
@@ -322,8 +334,10 @@ public class MmsDatabase extends MessagingDatabase {
                    " WHERE " + ID + " = ?", new String[] {id + ""});
 
     if (threadId.isPresent()) {
-      DatabaseFactory.getThreadDatabase(context).update(threadId.get(), false);
+      DatabaseFactory.getThreadDatabase(context).updateForChangedMessage(threadId.get(), id, true, false);
     }
+
+    MessageNotifier.invalidateNotificationItem(id, true);
   }
 
   public void markAsOutbox(long messageId) {
@@ -362,6 +376,37 @@ public class MmsDatabase extends MessagingDatabase {
     notifyConversationListeners(threadId);
   }
 
+  /**
+   * Records the outcome of sending a message to a group in a single transaction: the members it
+   * couldn't be delivered to, the members whose identity key changed, and whether it was sent.
+   */
+  public void markGroupSendResult(long messageId, @NonNull List<NetworkFailure> failures,
+                                  @NonNull List<IdentityKeyMismatch> mismatches, boolean sent)
+  {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    long           threadId = getThreadIdForMessage(messageId);
+
+    database.beginTransaction();
+
+    try {
+      try {
+        if (!mismatches.isEmpty()) addToDocument(messageId, MISMATCHED_IDENTITIES, mismatches, IdentityKeyMismatchList.class);
+        if (!failures.isEmpty())   addToDocument(messageId, NETWORK_FAILURE, failures, NetworkFailureList.class);
+      } catch (IOException e) {
+        Log.w(TAG, e);
+      }
+
+      if (sent) updateMailboxBitmask(messageId, Types.BASE_TYPE_MASK, Types.BASE_SENT_TYPE | Types.PUSH_MESSAGE_BIT | Types.SECURE_MESSAGE_BIT, Optional.of(threadId));
+      else      updateMailboxBitmask(messageId, Types.BASE_TYPE_MASK, Types.BASE_SENT_FAILED_TYPE, Optional.of(threadId));
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    notifyConversationListeners(threadId);
+  }
+
   public void markDownloadState(long messageId, long state) {
     SQLiteDatabase database     = databaseHelper.getWritableDatabase();
     ContentValues contentValues = new ContentValues();
@@ -476,17 +521,18 @@ public class MmsDatabase extends MessagingDatabase {
     Cursor                 cursor          = null;
 
     try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX, EXPIRES_IN, EXPIRE_STARTED, ADDRESS}, DATE_SENT + " = ?", new String[] {String.valueOf(messageId.getTimetamp())}, null, null, null, null);
+      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX, READ, EXPIRES_IN, EXPIRE_STARTED, ADDRESS}, DATE_SENT + " = ?", new String[] {String.valueOf(messageId.getTimetamp())}, null, null, null, null);
 
       while (cursor.moveToNext()) {
         Address theirAddress = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
         Address ourAddress   = messageId.getAddress();
 
         if (ourAddress.equals(theirAddress) || theirAddress.isGroup()) {
-          long id            = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-          long threadId      = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
-          long expiresIn     = cursor.getLong(cursor.getColumnIndexOrThrow(EXPIRES_IN));
-          long expireStarted = cursor.getLong(cursor.getColumnIndexOrThrow(EXPIRE_STARTED));
+          long    id            = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+          long    threadId      = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
+          long    expiresIn     = cursor.getLong(cursor.getColumnIndexOrThrow(EXPIRES_IN));
+          long    expireStarted = cursor.getLong(cursor.getColumnIndexOrThrow(EXPIRE_STARTED));
+          boolean unread        = cursor.getInt(cursor.getColumnIndexOrThrow(READ)) == 0;
 
           expireStarted = expireStarted > 0 ? Math.min(proposedExpireStarted, expireStarted) : proposedExpireStarted;
 
@@ -500,7 +546,10 @@ public class MmsDatabase extends MessagingDatabase {
 
           database.update(TABLE_NAME, values, ID_WHERE, new String[]{String.valueOf(id)});
 
-          DatabaseFactory.getThreadDatabase(context).updateReadState(threadId);
+          if (unread) {
+            DatabaseFactory.getThreadDatabase(context).decrementUnread(threadId, 1);
+          }
+
           DatabaseFactory.getThreadDatabase(context).setLastSeen(threadId);
           notifyConversationListeners(threadId);
         }
@@ -528,7 +577,8 @@ public class MmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(messageId);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForChangedMessage(threadId, messageId, true, true);
+    MessageNotifier.invalidateNotificationItem(messageId, true);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
 
@@ -755,7 +805,6 @@ public class MmsDatabase extends MessagingDatabase {
 
     if (!Types.isExpirationTimerUpdate(mailbox)) {
       DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, 1);
-      DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     }
 
     notifyConversationListeners(threadId);
@@ -930,11 +979,16 @@ public class MmsDatabase extends MessagingDatabase {
     contentValues.put(BODY, body);
     contentValues.put(PART_COUNT, allAttachments.size());
 
+    long    messageId;
+    boolean inserted = false;
+
+    PreparedAttachments preparedAttachments = partsDatabase.prepareAttachmentsForMessage(allAttachments, quoteAttachments);
+
     db.beginTransaction();
     try {
-      long messageId = db.insert(TABLE_NAME, null, contentValues);
+      messageId = db.insert(TABLE_NAME, null, contentValues);
 
-      Map<Attachment, AttachmentId> insertedAttachments = partsDatabase.insertAttachmentsForMessage(messageId, allAttachments, quoteAttachments);
+      Map<Attachment, AttachmentId> insertedAttachments = partsDatabase.insertAttachmentsForMessage(messageId, preparedAttachments);
       String                        serializedContacts  = getSerializedSharedContacts(messageId, insertedAttachments, sharedContacts);
 
       if (!TextUtils.isEmpty(serializedContacts)) {
@@ -950,17 +1004,23 @@ public class MmsDatabase extends MessagingDatabase {
       }
 
       db.setTransactionSuccessful();
-      return messageId;
+      inserted = true;
     } finally {
       db.endTransaction();
 
+      if (!inserted) {
+        preparedAttachments.discard();
+      }
+
       if (insertListener != null) {
         insertListener.onComplete();
       }
-
-      notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
-      DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID), true);
     }
+
+    notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
+    DatabaseFactory.getThreadDatabase(context).updateForInsertedMessage(contentValues.getAsLong(THREAD_ID), messageId, true, true);
+
+    return messageId;
   }
 
   public boolean delete(long messageId) {
@@ -973,7 +1033,7 @@ public class MmsDatabase extends MessagingDatabase {
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).updateForDeletedMessage(threadId, messageId, true, true);
     notifyConversationListeners(threadId);
     return threadDeleted;
   }
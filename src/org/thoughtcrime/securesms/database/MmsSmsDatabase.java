@@ -18,6 +18,7 @@ package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import org.thoughtcrime.securesms.logging.Log;
@@ -26,11 +27,14 @@ import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteQueryBuilder;
 
 import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
+import org.thoughtcrime.securesms.database.ReceiptAggregator.ReceiptCount;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.util.Util;
 
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class MmsSmsDatabase extends Database {
@@ -42,6 +46,14 @@ public class MmsSmsDatabase extends Database {
   public static final String MMS_TRANSPORT = "mms";
   public static final String SMS_TRANSPORT = "sms";
 
+  private static final int PENDING_RECEIPT_BATCH_SIZE = 500;
+
+  /**
+   * Conversation order, newest first. Messages received in the same millisecond are ordered by
+   * transport and then row id, so that every message has a stable position to seek from.
+   */
+  private static final String CONVERSATION_ORDER = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + TRANSPORT + " DESC, " + MmsSmsColumns.ID + " DESC";
+
   private static final String[] PROJECTION = {MmsSmsColumns.ID, MmsSmsColumns.UNIQUE_ROW_ID,
                                               SmsDatabase.BODY, SmsDatabase.TYPE,
                                               MmsSmsColumns.THREAD_ID,
@@ -62,7 +74,7 @@ public class MmsSmsDatabase extends Database {
                                               MmsSmsColumns.EXPIRE_STARTED,
                                               MmsSmsColumns.NOTIFIED,
                                               TRANSPORT,
-                                              AttachmentDatabase.ATTACHMENT_JSON_ALIAS,
+                                              AttachmentDatabase.ATTACHMENT_ALIAS,
                                               MmsDatabase.QUOTE_ID,
                                               MmsDatabase.QUOTE_AUTHOR,
                                               MmsDatabase.QUOTE_BODY,
@@ -70,8 +82,11 @@ public class MmsSmsDatabase extends Database {
                                               MmsDatabase.QUOTE_ATTACHMENT,
                                               MmsDatabase.SHARED_CONTACTS};
 
+  private final PendingReceiptStore pendingReceipts;
+
   public MmsSmsDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
+    this.pendingReceipts = new PendingReceiptStore(databaseHelper);
   }
 
   public @Nullable MessageRecord getMessageFor(long timestamp, Address author) {
@@ -94,19 +109,72 @@ public class MmsSmsDatabase extends Database {
     return null;
   }
 
-  public Cursor getConversation(long threadId, long offset, long limit) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
-    String limitStr  = limit > 0 || offset > 0 ? offset + ", " + limit : null;
+  public Cursor getConversation(long threadId) {
+    return getConversationBefore(threadId, null, 0);
+  }
 
-    Cursor cursor = queryTables(PROJECTION, selection, order, limitStr);
+  /**
+   * Returns up to {@code limit} messages that sort after {@code key} in the conversation, newest
+   * first, or the newest messages if {@code key} is null.
+   */
+  public Cursor getConversationBefore(long threadId, @Nullable ConversationKey key, long limit) {
+    String threadSelection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String smsSelection    = threadSelection;
+    String mmsSelection    = threadSelection;
+
+    if (key != null) {
+      smsSelection += " AND " + key.getOlderSelection(false, SmsDatabase.DATE_RECEIVED, MmsSmsColumns.ID);
+      mmsSelection += " AND " + key.getOlderSelection(true, MmsDatabase.DATE_RECEIVED, MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID);
+    }
+
+    Cursor cursor = queryTables(PROJECTION, smsSelection, mmsSelection, CONVERSATION_ORDER, limit > 0 ? String.valueOf(limit) : null);
     setNotifyConverationListeners(cursor, threadId);
 
     return cursor;
   }
 
-  public Cursor getConversation(long threadId) {
-    return getConversation(threadId, 0, 0);
+  /**
+   * Returns every message from the newest down to {@code key}, inclusive, followed by up to
+   * {@code limit} older ones, newest first. Both parts are read by seeking to {@code key}, so
+   * extending a loaded conversation doesn't skip over the messages that are already loaded.
+   */
+  public Cursor getConversationThrough(long threadId, @NonNull ConversationKey key, long limit) {
+    String threadSelection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String smsSelection    = threadSelection + " AND NOT (" + key.getOlderSelection(false, SmsDatabase.DATE_RECEIVED, MmsSmsColumns.ID) + ")";
+    String mmsSelection    = threadSelection + " AND NOT (" + key.getOlderSelection(true, MmsDatabase.DATE_RECEIVED, MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID) + ")";
+
+    Cursor loaded = queryTables(PROJECTION, smsSelection, mmsSelection, CONVERSATION_ORDER, null);
+    Cursor older  = getConversationBefore(threadId, key, limit);
+
+    return new MergeCursor(new Cursor[] {loaded, older});
+  }
+
+  /**
+   * Returns whether the conversation has any message that sorts after {@code key}.
+   */
+  public boolean hasConversationBefore(long threadId, @NonNull ConversationKey key) {
+    String   smsSelection = MmsSmsColumns.THREAD_ID + " = ? AND " + key.getOlderSelection(false, SmsDatabase.DATE_RECEIVED, MmsSmsColumns.ID);
+    String   mmsSelection = MmsSmsColumns.THREAD_ID + " = ? AND " + key.getOlderSelection(true, MmsDatabase.DATE_RECEIVED, MmsDatabase.ID);
+    String[] args         = new String[] {String.valueOf(threadId), String.valueOf(threadId)};
+
+    return queryConversationKey(smsSelection, mmsSelection, args) != null;
+  }
+
+  private @Nullable ConversationKey queryConversationKey(String smsSelection, String mmsSelection, String[] args) {
+    String query = "SELECT " + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", '" + SMS_TRANSPORT + "' AS " + TRANSPORT + ", " + MmsSmsColumns.ID +
+                   " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + smsSelection +
+                   " UNION ALL " +
+                   "SELECT " + MmsDatabase.DATE_RECEIVED + ", '" + MMS_TRANSPORT + "', " + MmsDatabase.ID +
+                   " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + mmsSelection +
+                   " ORDER BY " + CONVERSATION_ORDER + " LIMIT 1";
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, args)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return new ConversationKey(cursor.getLong(0), MMS_TRANSPORT.equals(cursor.getString(1)), cursor.getLong(2));
+      }
+    }
+
+    return null;
   }
 
   public Cursor getIdentityConflictMessagesForThread(long threadId) {
@@ -133,6 +201,22 @@ public class MmsSmsDatabase extends Database {
     return queryTables(PROJECTION, selection, order, null);
   }
 
+  /**
+   * Returns the id and transport of every message {@link #getUnread()} would return, in the same
+   * order, without reading the messages themselves.
+   */
+  public Cursor getUnreadIds() {
+    String selection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0";
+    String query     = "SELECT " + MmsSmsColumns.ID + ", '" + SMS_TRANSPORT + "' AS " + TRANSPORT + ", " + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED +
+                       " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + selection +
+                       " UNION ALL " +
+                       "SELECT " + MmsDatabase.ID + ", '" + MMS_TRANSPORT + "', " + MmsDatabase.DATE_RECEIVED +
+                       " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + selection +
+                       " ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+
+    return databaseHelper.getReadableDatabase().rawQuery(query, null);
+  }
+
   public int getUnreadCount(long threadId) {
     String selection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0 AND " + MmsSmsColumns.THREAD_ID + " = " + threadId;
     Cursor cursor    = queryTables(PROJECTION, selection, null, null);
@@ -144,6 +228,22 @@ public class MmsSmsDatabase extends Database {
     }
   }
 
+  public @Nullable MessageRecord getMessageRecord(long messageId, boolean mms) {
+    if (mms) {
+      MmsDatabase mmsDatabase = DatabaseFactory.getMmsDatabase(context);
+
+      try (MmsDatabase.Reader reader = mmsDatabase.readerFor(mmsDatabase.getMessage(messageId))) {
+        return reader.getNext();
+      }
+    }
+
+    try {
+      return DatabaseFactory.getSmsDatabase(context).getMessage(messageId);
+    } catch (NoSuchMessageException e) {
+      return null;
+    }
+  }
+
   public int getConversationCount(long threadId) {
     int count = DatabaseFactory.getSmsDatabase(context).getMessageCountForThread(threadId);
     count    += DatabaseFactory.getMmsDatabase(context).getMessageCountForThread(threadId);
@@ -151,34 +251,79 @@ public class MmsSmsDatabase extends Database {
     return count;
   }
 
-  public void incrementDeliveryReceiptCount(SyncMessageId syncMessageId, long timestamp) {
-    DatabaseFactory.getSmsDatabase(context).incrementReceiptCount(syncMessageId, true, false);
-    DatabaseFactory.getMmsDatabase(context).incrementReceiptCount(syncMessageId, timestamp, true, false);
+  public void addPendingDeliveryReceipts(@NonNull List<SyncMessageId> syncMessageIds, long timestamp) {
+    pendingReceipts.insert(PendingReceiptStore.TYPE_DELIVERY, syncMessageIds, timestamp);
   }
 
-  public void incrementReadReceiptCount(SyncMessageId syncMessageId, long timestamp) {
-    DatabaseFactory.getSmsDatabase(context).incrementReceiptCount(syncMessageId, false, true);
-    DatabaseFactory.getMmsDatabase(context).incrementReceiptCount(syncMessageId, timestamp, false, true);
+  public void addPendingReadReceipts(@NonNull List<SyncMessageId> syncMessageIds, long timestamp) {
+    pendingReceipts.insert(PendingReceiptStore.TYPE_READ, syncMessageIds, timestamp);
   }
 
-  public int getQuotedMessagePosition(long threadId, long quoteId, @NonNull Address address) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+  /**
+   * Applies the oldest pending receipts as a single batch, in the same transaction that removes
+   * them from the pending table, and updates and notifies every affected thread once.
+   *
+   * @return false if there were no pending receipts left.
+   */
+  public boolean applyPendingReceipts() {
+    ReceiptAggregator aggregator = new ReceiptAggregator();
+    SQLiteDatabase    db         = databaseHelper.getWritableDatabase();
+    Set<Long>         threadIds;
 
-    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_SENT, MmsSmsColumns.ADDRESS }, selection, order, null)) {
-      String  serializedAddress = address.serialize();
-      boolean isOwnNumber       = Util.isOwnNumber(context, address);
+    db.beginTransaction();
 
-      while (cursor != null && cursor.moveToNext()) {
-        boolean quoteIdMatches = cursor.getLong(0) == quoteId;
-        boolean addressMatches = serializedAddress.equals(cursor.getString(1));
+    try {
+      long lastId = pendingReceipts.read(aggregator, PENDING_RECEIPT_BATCH_SIZE);
 
-        if (quoteIdMatches && (addressMatches || isOwnNumber)) {
-          return cursor.getPosition();
-        }
+      if (lastId == -1) {
+        return false;
       }
+
+      threadIds = incrementReceiptCounts(aggregator.getReceipts());
+      pendingReceipts.deleteThrough(lastId);
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
     }
-    return -1;
+
+    notifyConversationListeners(threadIds);
+    return true;
+  }
+
+  /**
+   * Applies a batch of receipts, keyed by sent timestamp and then by the address they came from,
+   * and updates every affected thread once. Must be called inside a transaction.
+   */
+  private @NonNull Set<Long> incrementReceiptCounts(@NonNull Map<Long, Map<Address, ReceiptCount>> receipts) {
+    SmsDatabase    smsDatabase    = DatabaseFactory.getSmsDatabase(context);
+    MmsDatabase    mmsDatabase    = DatabaseFactory.getMmsDatabase(context);
+    ThreadDatabase threadDatabase = DatabaseFactory.getThreadDatabase(context);
+    Set<Long>      threadIds      = new HashSet<>();
+
+    for (Map.Entry<Long, Map<Address, ReceiptCount>> entry : receipts.entrySet()) {
+      threadIds.addAll(smsDatabase.incrementReceiptCounts(entry.getKey(), entry.getValue()));
+      threadIds.addAll(mmsDatabase.incrementReceiptCounts(entry.getKey(), entry.getValue()));
+    }
+
+    for (long threadId : threadIds) {
+      threadDatabase.updateSnippet(threadId);
+    }
+
+    return threadIds;
+  }
+
+  public int getQuotedMessagePosition(long threadId, long quoteId, @NonNull Address address) {
+    boolean  isOwnNumber     = Util.isOwnNumber(context, address);
+    String   addressClause   = isOwnNumber ? "" : " AND " + MmsSmsColumns.ADDRESS + " = ?";
+    String   smsSelection    = MmsSmsColumns.THREAD_ID + " = ? AND " + SmsDatabase.DATE_SENT + " = ?" + addressClause;
+    String   mmsSelection    = MmsSmsColumns.THREAD_ID + " = ? AND " + MmsDatabase.DATE_SENT + " = ?" + addressClause;
+    String[] args            = isOwnNumber ? new String[] {String.valueOf(threadId), String.valueOf(quoteId), String.valueOf(threadId), String.valueOf(quoteId)}
+                                           : new String[] {String.valueOf(threadId), String.valueOf(quoteId), address.serialize(), String.valueOf(threadId), String.valueOf(quoteId), address.serialize()};
+
+    ConversationKey key = queryConversationKey(smsSelection, mmsSelection, args);
+
+    return key != null ? getConversationPosition(threadId, key) : -1;
   }
 
   /**
@@ -190,43 +335,48 @@ public class MmsSmsDatabase extends Database {
    * you'll still wind up in about the right spot.
    */
   public int getMessagePositionInConversation(long threadId, long receivedTimestamp) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " > " + receivedTimestamp;
+    String smsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + SmsDatabase.DATE_RECEIVED + " > " + receivedTimestamp;
+    String mmsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsDatabase.DATE_RECEIVED + " > " + receivedTimestamp;
 
-    try (Cursor cursor = queryTables(new String[]{ "COUNT(*)" }, selection, order, null)) {
+    return countConversation(smsSelection, mmsSelection);
+  }
+
+  /**
+   * Counts the messages that sort ahead of {@code key} in {@link #getConversation(long)}.
+   */
+  private int getConversationPosition(long threadId, @NonNull ConversationKey key) {
+    String threadSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND ";
+    String smsSelection    = threadSelection + key.getNewerSelection(false, SmsDatabase.DATE_RECEIVED, MmsSmsColumns.ID);
+    String mmsSelection    = threadSelection + key.getNewerSelection(true, MmsDatabase.DATE_RECEIVED, MmsDatabase.ID);
+
+    return countConversation(smsSelection, mmsSelection);
+  }
+
+  private int countConversation(@NonNull String smsSelection, @NonNull String mmsSelection) {
+    String query = "SELECT (SELECT COUNT(*) FROM " + SmsDatabase.TABLE_NAME + " WHERE " + smsSelection + ")" +
+                   " + (SELECT COUNT(*) FROM " + MmsDatabase.TABLE_NAME + " WHERE " + mmsSelection + ")";
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, null)) {
       if (cursor != null && cursor.moveToFirst()) {
         return cursor.getInt(0);
       }
     }
+
     return -1;
   }
 
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
+    return queryTables(projection, selection, selection, order, limit);
+  }
+
+  private Cursor queryTables(String[] projection, String smsSelection, String mmsSelection, String order, String limit) {
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MmsSmsColumns.ID,
                               "'MMS::' || " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID
                                   + " || '::' || " + MmsDatabase.DATE_SENT
                                   + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
-                              "json_group_array(json_object(" +
-                                  "'" + AttachmentDatabase.ROW_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + ", " +
-                                  "'" + AttachmentDatabase.UNIQUE_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UNIQUE_ID + ", " +
-                                  "'" + AttachmentDatabase.MMS_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + "," +
-                                  "'" + AttachmentDatabase.SIZE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.SIZE + ", " +
-                                  "'" + AttachmentDatabase.FILE_NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FILE_NAME + ", " +
-                                  "'" + AttachmentDatabase.DATA + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.DATA + ", " +
-                                  "'" + AttachmentDatabase.THUMBNAIL + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.THUMBNAIL + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_TYPE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_TYPE + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_LOCATION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_LOCATION + ", " +
-                                  "'" + AttachmentDatabase.FAST_PREFLIGHT_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FAST_PREFLIGHT_ID + ", " +
-                                  "'" + AttachmentDatabase.VOICE_NOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VOICE_NOTE + ", " +
-                                  "'" + AttachmentDatabase.WIDTH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.WIDTH + ", " +
-                                  "'" + AttachmentDatabase.HEIGHT + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.HEIGHT + ", " +
-                                  "'" + AttachmentDatabase.QUOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.QUOTE + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_DISPOSITION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_DISPOSITION + ", " +
-                                  "'" + AttachmentDatabase.NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.NAME + ", " +
-                                  "'" + AttachmentDatabase.TRANSFER_STATE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFER_STATE +
-                                  ")) AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS,
+                              AttachmentSummary.TABLE_NAME + "." + AttachmentSummary.SUMMARY + " AS " + AttachmentDatabase.ATTACHMENT_ALIAS,
                               SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
                               SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
                               MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
@@ -250,7 +400,7 @@ public class MmsSmsDatabase extends Database {
                               "'SMS::' || " + MmsSmsColumns.ID
                                   + " || '::' || " + SmsDatabase.DATE_SENT
                                   + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
-                              "NULL AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS,
+                              "NULL AS " + AttachmentDatabase.ATTACHMENT_ALIAS,
                               SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
                               SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
                               MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
@@ -276,8 +426,8 @@ public class MmsSmsDatabase extends Database {
 
     smsQueryBuilder.setTables(SmsDatabase.TABLE_NAME);
     mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME + " LEFT OUTER JOIN " +
-                              AttachmentDatabase.TABLE_NAME +
-                              " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID);
+                              AttachmentSummary.TABLE_NAME +
+                              " ON " + AttachmentSummary.TABLE_NAME + "." + AttachmentSummary.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID);
 
 
     Set<String> mmsColumnsPresent = new HashSet<>();
@@ -306,25 +456,7 @@ public class MmsSmsDatabase extends Database {
     mmsColumnsPresent.add(MmsDatabase.STATUS);
     mmsColumnsPresent.add(MmsDatabase.NETWORK_FAILURE);
 
-    mmsColumnsPresent.add(AttachmentDatabase.ROW_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.UNIQUE_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.MMS_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.SIZE);
-    mmsColumnsPresent.add(AttachmentDatabase.FILE_NAME);
-    mmsColumnsPresent.add(AttachmentDatabase.DATA);
-    mmsColumnsPresent.add(AttachmentDatabase.THUMBNAIL);
-    mmsColumnsPresent.add(AttachmentDatabase.CONTENT_TYPE);
-    mmsColumnsPresent.add(AttachmentDatabase.CONTENT_LOCATION);
-    mmsColumnsPresent.add(AttachmentDatabase.DIGEST);
-    mmsColumnsPresent.add(AttachmentDatabase.FAST_PREFLIGHT_ID);
-    mmsColumnsPresent.add(AttachmentDatabase.VOICE_NOTE);
-    mmsColumnsPresent.add(AttachmentDatabase.WIDTH);
-    mmsColumnsPresent.add(AttachmentDatabase.HEIGHT);
-    mmsColumnsPresent.add(AttachmentDatabase.QUOTE);
-    mmsColumnsPresent.add(AttachmentDatabase.CONTENT_DISPOSITION);
-    mmsColumnsPresent.add(AttachmentDatabase.NAME);
-    mmsColumnsPresent.add(AttachmentDatabase.TRANSFER_STATE);
-    mmsColumnsPresent.add(AttachmentDatabase.ATTACHMENT_JSON_ALIAS);
+    mmsColumnsPresent.add(AttachmentDatabase.ATTACHMENT_ALIAS);
     mmsColumnsPresent.add(MmsDatabase.QUOTE_ID);
     mmsColumnsPresent.add(MmsDatabase.QUOTE_AUTHOR);
     mmsColumnsPresent.add(MmsDatabase.QUOTE_BODY);
@@ -353,9 +485,9 @@ public class MmsSmsDatabase extends Database {
     smsColumnsPresent.add(SmsDatabase.STATUS);
 
     @SuppressWarnings("deprecation")
-    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, selection, null, MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID, null);
+    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, mmsSelection, null, null, null);
     @SuppressWarnings("deprecation")
-    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, selection, null, null, null);
+    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, smsSelection, null, null, null);
 
     SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
     String unionQuery = unionQueryBuilder.buildUnionQuery(new String[] {smsSubQuery, mmsSubQuery}, order, limit);
@@ -371,6 +503,74 @@ public class MmsSmsDatabase extends Database {
     return db.rawQuery(query, null);
   }
 
+  /**
+   * The position of a message in a conversation, as (date_received, transport, row id). SMS sort
+   * ahead of MMS received in the same millisecond, matching {@link #CONVERSATION_ORDER}.
+   */
+  public static class ConversationKey {
+
+    private final long    dateReceived;
+    private final boolean mms;
+    private final long    id;
+
+    public ConversationKey(long dateReceived, boolean mms, long id) {
+      this.dateReceived = dateReceived;
+      this.mms          = mms;
+      this.id           = id;
+    }
+
+    public long getDateReceived() {
+      return dateReceived;
+    }
+
+    public boolean isMms() {
+      return mms;
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    /**
+     * Returns the key of the last, oldest, message in a conversation cursor, or null if the cursor
+     * is empty. The cursor is left before its first row.
+     */
+    public static @Nullable ConversationKey forLastRow(@NonNull Cursor cursor) {
+      if (!cursor.moveToLast()) {
+        return null;
+      }
+
+      ConversationKey key = new ConversationKey(cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED)),
+                                                MMS_TRANSPORT.equals(cursor.getString(cursor.getColumnIndexOrThrow(TRANSPORT))),
+                                                cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID)));
+
+      cursor.moveToPosition(-1);
+      return key;
+    }
+
+    /**
+     * Selection for the rows of one table that sort after this key.
+     */
+    String getOlderSelection(boolean mmsTable, String dateColumn, String idColumn) {
+      String older = dateColumn + " < " + dateReceived;
+
+      if (mmsTable == mms) return "(" + older + " OR (" + dateColumn + " = " + dateReceived + " AND " + idColumn + " < " + id + "))";
+      else if (mmsTable)   return dateColumn + " <= " + dateReceived;
+      else                 return older;
+    }
+
+    /**
+     * Selection for the rows of one table that sort ahead of this key.
+     */
+    String getNewerSelection(boolean mmsTable, String dateColumn, String idColumn) {
+      String newer = dateColumn + " > " + dateReceived;
+
+      if (mmsTable == mms) return "(" + newer + " OR (" + dateColumn + " = " + dateReceived + " AND " + idColumn + " > " + id + "))";
+      else if (mmsTable)   return newer;
+      else                 return dateColumn + " >= " + dateReceived;
+    }
+  }
+
   public Reader readerFor(@NonNull Cursor cursor) {
     return new Reader(cursor);
   }
@@ -0,0 +1,92 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+
+import java.util.List;
+
+/**
+ * Receipts that have arrived but haven't been applied yet. A receipt is written here before the
+ * envelope that carried it is acknowledged, which is a single insert, and receipts from many
+ * envelopes are then applied together by {@link MmsSmsDatabase#applyPendingReceipts()}. A
+ * receipt is only removed in the same transaction that applies it, so none are lost if the
+ * process dies in between.
+ */
+public class PendingReceiptStore {
+
+  public static final String TABLE_NAME = "pending_receipt";
+
+  private static final String ID           = "_id";
+  private static final String TYPE         = "type";
+  private static final String TIMESTAMP    = "timestamp";
+  private static final String ADDRESS      = "address";
+  private static final String RECEIPT_TIME = "receipt_time";
+
+  static final int TYPE_DELIVERY = 1;
+  static final int TYPE_READ     = 2;
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+      TYPE + " INTEGER, " + TIMESTAMP + " INTEGER, " + ADDRESS + " TEXT, " + RECEIPT_TIME + " INTEGER);";
+
+  private final SQLCipherOpenHelper databaseHelper;
+
+  PendingReceiptStore(@NonNull SQLCipherOpenHelper databaseHelper) {
+    this.databaseHelper = databaseHelper;
+  }
+
+  void insert(int type, @NonNull List<SyncMessageId> syncMessageIds, long receiptTime) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+
+    database.beginTransaction();
+
+    try {
+      for (SyncMessageId syncMessageId : syncMessageIds) {
+        ContentValues values = new ContentValues(4);
+        values.put(TYPE, type);
+        values.put(TIMESTAMP, syncMessageId.getTimetamp());
+        values.put(ADDRESS, syncMessageId.getAddress().serialize());
+        values.put(RECEIPT_TIME, receiptTime);
+
+        database.insertOrThrow(TABLE_NAME, null, values);
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
+
+  /**
+   * Adds up to {@code limit} of the oldest pending receipts to the aggregator, and returns the id
+   * of the last one read, or -1 if there were none.
+   */
+  long read(@NonNull ReceiptAggregator aggregator, int limit) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    long           lastId   = -1;
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ID, TYPE, TIMESTAMP, ADDRESS, RECEIPT_TIME},
+                                        null, null, null, null, ID + " ASC", String.valueOf(limit)))
+    {
+      while (cursor != null && cursor.moveToNext()) {
+        SyncMessageId syncMessageId = new SyncMessageId(Address.fromSerialized(cursor.getString(3)), cursor.getLong(2));
+
+        if (cursor.getInt(1) == TYPE_READ) aggregator.addReadReceipt(syncMessageId, cursor.getLong(4));
+        else                               aggregator.addDeliveryReceipt(syncMessageId, cursor.getLong(4));
+
+        lastId = cursor.getLong(0);
+      }
+    }
+
+    return lastId;
+  }
+
+  void deleteThrough(long id) {
+    databaseHelper.getWritableDatabase().delete(TABLE_NAME, ID + " <= ?", new String[] {String.valueOf(id)});
+  }
+}
@@ -89,6 +89,12 @@ public class PushDatabase extends Database {
     return databaseHelper.getReadableDatabase().query(TABLE_NAME, null, null, null, null, null, null);
   }
 
+  public boolean hasPending() {
+    try (Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {ID}, null, null, null, null, null, "1")) {
+      return cursor != null && cursor.moveToFirst();
+    }
+  }
+
   public void delete(long id) {
     databaseHelper.getWritableDatabase().delete(TABLE_NAME, ID_WHERE, new String[] {id+""});
   }
@@ -0,0 +1,92 @@
+package org.thoughtcrime.securesms.database;
+
+
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects delivery and read receipts so they can be applied as a single batch.
+ *
+ * A receipt message can acknowledge many sent messages at once, and applying those receipts one
+ * by one means a lookup, an update, a thread recomputation and a listener notification for each
+ * of them. Batched, receipts for the same sent timestamp share a single lookup, receipts from the
+ * same address are folded into one count, and every affected thread is recomputed once.
+ *
+ * Receipts are first written to the {@link PendingReceiptStore} as they arrive, and a batch is
+ * read back from there, so it can span receipts from many envelopes.
+ */
+class ReceiptAggregator {
+
+  private final Map<Long, Map<Address, ReceiptCount>> receipts = new HashMap<>();
+
+  void addDeliveryReceipt(@NonNull SyncMessageId messageId, long timestamp) {
+    getReceiptCount(messageId).addDeliveryReceipt(timestamp);
+  }
+
+  void addReadReceipt(@NonNull SyncMessageId messageId, long timestamp) {
+    getReceiptCount(messageId).addReadReceipt(timestamp);
+  }
+
+  @NonNull Map<Long, Map<Address, ReceiptCount>> getReceipts() {
+    return receipts;
+  }
+
+  private @NonNull ReceiptCount getReceiptCount(@NonNull SyncMessageId messageId) {
+    Map<Address, ReceiptCount> counts = receipts.get(messageId.getTimetamp());
+
+    if (counts == null) {
+      counts = new HashMap<>();
+      receipts.put(messageId.getTimetamp(), counts);
+    }
+
+    ReceiptCount count = counts.get(messageId.getAddress());
+
+    if (count == null) {
+      count = new ReceiptCount();
+      counts.put(messageId.getAddress(), count);
+    }
+
+    return count;
+  }
+
+  /**
+   * The receipts from a single address for a single sent timestamp.
+   */
+  static class ReceiptCount {
+
+    private int  deliveryCount;
+    private int  readCount;
+    private long deliveryTimestamp;
+    private long readTimestamp;
+
+    private void addDeliveryReceipt(long timestamp) {
+      deliveryCount++;
+      deliveryTimestamp = Math.max(deliveryTimestamp, timestamp);
+    }
+
+    private void addReadReceipt(long timestamp) {
+      readCount++;
+      readTimestamp = Math.max(readTimestamp, timestamp);
+    }
+
+    int getDeliveryCount() {
+      return deliveryCount;
+    }
+
+    int getReadCount() {
+      return readCount;
+    }
+
+    long getDeliveryTimestamp() {
+      return deliveryTimestamp;
+    }
+
+    long getReadTimestamp() {
+      return readTimestamp;
+    }
+  }
+}
@@ -11,12 +11,14 @@ import net.sqlcipher.database.SQLiteDatabase;
 
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.logging.Log;
+import org.whispersystems.libsignal.SignalProtocolAddress;
 import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 public class SessionDatabase extends Database {
 
@@ -69,6 +71,53 @@ public class SessionDatabase extends Database {
     return null;
   }
 
+  public @Nullable byte[] loadSerialized(@NonNull Address address, int deviceId) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[]{RECORD},
+                                        ADDRESS + " = ? AND " + DEVICE + " = ?",
+                                        new String[] {address.serialize(), String.valueOf(deviceId)},
+                                        null, null, null))
+    {
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getBlob(cursor.getColumnIndexOrThrow(RECORD));
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Writes serialized records in a single transaction. A null record deletes the session.
+   */
+  public void storeSerialized(@NonNull Map<SignalProtocolAddress, byte[]> records) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+
+    database.beginTransaction();
+
+    try {
+      for (Map.Entry<SignalProtocolAddress, byte[]> entry : records.entrySet()) {
+        String address  = Address.fromSerialized(entry.getKey().getName()).serialize();
+        String deviceId = String.valueOf(entry.getKey().getDeviceId());
+
+        if (entry.getValue() == null) {
+          database.delete(TABLE_NAME, ADDRESS + " = ? AND " + DEVICE + " = ?", new String[] {address, deviceId});
+        } else {
+          ContentValues values = new ContentValues(3);
+          values.put(ADDRESS, address);
+          values.put(DEVICE, entry.getKey().getDeviceId());
+          values.put(RECORD, entry.getValue());
+
+          database.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
+
   public @NonNull List<SessionRow> getAllFor(@NonNull Address address) {
     SQLiteDatabase   database = databaseHelper.getReadableDatabase();
     List<SessionRow> results  = new LinkedList<>();
@@ -111,6 +160,37 @@ public class SessionDatabase extends Database {
     return results;
   }
 
+  public @NonNull List<SignalProtocolAddress> getAllAddresses() {
+    SQLiteDatabase              database = databaseHelper.getReadableDatabase();
+    List<SignalProtocolAddress> results  = new LinkedList<>();
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ADDRESS, DEVICE}, null, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(new SignalProtocolAddress(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)),
+                                              cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE))));
+      }
+    }
+
+    return results;
+  }
+
+  public @NonNull List<Integer> getDevices(@NonNull Address address) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    List<Integer>  results  = new LinkedList<>();
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {DEVICE},
+                                        ADDRESS + " = ?",
+                                        new String[] {address.serialize()},
+                                        null, null, null))
+    {
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE)));
+      }
+    }
+
+    return results;
+  }
+
   public @NonNull List<Integer> getSubDevices(@NonNull Address address) {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
     List<Integer>  results  = new LinkedList<>();
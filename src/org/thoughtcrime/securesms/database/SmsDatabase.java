@@ -31,6 +31,7 @@ import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteStatement;
 
 import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.database.ReceiptAggregator.ReceiptCount;
 import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatch;
 import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatchList;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
@@ -38,6 +39,7 @@ import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
 import org.thoughtcrime.securesms.jobmanager.JobManager;
 import org.thoughtcrime.securesms.jobs.TrimThreadJob;
+import org.thoughtcrime.securesms.notifications.MessageNotifier;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.sms.IncomingGroupMessage;
 import org.thoughtcrime.securesms.sms.IncomingTextMessage;
@@ -49,6 +51,7 @@ import org.whispersystems.libsignal.util.guava.Optional;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -63,6 +66,10 @@ public class SmsDatabase extends MessagingDatabase {
 
   private static final String TAG = SmsDatabase.class.getSimpleName();
 
+  private static final long IDENTITY_CHANGE_MASK = Types.KEY_EXCHANGE_IDENTITY_UPDATE_BIT   |
+                                                   Types.KEY_EXCHANGE_IDENTITY_VERIFIED_BIT |
+                                                   Types.KEY_EXCHANGE_IDENTITY_DEFAULT_BIT;
+
   public  static final String TABLE_NAME         = "sms";
   public  static final String PERSON             = "person";
           static final String DATE_RECEIVED      = "date";
@@ -102,14 +109,16 @@ public class SmsDatabase extends MessagingDatabase {
       NOTIFIED, READ_RECEIPT_COUNT
   };
 
-  private static final EarlyReceiptCache earlyDeliveryReceiptCache = new EarlyReceiptCache();
-  private static final EarlyReceiptCache earlyReadReceiptCache     = new EarlyReceiptCache();
+  private final EarlyReceiptCache earlyDeliveryReceiptCache;
+  private final EarlyReceiptCache earlyReadReceiptCache;
 
   private final JobManager jobManager;
 
   public SmsDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
-    this.jobManager = ApplicationContext.getInstance(context).getJobManager();
+    this.jobManager                = ApplicationContext.getInstance(context).getJobManager();
+    this.earlyDeliveryReceiptCache = new EarlyReceiptCache(new EarlyReceiptStore(databaseHelper, EarlyReceiptStore.TYPE_SMS_DELIVERY));
+    this.earlyReadReceiptCache     = new EarlyReceiptCache(new EarlyReceiptStore(databaseHelper, EarlyReceiptStore.TYPE_SMS_READ));
   }
 
   protected String getTableName() {
@@ -126,7 +135,8 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(id);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    DatabaseFactory.getThreadDatabase(context).updateForChangedMessage(threadId, id, false, false);
+    MessageNotifier.invalidateNotificationItem(id, false);
     notifyConversationListeners(threadId);
   }
 
@@ -149,6 +159,14 @@ public class SmsDatabase extends MessagingDatabase {
     }
   }
 
+  private boolean isIdentityChange(long messageId) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] {TYPE}, ID_WHERE, new String[] {String.valueOf(messageId)}, null, null, null)) {
+      return cursor != null && cursor.moveToFirst() && (cursor.getLong(0) & IDENTITY_CHANGE_MASK) != 0;
+    }
+  }
+
   public int getMessageCount() {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
     Cursor cursor     = null;
@@ -164,12 +182,15 @@ public class SmsDatabase extends MessagingDatabase {
     }
   }
 
+  /**
+   * Identity changes are kept in a thread, but don't count towards its summary.
+   */
   public int getMessageCountForThread(long threadId) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
     Cursor cursor     = null;
 
     try {
-      cursor = db.query(TABLE_NAME, new String[] {"COUNT(*)"}, THREAD_ID + " = ?",
+      cursor = db.query(TABLE_NAME, new String[] {"COUNT(*)"}, THREAD_ID + " = ? AND (" + TYPE + " & " + IDENTITY_CHANGE_MASK + ") = 0",
                         new String[] {threadId+""}, null, null, null);
 
       if (cursor != null && cursor.moveToFirst())
@@ -258,7 +279,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(id);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    DatabaseFactory.getThreadDatabase(context).updateForChangedMessage(threadId, id, false, false);
     notifyConversationListeners(threadId);
   }
 
@@ -271,7 +292,7 @@ public class SmsDatabase extends MessagingDatabase {
     db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {id+""});
 
     long threadId = getThreadIdForMessage(id);
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    DatabaseFactory.getThreadDatabase(context).updateForChangedMessage(threadId, id, false, false);
     notifyConversationListeners(threadId);
   }
 
@@ -288,46 +309,56 @@ public class SmsDatabase extends MessagingDatabase {
     database.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {String.valueOf(id)});
   }
 
-  public void incrementReceiptCount(SyncMessageId messageId, boolean deliveryReceipt, boolean readReceipt) {
-    SQLiteDatabase database     = databaseHelper.getWritableDatabase();
-    Cursor         cursor       = null;
-    boolean        foundMessage = false;
-
-    try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, ADDRESS, TYPE},
-                              DATE_SENT + " = ?", new String[] {String.valueOf(messageId.getTimetamp())},
-                              null, null, null, null);
-
+  /**
+   * Applies a batch of receipts for the messages sent at a single timestamp. Receipts that don't
+   * match any message yet are kept as early receipts.
+   *
+   * @return The ids of the threads containing an updated message.
+   */
+  Set<Long> incrementReceiptCounts(long sentTimestamp, @NonNull Map<Address, ReceiptCount> receipts) {
+    SQLiteDatabase database  = databaseHelper.getWritableDatabase();
+    Set<Long>      threadIds = new HashSet<>();
+    Set<Address>   found     = new HashSet<>();
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, ADDRESS, TYPE},
+                                        DATE_SENT + " = ?", new String[] {String.valueOf(sentTimestamp)},
+                                        null, null, null, null))
+    {
       while (cursor.moveToNext()) {
         if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(TYPE)))) {
-          Address theirAddress = messageId.getAddress();
-          Address ourAddress   = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
-          String  columnName   = deliveryReceipt ? DELIVERY_RECEIPT_COUNT : READ_RECEIPT_COUNT;
+          Address      ourAddress = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
+          ReceiptCount receipt    = receipts.get(ourAddress);
 
-          if (ourAddress.equals(theirAddress)) {
+          if (receipt != null) {
+            long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
             long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
 
-            database.execSQL("UPDATE " + TABLE_NAME +
-                             " SET " + columnName + " = " + columnName + " + 1 WHERE " +
+            database.execSQL("UPDATE " + TABLE_NAME + " SET " +
+                             DELIVERY_RECEIPT_COUNT + " = " + DELIVERY_RECEIPT_COUNT + " + ?, " +
+                             READ_RECEIPT_COUNT + " = " + READ_RECEIPT_COUNT + " + ? WHERE " +
                              ID + " = ?",
-                             new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
+                             new String[] {String.valueOf(receipt.getDeliveryCount()),
+                                           String.valueOf(receipt.getReadCount()),
+                                           String.valueOf(id)});
 
-            DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-            notifyConversationListeners(threadId);
-            foundMessage = true;
+            threadIds.add(threadId);
+            found.add(ourAddress);
           }
         }
       }
+    }
 
-      if (!foundMessage) {
-        if (deliveryReceipt) earlyDeliveryReceiptCache.increment(messageId.getTimetamp(), messageId.getAddress());
-        if (readReceipt)     earlyReadReceiptCache.increment(messageId.getTimetamp(), messageId.getAddress());
-      }
+    for (Map.Entry<Address, ReceiptCount> receipt : receipts.entrySet()) {
+      if (!found.contains(receipt.getKey())) {
+        int deliveryCount = receipt.getValue().getDeliveryCount();
+        int readCount     = receipt.getValue().getReadCount();
 
-    } finally {
-      if (cursor != null)
-        cursor.close();
+        if (deliveryCount > 0) earlyDeliveryReceiptCache.increment(sentTimestamp, receipt.getKey(), deliveryCount);
+        if (readCount > 0)     earlyReadReceiptCache.increment(sentTimestamp, receipt.getKey(), readCount);
+      }
     }
+
+    return threadIds;
   }
 
   public List<Pair<Long, Long>> setTimestampRead(SyncMessageId messageId, long proposedExpireStarted) {
@@ -336,7 +367,7 @@ public class SmsDatabase extends MessagingDatabase {
     Cursor                 cursor   = null;
 
     try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, ADDRESS, TYPE, EXPIRES_IN, EXPIRE_STARTED},
+      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, ADDRESS, TYPE, READ, EXPIRES_IN, EXPIRE_STARTED},
                               DATE_SENT + " = ?", new String[] {String.valueOf(messageId.getTimetamp())},
                               null, null, null, null);
 
@@ -345,10 +376,11 @@ public class SmsDatabase extends MessagingDatabase {
         Address ourAddress   = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
 
         if (ourAddress.equals(theirAddress)) {
-          long id            = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-          long threadId      = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
-          long expiresIn     = cursor.getLong(cursor.getColumnIndexOrThrow(EXPIRES_IN));
-          long expireStarted = cursor.getLong(cursor.getColumnIndexOrThrow(EXPIRE_STARTED));
+          long    id            = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+          long    threadId      = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
+          long    expiresIn     = cursor.getLong(cursor.getColumnIndexOrThrow(EXPIRES_IN));
+          long    expireStarted = cursor.getLong(cursor.getColumnIndexOrThrow(EXPIRE_STARTED));
+          boolean unread        = cursor.getInt(cursor.getColumnIndexOrThrow(READ)) == 0;
 
           expireStarted = expireStarted > 0 ? Math.min(proposedExpireStarted, expireStarted) : proposedExpireStarted;
 
@@ -362,7 +394,10 @@ public class SmsDatabase extends MessagingDatabase {
 
           database.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {cursor.getLong(cursor.getColumnIndexOrThrow(ID)) + ""});
 
-          DatabaseFactory.getThreadDatabase(context).updateReadState(threadId);
+          if (unread) {
+            DatabaseFactory.getThreadDatabase(context).decrementUnread(threadId, 1);
+          }
+
           DatabaseFactory.getThreadDatabase(context).setLastSeen(threadId);
           notifyConversationListeners(threadId);
         }
@@ -432,7 +467,8 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(messageId);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForChangedMessage(threadId, messageId, false, true);
+    MessageNotifier.invalidateNotificationItem(messageId, false);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
 
@@ -458,7 +494,7 @@ public class SmsDatabase extends MessagingDatabase {
       SQLiteDatabase db           = databaseHelper.getWritableDatabase();
       long           newMessageId = db.insert(TABLE_NAME, null, contentValues);
 
-      DatabaseFactory.getThreadDatabase(context).update(record.getThreadId(), true);
+      DatabaseFactory.getThreadDatabase(context).updateForInsertedMessage(record.getThreadId(), newMessageId, false, true);
       notifyConversationListeners(record.getThreadId());
 
       jobManager.add(new TrimThreadJob(context, record.getThreadId()));
@@ -497,7 +533,7 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long messageId    = db.insert(TABLE_NAME, null, values);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForInsertedMessage(threadId, messageId, false, true);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
@@ -581,7 +617,7 @@ public class SmsDatabase extends MessagingDatabase {
       }
 
       if (!message.isIdentityUpdate() && !message.isIdentityVerified() && !message.isIdentityDefault()) {
-        DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+        DatabaseFactory.getThreadDatabase(context).updateForInsertedMessage(threadId, messageId, false, true);
       }
 
       if (message.getSubscriptionId() != -1) {
@@ -640,7 +676,7 @@ public class SmsDatabase extends MessagingDatabase {
     }
 
     if (!message.isIdentityVerified() && !message.isIdentityDefault()) {
-      DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+      DatabaseFactory.getThreadDatabase(context).updateForInsertedMessage(threadId, messageId, false, true);
       DatabaseFactory.getThreadDatabase(context).setLastSeen(threadId);
     }
 
@@ -693,8 +729,9 @@ public class SmsDatabase extends MessagingDatabase {
     Log.i("MessageDatabase", "Deleting: " + messageId);
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long threadId     = getThreadIdForMessage(messageId);
+    boolean counted   = !isIdentityChange(messageId);
     db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).updateForDeletedMessage(threadId, messageId, false, counted);
     notifyConversationListeners(threadId);
     return threadDeleted;
   }
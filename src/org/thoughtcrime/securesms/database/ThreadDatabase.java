@@ -78,6 +78,8 @@ public class ThreadDatabase extends Database {
   public  static final String EXPIRES_IN             = "expires_in";
   public  static final String LAST_SEEN              = "last_seen";
   private static final String HAS_SENT               = "has_sent";
+  private static final String SNIPPET_MESSAGE_ID     = "snippet_message_id";
+  private static final String SNIPPET_MMS            = "snippet_mms";
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("                    +
     ID + " INTEGER PRIMARY KEY, " + DATE + " INTEGER DEFAULT 0, "                                  +
@@ -88,7 +90,8 @@ public class ThreadDatabase extends Database {
     ARCHIVED + " INTEGER DEFAULT 0, " + STATUS + " INTEGER DEFAULT 0, "                            +
     DELIVERY_RECEIPT_COUNT + " INTEGER DEFAULT 0, " + EXPIRES_IN + " INTEGER DEFAULT 0, "          +
     LAST_SEEN + " INTEGER DEFAULT 0, " + HAS_SENT + " INTEGER DEFAULT 0, "                         +
-    READ_RECEIPT_COUNT + " INTEGER DEFAULT 0, " + UNREAD_COUNT + " INTEGER DEFAULT 0);";
+    READ_RECEIPT_COUNT + " INTEGER DEFAULT 0, " + UNREAD_COUNT + " INTEGER DEFAULT 0, "            +
+    SNIPPET_MESSAGE_ID + " INTEGER DEFAULT -1, " + SNIPPET_MMS + " INTEGER DEFAULT 0);";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS thread_recipient_ids_index ON " + TABLE_NAME + " (" + ADDRESS + ");",
@@ -129,28 +132,42 @@ public class ThreadDatabase extends Database {
     return db.insert(TABLE_NAME, null, contentValues);
   }
 
-  private void updateThread(long threadId, long count, String body, @Nullable Uri attachment,
-                            long date, int status, int deliveryReceiptCount, long type, boolean unarchive,
-                            long expiresIn, int readReceiptCount)
-  {
-    ContentValues contentValues = new ContentValues(7);
-    contentValues.put(DATE, date - date % 1000);
+  private void updateThread(long threadId, long count, @NonNull MessageRecord record, boolean unarchive) {
+    ContentValues contentValues = getSnippetValues(record, unarchive);
     contentValues.put(MESSAGE_COUNT, count);
-    contentValues.put(SNIPPET, body);
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
+    notifyConversationListListeners();
+  }
+
+  private void updateThreadSnippet(long threadId, @NonNull MessageRecord record, boolean unarchive) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.update(TABLE_NAME, getSnippetValues(record, unarchive), ID + " = ?", new String[] {threadId + ""});
+    notifyConversationListListeners();
+  }
+
+  private @NonNull ContentValues getSnippetValues(@NonNull MessageRecord record, boolean unarchive) {
+    Uri           attachment    = getAttachmentUriFor(record);
+    long          date          = record.getTimestamp();
+    ContentValues contentValues = new ContentValues(12);
+
+    contentValues.put(DATE, date - date % 1000);
+    contentValues.put(SNIPPET, getFormattedBodyFor(record));
     contentValues.put(SNIPPET_URI, attachment == null ? null : attachment.toString());
-    contentValues.put(SNIPPET_TYPE, type);
-    contentValues.put(STATUS, status);
-    contentValues.put(DELIVERY_RECEIPT_COUNT, deliveryReceiptCount);
-    contentValues.put(READ_RECEIPT_COUNT, readReceiptCount);
-    contentValues.put(EXPIRES_IN, expiresIn);
+    contentValues.put(SNIPPET_TYPE, record.getType());
+    contentValues.put(SNIPPET_MESSAGE_ID, record.getId());
+    contentValues.put(SNIPPET_MMS, record.isMms() ? 1 : 0);
+    contentValues.put(STATUS, record.getDeliveryStatus());
+    contentValues.put(DELIVERY_RECEIPT_COUNT, record.getDeliveryReceiptCount());
+    contentValues.put(READ_RECEIPT_COUNT, record.getReadReceiptCount());
+    contentValues.put(EXPIRES_IN, record.getExpiresIn());
 
     if (unarchive) {
       contentValues.put(ARCHIVED, 0);
     }
 
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
-    notifyConversationListListeners();
+    return contentValues;
   }
 
   public void updateSnippet(long threadId, String snippet, @Nullable Uri attachment, long date, long type, boolean unarchive) {
@@ -197,9 +214,12 @@ public class ThreadDatabase extends Database {
   }
 
   public void trimAllThreads(int length, ProgressListener listener) {
-    Cursor cursor   = null;
-    int threadCount = 0;
-    int complete    = 0;
+    InvalidationBus invalidationBus = DatabaseFactory.getInvalidationBus(context);
+    Cursor          cursor          = null;
+    int             threadCount     = 0;
+    int             complete        = 0;
+
+    invalidationBus.suspend();
 
     try {
       cursor = this.getConversationList();
@@ -216,6 +236,8 @@ public class ThreadDatabase extends Database {
     } finally {
       if (cursor != null)
         cursor.close();
+
+      invalidationBus.resume();
     }
   }
 
@@ -296,6 +318,16 @@ public class ThreadDatabase extends Database {
                              String.valueOf(threadId)});
   }
 
+  public void decrementUnread(long threadId, int amount) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + READ + " = CASE WHEN " + UNREAD_COUNT + " <= ? THEN 1 ELSE 0 END, " +
+                   UNREAD_COUNT + " = MAX(" + UNREAD_COUNT + " - ?, 0) WHERE " + ID + " = ?",
+               new String[] {String.valueOf(amount),
+                             String.valueOf(amount),
+                             String.valueOf(threadId)});
+    notifyConversationListListeners();
+  }
+
   public void setDistributionType(long threadId, int distributionType) {
     ContentValues contentValues = new ContentValues(1);
     contentValues.put(TYPE, distributionType);
@@ -540,7 +572,7 @@ public class ThreadDatabase extends Database {
     notifyConversationListeners(threadId);
   }
 
-  void updateReadState(long threadId) {
+  private void updateReadState(long threadId) {
     int unreadCount = DatabaseFactory.getMmsSmsDatabase(context).getUnreadCount(threadId);
 
     ContentValues contentValues = new ContentValues();
@@ -553,16 +585,19 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  /**
+   * Recomputes the summary of a thread from scratch: its message count, and its snippet from the
+   * most recent message. Most changes only need one of the incremental updates below.
+   *
+   * Identity changes aren't counted, here or by the incremental updates, so a thread that only
+   * holds those is kept with a count of zero and stays out of the conversation list.
+   *
+   * @return True if the thread was deleted because it has no messages left.
+   */
   public boolean update(long threadId, boolean unarchive) {
     MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
     long count                    = mmsSmsDatabase.getConversationCount(threadId);
 
-    if (count == 0) {
-      deleteThread(threadId);
-      notifyConversationListListeners();
-      return true;
-    }
-
     MmsSmsDatabase.Reader reader = null;
 
     try {
@@ -570,9 +605,7 @@ public class ThreadDatabase extends Database {
       MessageRecord record;
 
       if (reader != null && (record = reader.getNext()) != null) {
-        updateThread(threadId, count, getFormattedBodyFor(record), getAttachmentUriFor(record),
-                     record.getTimestamp(), record.getDeliveryStatus(), record.getDeliveryReceiptCount(),
-                     record.getType(), unarchive, record.getExpiresIn(), record.getReadReceiptCount());
+        updateThread(threadId, count, record, unarchive);
         notifyConversationListListeners();
         return false;
       } else {
@@ -586,6 +619,157 @@ public class ThreadDatabase extends Database {
     }
   }
 
+  /**
+   * Updates the summary of a thread after a message was added to it. The message count is bumped,
+   * and the message becomes the snippet if it's the most recent one in the thread. Both happen in
+   * one transaction, so concurrent inserts can't lose a count or leave an older snippet behind.
+   */
+  public void updateForInsertedMessage(long threadId, long messageId, boolean mms, boolean unarchive) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+
+    try {
+      db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + 1 WHERE " + ID + " = ?",
+                 new String[] {String.valueOf(threadId)});
+
+      updateSnippetFor(threadId, messageId, mms, unarchive, true);
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Updates the summary of a thread after one of its messages changed, which only has an effect
+   * if that message is the snippet.
+   */
+  public void updateForChangedMessage(long threadId, long messageId, boolean mms, boolean unarchive) {
+    updateSnippetFor(threadId, messageId, mms, unarchive, false);
+  }
+
+  /**
+   * Refreshes the snippet of a thread from its current snippet message, after changes that can't
+   * make another message the snippet, like receipts.
+   */
+  public void updateSnippet(long threadId) {
+    Pair<Long, Boolean> snippet = getSnippetMessageId(threadId);
+
+    if (snippet != null) {
+      updateSnippetFor(threadId, snippet.first(), snippet.second(), false, false);
+    }
+  }
+
+  /**
+   * Updates the summary of a thread after one of its messages was deleted. The thread is only
+   * recomputed if that message was the snippet, and otherwise the count only drops if the message
+   * was counted in the first place.
+   *
+   * @return True if the thread was deleted because it has no messages left.
+   */
+  public boolean updateForDeletedMessage(long threadId, long messageId, boolean mms, boolean counted) {
+    Pair<Long, Boolean> snippet = getSnippetMessageId(threadId);
+
+    if (snippet == null || snippet.first() == -1 || (snippet.first() == messageId && snippet.second() == mms)) {
+      return update(threadId, false);
+    }
+
+    if (counted) {
+      SQLiteDatabase db = databaseHelper.getWritableDatabase();
+      db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = MAX(" + MESSAGE_COUNT + " - 1, 0) WHERE " + ID + " = ?",
+                 new String[] {String.valueOf(threadId)});
+    }
+
+    notifyConversationListListeners();
+    return false;
+  }
+
+  /**
+   * Recomputes the summary and unread state of every thread that has messages. These are
+   * otherwise maintained incrementally, so this is only needed to repair them in the background.
+   */
+  public void updateAll() {
+    SQLiteDatabase db        = databaseHelper.getReadableDatabase();
+    List<Long>     threadIds = new LinkedList<>();
+
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] {ID}, MESSAGE_COUNT + " > 0", null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        threadIds.add(cursor.getLong(0));
+      }
+    }
+
+    for (long threadId : threadIds) {
+      if (!update(threadId, false)) {
+        updateReadState(threadId);
+      }
+    }
+  }
+
+  /**
+   * Reads the current snippet, compares it against the message and writes the result in a single
+   * transaction, so another writer can't swap the snippet in between.
+   */
+  private void updateSnippetFor(long threadId, long messageId, boolean mms, boolean unarchive, boolean inserted) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+
+    try {
+      updateSnippetForLocked(threadId, messageId, mms, unarchive, inserted);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private void updateSnippetForLocked(long threadId, long messageId, boolean mms, boolean unarchive, boolean inserted) {
+    Pair<Long, Boolean> snippet = getSnippetMessageId(threadId);
+
+    if (snippet == null) return;
+
+    if (snippet.first() == -1) {
+      update(threadId, unarchive);
+      return;
+    }
+
+    MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
+    MessageRecord  record         = mmsSmsDatabase.getMessageRecord(messageId, mms);
+    boolean        isSnippet      = snippet.first() == messageId && snippet.second() == mms;
+
+    if (record == null) {
+      update(threadId, unarchive);
+      return;
+    }
+
+    if (!isSnippet && inserted) {
+      MessageRecord current = mmsSmsDatabase.getMessageRecord(snippet.first(), snippet.second());
+
+      if (current == null) {
+        update(threadId, unarchive);
+        return;
+      }
+
+      isSnippet = record.getDateReceived() >= current.getDateReceived();
+    }
+
+    if      (isSnippet) updateThreadSnippet(threadId, record, unarchive);
+    else if (unarchive) unarchiveConversation(threadId);
+    else                notifyConversationListListeners();
+  }
+
+  private @Nullable Pair<Long, Boolean> getSnippetMessageId(long threadId) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] {SNIPPET_MESSAGE_ID, SNIPPET_MMS}, ID_WHERE, new String[] {String.valueOf(threadId)}, null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return new Pair<>(cursor.getLong(0), cursor.getInt(1) == 1);
+      }
+    }
+
+    return null;
+  }
+
   private @NonNull String getFormattedBodyFor(@NonNull MessageRecord messageRecord) {
     if (messageRecord.isMms() && ((MmsMessageRecord) messageRecord).getSharedContacts().size() > 0) {
       Contact contact = ((MmsMessageRecord) messageRecord).getSharedContacts().get(0);
@@ -20,12 +20,15 @@ import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.crypto.DatabaseSecret;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.AttachmentSummary;
 import org.thoughtcrime.securesms.database.DraftDatabase;
+import org.thoughtcrime.securesms.database.EarlyReceiptStore;
 import org.thoughtcrime.securesms.database.GroupDatabase;
 import org.thoughtcrime.securesms.database.GroupReceiptDatabase;
 import org.thoughtcrime.securesms.database.IdentityDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.database.OneTimePreKeyDatabase;
+import org.thoughtcrime.securesms.database.PendingReceiptStore;
 import org.thoughtcrime.securesms.database.PushDatabase;
 import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.database.SearchDatabase;
@@ -33,7 +36,9 @@ import org.thoughtcrime.securesms.database.SessionDatabase;
 import org.thoughtcrime.securesms.database.SignedPreKeyDatabase;
 import org.thoughtcrime.securesms.database.SmsDatabase;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
+import org.thoughtcrime.securesms.jobs.AttachmentDeduplicationJob;
 import org.thoughtcrime.securesms.jobs.RefreshPreKeysJob;
+import org.thoughtcrime.securesms.jobs.ThreadSummaryRepairJob;
 import org.thoughtcrime.securesms.notifications.NotificationChannels;
 import org.thoughtcrime.securesms.service.KeyCachingService;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
@@ -56,8 +61,13 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
   private static final int BAD_IMPORT_CLEANUP               = 10;
   private static final int QUOTE_MISSING                    = 11;
   private static final int NOTIFICATION_CHANNELS            = 12;
+  private static final int THREAD_SNIPPET_IDS               = 13;
+  private static final int ATTACHMENT_SUMMARIES             = 14;
+  private static final int ATTACHMENT_HASHES                = 15;
+  private static final int EARLY_RECEIPTS                   = 16;
+  private static final int PENDING_RECEIPTS                 = 17;
 
-  private static final int    DATABASE_VERSION = 12;
+  private static final int    DATABASE_VERSION = 17;
   private static final String DATABASE_NAME    = "signal.db";
 
   private final Context        context;
@@ -97,6 +107,9 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     db.execSQL(OneTimePreKeyDatabase.CREATE_TABLE);
     db.execSQL(SignedPreKeyDatabase.CREATE_TABLE);
     db.execSQL(SessionDatabase.CREATE_TABLE);
+    db.execSQL(AttachmentSummary.CREATE_TABLE);
+    db.execSQL(EarlyReceiptStore.CREATE_TABLE);
+    db.execSQL(PendingReceiptStore.CREATE_TABLE);
     for (String sql : SearchDatabase.CREATE_TABLE) {
       db.execSQL(sql);
     }
@@ -108,6 +121,7 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     executeStatements(db, DraftDatabase.CREATE_INDEXS);
     executeStatements(db, GroupDatabase.CREATE_INDEXS);
     executeStatements(db, GroupReceiptDatabase.CREATE_INDEXES);
+    executeStatements(db, AttachmentSummary.CREATE_TRIGGERS);
 
     if (context.getDatabasePath(ClassicOpenHelper.NAME).exists()) {
       ClassicOpenHelper                      legacyHelper = new ClassicOpenHelper(context);
@@ -284,6 +298,35 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
         }
       }
 
+      if (oldVersion < THREAD_SNIPPET_IDS) {
+        db.execSQL("ALTER TABLE thread ADD COLUMN snippet_message_id INTEGER DEFAULT -1");
+        db.execSQL("ALTER TABLE thread ADD COLUMN snippet_mms INTEGER DEFAULT 0");
+      }
+
+      if (oldVersion < ATTACHMENT_SUMMARIES) {
+        db.execSQL(AttachmentSummary.CREATE_TABLE);
+
+        long start = SystemClock.elapsedRealtime();
+        executeStatements(db, AttachmentSummary.REBUILD);
+        executeStatements(db, AttachmentSummary.CREATE_TRIGGERS);
+        Log.i(TAG, "Built attachment summaries in " + (SystemClock.elapsedRealtime() - start) + " ms");
+      }
+
+      if (oldVersion < ATTACHMENT_HASHES) {
+        db.execSQL("ALTER TABLE part ADD COLUMN data_hash TEXT DEFAULT NULL");
+        db.execSQL("CREATE INDEX IF NOT EXISTS part_data_index ON part (_data)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS part_data_hash_index ON part (data_hash)");
+      }
+
+      if (oldVersion < EARLY_RECEIPTS) {
+        db.execSQL("CREATE TABLE early_receipt (_id INTEGER PRIMARY KEY, type INTEGER, timestamp INTEGER, address TEXT, count INTEGER, " +
+                   "UNIQUE (type, timestamp, address) ON CONFLICT REPLACE)");
+      }
+
+      if (oldVersion < PENDING_RECEIPTS) {
+        db.execSQL("CREATE TABLE pending_receipt (_id INTEGER PRIMARY KEY, type INTEGER, timestamp INTEGER, address TEXT, receipt_time INTEGER)");
+      }
+
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
@@ -292,6 +335,14 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
     if (oldVersion < MIGRATE_PREKEYS_VERSION) {
       PreKeyMigrationHelper.cleanUpPreKeys(context);
     }
+
+    if (oldVersion < THREAD_SNIPPET_IDS) {
+      ApplicationContext.getInstance(context).getJobManager().add(new ThreadSummaryRepairJob(context));
+    }
+
+    if (oldVersion < ATTACHMENT_HASHES) {
+      ApplicationContext.getInstance(context).getJobManager().add(new AttachmentDeduplicationJob(context));
+    }
   }
 
   public SQLiteDatabase getReadableDatabase() {
@@ -2,37 +2,36 @@ package org.thoughtcrime.securesms.database.loaders;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.ConversationKey;
 import org.thoughtcrime.securesms.util.AbstractCursorLoader;
 import org.whispersystems.libsignal.util.Pair;
 
+/**
+ * Loads a conversation from the newest message down. With no key, the newest {@code limit}
+ * messages are loaded; with a key, everything down to that key is loaded again along with the
+ * next {@code limit} older messages. Either way the oldest loaded message is kept, so the next
+ * page can seek from it.
+ */
 public class ConversationLoader extends AbstractCursorLoader {
-  private final long    threadId;
-  private       int     offset;
-  private       int     limit;
-  private       long    lastSeen;
-  private       boolean hasSent;
+  private final long            threadId;
+  private final ConversationKey loadedThrough;
+  private final int             limit;
+  private       long            lastSeen;
+  private       boolean         hasSent;
+  private       ConversationKey oldest;
+  private       boolean         hasMore;
 
-  public ConversationLoader(Context context, long threadId, int offset, int limit, long lastSeen) {
+  public ConversationLoader(Context context, long threadId, @Nullable ConversationKey loadedThrough, int limit, long lastSeen) {
     super(context);
-    this.threadId = threadId;
-    this.offset   = offset;
-    this.limit    = limit;
-    this.lastSeen = lastSeen;
-    this.hasSent  = true;
-  }
-
-  public boolean hasLimit() {
-    return limit > 0;
-  }
-
-  public boolean hasOffset() {
-    return offset > 0;
-  }
-
-  public int getOffset() {
-    return offset;
+    this.threadId      = threadId;
+    this.loadedThrough = loadedThrough;
+    this.limit         = limit;
+    this.lastSeen      = lastSeen;
+    this.hasSent       = true;
   }
 
   public long getLastSeen() {
@@ -43,6 +42,20 @@ public class ConversationLoader extends AbstractCursorLoader {
     return hasSent;
   }
 
+  /**
+   * The oldest message in the last cursor that was loaded, or null if it was empty.
+   */
+  public @Nullable ConversationKey getOldest() {
+    return oldest;
+  }
+
+  /**
+   * Whether there are older messages than the ones in the last cursor that was loaded.
+   */
+  public boolean hasMore() {
+    return hasMore;
+  }
+
   @Override
   public Cursor getCursor() {
     Pair<Long, Boolean> lastSeenAndHasSent = DatabaseFactory.getThreadDatabase(context).getLastSeenAndHasSent(threadId);
@@ -53,6 +66,13 @@ public class ConversationLoader extends AbstractCursorLoader {
       this.lastSeen = lastSeenAndHasSent.first();
     }
 
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId, offset, limit);
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+    Cursor         cursor   = loadedThrough != null ? database.getConversationThrough(threadId, loadedThrough, limit)
+                                                    : database.getConversationBefore(threadId, null, limit);
+
+    this.oldest  = ConversationKey.forLastRow(cursor);
+    this.hasMore = oldest != null && database.hasConversationBefore(threadId, oldest);
+
+    return cursor;
   }
 }
@@ -17,8 +17,10 @@
 package org.thoughtcrime.securesms.jobmanager;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import org.thoughtcrime.securesms.logging.Log;
 
+import org.thoughtcrime.securesms.jobmanager.persistence.JobHeader;
 import org.thoughtcrime.securesms.jobmanager.persistence.PersistentStorage;
 
 class JobConsumer extends Thread {
@@ -31,21 +33,33 @@ class JobConsumer extends Thread {
     DEFERRED
   }
 
-  private final JobQueue          jobQueue;
-  private final PersistentStorage persistentStorage;
+  private final JobQueue              jobQueue;
+  private final PersistentStorage     persistentStorage;
+  private final @Nullable JobListener jobListener;
 
-  public JobConsumer(String name, JobQueue jobQueue, PersistentStorage persistentStorage) {
+  public JobConsumer(String name, JobQueue jobQueue, PersistentStorage persistentStorage, @Nullable JobListener jobListener) {
     super(name);
     this.jobQueue          = jobQueue;
     this.persistentStorage = persistentStorage;
+    this.jobListener       = jobListener;
   }
 
   @Override
   public void run() {
     while (true) {
-      Job       job    = jobQueue.getNext();
+      Job job = jobQueue.getNext();
+
+      if (job instanceof JobHeader) {
+        job = loadJob((JobHeader)job);
+        if (job == null) continue;
+      }
+
       JobResult result = runJob(job);
 
+      if (jobListener != null) {
+        jobListener.onJobRun(job);
+      }
+
       if (result == JobResult.DEFERRED) {
         jobQueue.push(job);
       } else {
@@ -68,6 +82,27 @@ class JobConsumer extends Thread {
     }
   }
 
+  private @Nullable Job loadJob(@NonNull JobHeader header) {
+    Job job = persistentStorage.load(header);
+
+    if (job == null) {
+      jobQueue.setGroupIdAvailable(header.getGroupId());
+      return null;
+    }
+
+    if (!job.isRequirementsMet()) {
+      JobHeader unloaded = persistentStorage.unload(job);
+
+      jobQueue.replace(header, unloaded);
+      jobQueue.push(unloaded);
+      return null;
+    }
+
+    jobQueue.replace(header, job);
+
+    return job;
+  }
+
   private JobResult runJob(Job job) {
     while (canRetry(job)) {
       try {
@@ -0,0 +1,12 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Notified on the consumer thread every time a {@link Job} has run, whatever the outcome, and
+ * before a finished job is removed from persistent storage. Anything a job buffered in memory
+ * can be written back here, so that it's persisted before the job counts as done.
+ */
+public interface JobListener {
+  void onJobRun(@NonNull Job job);
+}
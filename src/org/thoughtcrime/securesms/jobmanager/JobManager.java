@@ -42,6 +42,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class JobManager implements RequirementListener {
 
+  private static final int LOAD_PAGE_SIZE = 100;
+
   private final JobQueue      jobQueue           = new JobQueue();
   private final Executor      eventExecutor      = Executors.newSingleThreadExecutor();
   private final AtomicBoolean hasLoadedEncrypted = new AtomicBoolean(false);
@@ -54,7 +56,8 @@ public class JobManager implements RequirementListener {
   private JobManager(Context context, String name,
                      List<RequirementProvider> requirementProviders,
                      DependencyInjector dependencyInjector,
-                     JobSerializer jobSerializer, int consumers)
+                     JobSerializer jobSerializer, JobListener jobListener,
+                     int consumers)
   {
     this.context              = context;
     this.dependencyInjector   = new AggregateDependencyInjector(dependencyInjector);
@@ -70,7 +73,7 @@ public class JobManager implements RequirementListener {
     }
 
     for (int i=0;i<consumers;i++) {
-      new JobConsumer("JobConsumer-" + i, jobQueue, persistentStorage).start();
+      new JobConsumer("JobConsumer-" + i, jobQueue, persistentStorage, jobListener).start();
     }
   }
 
@@ -103,13 +106,13 @@ public class JobManager implements RequirementListener {
       public void run() {
         try {
           if (job.isPersistent()) {
-            persistentStorage.store(job);
+            persistentStorage.store(job, stored -> eventExecutor.execute(() -> {
+              if (stored) onJobStored(job);
+              else        job.onCanceled();
+            }));
+          } else {
+            persistentStorage.runAfterPendingWrites(() -> eventExecutor.execute(() -> onJobStored(job)));
           }
-
-          dependencyInjector.injectDependencies(context, job);
-
-          job.onAdded();
-          jobQueue.add(job);
         } catch (IOException e) {
           Log.w("JobManager", e);
           job.onCanceled();
@@ -118,6 +121,13 @@ public class JobManager implements RequirementListener {
     });
   }
 
+  private void onJobStored(final Job job) {
+    dependencyInjector.injectDependencies(context, job);
+
+    job.onAdded();
+    jobQueue.add(job);
+  }
+
   @Override
   public void onRequirementStatusChanged() {
     eventExecutor.execute(new Runnable() {
@@ -148,12 +158,8 @@ public class JobManager implements RequirementListener {
 
     @Override
     public void run() {
-      List<Job> pendingJobs;
-
-      if (keys == null) pendingJobs = persistentStorage.getAllUnencrypted();
-      else              pendingJobs = persistentStorage.getAllEncrypted(keys);
-
-      jobQueue.addAll(pendingJobs);
+      if (keys == null) persistentStorage.getAllUnencrypted(LOAD_PAGE_SIZE, jobQueue::addAll);
+      else              persistentStorage.getAllEncrypted(keys, LOAD_PAGE_SIZE, jobQueue::addAll);
     }
   }
 
@@ -163,6 +169,7 @@ public class JobManager implements RequirementListener {
     private       List<RequirementProvider> requirementProviders;
     private       DependencyInjector        dependencyInjector;
     private       JobSerializer             jobSerializer;
+    private       JobListener               jobListener;
     private       int                       consumerThreads;
 
     Builder(Context context) {
@@ -220,6 +227,18 @@ public class JobManager implements RequirementListener {
       return this;
     }
 
+    /**
+     * The {@link org.thoughtcrime.securesms.jobmanager.JobListener} to notify every time a Job has run.
+     * Optional. It's called on the consumer thread, before a finished Job is removed from the durable queue.
+     *
+     * @param jobListener The listener to notify.
+     * @return The builder.
+     */
+    public Builder withJobListener(JobListener jobListener) {
+      this.jobListener = jobListener;
+      return this;
+    }
+
     /**
      * Set the number of threads dedicated to consuming Jobs from the queue and executing them.
      *
@@ -245,7 +264,7 @@ public class JobManager implements RequirementListener {
 
       return new JobManager(context, name, requirementProviders,
                             dependencyInjector, jobSerializer,
-                            consumerThreads);
+                            jobListener, consumerThreads);
     }
   }
 
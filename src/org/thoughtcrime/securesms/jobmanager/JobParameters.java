@@ -105,6 +105,7 @@ public class JobParameters implements Serializable {
     private EncryptionKeys    encryptionKeys  = null;
     private int               retryCount      = 100;
     private long              retryDuration   = 0;
+    private long              retryUntil      = -1;
     private String            groupId         = null;
     private boolean           wakeLock        = false;
     private long              wakeLockTimeout = 0;
@@ -159,6 +160,18 @@ public class JobParameters implements Serializable {
       return this;
     }
 
+    /**
+     * Specify the absolute time after which the job should no longer be retried. Used when
+     * restoring a persisted job, so its deadline isn't pushed back by a restart.
+     *
+     * @param retryUntil The deadline, in milliseconds since the epoch.
+     * @return the builder.
+     */
+    public Builder withRetryUntil(long retryUntil) {
+      this.retryUntil = retryUntil;
+      return this;
+    }
+
     /**
      * Specify a groupId the job should belong to.  Jobs with the same groupId are guaranteed to be
      * executed serially.
@@ -200,7 +213,8 @@ public class JobParameters implements Serializable {
      * @return the JobParameters instance that describes a Job.
      */
     public JobParameters create() {
-      return new JobParameters(requirements, isPersistent, groupId, encryptionKeys, retryCount, System.currentTimeMillis() + retryDuration, wakeLock, wakeLockTimeout);
+      long deadline = retryUntil >= 0 ? retryUntil : System.currentTimeMillis() + retryDuration;
+      return new JobParameters(requirements, isPersistent, groupId, encryptionKeys, retryCount, deadline, wakeLock, wakeLockTimeout);
     }
   }
 }
@@ -18,48 +18,79 @@ package org.thoughtcrime.securesms.jobmanager;
 
 import android.support.annotation.NonNull;
 
+import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
 
+/**
+ * Holds the jobs waiting to be run by the {@link JobConsumer}s.
+ *
+ * Jobs that share a groupId are kept in a FIFO lane per group, and only the head of each lane is
+ * ever a candidate for dispatch. Candidates are split between a ready queue (requirements met the
+ * last time they were checked) and a blocked queue, so handing out the next job doesn't require
+ * walking everything that's been enqueued. Blocked candidates are only re-examined when a
+ * requirement changes.
+ *
+ * A group's jobs run strictly in the order they were added. While the head of a lane is blocked on
+ * its requirements, the jobs behind it wait too, even if their own requirements are met.
+ */
 class JobQueue {
 
-  private final Map<String, Job> activeGroupIds = new HashMap<>();
-  private final LinkedList<Job>  jobQueue       = new LinkedList<>();
+  private final Map<String, Job>             activeGroupIds = new HashMap<>();
+  private final Map<String, ArrayDeque<Job>> groupQueues    = new HashMap<>();
+  private final ArrayDeque<Job>              readyJobs      = new ArrayDeque<>();
+  private final ArrayDeque<Job>              blockedJobs    = new ArrayDeque<>();
+  private final Set<Job>                     candidates     = Collections.newSetFromMap(new IdentityHashMap<Job, Boolean>());
 
   synchronized void onRequirementStatusChanged() {
-    notifyAll();
+    Iterator<Job> iterator = blockedJobs.iterator();
+
+    while (iterator.hasNext()) {
+      Job job = iterator.next();
+
+      if (job.isRequirementsMet()) {
+        iterator.remove();
+        readyJobs.addLast(job);
+        notify();
+      }
+    }
   }
 
   synchronized void add(Job job) {
-    jobQueue.add(job);
-    processJobAddition(job);
-    notifyAll();
+    enqueue(job);
   }
 
   synchronized void addAll(List<Job> jobs) {
-    jobQueue.addAll(jobs);
-
     for (Job job : jobs) {
-      processJobAddition(job);
+      enqueue(job);
     }
-
-    notifyAll();
   }
 
-  private void processJobAddition(@NonNull Job job) {
-    if (isJobActive(job) && isGroupIdAvailable(job)) {
-      setGroupIdUnavailable(job);
-    } else if (!isGroupIdAvailable(job)) {
-      Job blockingJob = activeGroupIds.get(job.getGroupId());
-      blockingJob.resetRunStats();
+  synchronized void push(Job job) {
+    String groupId = job.getGroupId();
+
+    if (groupId != null) {
+      getGroupQueue(groupId).addFirst(job);
     }
+
+    offerCandidate(job, true);
   }
 
-  synchronized void push(Job job) {
-    jobQueue.addFirst(job);
+  /**
+   * Swap a job that has been handed out by {@link #getNext()} for the job that should take its
+   * place, keeping hold of its groupId.
+   */
+  synchronized void replace(@NonNull Job running, @NonNull Job replacement) {
+    String groupId = running.getGroupId();
+
+    if (groupId != null && activeGroupIds.get(groupId) == running) {
+      activeGroupIds.put(groupId, replacement);
+    }
   }
 
   synchronized Job getNext() {
@@ -79,27 +110,103 @@ class JobQueue {
   synchronized void setGroupIdAvailable(String groupId) {
     if (groupId != null) {
       activeGroupIds.remove(groupId);
-      notifyAll();
+
+      ArrayDeque<Job> groupQueue = groupQueues.get(groupId);
+
+      if (groupQueue != null && groupQueue.isEmpty()) {
+        groupQueues.remove(groupId);
+      } else if (groupQueue != null) {
+        offerCandidate(groupQueue.peekFirst(), false);
+      }
+    }
+  }
+
+  private void enqueue(@NonNull Job job) {
+    String groupId = job.getGroupId();
+
+    if (groupId == null) {
+      offerCandidate(job, false);
+      return;
+    }
+
+    ArrayDeque<Job> groupQueue = getGroupQueue(groupId);
+
+    if (isJobActive(job) && isGroupIdAvailable(job)) {
+      setGroupIdUnavailable(job);
+      groupQueue.addFirst(job);
+      offerCandidate(job, true);
+    } else {
+      if (!isGroupIdAvailable(job)) {
+        activeGroupIds.get(groupId).resetRunStats();
+      }
+
+      groupQueue.addLast(job);
+
+      if (groupQueue.size() == 1 && isGroupIdAvailable(job)) {
+        offerCandidate(job, false);
+      }
     }
   }
 
+  private void offerCandidate(@NonNull Job job, boolean first) {
+    if (!candidates.add(job)) return;
+
+    ArrayDeque<Job> target = job.isRequirementsMet() ? readyJobs : blockedJobs;
+
+    if (first) target.addFirst(job);
+    else       target.addLast(job);
+
+    if (target == readyJobs) notify();
+  }
+
   private Job getNextAvailableJob() {
-    if (jobQueue.isEmpty()) return null;
+    Job job;
 
-    ListIterator<Job> iterator = jobQueue.listIterator();
-    while (iterator.hasNext()) {
-      Job job = iterator.next();
+    while ((job = readyJobs.pollFirst()) != null) {
+      if (!isDispatchable(job)) {
+        candidates.remove(job);
+        continue;
+      }
 
-      if (job.isRequirementsMet() && isGroupIdAvailable(job)) {
-        iterator.remove();
+      if (!job.isRequirementsMet()) {
+        blockedJobs.addLast(job);
+        continue;
+      }
+
+      candidates.remove(job);
+
+      if (job.getGroupId() != null) {
+        getGroupQueue(job.getGroupId()).pollFirst();
         setGroupIdUnavailable(job);
-        return job;
       }
+
+      return job;
     }
 
     return null;
   }
 
+  private boolean isDispatchable(@NonNull Job job) {
+    String groupId = job.getGroupId();
+
+    if (groupId == null) return true;
+
+    ArrayDeque<Job> groupQueue = groupQueues.get(groupId);
+
+    return groupQueue != null && groupQueue.peekFirst() == job && isGroupIdAvailable(job);
+  }
+
+  private @NonNull ArrayDeque<Job> getGroupQueue(@NonNull String groupId) {
+    ArrayDeque<Job> groupQueue = groupQueues.get(groupId);
+
+    if (groupQueue == null) {
+      groupQueue = new ArrayDeque<>();
+      groupQueues.put(groupId, groupQueue);
+    }
+
+    return groupQueue;
+  }
+
   private boolean isJobActive(@NonNull Job job) {
     return job.getRetryUntil() > 0 && job.getRunIteration() > 0;
   }
@@ -0,0 +1,152 @@
+package org.thoughtcrime.securesms.jobmanager.persistence;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.logging.Log;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies job queue inserts and deletes on a single writer thread, committing everything that
+ * arrives within a short window as one transaction.
+ *
+ * An insert's callback only fires once the transaction containing it has committed, so a job is
+ * never reported as queued before it's durable. If any write in a batch fails, the whole batch is
+ * rolled back and every insert in it is reported as not stored. Deletes carry no such promise: if the process dies
+ * before one is committed, the job is simply loaded and run again, which jobs already have to
+ * tolerate.
+ */
+class BatchedWriter extends Thread {
+
+  private static final String TAG = BatchedWriter.class.getSimpleName();
+
+  private static final long COMMIT_WINDOW_MILLIS = 10;
+  private static final int  MAX_BATCH_SIZE       = 500;
+
+  private final BlockingQueue<PendingWrite> pendingWrites = new LinkedBlockingQueue<>();
+
+  private final SQLiteOpenHelper databaseHelper;
+  private final String           tableName;
+  private final String           idColumn;
+
+  BatchedWriter(@NonNull String name, @NonNull SQLiteOpenHelper databaseHelper, @NonNull String tableName, @NonNull String idColumn) {
+    super(name);
+    this.databaseHelper = databaseHelper;
+    this.tableName      = tableName;
+    this.idColumn       = idColumn;
+  }
+
+  void insert(@NonNull Job job, @NonNull ContentValues values, @NonNull PersistentStorage.StoreCallback callback) {
+    pendingWrites.add(new PendingWrite(job, values, callback, -1, null));
+  }
+
+  void delete(long id) {
+    pendingWrites.add(new PendingWrite(null, null, null, id, null));
+  }
+
+  void runAfterPendingWrites(@NonNull Runnable runnable) {
+    pendingWrites.add(new PendingWrite(null, null, null, -1, runnable));
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        commit(takeBatch());
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  private @NonNull List<PendingWrite> takeBatch() throws InterruptedException {
+    List<PendingWrite> batch    = new LinkedList<>();
+    PendingWrite       write    = pendingWrites.take();
+    long               deadline = System.currentTimeMillis() + COMMIT_WINDOW_MILLIS;
+
+    batch.add(write);
+
+    while (batch.size() < MAX_BATCH_SIZE && write.barrier == null) {
+      long remaining = deadline - System.currentTimeMillis();
+
+      if (remaining <= 0 || (write = pendingWrites.poll(remaining, TimeUnit.MILLISECONDS)) == null) {
+        break;
+      }
+
+      batch.add(write);
+    }
+
+    pendingWrites.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+
+    return batch;
+  }
+
+  private void commit(@NonNull List<PendingWrite> batch) {
+    boolean committed = !hasDatabaseWrites(batch) || applyWrites(batch);
+
+    for (PendingWrite write : batch) {
+      if      (write.callback != null) write.callback.onComplete(committed);
+      else if (write.barrier != null)  write.barrier.run();
+    }
+  }
+
+  private boolean applyWrites(@NonNull List<PendingWrite> batch) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+
+    database.beginTransaction();
+
+    try {
+      for (PendingWrite write : batch) {
+        if (write.values != null) {
+          write.job.setPersistentId(database.insertOrThrow(tableName, null, write.values));
+        } else if (write.id != -1) {
+          database.delete(tableName, idColumn + " = ?", new String[] {String.valueOf(write.id)});
+        }
+      }
+
+      database.setTransactionSuccessful();
+      return true;
+    } catch (SQLException e) {
+      Log.w(TAG, "Failed to commit " + batch.size() + " job queue writes.", e);
+      return false;
+    } finally {
+      database.endTransaction();
+    }
+  }
+
+  private static boolean hasDatabaseWrites(@NonNull List<PendingWrite> batch) {
+    for (PendingWrite write : batch) {
+      if (write.barrier == null) return true;
+    }
+
+    return false;
+  }
+
+  private static class PendingWrite {
+    private final @Nullable Job                             job;
+    private final @Nullable ContentValues                   values;
+    private final @Nullable PersistentStorage.StoreCallback callback;
+    private final           long                            id;
+    private final @Nullable Runnable                        barrier;
+
+    private PendingWrite(@Nullable Job job, @Nullable ContentValues values, @Nullable PersistentStorage.StoreCallback callback,
+                         long id, @Nullable Runnable barrier)
+    {
+      this.job      = job;
+      this.values   = values;
+      this.callback = callback;
+      this.id       = id;
+      this.barrier  = barrier;
+    }
+  }
+}
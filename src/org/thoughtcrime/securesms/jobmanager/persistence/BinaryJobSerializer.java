@@ -0,0 +1,250 @@
+package org.thoughtcrime.securesms.jobmanager.persistence;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import org.thoughtcrime.securesms.jobmanager.EncryptionKeys;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.jobmanager.JobParameters;
+import org.thoughtcrime.securesms.jobmanager.requirements.Requirement;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link JobSerializer} that writes a compact, versioned record of tagged fields for every
+ * registered {@link BinarySerializableJob} type.
+ *
+ * A record starts with a format version byte, followed by the job's type id, its
+ * {@link JobParameters}, and finally the job's own fields. Jobs (or requirements) that haven't
+ * been registered are handed to a fallback {@link JavaJobSerializer}, and since a Java
+ * serialization stream always starts with a fixed magic number, existing records can be told
+ * apart from binary ones without any extra framing.
+ *
+ * NOTE: Like {@link JavaJobSerializer}, this does not support encryption.
+ */
+public class BinaryJobSerializer implements JobSerializer {
+
+  private static final int FORMAT_VERSION = 1;
+
+  private static final int FIELD_TYPE              = 1;
+  private static final int FIELD_GROUP_ID          = 2;
+  private static final int FIELD_RETRY_COUNT       = 3;
+  private static final int FIELD_RETRY_UNTIL       = 4;
+  private static final int FIELD_WAKE_LOCK         = 5;
+  private static final int FIELD_WAKE_LOCK_TIMEOUT = 6;
+  private static final int FIELD_REQUIREMENTS      = 7;
+  private static final int FIELD_JOB               = 8;
+
+  private static final byte JAVA_MAGIC_0 = (byte)0xAC;
+  private static final byte JAVA_MAGIC_1 = (byte)0xED;
+
+  private final Context                                    context;
+  private final JobSerializer                              fallback;
+  private final Map<Class<? extends Job>, Integer>         jobTypeIds;
+  private final Map<Integer, JobFactory>                   jobFactories;
+  private final Map<Class<? extends Requirement>, Integer> requirementTypeIds;
+  private final Map<Integer, RequirementFactory>           requirementFactories;
+
+  private BinaryJobSerializer(@NonNull Builder builder) {
+    this.context              = builder.context;
+    this.fallback             = builder.fallback;
+    this.jobTypeIds           = builder.jobTypeIds;
+    this.jobFactories         = builder.jobFactories;
+    this.requirementTypeIds   = builder.requirementTypeIds;
+    this.requirementFactories = builder.requirementFactories;
+  }
+
+  @Override
+  public byte[] serialize(Job job) throws IOException {
+    Integer typeId           = jobTypeIds.get(job.getClass());
+    byte[]  requirementTypes = getRequirementTypes(job.getRequirements());
+
+    if (typeId == null || requirementTypes == null || !(job instanceof BinarySerializableJob)) {
+      return fallback.serialize(job);
+    }
+
+    ByteArrayOutputStream jobBytes  = new ByteArrayOutputStream();
+    CodedOutputStream     jobFields = CodedOutputStream.newInstance(jobBytes);
+
+    ((BinarySerializableJob)job).writeFields(new JobOutput(jobFields));
+    jobFields.flush();
+
+    ByteArrayOutputStream baos   = new ByteArrayOutputStream();
+    CodedOutputStream     output = CodedOutputStream.newInstance(baos);
+
+    output.writeRawByte(FORMAT_VERSION);
+    output.writeUInt32(FIELD_TYPE, typeId);
+    if (job.getGroupId() != null) output.writeString(FIELD_GROUP_ID, job.getGroupId());
+    output.writeUInt32(FIELD_RETRY_COUNT, job.getRetryCount());
+    output.writeUInt64(FIELD_RETRY_UNTIL, job.getRetryUntil());
+    output.writeBool(FIELD_WAKE_LOCK, job.needsWakeLock());
+    output.writeUInt64(FIELD_WAKE_LOCK_TIMEOUT, job.getWakeLockTimeout());
+    output.writeBytes(FIELD_REQUIREMENTS, ByteString.copyFrom(requirementTypes));
+    output.writeBytes(FIELD_JOB, ByteString.copyFrom(jobBytes.toByteArray()));
+    output.flush();
+
+    return baos.toByteArray();
+  }
+
+  @Override
+  public Job deserialize(EncryptionKeys keys, boolean encrypted, byte[] serialized) throws IOException {
+    if (isJavaSerialized(serialized)) {
+      return fallback.deserialize(keys, encrypted, serialized);
+    }
+
+    CodedInputStream input   = CodedInputStream.newInstance(serialized);
+    int              version = input.readRawByte();
+
+    if (version != FORMAT_VERSION) {
+      throw new IOException("Unsupported job format version: " + version);
+    }
+
+    JobInput   record  = new JobInput(input);
+    JobFactory factory = jobFactories.get(record.getInt(FIELD_TYPE, -1));
+
+    if (factory == null) {
+      throw new IOException("Unknown job type: " + record.getInt(FIELD_TYPE, -1));
+    }
+
+    JobParameters.Builder parameters = JobParameters.newBuilder()
+                                                    .withPersistence()
+                                                    .withGroupId(record.getString(FIELD_GROUP_ID))
+                                                    .withRetryCount(record.getInt(FIELD_RETRY_COUNT, 0))
+                                                    .withRetryUntil(record.getLong(FIELD_RETRY_UNTIL, 0))
+                                                    .withWakeLock(record.getBoolean(FIELD_WAKE_LOCK, false),
+                                                                  record.getLong(FIELD_WAKE_LOCK_TIMEOUT, 0),
+                                                                  TimeUnit.MILLISECONDS);
+
+    byte[] requirementTypes = record.getBytes(FIELD_REQUIREMENTS);
+
+    if (requirementTypes != null) {
+      List<Requirement> requirements = createRequirements(requirementTypes);
+
+      if (requirements == null) {
+        throw new IOException("Unknown requirement type in: " + Arrays.toString(requirementTypes));
+      }
+
+      for (Requirement requirement : requirements) {
+        parameters.withRequirement(requirement);
+      }
+    }
+
+    ByteString jobFields = record.getByteString(FIELD_JOB);
+    JobInput   jobInput  = new JobInput(jobFields != null ? jobFields.newCodedInput()
+                                                          : CodedInputStream.newInstance(new byte[0]));
+
+    return factory.create(parameters.create(), jobInput);
+  }
+
+  /**
+   * @return The type ids of the given requirements, or null if any of them isn't registered.
+   */
+  @Nullable byte[] getRequirementTypes(@NonNull List<Requirement> requirements) {
+    byte[] types = new byte[requirements.size()];
+
+    for (int i=0;i<types.length;i++) {
+      Integer typeId = requirementTypeIds.get(requirements.get(i).getClass());
+
+      if (typeId == null) return null;
+      types[i] = (byte)(int)typeId;
+    }
+
+    return types;
+  }
+
+  /**
+   * @return New requirements of the given type ids, or null if any of them isn't registered.
+   */
+  @Nullable List<Requirement> createRequirements(@NonNull byte[] requirementTypes) {
+    List<Requirement> requirements = new LinkedList<>();
+
+    for (byte requirementType : requirementTypes) {
+      RequirementFactory requirementFactory = requirementFactories.get((int)requirementType);
+
+      if (requirementFactory == null) return null;
+      requirements.add(requirementFactory.create(context));
+    }
+
+    return requirements;
+  }
+
+  private static boolean isJavaSerialized(@NonNull byte[] serialized) {
+    return serialized.length >= 2 && serialized[0] == JAVA_MAGIC_0 && serialized[1] == JAVA_MAGIC_1;
+  }
+
+  public interface JobFactory {
+    @NonNull Job create(@NonNull JobParameters parameters, @NonNull JobInput input) throws IOException;
+  }
+
+  public interface RequirementFactory {
+    @NonNull Requirement create(@NonNull Context context);
+  }
+
+  public static class Builder {
+
+    private final Context                                    context;
+    private final Map<Class<? extends Job>, Integer>         jobTypeIds           = new HashMap<>();
+    private final Map<Integer, JobFactory>                   jobFactories         = new HashMap<>();
+    private final Map<Class<? extends Requirement>, Integer> requirementTypeIds   = new HashMap<>();
+    private final Map<Integer, RequirementFactory>           requirementFactories = new HashMap<>();
+
+    private JobSerializer fallback = new JavaJobSerializer();
+
+    public Builder(@NonNull Context context) {
+      this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Register a {@link BinarySerializableJob} type. The type id is written to disk and must stay
+     * stable across releases.
+     */
+    public Builder withJob(int typeId, @NonNull Class<? extends Job> type, @NonNull JobFactory factory) {
+      if (jobFactories.containsKey(typeId)) {
+        throw new IllegalArgumentException("Duplicate job type id: " + typeId);
+      }
+
+      jobTypeIds.put(type, typeId);
+      jobFactories.put(typeId, factory);
+      return this;
+    }
+
+    /**
+     * Register a {@link Requirement} type. Requirements are stateless apart from their context,
+     * so only the type id is written to disk.
+     */
+    public Builder withRequirement(int typeId, @NonNull Class<? extends Requirement> type, @NonNull RequirementFactory factory) {
+      if (typeId < 0 || typeId > Byte.MAX_VALUE || requirementFactories.containsKey(typeId)) {
+        throw new IllegalArgumentException("Bad requirement type id: " + typeId);
+      }
+
+      requirementTypeIds.put(type, typeId);
+      requirementFactories.put(typeId, factory);
+      return this;
+    }
+
+    /**
+     * The serializer used for unregistered jobs, and for records written before this format
+     * existed. Defaults to {@link JavaJobSerializer}.
+     */
+    public Builder withFallback(@NonNull JobSerializer fallback) {
+      this.fallback = fallback;
+      return this;
+    }
+
+    public BinaryJobSerializer build() {
+      return new BinaryJobSerializer(this);
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package org.thoughtcrime.securesms.jobmanager.persistence;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * A {@link org.thoughtcrime.securesms.jobmanager.Job} that can describe its own state as tagged
+ * fields, so that {@link BinaryJobSerializer} doesn't need Java serialization to persist it.
+ *
+ * Field numbers are part of the on-disk format: never reuse one for a different meaning.
+ */
+public interface BinarySerializableJob {
+  void writeFields(@NonNull JobOutput output) throws IOException;
+}
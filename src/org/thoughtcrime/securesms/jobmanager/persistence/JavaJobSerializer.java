@@ -18,7 +18,6 @@ package org.thoughtcrime.securesms.jobmanager.persistence;
 
 import org.thoughtcrime.securesms.jobmanager.EncryptionKeys;
 import org.thoughtcrime.securesms.jobmanager.Job;
-import org.thoughtcrime.securesms.jobmanager.util.Base64;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -40,18 +39,19 @@ public class JavaJobSerializer implements JobSerializer {
   public JavaJobSerializer() {}
 
   @Override
-  public String serialize(Job job) throws IOException {
+  public byte[] serialize(Job job) throws IOException {
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     ObjectOutputStream    oos  = new ObjectOutputStream(baos);
     oos.writeObject(job);
+    oos.flush();
 
-    return Base64.encodeToString(baos.toByteArray(), Base64.NO_WRAP);
+    return baos.toByteArray();
   }
 
   @Override
-  public Job deserialize(EncryptionKeys keys, boolean encrypted, String serialized) throws IOException {
+  public Job deserialize(EncryptionKeys keys, boolean encrypted, byte[] serialized) throws IOException {
     try {
-      ByteArrayInputStream bais = new ByteArrayInputStream(Base64.decode(serialized, Base64.NO_WRAP));
+      ByteArrayInputStream bais = new ByteArrayInputStream(serialized);
       ObjectInputStream    ois  = new ObjectInputStream(bais);
 
       return (Job)ois.readObject();
@@ -0,0 +1,61 @@
+package org.thoughtcrime.securesms.jobmanager.persistence;
+
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.jobmanager.EncryptionKeys;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.jobmanager.JobParameters;
+import org.thoughtcrime.securesms.jobmanager.requirements.Requirement;
+
+import java.util.List;
+
+/**
+ * A lightweight stand-in for a persisted {@link Job} that hasn't been deserialized yet. It only
+ * knows the job's id, groupId and requirements, which is enough for the queue to order it and to
+ * hold it back while its requirements aren't met. The real job is loaded with
+ * {@link PersistentStorage#load(JobHeader)} once the header is dispatched.
+ */
+public class JobHeader extends Job {
+
+  private final boolean encrypted;
+
+  JobHeader(long persistentId, String groupId, @NonNull List<Requirement> requirements, boolean encrypted, EncryptionKeys keys) {
+    super(buildParameters(groupId, requirements, keys));
+
+    this.encrypted = encrypted;
+    setPersistentId(persistentId);
+  }
+
+  private static JobParameters buildParameters(String groupId, @NonNull List<Requirement> requirements, EncryptionKeys keys) {
+    JobParameters.Builder builder = JobParameters.newBuilder()
+                                                 .withPersistence()
+                                                 .withGroupId(groupId)
+                                                 .withEncryption(keys);
+
+    for (Requirement requirement : requirements) {
+      builder.withRequirement(requirement);
+    }
+
+    return builder.create();
+  }
+
+  boolean isEncrypted() {
+    return encrypted;
+  }
+
+  @Override
+  public void onAdded() {}
+
+  @Override
+  protected void onRun() {
+    throw new IllegalStateException("Job headers must be loaded before they run!");
+  }
+
+  @Override
+  public boolean onShouldRetry(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {}
+}
@@ -0,0 +1,95 @@
+package org.thoughtcrime.securesms.jobmanager.persistence;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads back the tagged fields written by a {@link JobOutput}. Fields are decoded into flat,
+ * field-number-indexed arrays up front, so lookups don't box or reflect. Unknown wire types are
+ * skipped, which lets older builds read records written by newer ones. Field numbers above
+ * {@link #MAX_FIELD} are skipped as well, so a corrupt tag can't size the arrays.
+ */
+public class JobInput {
+
+  private static final int WIRETYPE_VARINT           = 0;
+  private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+  static final int MAX_FIELD = 63;
+
+  private long[]       varints    = new long[8];
+  private ByteString[] blobs      = new ByteString[8];
+  private boolean[]    hasVarint  = new boolean[8];
+
+  JobInput(@NonNull CodedInputStream input) throws IOException {
+    int tag;
+
+    while ((tag = input.readTag()) != 0) {
+      int field    = tag >>> 3;
+      int wireType = tag & 0x7;
+
+      if (field > MAX_FIELD) {
+        if (!input.skipField(tag)) break;
+        continue;
+      }
+
+      ensureCapacity(field);
+
+      if (wireType == WIRETYPE_VARINT) {
+        varints[field]   = input.readRawVarint64();
+        hasVarint[field] = true;
+      } else if (wireType == WIRETYPE_LENGTH_DELIMITED) {
+        blobs[field] = input.readBytes();
+      } else if (!input.skipField(tag)) {
+        break;
+      }
+    }
+  }
+
+  public boolean has(int field) {
+    return field < varints.length && (hasVarint[field] || blobs[field] != null);
+  }
+
+  public long getLong(int field, long defaultValue) {
+    if (field >= varints.length || !hasVarint[field]) return defaultValue;
+    return varints[field];
+  }
+
+  public int getInt(int field, int defaultValue) {
+    return (int)getLong(field, defaultValue);
+  }
+
+  public boolean getBoolean(int field, boolean defaultValue) {
+    return getLong(field, defaultValue ? 1 : 0) != 0;
+  }
+
+  public @Nullable String getString(int field) {
+    if (field >= blobs.length || blobs[field] == null) return null;
+    return blobs[field].toStringUtf8();
+  }
+
+  public @Nullable byte[] getBytes(int field) {
+    if (field >= blobs.length || blobs[field] == null) return null;
+    return blobs[field].toByteArray();
+  }
+
+  @Nullable ByteString getByteString(int field) {
+    if (field >= blobs.length) return null;
+    return blobs[field];
+  }
+
+  private void ensureCapacity(int field) {
+    if (field < varints.length) return;
+
+    int size = Math.max(field + 1, varints.length * 2);
+
+    varints   = Arrays.copyOf(varints, size);
+    blobs     = Arrays.copyOf(blobs, size);
+    hasVarint = Arrays.copyOf(hasVarint, size);
+  }
+}
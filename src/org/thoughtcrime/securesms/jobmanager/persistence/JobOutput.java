@@ -0,0 +1,59 @@
+package org.thoughtcrime.securesms.jobmanager.persistence;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+
+/**
+ * Writes the tagged fields of a {@link BinarySerializableJob}, using the protobuf wire format.
+ * Null values are omitted, and read back as absent by {@link JobInput}. Field numbers can't be
+ * larger than {@link JobInput#MAX_FIELD}.
+ */
+public class JobOutput {
+
+  private final CodedOutputStream output;
+
+  JobOutput(@NonNull CodedOutputStream output) {
+    this.output = output;
+  }
+
+  public JobOutput writeLong(int field, long value) throws IOException {
+    checkField(field);
+    output.writeUInt64(field, value);
+    return this;
+  }
+
+  public JobOutput writeInt(int field, int value) throws IOException {
+    checkField(field);
+    output.writeUInt64(field, value);
+    return this;
+  }
+
+  public JobOutput writeBoolean(int field, boolean value) throws IOException {
+    checkField(field);
+    output.writeBool(field, value);
+    return this;
+  }
+
+  public JobOutput writeString(int field, @Nullable String value) throws IOException {
+    checkField(field);
+    if (value != null) output.writeString(field, value);
+    return this;
+  }
+
+  public JobOutput writeBytes(int field, @Nullable byte[] value) throws IOException {
+    checkField(field);
+    if (value != null) output.writeBytes(field, ByteString.copyFrom(value));
+    return this;
+  }
+
+  private static void checkField(int field) {
+    if (field < 1 || field > JobInput.MAX_FIELD) {
+      throw new IllegalArgumentException("Field number out of range: " + field);
+    }
+  }
+}
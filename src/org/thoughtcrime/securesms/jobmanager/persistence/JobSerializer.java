@@ -27,21 +27,21 @@ import java.io.IOException;
 public interface JobSerializer {
 
   /**
-   * Serialize a job object into a string.
+   * Serialize a job object into bytes.
    * @param job The Job to serialize.
    * @return The serialized Job.
    * @throws IOException if serialization fails.
    */
-  public String serialize(Job job) throws IOException;
+  public byte[] serialize(Job job) throws IOException;
 
   /**
-   * Deserialize a String into a Job.
+   * Deserialize bytes into a Job.
    * @param keys Optional encryption keys that could have been used.
    * @param encrypted True if the job was encrypted using the encryption keys.
    * @param serialized The serialized Job.
    * @return The deserialized Job.
    * @throws IOException If the Job deserialization fails.
    */
-  public Job deserialize(EncryptionKeys keys, boolean encrypted, String serialized) throws IOException;
+  public Job deserialize(EncryptionKeys keys, boolean encrypted, byte[] serialized) throws IOException;
 
 }
@@ -21,32 +21,52 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesms.jobmanager.EncryptionKeys;
 import org.thoughtcrime.securesms.jobmanager.Job;
 import org.thoughtcrime.securesms.jobmanager.dependencies.AggregateDependencyInjector;
+import org.thoughtcrime.securesms.jobmanager.requirements.Requirement;
+import org.thoughtcrime.securesms.jobmanager.util.Base64;
 import org.thoughtcrime.securesms.logging.Log;
 
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 public class PersistentStorage {
 
-  private static final int DATABASE_VERSION = 1;
+  private static final int BLOB_ITEMS          = 2;
+  private static final int JOB_HEADERS         = 3;
+  private static final int HEADER_REQUIREMENTS = 4;
+  private static final int DATABASE_VERSION    = 4;
 
-  private static final String TABLE_NAME = "queue";
-  private static final String ID         = "_id";
-  private static final String ITEM       = "item";
-  private static final String ENCRYPTED  = "encrypted";
+  private static final String TABLE_NAME   = "queue";
+  private static final String ID           = "_id";
+  private static final String ITEM         = "item";
+  private static final String ENCRYPTED    = "encrypted";
+  private static final String GROUP_ID     = "group_id";
+  private static final String HEADER       = "header";
+  private static final String REQUIREMENTS = "requirements";
 
-  private static final String DATABASE_CREATE = String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY, %s TEXT NOT NULL, %s INTEGER DEFAULT 0);",
-                                                              TABLE_NAME, ID, ITEM, ENCRYPTED);
+  private static final String DATABASE_CREATE = String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY, %s BLOB NOT NULL, %s INTEGER DEFAULT 0, %s TEXT DEFAULT NULL, %s INTEGER DEFAULT 0, %s BLOB DEFAULT NULL);",
+                                                              TABLE_NAME, ID, ITEM, ENCRYPTED, GROUP_ID, HEADER, REQUIREMENTS);
+
+  private static final String BLOB_ITEMS_CREATE = String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY, %s BLOB NOT NULL, %s INTEGER DEFAULT 0);",
+                                                                TABLE_NAME, ID, ITEM, ENCRYPTED);
+
+  private static final String PAGE_QUERY = "SELECT " + ID + ", " + ENCRYPTED + ", " + GROUP_ID + ", " + HEADER + ", " + REQUIREMENTS + ", " +
+                                           "CASE WHEN " + HEADER + " = 0 THEN " + ITEM + " ELSE NULL END AS " + ITEM + " " +
+                                           "FROM " + TABLE_NAME + " WHERE " + ENCRYPTED + " = ? AND " + ID + " > ? " +
+                                           "ORDER BY " + ID + " ASC LIMIT ?";
 
   private final Context                     context;
   private final DatabaseHelper              databaseHelper;
   private final JobSerializer               jobSerializer;
   private final AggregateDependencyInjector dependencyInjector;
+  private final BatchedWriter               writer;
 
   public PersistentStorage(Context context, String name,
                            JobSerializer serializer,
@@ -56,62 +76,178 @@ public class PersistentStorage {
     this.context            = context;
     this.jobSerializer      = serializer;
     this.dependencyInjector = dependencyInjector;
+    this.writer             = new BatchedWriter("PersistentStorage-" + name, databaseHelper, TABLE_NAME, ID);
+
+    this.writer.start();
   }
 
-  public void store(Job job) throws IOException {
+  /**
+   * Serializes the job immediately, but commits it as part of the next batch of queue writes.
+   * The callback is invoked from the writer thread once that batch has been committed, and the
+   * job's persistent id is set by then.
+   */
+  public void store(Job job, StoreCallback callback) throws IOException {
     ContentValues contentValues = new ContentValues();
     contentValues.put(ITEM, jobSerializer.serialize(job));
     contentValues.put(ENCRYPTED, job.getEncryptionKeys() != null);
+    contentValues.put(GROUP_ID, job.getGroupId());
+    contentValues.put(HEADER, 1);
+    contentValues.put(REQUIREMENTS, getRequirementTypes(job));
+
+    writer.insert(job, contentValues, callback);
+  }
+
+  /**
+   * Runs the given runnable on the writer thread, once every write requested before it has been
+   * committed. Useful for keeping non-persistent work ordered with respect to persistent jobs.
+   */
+  public void runAfterPendingWrites(Runnable runnable) {
+    writer.runAfterPendingWrites(runnable);
+  }
 
-    long id = databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, contentValues);
-    job.setPersistentId(id);
+  /**
+   * Blocks until every write requested so far has been committed.
+   */
+  public void flush() {
+    final CountDownLatch latch = new CountDownLatch(1);
+    writer.runAfterPendingWrites(latch::countDown);
+
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
   }
 
-  public List<Job> getAllUnencrypted() {
-    return getJobs(null, ENCRYPTED + " = 0");
+  /**
+   * Streams every unencrypted job to the listener in id order, one page at a time. Jobs stored
+   * with a header are handed out as a {@link JobHeader} without being deserialized; call
+   * {@link #load(JobHeader)} once one is about to run.
+   */
+  public void getAllUnencrypted(int pageSize, PageListener listener) {
+    getJobs(null, false, pageSize, listener);
   }
 
-  public List<Job> getAllEncrypted(EncryptionKeys keys) {
-    return getJobs(keys, ENCRYPTED + " = 1");
+  public void getAllEncrypted(EncryptionKeys keys, int pageSize, PageListener listener) {
+    getJobs(keys, true, pageSize, listener);
   }
 
-  private List<Job> getJobs(EncryptionKeys keys, String where) {
-    List<Job>      results  = new LinkedList<>();
+  /**
+   * Swaps a loaded job back for a header, so that it doesn't sit in memory while it waits for its
+   * requirements. The header keeps the job's requirements.
+   */
+  public @NonNull JobHeader unload(@NonNull Job job) {
+    return new JobHeader(job.getPersistentId(), job.getGroupId(), job.getRequirements(),
+                         job.getEncryptionKeys() != null, job.getEncryptionKeys());
+  }
+
+  /**
+   * Deserializes the job a header stands in for.
+   *
+   * @return The full job, or null if it could not be read, in which case it's removed from storage.
+   */
+  public @Nullable Job load(@NonNull JobHeader header) {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
-    Cursor         cursor   = null;
 
-    try {
-      cursor = database.query(TABLE_NAME, null, where, null, null, null, ID + " ASC", null);
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ITEM}, ID + " = ?",
+                                        new String[] {String.valueOf(header.getPersistentId())},
+                                        null, null, null))
+    {
+      if (cursor.moveToFirst()) {
+        return deserialize(header.getPersistentId(), header.getEncryptionKeys(), header.isEncrypted(), cursor.getBlob(0));
+      }
+    }
+
+    Log.w("PersistentStore", "Job " + header.getPersistentId() + " is no longer stored.");
+    return null;
+  }
+
+  private void getJobs(EncryptionKeys keys, boolean encrypted, int pageSize, PageListener listener) {
+    flush();
+
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    long           lastId   = 0;
+    int            rows;
+
+    do {
+      List<Job> results = new LinkedList<>();
 
-      while (cursor.moveToNext()) {
-        long    id        = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-        String  item      = cursor.getString(cursor.getColumnIndexOrThrow(ITEM));
-        boolean encrypted = cursor.getInt(cursor.getColumnIndexOrThrow(ENCRYPTED)) == 1;
+      rows = 0;
 
-        try{
-          Job job = jobSerializer.deserialize(keys, encrypted, item);
+      try (Cursor cursor = database.rawQuery(PAGE_QUERY, new String[] {encrypted ? "1" : "0", String.valueOf(lastId), String.valueOf(pageSize)})) {
+        while (cursor.moveToNext()) {
+          long    id        = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+          boolean hasHeader = cursor.getInt(cursor.getColumnIndexOrThrow(HEADER)) == 1;
 
-          job.setPersistentId(id);
-          job.setEncryptionKeys(keys);
-          dependencyInjector.injectDependencies(context, job);
+          if (hasHeader) {
+            String            groupId      = cursor.getString(cursor.getColumnIndexOrThrow(GROUP_ID));
+            List<Requirement> requirements = createRequirements(cursor.getBlob(cursor.getColumnIndexOrThrow(REQUIREMENTS)));
 
-          results.add(job);
-        } catch (IOException e) {
-          Log.w("PersistentStore", e);
-          remove(id);
+            results.add(new JobHeader(id, groupId, requirements, encrypted, keys));
+          } else {
+            Job job = deserialize(id, keys, encrypted, cursor.getBlob(cursor.getColumnIndexOrThrow(ITEM)));
+            if (job != null) results.add(job);
+          }
+
+          lastId = id;
+          rows++;
         }
       }
-    } finally {
-      if (cursor != null)
-        cursor.close();
+
+      if (!results.isEmpty()) {
+        listener.onPageLoaded(results);
+      }
+    } while (rows == pageSize);
+  }
+
+  private @Nullable Job deserialize(long id, EncryptionKeys keys, boolean encrypted, byte[] item) {
+    try {
+      Job job = jobSerializer.deserialize(keys, encrypted, item);
+
+      job.setPersistentId(id);
+      job.setEncryptionKeys(keys);
+      dependencyInjector.injectDependencies(context, job);
+
+      return job;
+    } catch (IOException e) {
+      Log.w("PersistentStore", e);
+      remove(id);
+      return null;
+    }
+  }
+
+  /**
+   * Requirement types are only known for serializers that register them. Without them a header
+   * can't be held back, so it's loaded once dispatched and unloaded again if it isn't ready.
+   */
+  private @Nullable byte[] getRequirementTypes(@NonNull Job job) {
+    if (jobSerializer instanceof BinaryJobSerializer) {
+      return ((BinaryJobSerializer)jobSerializer).getRequirementTypes(job.getRequirements());
+    }
+
+    return null;
+  }
+
+  private @NonNull List<Requirement> createRequirements(@Nullable byte[] requirementTypes) {
+    List<Requirement> requirements = null;
+
+    if (requirementTypes != null && jobSerializer instanceof BinaryJobSerializer) {
+      requirements = ((BinaryJobSerializer)jobSerializer).createRequirements(requirementTypes);
     }
 
-    return results;
+    return requirements != null ? requirements : new LinkedList<>();
   }
 
   public void remove(long id) {
-    databaseHelper.getWritableDatabase()
-                  .delete(TABLE_NAME, ID + " = ?", new String[] {String.valueOf(id)});
+    writer.delete(id);
+  }
+
+  public interface StoreCallback {
+    void onComplete(boolean stored);
+  }
+
+  public interface PageListener {
+    void onPageLoaded(@NonNull List<Job> jobs);
   }
 
   private static class DatabaseHelper extends SQLiteOpenHelper {
@@ -127,7 +263,55 @@ public class PersistentStorage {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+      if (oldVersion < BLOB_ITEMS) {
+        migrateToBlobItems(db);
+      }
+
+      if (oldVersion < JOB_HEADERS) {
+        db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + GROUP_ID + " TEXT DEFAULT NULL");
+        db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + HEADER + " INTEGER DEFAULT 0");
+      }
+
+      if (oldVersion < HEADER_REQUIREMENTS) {
+        db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + REQUIREMENTS + " BLOB DEFAULT NULL");
+      }
+    }
+
+    /**
+     * Version 1 stored Base64 encoded Java serialization in a TEXT column. Serializers now work
+     * with raw bytes, and {@link BinaryJobSerializer} still recognizes Java serialized records, so
+     * the rows only need to be decoded and copied over, not deserialized.
+     */
+    private void migrateToBlobItems(SQLiteDatabase db) {
+      db.beginTransaction();
 
+      try {
+        db.execSQL("ALTER TABLE " + TABLE_NAME + " RENAME TO " + TABLE_NAME + "_v1");
+        db.execSQL(BLOB_ITEMS_CREATE);
+
+        try (Cursor cursor = db.query(TABLE_NAME + "_v1", null, null, null, null, null, ID + " ASC")) {
+          while (cursor.moveToNext()) {
+            long   id   = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+            String item = cursor.getString(cursor.getColumnIndexOrThrow(ITEM));
+
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(ID, id);
+            contentValues.put(ENCRYPTED, cursor.getInt(cursor.getColumnIndexOrThrow(ENCRYPTED)));
+
+            try {
+              contentValues.put(ITEM, Base64.decode(item, Base64.NO_WRAP));
+              db.insert(TABLE_NAME, null, contentValues);
+            } catch (IllegalArgumentException e) {
+              Log.w("PersistentStore", "Dropping unreadable job " + id, e);
+            }
+          }
+        }
+
+        db.execSQL("DROP TABLE " + TABLE_NAME + "_v1");
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
     }
   }
 
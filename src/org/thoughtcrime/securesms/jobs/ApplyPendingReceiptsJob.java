@@ -0,0 +1,64 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.jobmanager.JobParameters;
+import org.thoughtcrime.securesms.logging.Log;
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Applies the receipts waiting in the pending receipt table. Only one run is scheduled at a time,
+ * and it waits for {@link #BATCH_WINDOW_MILLIS} before it starts, so a burst of receipts, like the
+ * ones for a message sent to a large group, is applied in a few batches instead of one at a time.
+ */
+public class ApplyPendingReceiptsJob extends ContextJob {
+
+  private static final String TAG = ApplyPendingReceiptsJob.class.getSimpleName();
+
+  private static final long BATCH_WINDOW_MILLIS = 100;
+
+  private static final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+  public static void schedule(@NonNull Context context) {
+    if (scheduled.compareAndSet(false, true)) {
+      ApplicationContext.getInstance(context).getJobManager().add(new ApplyPendingReceiptsJob(context));
+    }
+  }
+
+  private ApplyPendingReceiptsJob(@NonNull Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withGroupId(ApplyPendingReceiptsJob.class.getSimpleName())
+                                .create());
+  }
+
+  @Override
+  public void onAdded() {}
+
+  @Override
+  public void onRun() {
+    Util.sleep(BATCH_WINDOW_MILLIS);
+    scheduled.set(false);
+
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+
+    while (database.applyPendingReceipts()) {
+      Log.i(TAG, "Applied a batch of pending receipts.");
+    }
+  }
+
+  @Override
+  public boolean onShouldRetry(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Failed to apply pending receipts, they'll be applied on the next run.");
+  }
+}
@@ -0,0 +1,48 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.jobmanager.JobParameters;
+import org.thoughtcrime.securesms.logging.Log;
+
+/**
+ * Merges attachments with identical content that were stored before attachment data files were
+ * shared, reporting how much space that frees.
+ */
+public class AttachmentDeduplicationJob extends ContextJob {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final String TAG = AttachmentDeduplicationJob.class.getSimpleName();
+
+  public AttachmentDeduplicationJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withGroupId(AttachmentDeduplicationJob.class.getSimpleName())
+                                .withPersistence()
+                                .create());
+  }
+
+  @Override
+  public void onAdded() {
+
+  }
+
+  @Override
+  public void onRun() {
+    long start     = System.currentTimeMillis();
+    long reclaimed = DatabaseFactory.getAttachmentDatabase(context).deduplicateExistingAttachments();
+
+    Log.i(TAG, "Deduplicated attachments in " + (System.currentTimeMillis() - start) + " ms, reclaimed " + reclaimed + " bytes");
+  }
+
+  @Override
+  public boolean onShouldRetry(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Canceling attachment deduplication.");
+  }
+}
@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.jobs;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
 import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
 import org.thoughtcrime.securesms.logging.Log;
@@ -15,6 +16,10 @@ import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
 import org.thoughtcrime.securesms.events.PartProgressEvent;
 import org.thoughtcrime.securesms.jobmanager.JobParameters;
+import org.thoughtcrime.securesms.jobmanager.persistence.BinaryJobSerializer;
+import org.thoughtcrime.securesms.jobmanager.persistence.BinarySerializableJob;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobInput;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobOutput;
 import org.thoughtcrime.securesms.jobmanager.requirements.NetworkRequirement;
 import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
 import org.thoughtcrime.securesms.mms.MmsException;
@@ -36,11 +41,16 @@ import java.io.InputStream;
 
 import javax.inject.Inject;
 
-public class AttachmentDownloadJob extends MasterSecretJob implements InjectableType {
+public class AttachmentDownloadJob extends MasterSecretJob implements InjectableType, BinarySerializableJob {
   private static final long   serialVersionUID    = 2L;
   private static final int    MAX_ATTACHMENT_SIZE = 150 * 1024  * 1024;
   private static final String TAG                  = AttachmentDownloadJob.class.getSimpleName();
 
+  private static final int FIELD_MESSAGE_ID     = 1;
+  private static final int FIELD_PART_ROW_ID    = 2;
+  private static final int FIELD_PART_UNIQUE_ID = 3;
+  private static final int FIELD_MANUAL         = 4;
+
   @Inject transient SignalServiceMessageReceiver messageReceiver;
 
   private final long    messageId;
@@ -62,6 +72,23 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
     this.manual       = manual;
   }
 
+  private AttachmentDownloadJob(JobParameters parameters, long messageId, long partRowId, long partUniqueId, boolean manual) {
+    super(null, parameters);
+
+    this.messageId    = messageId;
+    this.partRowId    = partRowId;
+    this.partUniqueId = partUniqueId;
+    this.manual       = manual;
+  }
+
+  @Override
+  public void writeFields(@NonNull JobOutput output) throws IOException {
+    output.writeLong(FIELD_MESSAGE_ID, messageId)
+          .writeLong(FIELD_PART_ROW_ID, partRowId)
+          .writeLong(FIELD_PART_UNIQUE_ID, partUniqueId)
+          .writeBoolean(FIELD_MANUAL, manual);
+  }
+
   @Override
   public void onAdded() {
     Log.i(TAG, "onAdded() messageId: " + messageId + "  partRowId: " + partRowId + "  partUniqueId: " + partUniqueId + "  manual: " + manual);
@@ -202,4 +229,15 @@ public class AttachmentDownloadJob extends MasterSecretJob implements Injectable
     InvalidPartException(Exception e) {super(e);}
   }
 
+
+  public static final class Factory implements BinaryJobSerializer.JobFactory {
+    @Override
+    public @NonNull AttachmentDownloadJob create(@NonNull JobParameters parameters, @NonNull JobInput input) {
+      return new AttachmentDownloadJob(parameters,
+                                       input.getLong(FIELD_MESSAGE_ID, -1),
+                                       input.getLong(FIELD_PART_ROW_ID, -1),
+                                       input.getLong(FIELD_PART_UNIQUE_ID, -1),
+                                       input.getBoolean(FIELD_MANUAL, false));
+    }
+  }
 }
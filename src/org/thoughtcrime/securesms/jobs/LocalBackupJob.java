@@ -6,7 +6,10 @@ import android.content.Context;
 import android.support.annotation.NonNull;
 import org.thoughtcrime.securesms.logging.Log;
 
+import net.sqlcipher.database.SQLiteDatabase;
+
 import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.backup.BackupManifest;
 import org.thoughtcrime.securesms.backup.FullBackupExporter;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
@@ -53,33 +56,51 @@ public class LocalBackupJob extends ContextJob {
                                                  NotificationChannels.BACKUPS);
 
     try {
-      String backupPassword  = TextSecurePreferences.getBackupPassphrase(context);
-      File   backupDirectory = StorageUtil.getBackupDirectory();
-      String timestamp       = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US).format(new Date());
-      String fileName        = String.format("signal-%s.backup", timestamp);
-      File   backupFile      = new File(backupDirectory, fileName);
+      String         backupPassword  = TextSecurePreferences.getBackupPassphrase(context);
+      File           backupDirectory = StorageUtil.getBackupDirectory();
+      SQLiteDatabase database        = DatabaseFactory.getBackupDatabase(context);
+      String         timestamp       = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US).format(new Date());
+      String         fileName        = String.format("signal-%s.backup", timestamp);
+
+      if (backupPassword == null) {
+        throw new IOException("Backup password is null");
+      }
+
+      BackupManifest previous = BackupManifest.read(context);
+
+      if (previous != null && !previous.canAppendDelta(backupDirectory, backupPassword, database.getVersion())) {
+        previous = null;
+      }
+
+      if (previous != null) {
+        fileName = previous.getNextDeltaName();
+      }
+
+      File backupFile = new File(backupDirectory, fileName);
 
       if (backupFile.exists()) {
         throw new IOException("Backup file already exists?");
       }
 
-      if (backupPassword == null) {
-        throw new IOException("Backup password is null");
-      }
+      Log.i(TAG, "Writing " + (previous == null ? "full" : "incremental") + " backup: " + fileName);
 
       File tempFile = File.createTempFile("backup", "tmp", StorageUtil.getBackupCacheDirectory(context));
 
-      FullBackupExporter.export(context,
-                                AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
-                                DatabaseFactory.getBackupDatabase(context),
-                                tempFile,
-                                backupPassword);
+      BackupManifest manifest = FullBackupExporter.export(context,
+                                                          AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
+                                                          database,
+                                                          tempFile,
+                                                          backupPassword,
+                                                          fileName,
+                                                          previous);
 
       if (!tempFile.renameTo(backupFile)) {
         tempFile.delete();
         throw new IOException("Renaming temporary backup file failed!");
       }
 
+      manifest.write(context);
+
       BackupUtil.deleteOldBackups();
     } finally {
       GenericForegroundService.stopForegroundTask(context);
@@ -38,6 +38,10 @@ import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.MmsMessageRecord;
 import org.thoughtcrime.securesms.groups.GroupMessageProcessor;
 import org.thoughtcrime.securesms.jobmanager.JobParameters;
+import org.thoughtcrime.securesms.jobmanager.persistence.BinaryJobSerializer;
+import org.thoughtcrime.securesms.jobmanager.persistence.BinarySerializableJob;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobInput;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobOutput;
 import org.thoughtcrime.securesms.mms.IncomingMediaMessage;
 import org.thoughtcrime.securesms.mms.MmsException;
 import org.thoughtcrime.securesms.mms.OutgoingExpirationUpdateMessage;
@@ -93,6 +97,7 @@ import org.whispersystems.signalservice.api.messages.multidevice.VerifiedMessage
 import org.whispersystems.signalservice.api.messages.shared.SharedContact;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -100,12 +105,15 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
-public class PushDecryptJob extends ContextJob {
+public class PushDecryptJob extends ContextJob implements BinarySerializableJob {
 
   private static final long serialVersionUID = 2L;
 
   public static final String TAG = PushDecryptJob.class.getSimpleName();
 
+  private static final int FIELD_MESSAGE_ID     = 1;
+  private static final int FIELD_SMS_MESSAGE_ID = 2;
+
   private final long messageId;
   private final long smsMessageId;
 
@@ -123,6 +131,18 @@ public class PushDecryptJob extends ContextJob {
     this.smsMessageId = smsMessageId;
   }
 
+  private PushDecryptJob(JobParameters parameters, long pushMessageId, long smsMessageId) {
+    super(null, parameters);
+    this.messageId    = pushMessageId;
+    this.smsMessageId = smsMessageId;
+  }
+
+  @Override
+  public void writeFields(@NonNull JobOutput output) throws IOException {
+    output.writeLong(FIELD_MESSAGE_ID, messageId)
+          .writeLong(FIELD_SMS_MESSAGE_ID, smsMessageId);
+  }
+
   @Override
   public void onAdded() {}
 
@@ -153,6 +173,7 @@ public class PushDecryptJob extends ContextJob {
     Optional<Long>        optionalSmsMessageId = smsMessageId > 0 ? Optional.of(smsMessageId) : Optional.absent();
 
     handleMessage(envelope, optionalSmsMessageId);
+    new TextSecureSessionStore(context).flush();
     database.delete(messageId);
   }
 
@@ -846,23 +867,30 @@ public class PushDecryptJob extends ContextJob {
   private void handleDeliveryReceipt(@NonNull SignalServiceEnvelope envelope,
                                      @NonNull SignalServiceReceiptMessage message)
   {
+    List<SyncMessageId> messageIds = new LinkedList<>();
+
     for (long timestamp : message.getTimestamps()) {
       Log.i(TAG, String.format("Received encrypted delivery receipt: (XXXXX, %d)", timestamp));
-      DatabaseFactory.getMmsSmsDatabase(context)
-                     .incrementDeliveryReceiptCount(new SyncMessageId(Address.fromExternal(context, envelope.getSource()), timestamp), System.currentTimeMillis());
+      messageIds.add(new SyncMessageId(Address.fromExternal(context, envelope.getSource()), timestamp));
     }
+
+    DatabaseFactory.getMmsSmsDatabase(context).addPendingDeliveryReceipts(messageIds, System.currentTimeMillis());
+    ApplyPendingReceiptsJob.schedule(context);
   }
 
   private void handleReadReceipt(@NonNull SignalServiceEnvelope envelope,
                                  @NonNull SignalServiceReceiptMessage message)
   {
     if (TextSecurePreferences.isReadReceiptsEnabled(context)) {
+      List<SyncMessageId> messageIds = new LinkedList<>();
+
       for (long timestamp : message.getTimestamps()) {
         Log.i(TAG, String.format("Received encrypted read receipt: (XXXXX, %d)", timestamp));
-
-        DatabaseFactory.getMmsSmsDatabase(context)
-                       .incrementReadReceiptCount(new SyncMessageId(Address.fromExternal(context, envelope.getSource()), timestamp), envelope.getTimestamp());
+        messageIds.add(new SyncMessageId(Address.fromExternal(context, envelope.getSource()), timestamp));
       }
+
+      DatabaseFactory.getMmsSmsDatabase(context).addPendingReadReceipts(messageIds, envelope.getTimestamp());
+      ApplyPendingReceiptsJob.schedule(context);
     }
   }
 
@@ -941,4 +969,13 @@ public class PushDecryptJob extends ContextJob {
       return Recipient.from(context, Address.fromExternal(context, envelope.getSource()), false);
     }
   }
+
+  public static final class Factory implements BinaryJobSerializer.JobFactory {
+    @Override
+    public @NonNull PushDecryptJob create(@NonNull JobParameters parameters, @NonNull JobInput input) {
+      return new PushDecryptJob(parameters,
+                                input.getLong(FIELD_MESSAGE_ID, -1),
+                                input.getLong(FIELD_SMS_MESSAGE_ID, -1));
+    }
+  }
 }
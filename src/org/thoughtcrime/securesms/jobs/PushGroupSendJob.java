@@ -13,6 +13,7 @@ import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.GroupReceiptDatabase.GroupReceiptInfo;
 import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.database.NoSuchMessageException;
+import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatch;
 import org.thoughtcrime.securesms.database.documents.NetworkFailure;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
 import org.thoughtcrime.securesms.jobmanager.JobParameters;
@@ -27,6 +28,9 @@ import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFormattingException;
 import org.thoughtcrime.securesms.transport.UndeliverableMessageException;
 import org.thoughtcrime.securesms.util.GroupUtil;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.thoughtcrime.securesms.util.ThreadUtil;
+import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.SignalServiceMessageSender;
 import org.whispersystems.signalservice.api.crypto.UntrustedIdentityException;
@@ -38,12 +42,17 @@ import org.whispersystems.signalservice.api.messages.shared.SharedContact;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 import org.whispersystems.signalservice.api.push.exceptions.EncapsulatedExceptions;
 import org.whispersystems.signalservice.api.push.exceptions.NetworkFailureException;
+import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
 import org.whispersystems.signalservice.api.util.InvalidNumberException;
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos.GroupContext;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
@@ -54,6 +63,11 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
 
   private static final String TAG = PushGroupSendJob.class.getSimpleName();
 
+  private static final int MAX_CHUNKS     = 4;
+  private static final int MIN_CHUNK_SIZE = 10;
+
+  private static final ExecutorService SEND_EXECUTOR = ThreadUtil.newDynamicFixedThreadPool(MAX_CHUNKS);
+
   @Inject transient SignalServiceMessageSender messageSender;
 
   private final long   messageId;
@@ -108,20 +122,22 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
       notifyMediaMessageDeliveryFailed(context, messageId);
     } catch (EncapsulatedExceptions e) {
       Log.w(TAG, e);
-      List<NetworkFailure> failures = new LinkedList<>();
+      List<NetworkFailure>      failures   = new LinkedList<>();
+      List<IdentityKeyMismatch> mismatches = new LinkedList<>();
 
       for (NetworkFailureException nfe : e.getNetworkExceptions()) {
         failures.add(new NetworkFailure(Address.fromSerialized(nfe.getE164number())));
       }
 
       for (UntrustedIdentityException uie : e.getUntrustedIdentityExceptions()) {
-        database.addMismatchedIdentity(messageId, Address.fromSerialized(uie.getE164Number()), uie.getIdentityKey());
+        mismatches.add(new IdentityKeyMismatch(Address.fromSerialized(uie.getE164Number()), uie.getIdentityKey()));
       }
 
-      database.addFailures(messageId, failures);
+      boolean sent = e.getNetworkExceptions().isEmpty() && e.getUntrustedIdentityExceptions().isEmpty();
+
+      database.markGroupSendResult(messageId, failures, mismatches, sent);
 
-      if (e.getNetworkExceptions().isEmpty() && e.getUntrustedIdentityExceptions().isEmpty()) {
-        database.markAsSent(messageId, true);
+      if (sent) {
         markAttachmentsUploaded(messageId, message.getAttachments());
 
         if (message.getExpiresIn() > 0 && !message.isExpirationUpdate()) {
@@ -131,7 +147,6 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
                             .scheduleDeletion(messageId, true, message.getExpiresIn());
         }
       } else {
-        database.markAsSentFailed(messageId);
         notifyMediaMessageDeliveryFailed(context, messageId);
       }
     }
@@ -178,7 +193,7 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
                                                                            .asGroupMessage(group)
                                                                            .build();
 
-      messageSender.sendMessage(addresses, groupDataMessage);
+      send(addresses, groupDataMessage, attachmentStreams.isEmpty());
     } else {
       SignalServiceGroup       group        = new SignalServiceGroup(GroupUtil.getDecodedId(groupId));
       SignalServiceDataMessage groupMessage = SignalServiceDataMessage.newBuilder()
@@ -193,7 +208,95 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
                                                                       .withSharedContacts(sharedContacts)
                                                                       .build();
 
-      messageSender.sendMessage(addresses, groupMessage);
+      send(addresses, groupMessage, attachmentStreams.isEmpty() && sharedContacts.isEmpty());
+    }
+  }
+
+  /**
+   * Sends a message to every address, splitting large groups into chunks that are sent
+   * concurrently. Each recipient belongs to exactly one chunk, so the messages for a recipient are
+   * still encrypted and delivered in order. Attachment streams can only be read once and every
+   * chunk sends its own sync transcript, so messages with attachments, or sent from an account with
+   * linked devices, go out as a single chunk.
+   */
+  private void send(@NonNull List<SignalServiceAddress> addresses, @NonNull SignalServiceDataMessage message, boolean canFanOut)
+      throws IOException, EncapsulatedExceptions
+  {
+    long start = System.currentTimeMillis();
+
+    if (!canFanOut || TextSecurePreferences.isMultiDevice(context) || addresses.size() < MIN_CHUNK_SIZE * 2) {
+      try {
+        messageSender.sendMessage(addresses, message);
+      } finally {
+        Log.i(TAG, "Sent message " + messageId + " to " + addresses.size() + " recipients in " + (System.currentTimeMillis() - start) + "ms");
+      }
+      return;
+    }
+
+    int                              chunkCount = Math.min(MAX_CHUNKS, addresses.size() / MIN_CHUNK_SIZE);
+    List<List<SignalServiceAddress>> chunks     = Util.partition(addresses, (addresses.size() + chunkCount - 1) / chunkCount);
+    List<Future<ChunkResult>>        futures    = new ArrayList<>(chunks.size());
+
+    for (List<SignalServiceAddress> chunk : chunks) {
+      futures.add(SEND_EXECUTOR.submit(() -> sendChunk(chunk, message)));
+    }
+
+    List<UntrustedIdentityException> untrustedIdentities = new LinkedList<>();
+    List<UnregisteredUserException>  unregisteredUsers   = new LinkedList<>();
+    List<NetworkFailureException>    networkExceptions   = new LinkedList<>();
+    IOException                      chunkFailure        = null;
+    int                              failedChunks        = 0;
+    long                             slowestChunk        = 0;
+
+    for (int i = 0; i < chunks.size(); i++) {
+      try {
+        ChunkResult result = futures.get(i).get();
+
+        slowestChunk = Math.max(slowestChunk, result.elapsed);
+
+        if (result.exceptions != null) {
+          untrustedIdentities.addAll(result.exceptions.getUntrustedIdentityExceptions());
+          unregisteredUsers.addAll(result.exceptions.getUnregisteredUserExceptions());
+          networkExceptions.addAll(result.exceptions.getNetworkExceptions());
+        }
+      } catch (InterruptedException | ExecutionException e) {
+        Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+
+        Log.w(TAG, cause);
+
+        chunkFailure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        failedChunks++;
+
+        for (SignalServiceAddress address : chunks.get(i)) {
+          networkExceptions.add(new NetworkFailureException(address.getNumber(), chunkFailure));
+        }
+      }
+    }
+
+    Log.i(TAG, "Sent message " + messageId + " to " + addresses.size() + " recipients in " + chunks.size() + " chunks in " +
+               (System.currentTimeMillis() - start) + "ms (slowest chunk " + slowestChunk + "ms, " + failedChunks + " failed)");
+
+    if (failedChunks == chunks.size()) {
+      throw chunkFailure;
+    }
+
+    if (!untrustedIdentities.isEmpty() || !unregisteredUsers.isEmpty() || !networkExceptions.isEmpty()) {
+      throw new EncapsulatedExceptions(untrustedIdentities, unregisteredUsers, networkExceptions);
+    }
+  }
+
+  private @NonNull ChunkResult sendChunk(@NonNull List<SignalServiceAddress> chunk, @NonNull SignalServiceDataMessage message)
+      throws IOException
+  {
+    long start = System.currentTimeMillis();
+
+    try {
+      messageSender.sendMessage(chunk, message);
+      return new ChunkResult(System.currentTimeMillis() - start, null);
+    } catch (EncapsulatedExceptions e) {
+      return new ChunkResult(System.currentTimeMillis() - start, e);
     }
   }
 
@@ -214,4 +317,15 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
     List<Recipient> members = DatabaseFactory.getGroupDatabase(context).getGroupMembers(groupId, false);
     return Stream.of(members).map(Recipient::getAddress).toList();
   }
+
+  private static class ChunkResult {
+
+    private final long                   elapsed;
+    private final EncapsulatedExceptions exceptions;
+
+    private ChunkResult(long elapsed, @Nullable EncapsulatedExceptions exceptions) {
+      this.elapsed    = elapsed;
+      this.exceptions = exceptions;
+    }
+  }
 }
@@ -14,6 +14,8 @@ import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 
+import java.util.Collections;
+
 public abstract class PushReceivedJob extends ContextJob {
 
   private static final String TAG = PushReceivedJob.class.getSimpleName();
@@ -54,8 +56,10 @@ public abstract class PushReceivedJob extends ContextJob {
 
   private void handleReceipt(SignalServiceEnvelope envelope) {
     Log.i(TAG, String.format("Received receipt: (XXXXX, %d)", envelope.getTimestamp()));
-    DatabaseFactory.getMmsSmsDatabase(context).incrementDeliveryReceiptCount(new SyncMessageId(Address.fromExternal(context, envelope.getSource()),
-                                                                                               envelope.getTimestamp()), System.currentTimeMillis());
+    SyncMessageId messageId = new SyncMessageId(Address.fromExternal(context, envelope.getSource()), envelope.getTimestamp());
+
+    DatabaseFactory.getMmsSmsDatabase(context).addPendingDeliveryReceipts(Collections.singletonList(messageId), System.currentTimeMillis());
+    ApplyPendingReceiptsJob.schedule(context);
   }
 
   private boolean isActiveNumber(@NonNull Recipient recipient) {
@@ -11,6 +11,7 @@ import org.thoughtcrime.securesms.contactshare.Contact;
 import org.thoughtcrime.securesms.contactshare.ContactModelMapper;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.crypto.ProfileKeyUtil;
+import org.thoughtcrime.securesms.crypto.storage.TextSecureSessionStore;
 import org.thoughtcrime.securesms.database.Address;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.events.PartProgressEvent;
@@ -71,7 +72,13 @@ public abstract class PushSendJob extends SendJob {
     }
 
     Log.i(TAG, "Starting message send attempt");
-    onPushSend();
+
+    try {
+      onPushSend();
+    } finally {
+      new TextSecureSessionStore(context).flush();
+    }
+
     Log.i(TAG, "Message send completed");
   }
 
@@ -0,0 +1,45 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.jobmanager.JobParameters;
+import org.thoughtcrime.securesms.logging.Log;
+
+/**
+ * Recomputes every thread's message count, snippet and unread count from scratch. These are kept
+ * up to date incrementally as messages change, so this is only needed when they may have drifted,
+ * like after a database upgrade.
+ */
+public class ThreadSummaryRepairJob extends ContextJob {
+
+  private static final String TAG = ThreadSummaryRepairJob.class.getSimpleName();
+
+  public ThreadSummaryRepairJob(Context context) {
+    super(context, JobParameters.newBuilder().withGroupId(ThreadSummaryRepairJob.class.getSimpleName()).create());
+  }
+
+  @Override
+  public void onAdded() {
+
+  }
+
+  @Override
+  public void onRun() {
+    long start = System.currentTimeMillis();
+
+    DatabaseFactory.getThreadDatabase(context).updateAll();
+
+    Log.i(TAG, "Repaired thread summaries in " + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  @Override
+  public boolean onShouldRetry(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Canceling thread summary repair.");
+  }
+}
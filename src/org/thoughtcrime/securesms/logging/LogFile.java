@@ -1,23 +1,32 @@
 package org.thoughtcrime.securesms.logging;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesms.util.Conversions;
 import org.thoughtcrime.securesms.util.Util;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PushbackInputStream;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -27,21 +36,59 @@ import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * An encrypted log file.
+ *
+ * A file starts with {@link #MAGIC}, followed by blocks that are each encrypted on their own as
+ * [iv][ciphertext length][ciphertext]. A block holds many entries in a binary format:
+ *
+ * - A tag record, [{@link #RECORD_TAG}][tag id][tag], the first time a tag is used in the block.
+ * - An entry record, [{@link #RECORD_ENTRY}][timestamp][level][tag id][message][stack trace].
+ *
+ * Tag ids are only valid within their block, so every block can be read on its own. Files written
+ * before blocks were introduced have no header and encrypt every line as its own entry; those are
+ * still read back.
+ */
 class LogFile {
 
+  private static final byte[] MAGIC = {'S', 'G', 'L', 'O', 'G', 0, 0, 2};
+
+  private static final byte RECORD_TAG   = 1;
+  private static final byte RECORD_ENTRY = 2;
+
+  static boolean isCurrentFormat(@NonNull File file) {
+    if (file.length() == 0) return true;
+
+    byte[] header = new byte[MAGIC.length];
+
+    try (InputStream in = new FileInputStream(file)) {
+      Util.readFully(in, header);
+      return Arrays.equals(header, MAGIC);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
   public static class Writer {
 
-    private final byte[]        ivBuffer         = new byte[16];
-    private final GrowingBuffer ciphertextBuffer = new GrowingBuffer();
+    private static final int BLOCK_SIZE = 16 * 1024;
 
-    private final byte[]               secret;
-    private final File                 file;
+    private final byte[]                ivBuffer         = new byte[16];
+    private final GrowingBuffer         ciphertextBuffer = new GrowingBuffer();
+    private final ByteArrayOutputStream blockBuffer      = new ByteArrayOutputStream(BLOCK_SIZE + 1024);
+    private final DataOutputStream      block            = new DataOutputStream(blockBuffer);
+    private final Map<String, Integer>  blockTags        = new HashMap<>();
+    private final SecureRandom          random           = new SecureRandom();
+
+    private final SecretKeySpec        secret;
     private final Cipher               cipher;
     private final BufferedOutputStream outputStream;
 
+    private long logSize;
+
     Writer(@NonNull byte[] secret, @NonNull File file) throws IOException {
-      this.secret       = secret;
-      this.file         = file;
+      this.secret       = new SecretKeySpec(secret, "AES");
+      this.logSize      = file.length();
       this.outputStream = new BufferedOutputStream(new FileOutputStream(file, true));
 
       try {
@@ -49,15 +96,60 @@ class LogFile {
       } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
         throw new AssertionError(e);
       }
+
+      if (logSize == 0) {
+        outputStream.write(MAGIC);
+        outputStream.flush();
+        logSize = MAGIC.length;
+      }
+    }
+
+    /**
+     * Adds an entry to the current block, which is written out once it's full or when
+     * {@link #flush()} is called.
+     */
+    void writeEntry(long timestamp, char level, @NonNull String tag, @NonNull String message, @Nullable String stackTrace)
+        throws IOException
+    {
+      Integer tagId = blockTags.get(tag);
+
+      if (tagId == null) {
+        tagId = blockTags.size();
+        blockTags.put(tag, tagId);
+
+        block.writeByte(RECORD_TAG);
+        block.writeInt(tagId);
+        writeString(tag);
+      }
+
+      block.writeByte(RECORD_ENTRY);
+      block.writeLong(timestamp);
+      block.writeByte(level);
+      block.writeInt(tagId);
+      writeString(message);
+      writeString(stackTrace != null ? stackTrace : "");
+
+      if (blockBuffer.size() >= BLOCK_SIZE) {
+        flush();
+      }
+    }
+
+    boolean hasPendingEntries() {
+      return blockBuffer.size() > 0;
     }
 
-    void writeEntry(@NonNull String entry) throws IOException {
-      new SecureRandom().nextBytes(ivBuffer);
+    /**
+     * Encrypts and writes out the entries in the current block.
+     */
+    void flush() throws IOException {
+      if (blockBuffer.size() == 0) return;
+
+      random.nextBytes(ivBuffer);
 
-      byte[] plaintext = entry.getBytes();
       try {
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
+        cipher.init(Cipher.ENCRYPT_MODE, secret, new IvParameterSpec(ivBuffer));
 
+        byte[] plaintext    = blockBuffer.toByteArray();
         int    cipherLength = cipher.getOutputSize(plaintext.length);
         byte[] ciphertext   = ciphertextBuffer.get(cipherLength);
         cipherLength = cipher.doFinal(plaintext, 0, plaintext.length, ciphertext);
@@ -67,25 +159,43 @@ class LogFile {
         outputStream.write(ciphertext, 0, cipherLength);
 
         outputStream.flush();
+
+        logSize += ivBuffer.length + 4 + cipherLength;
       } catch (ShortBufferException | InvalidAlgorithmParameterException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException e) {
         throw new AssertionError(e);
+      } finally {
+        blockBuffer.reset();
+        blockTags.clear();
       }
     }
 
     long getLogSize() {
-      return file.length();
+      return logSize + blockBuffer.size();
+    }
+
+    void close() throws IOException {
+      try {
+        flush();
+      } finally {
+        Util.close(outputStream);
+      }
     }
 
-    void close() {
-      Util.close(outputStream);
+    private void writeString(@NonNull String value) throws IOException {
+      byte[] bytes = value.getBytes();
+
+      block.writeInt(bytes.length);
+      block.write(bytes);
     }
   }
 
   static class Reader {
 
-    private final byte[]        ivBuffer         = new byte[16];
-    private final byte[]        intBuffer        = new byte[4];
-    private final GrowingBuffer ciphertextBuffer = new GrowingBuffer();
+    private final byte[]           ivBuffer         = new byte[16];
+    private final byte[]           intBuffer        = new byte[4];
+    private final byte[]           headerBuffer     = new byte[MAGIC.length];
+    private final GrowingBuffer    ciphertextBuffer = new GrowingBuffer();
+    private final SimpleDateFormat dateFormat       = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz");
 
     private final byte[]              secret;
     private final Cipher              cipher;
@@ -105,15 +215,90 @@ class LogFile {
     String readAll() throws IOException {
       StringBuilder builder = new StringBuilder();
 
-      String entry;
-      while ((entry = readEntry()) != null) {
-        builder.append(entry).append('\n');
+      try {
+        if (readHeader()) {
+          byte[] block;
+          while ((block = readEncrypted()) != null) {
+            appendBlock(builder, block);
+          }
+        } else {
+          byte[] entry;
+          while ((entry = readEncrypted()) != null) {
+            builder.append(new String(entry)).append('\n');
+          }
+        }
+      } finally {
+        Util.close(inputStream);
       }
 
       return builder.toString();
     }
 
-    private String readEntry() throws IOException {
+    private boolean readHeader() throws IOException {
+      inputStream.mark(headerBuffer.length);
+
+      try {
+        Util.readFully(inputStream, headerBuffer);
+        if (Arrays.equals(headerBuffer, MAGIC)) return true;
+      } catch (EOFException e) {
+        // An empty or truncated file, read as entries
+      }
+
+      inputStream.reset();
+      return false;
+    }
+
+    private void appendBlock(@NonNull StringBuilder builder, @NonNull byte[] block) throws IOException {
+      DataInputStream      in   = new DataInputStream(new ByteArrayInputStream(block));
+      Map<Integer, String> tags = new HashMap<>();
+      Date                 date = new Date();
+
+      try {
+        while (true) {
+          byte type = in.readByte();
+
+          if (type == RECORD_TAG) {
+            int tagId = in.readInt();
+            tags.put(tagId, readString(in));
+          } else if (type == RECORD_ENTRY) {
+            date.setTime(in.readLong());
+
+            char   level      = (char) in.readByte();
+            String tag        = tags.get(in.readInt());
+            String message    = readString(in);
+            String stackTrace = readString(in);
+            String prefix     = dateFormat.format(date) + ' ' + level + ' ' + tag + ": ";
+
+            builder.append(prefix).append(message).append('\n');
+
+            if (!stackTrace.isEmpty()) {
+              for (String line : stackTrace.split("\\n")) {
+                builder.append(prefix).append(line).append('\n');
+              }
+            }
+          } else {
+            throw new IOException("Unknown record type: " + type);
+          }
+        }
+      } catch (EOFException e) {
+        // End of block
+      }
+    }
+
+    private @NonNull String readString(@NonNull DataInputStream in) throws IOException {
+      int length = in.readInt();
+
+      if (length < 0 || length > in.available()) {
+        throw new IOException("Invalid string length: " + length);
+      }
+
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+
+      return new String(bytes);
+    }
+
+    private @Nullable byte[] readEncrypted() throws IOException {
       try {
         Util.readFully(inputStream, ivBuffer);
         Util.readFully(inputStream, intBuffer);
@@ -125,9 +310,7 @@ class LogFile {
 
         try {
           cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
-          byte[] plaintext = cipher.doFinal(ciphertext, 0, length);
-
-          return new String(plaintext);
+          return cipher.doFinal(ciphertext, 0, length);
         } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
           throw new AssertionError(e);
         }
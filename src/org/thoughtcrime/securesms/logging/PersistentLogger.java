@@ -8,45 +8,46 @@ import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.util.concurrent.ListenableFuture;
 import org.thoughtcrime.securesms.util.concurrent.SettableFuture;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.text.SimpleDateFormat;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class PersistentLogger extends Log.Logger {
 
   private static final String TAG     = PersistentLogger.class.getSimpleName();
 
-  private static final String LOG_V   = "V";
-  private static final String LOG_D   = "D";
-  private static final String LOG_I   = "I";
-  private static final String LOG_W   = "W";
-  private static final String LOG_E   = "E";
-  private static final String LOG_WTF = "A";
+  private static final char LOG_V   = 'V';
+  private static final char LOG_D   = 'D';
+  private static final char LOG_I   = 'I';
+  private static final char LOG_W   = 'W';
+  private static final char LOG_E   = 'E';
+  private static final char LOG_WTF = 'A';
 
-  private static final String           LOG_DIRECTORY   = "log";
-  private static final String           FILENAME_PREFIX = "log-";
-  private static final int              MAX_LOG_FILES   = 5;
-  private static final int              MAX_LOG_SIZE    = 300 * 1024;
-  private static final SimpleDateFormat DATE_FORMAT     = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz");
+  private static final String LOG_DIRECTORY        = "log";
+  private static final String FILENAME_PREFIX      = "log-";
+  private static final int    MAX_LOG_FILES        = 5;
+  private static final int    MAX_LOG_SIZE         = 300 * 1024;
+  private static final long   FLUSH_DELAY_MILLIS   = 1000;
+  private static final long   FLUSH_TIMEOUT_MILLIS = 2000;
 
-  private final Context  context;
-  private final Executor executor;
-  private final byte[]   secret;
+  private final Context                  context;
+  private final ScheduledExecutorService executor;
+  private final byte[]                   secret;
 
   private LogFile.Writer writer;
+  private boolean        flushScheduled;
 
   public PersistentLogger(Context context) {
     this.context  = context.getApplicationContext();
     this.secret   = LogSecretProvider.getOrCreateAttachmentSecret(context);
-    this.executor = Executors.newSingleThreadExecutor(r -> {
+    this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
       Thread thread = new Thread(r, "logger");
       thread.setPriority(Thread.MIN_PRIORITY);
       return thread;
@@ -92,6 +93,8 @@ public class PersistentLogger extends Log.Logger {
     executor.execute(() -> {
       StringBuilder builder = new StringBuilder();
 
+      flushWriter();
+
       try {
         File[] logs = getSortedLogFiles();
         for (int i = logs.length - 1; i >= 0; i--) {
@@ -113,6 +116,20 @@ public class PersistentLogger extends Log.Logger {
     return future;
   }
 
+  /**
+   * Writes out any buffered entries, waiting a short while for them to be written. Entries are
+   * otherwise buffered for up to {@link #FLUSH_DELAY_MILLIS}, so this should be called before the
+   * process is expected to die.
+   */
+  @AnyThread
+  public void flush() {
+    try {
+      executor.submit(this::flushWriter).get(FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException | ExecutionException | TimeoutException e) {
+      android.util.Log.w(TAG, "Failed to flush logs.", e);
+    }
+  }
+
   @WorkerThread
   private void initializeWriter() {
     try {
@@ -123,23 +140,25 @@ public class PersistentLogger extends Log.Logger {
   }
 
   @AnyThread
-  private void write(String level, String tag, String message, Throwable t) {
+  private void write(char level, String tag, String message, Throwable t) {
+    long timestamp = System.currentTimeMillis();
+
     executor.execute(() -> {
       try {
         if (writer == null) {
           return;
         }
 
+        writer.writeEntry(timestamp, level, String.valueOf(tag), String.valueOf(message), t != null ? getStackTrace(t) : null);
+
         if (writer.getLogSize() >= MAX_LOG_SIZE) {
           writer.close();
           writer = new LogFile.Writer(secret, createNewLogFile());
           trimLogFilesOverMax();
+        } else if (writer.hasPendingEntries() && !flushScheduled) {
+          flushScheduled = true;
+          executor.schedule(this::flushWriter, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
         }
-
-        for (String entry : buildLogEntries(level, tag, message, t)) {
-          writer.writeEntry(entry);
-        }
-
       } catch (NoExternalStorageException e) {
         android.util.Log.w(TAG, "Cannot persist logs.", e);
       } catch (IOException e) {
@@ -150,6 +169,23 @@ public class PersistentLogger extends Log.Logger {
     });
   }
 
+  @WorkerThread
+  private void flushWriter() {
+    flushScheduled = false;
+
+    if (writer == null) {
+      return;
+    }
+
+    try {
+      writer.flush();
+    } catch (IOException e) {
+      android.util.Log.w(TAG, "Failed to write block. Deleting all logs and starting over.");
+      deleteAllLogs();
+      initializeWriter();
+    }
+  }
+
   private void trimLogFilesOverMax() throws NoExternalStorageException {
     File[] logs = getSortedLogFiles();
     if (logs.length > MAX_LOG_FILES) {
@@ -172,7 +208,7 @@ public class PersistentLogger extends Log.Logger {
 
   private File getOrCreateActiveLogFile() throws NoExternalStorageException {
     File[] logs = getSortedLogFiles();
-    if (logs.length > 0) {
+    if (logs.length > 0 && LogFile.isCurrentFormat(logs[0])) {
       return logs[0];
     }
 
@@ -201,28 +237,9 @@ public class PersistentLogger extends Log.Logger {
     return logDir;
   }
 
-  private List<String> buildLogEntries(String level, String tag, String message, Throwable t) {
-    List<String> entries = new LinkedList<>();
-    Date         date    = new Date();
-
-    entries.add(buildEntry(level, tag, message, date));
-
-    if (t != null) {
-      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-      t.printStackTrace(new PrintStream(outputStream));
-
-      String   trace = new String(outputStream.toByteArray());
-      String[] lines = trace.split("\\n");
-
-      for (String line : lines) {
-        entries.add(buildEntry(level, tag, line, date));
-      }
-    }
-
-    return entries;
-  }
-
-  private String buildEntry(String level, String tag, String message, Date date) {
-    return DATE_FORMAT.format(date) + ' ' + level + ' ' + tag + ": " + message;
+  private static String getStackTrace(Throwable t) {
+    StringWriter stackTrace = new StringWriter();
+    t.printStackTrace(new PrintWriter(stackTrace));
+    return stackTrace.toString();
   }
 }
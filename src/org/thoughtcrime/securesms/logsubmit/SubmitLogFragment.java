@@ -58,9 +58,10 @@ import org.thoughtcrime.securesms.logsubmit.util.Scrubber;
 import org.thoughtcrime.securesms.util.Util;
 import org.thoughtcrime.securesms.util.task.ProgressDialogAsyncTask;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.lang.ref.WeakReference;
 import java.util.Iterator;
 import java.util.Locale;
@@ -213,22 +214,11 @@ public class SubmitLogFragment extends Fragment {
     new PopulateLogcatAsyncTask(getActivity()).execute();
   }
 
-  private static String grabLogcat() {
-    try {
-      final Process         process        = Runtime.getRuntime().exec("logcat -d");
-      final BufferedReader  bufferedReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-      final StringBuilder   log            = new StringBuilder();
-      final String          separator      = System.getProperty("line.separator");
-
-      String line;
-      while ((line = bufferedReader.readLine()) != null) {
-        log.append(line);
-        log.append(separator);
-      }
-      return log.toString();
-    } catch (IOException ioe) {
-      Log.w(TAG, "IOException when trying to read logcat.", ioe);
-      return null;
+  private static int scrubLogcat(@NonNull Scrubber scrubber, @NonNull StringBuilder out) throws IOException {
+    Process process = Runtime.getRuntime().exec("logcat -d");
+
+    try (Reader reader = new InputStreamReader(process.getInputStream())) {
+      return scrubber.scrub(reader, out);
     }
   }
 
@@ -344,36 +334,47 @@ public class SubmitLogFragment extends Fragment {
       Context context = weakContext.get();
       if (context == null) return null;
 
-      Scrubber scrubber = new Scrubber();
+      Scrubber      scrubber = new Scrubber();
+      StringBuilder builder  = new StringBuilder();
 
-      String newLogs;
+      String logs;
       try {
         long t1 = System.currentTimeMillis();
-        String logs = ApplicationContext.getInstance(context).getPersistentLogger().getLogs().get();
+        logs = ApplicationContext.getInstance(context).getPersistentLogger().getLogs().get();
         Log.i(TAG, "Fetch our logs : " + (System.currentTimeMillis() - t1) + " ms");
-
-        long t2 = System.currentTimeMillis();
-        newLogs = scrubber.scrub(logs);
-        Log.i(TAG, "Scrub our logs: " + (System.currentTimeMillis() - t2) + " ms");
       } catch (InterruptedException | ExecutionException e) {
         Log.w(TAG, "Failed to retrieve new logs.", e);
-        newLogs = "Failed to retrieve logs.";
+        logs = null;
       }
 
-      long t3 = System.currentTimeMillis();
-      String logcat = grabLogcat();
-      Log.i(TAG, "Fetch logcat: " + (System.currentTimeMillis() - t3) + " ms");
+      builder.append(HEADER_SYSINFO).append("\n\n")
+             .append(buildDescription(context)).append("\n\n\n")
+             .append(HEADER_LOGCAT).append("\n\n");
 
-      long t4 = System.currentTimeMillis();
-      String scrubbedLogcat = scrubber.scrub(logcat);
-      Log.i(TAG, "Scrub logcat: " + (System.currentTimeMillis() - t4) + " ms");
+      try {
+        long t2      = System.currentTimeMillis();
+        int  matches = scrubLogcat(scrubber, builder);
+        Log.i(TAG, "Fetch and scrub logcat: " + (System.currentTimeMillis() - t2) + " ms, " + matches + " matches");
+      } catch (IOException e) {
+        Log.w(TAG, "IOException when trying to read logcat.", e);
+      }
+
+      builder.append("\n\n\n")
+             .append(HEADER_LOGGER).append("\n\n");
+
+      if (logs != null) {
+        try {
+          long t3      = System.currentTimeMillis();
+          int  matches = scrubber.scrub(new StringReader(logs), builder);
+          Log.i(TAG, "Scrub our logs: " + (System.currentTimeMillis() - t3) + " ms, " + matches + " matches");
+        } catch (IOException e) {
+          throw new AssertionError(e);
+        }
+      } else {
+        builder.append("Failed to retrieve logs.");
+      }
 
-      return HEADER_SYSINFO + "\n\n" +
-             buildDescription(context) + "\n\n\n" +
-             HEADER_LOGCAT + "\n\n" +
-             scrubbedLogcat + "\n\n\n" +
-             HEADER_LOGGER + "\n\n" +
-             newLogs;
+      return builder.toString();
     }
 
     @Override
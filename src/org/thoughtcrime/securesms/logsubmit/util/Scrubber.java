@@ -17,25 +17,38 @@
 
 package org.thoughtcrime.securesms.logsubmit.util;
 
-import org.thoughtcrime.securesms.logging.Log;
+import android.support.annotation.NonNull;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * Scrub data for possibly sensitive information
+ * Scrub data for possibly sensitive information.
+ *
+ * All patterns are combined into a single alternation, so the input is only searched once. Input
+ * is read a line at a time into a fixed size buffer and written out as soon as it's scrubbed, so
+ * memory use doesn't depend on the size of the log. Matches are expected to fall within a line.
+ * A line longer than the buffer is scrubbed in pieces, and the last {@link #MAX_MATCH_LENGTH}
+ * characters of each piece are held back for the next one, so a match that spans the cut is still
+ * found as long as it's no longer than that.
  */
 public class Scrubber {
-  private static final String TAG = Scrubber.class.getSimpleName();
   private static final Pattern E164_PATTERN = Pattern.compile("\\+\\d{10,15}");
 
   private static final Pattern[] DEFAULTS = new Pattern[] {
       E164_PATTERN
   };
 
-  private final Pattern[] patterns;
+  static final int BUFFER_SIZE      = 16 * 1024;
+  static final int MAX_MATCH_LENGTH = 1024;
+
+  private final Pattern pattern;
+
   public Scrubber(Pattern... patterns) {
-    this.patterns = patterns;
+    this.pattern = combine(patterns);
   }
 
   public Scrubber() {
@@ -43,27 +56,151 @@ public class Scrubber {
   }
 
   public String scrub(final String in) {
-    Log.d(TAG, "scrubbing input");
-    String out = in;
-    for (Pattern pattern : patterns) {
-      Matcher       matcher       = pattern.matcher(out);
-      StringBuilder builder       = new StringBuilder();
-      int           lastEndingPos = 0;
+    StringBuilder out = new StringBuilder(in.length());
+
+    try {
+      scrub(new StringReader(in), out);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+
+    return out.toString();
+  }
+
+  /**
+   * Copies everything from the reader to the output, censoring any matches along the way.
+   *
+   * @return The number of matches that were censored.
+   */
+  public int scrub(@NonNull Reader in, @NonNull StringBuilder out) throws IOException {
+    char[]  buffer  = new char[BUFFER_SIZE];
+    Matcher matcher = pattern.matcher(new CharArraySequence(buffer));
+    int     length  = 0;
+    int     matches = 0;
+    boolean eof     = false;
 
-      while (matcher.find()) {
-        builder.append(out.substring(lastEndingPos, matcher.start()));
+    while (!eof || length > 0) {
+      while (!eof && length < buffer.length) {
+        int read = in.read(buffer, length, buffer.length - length);
+
+        if (read == -1) eof = true;
+        else            length += read;
+      }
 
-        final String censored = matcher.group().substring(0,1)                                      +
-                                new String(new char[matcher.group().length()-3]).replace("\0", "*") +
-                                matcher.group().substring(matcher.group().length()-2);
-        builder.append(censored);
+      int end   = eof ? length : lastLineEnd(buffer, length);
+      int limit = end;
 
-        lastEndingPos = matcher.end();
-        Log.i(TAG, "replacing a match on /" + pattern.toString() + "/ => " + censored);
+      if (end == 0) {
+        end   = length;
+        limit = length - MAX_MATCH_LENGTH;
       }
-      builder.append(out.substring(lastEndingPos));
-      out = builder.toString();
+
+      int position = 0;
+
+      matcher.region(0, end);
+
+      while (matcher.find() && matcher.start() < limit) {
+        censor(matcher, buffer, position, out);
+        position = matcher.end();
+        matches++;
+      }
+
+      int consumed = Math.max(position, limit);
+
+      out.append(buffer, position, consumed - position);
+
+      System.arraycopy(buffer, consumed, buffer, 0, length - consumed);
+      length -= consumed;
+    }
+
+    return matches;
+  }
+
+  private static void censor(@NonNull Matcher matcher, @NonNull char[] buffer, int position, @NonNull StringBuilder out) {
+    int start  = matcher.start();
+    int length = matcher.end() - start;
+
+    out.append(buffer, position, start - position);
+
+    if (length > 3) {
+      out.append(buffer[start]);
+      for (int i = 0; i < length - 3; i++) out.append('*');
+      out.append(buffer, matcher.end() - 2, 2);
+    } else {
+      for (int i = 0; i < length; i++) out.append('*');
+    }
+  }
+
+  /**
+   * Returns the end of the last complete line in the buffer, or 0 if there's no line break.
+   */
+  private static int lastLineEnd(@NonNull char[] buffer, int length) {
+    for (int i = length - 1; i >= 0; i--) {
+      if (buffer[i] == '\n') return i + 1;
+    }
+
+    return 0;
+  }
+
+  private static @NonNull Pattern combine(@NonNull Pattern[] patterns) {
+    if (patterns.length == 1) return patterns[0];
+
+    StringBuilder combined = new StringBuilder();
+
+    for (Pattern pattern : patterns) {
+      if (combined.length() > 0) combined.append('|');
+      combined.append("(?").append(getInlineFlags(pattern.flags())).append(':').append(pattern.pattern());
+
+      if ((pattern.flags() & Pattern.COMMENTS) != 0) combined.append('\n');
+
+      combined.append(')');
+    }
+
+    return Pattern.compile(combined.toString());
+  }
+
+  private static @NonNull String getInlineFlags(int flags) {
+    StringBuilder inline = new StringBuilder();
+
+    if ((flags & Pattern.CASE_INSENSITIVE) != 0) inline.append('i');
+    if ((flags & Pattern.MULTILINE)        != 0) inline.append('m');
+    if ((flags & Pattern.DOTALL)           != 0) inline.append('s');
+    if ((flags & Pattern.UNICODE_CASE)     != 0) inline.append('u');
+    if ((flags & Pattern.UNIX_LINES)       != 0) inline.append('d');
+    if ((flags & Pattern.COMMENTS)         != 0) inline.append('x');
+
+    return inline.toString();
+  }
+
+  /**
+   * A view over the read buffer, so it can be matched without copying it into a string.
+   */
+  private static final class CharArraySequence implements CharSequence {
+
+    private final char[] buffer;
+
+    private CharArraySequence(@NonNull char[] buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int length() {
+      return buffer.length;
+    }
+
+    @Override
+    public char charAt(int index) {
+      return buffer[index];
+    }
+
+    @Override
+    public @NonNull CharSequence subSequence(int start, int end) {
+      return new String(buffer, start, end - start);
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return new String(buffer);
     }
-    return out;
   }
 }
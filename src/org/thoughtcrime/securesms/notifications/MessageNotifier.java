@@ -33,6 +33,7 @@ import android.os.AsyncTask;
 import android.os.Build;
 import android.service.notification.StatusBarNotification;
 import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 import android.text.TextUtils;
@@ -50,6 +51,7 @@ import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.MmsMessageRecord;
 import org.thoughtcrime.securesms.mms.SlideDeck;
+import org.thoughtcrime.securesms.notifications.NotificationCache.MessageKey;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.service.KeyCachingService;
 import org.thoughtcrime.securesms.service.MessageRetrievalService;
@@ -59,9 +61,13 @@ import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.webrtc.CallNotificationBuilder;
 import org.whispersystems.signalservice.internal.util.Util;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
@@ -94,6 +100,7 @@ public class MessageNotifier {
   private volatile static       long               lastDesktopActivityTimestamp = -1;
   private volatile static       long               lastAudibleNotification      = -1;
   private          static final CancelableExecutor executor                     = new CancelableExecutor();
+  private          static final NotificationCache  notificationCache            = new NotificationCache();
 
   public static void setVisibleThread(long threadId) {
     visibleThread = threadId;
@@ -103,6 +110,14 @@ public class MessageNotifier {
     lastDesktopActivityTimestamp = timestamp;
   }
 
+  /**
+   * Drops the notification item kept for a message whose content changed, so that it's built
+   * again from the database the next time the notification is updated.
+   */
+  public static void invalidateNotificationItem(long messageId, boolean mms) {
+    notificationCache.invalidate(messageId, mms);
+  }
+
   public static void notifyMessageDeliveryFailed(Context context, Recipient recipient, long threadId) {
     if (visibleThread == threadId) {
       sendInThreadNotification(context, recipient);
@@ -236,52 +251,78 @@ public class MessageNotifier {
                                          boolean signal,
                                          int     reminderCount)
   {
-    Cursor telcoCursor = null;
-    Cursor pushCursor  = null;
+    List<MessageKey> unread = getUnreadMessages(context);
 
-    try {
-      telcoCursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread();
-      pushCursor  = DatabaseFactory.getPushDatabase(context).getPending();
-
-      if ((telcoCursor == null || telcoCursor.isAfterLast()) &&
-          (pushCursor == null || pushCursor.isAfterLast()))
-      {
-        cancelActiveNotifications(context);
-        updateBadge(context, 0);
-        clearReminder(context);
-        return;
-      }
+    if (unread.isEmpty() && !DatabaseFactory.getPushDatabase(context).hasPending()) {
+      notificationCache.update(unread, key -> null);
+      cancelActiveNotifications(context);
+      updateBadge(context, 0);
+      clearReminder(context);
+      return;
+    }
 
-      NotificationState notificationState = constructNotificationState(context, telcoCursor);
+    NotificationState notificationState = getNotificationState(context, unread);
 
-      if (signal && (System.currentTimeMillis() - lastAudibleNotification) < MIN_AUDIBLE_PERIOD_MILLIS) {
-        signal = false;
-      } else if (signal) {
-        lastAudibleNotification = System.currentTimeMillis();
-      }
+    if (signal && (System.currentTimeMillis() - lastAudibleNotification) < MIN_AUDIBLE_PERIOD_MILLIS) {
+      signal = false;
+    } else if (signal) {
+      lastAudibleNotification = System.currentTimeMillis();
+    }
 
-      if (notificationState.hasMultipleThreads()) {
-        if (Build.VERSION.SDK_INT >= 23) {
-          for (long threadId : notificationState.getThreads()) {
-            sendSingleThreadNotification(context, new NotificationState(notificationState.getNotificationsForThread(threadId)), false, true);
-          }
+    if (notificationState.hasMultipleThreads()) {
+      if (Build.VERSION.SDK_INT >= 23) {
+        for (long threadId : notificationState.getThreads()) {
+          sendSingleThreadNotification(context, new NotificationState(notificationState.getNotificationsForThread(threadId)), false, true);
         }
+      }
 
-        sendMultipleThreadNotification(context, notificationState, signal);
-      } else {
-        sendSingleThreadNotification(context, notificationState, signal, false);
+      sendMultipleThreadNotification(context, notificationState, signal);
+    } else {
+      sendSingleThreadNotification(context, notificationState, signal, false);
+    }
+
+    cancelOrphanedNotifications(context, notificationState);
+    updateBadge(context, notificationState.getMessageCount());
+
+    if (signal) {
+      scheduleReminder(context, reminderCount);
+    }
+  }
+
+  private static @NonNull List<MessageKey> getUnreadMessages(@NonNull Context context) {
+    List<MessageKey> unread = new LinkedList<>();
+
+    try (Cursor cursor = DatabaseFactory.getMmsSmsDatabase(context).getUnreadIds()) {
+      while (cursor != null && cursor.moveToNext()) {
+        unread.add(new MessageKey(cursor.getLong(0), MmsSmsDatabase.MMS_TRANSPORT.equals(cursor.getString(1)), cursor.getLong(2)));
       }
+    }
 
-      cancelOrphanedNotifications(context, notificationState);
-      updateBadge(context, notificationState.getMessageCount());
+    return unread;
+  }
 
-      if (signal) {
-        scheduleReminder(context, reminderCount);
+  /**
+   * Messages that were already in the last notification keep their items, so only new messages
+   * are read from the database. Everything is rebuilt the first time, and whenever the lock state
+   * changes.
+   */
+  private static @NonNull NotificationState getNotificationState(@NonNull Context context, @NonNull List<MessageKey> unread) {
+    boolean locked = KeyCachingService.isLocked(context);
+
+    if (!notificationCache.isPopulated(locked)) {
+      try (Cursor cursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread()) {
+        notificationCache.populate(constructNotificationItems(context, cursor, locked), locked);
       }
-    } finally {
-      if (telcoCursor != null) telcoCursor.close();
-      if (pushCursor != null)  pushCursor.close();
+    } else {
+      MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+
+      notificationCache.update(unread, key -> {
+        MessageRecord record = database.getMessageRecord(key.getId(), key.isMms());
+        return record != null ? constructNotificationItem(context, record, locked, new HashMap<>()) : null;
+      });
     }
+
+    return notificationCache.getState();
   }
 
   private static void sendSingleThreadNotification(@NonNull  Context context,
@@ -413,52 +454,69 @@ public class MessageNotifier {
     ringtone.play();
   }
 
-  private static NotificationState constructNotificationState(@NonNull  Context context,
-                                                              @NonNull  Cursor cursor)
+  private static @NonNull LinkedHashMap<MessageKey, NotificationItem> constructNotificationItems(@NonNull Context context,
+                                                                                               @NonNull Cursor  cursor,
+                                                                                               boolean          locked)
   {
-    NotificationState     notificationState = new NotificationState();
-    MmsSmsDatabase.Reader reader            = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor);
+    LinkedHashMap<MessageKey, NotificationItem> items            = new LinkedHashMap<>();
+    Map<Long, Recipient>                        threadRecipients = new HashMap<>();
+    MmsSmsDatabase.Reader                       reader           = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor);
 
     MessageRecord record;
 
     while ((record = reader.getNext()) != null) {
-      long         id                    = record.getId();
-      boolean      mms                   = record.isMms() || record.isMmsNotification();
-      Recipient    recipient             = record.getIndividualRecipient();
-      Recipient    conversationRecipient = record.getRecipient();
-      long         threadId              = record.getThreadId();
-      CharSequence body                  = record.getDisplayBody();
-      Recipient    threadRecipients      = null;
-      SlideDeck    slideDeck             = null;
-      long         timestamp             = record.getTimestamp();
-
-
-      if (threadId != -1) {
-        threadRecipients = DatabaseFactory.getThreadDatabase(context).getRecipientForThreadId(threadId);
-      }
+      items.put(getMessageKey(record), constructNotificationItem(context, record, locked, threadRecipients));
+    }
 
-      if (KeyCachingService.isLocked(context)) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_locked_message));
-      } else if (record.isMms() && !((MmsMessageRecord) record).getSharedContacts().isEmpty()) {
-        Contact contact = ((MmsMessageRecord) record).getSharedContacts().get(0);
-        body = ContactUtil.getStringSummary(context, contact);
-      } else if (record.isMms() && TextUtils.isEmpty(body) && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_media_message));
-        slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
-      } else if (record.isMms() && !record.isMmsNotification() && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
-        String message      = context.getString(R.string.MessageNotifier_media_message_with_text, body);
-        int    italicLength = message.length() - body.length();
-        body = SpanUtil.italic(message, italicLength);
-        slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
-      }
+    return items;
+  }
+
+  @VisibleForTesting
+  static @NonNull MessageKey getMessageKey(@NonNull MessageRecord record) {
+    return new MessageKey(record.getId(), record.isMms() || record.isMmsNotification(), record.getDateReceived());
+  }
 
-      if (threadRecipients == null || !threadRecipients.isMuted()) {
-        notificationState.addNotification(new NotificationItem(id, mms, recipient, conversationRecipient, threadRecipients, threadId, body, timestamp, slideDeck));
+  @VisibleForTesting
+  static @NonNull NotificationItem constructNotificationItem(@NonNull Context              context,
+                                                             @NonNull MessageRecord        record,
+                                                             boolean                       locked,
+                                                             @NonNull Map<Long, Recipient> threadRecipients)
+  {
+    long         id                    = record.getId();
+    boolean      mms                   = record.isMms() || record.isMmsNotification();
+    Recipient    recipient             = record.getIndividualRecipient();
+    Recipient    conversationRecipient = record.getRecipient();
+    long         threadId              = record.getThreadId();
+    CharSequence body                  = record.getDisplayBody();
+    Recipient    threadRecipient       = null;
+    SlideDeck    slideDeck             = null;
+    long         timestamp             = record.getTimestamp();
+
+    if (threadId != -1) {
+      if (threadRecipients.containsKey(threadId)) {
+        threadRecipient = threadRecipients.get(threadId);
+      } else {
+        threadRecipient = DatabaseFactory.getThreadDatabase(context).getRecipientForThreadId(threadId);
+        threadRecipients.put(threadId, threadRecipient);
       }
     }
 
-    reader.close();
-    return notificationState;
+    if (locked) {
+      body = SpanUtil.italic(context.getString(R.string.MessageNotifier_locked_message));
+    } else if (record.isMms() && !((MmsMessageRecord) record).getSharedContacts().isEmpty()) {
+      Contact contact = ((MmsMessageRecord) record).getSharedContacts().get(0);
+      body = ContactUtil.getStringSummary(context, contact);
+    } else if (record.isMms() && TextUtils.isEmpty(body) && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
+      body = SpanUtil.italic(context.getString(R.string.MessageNotifier_media_message));
+      slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
+    } else if (record.isMms() && !record.isMmsNotification() && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
+      String message      = context.getString(R.string.MessageNotifier_media_message_with_text, body);
+      int    italicLength = message.length() - body.length();
+      body = SpanUtil.italic(message, italicLength);
+      slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
+    }
+
+    return new NotificationItem(id, mms, recipient, conversationRecipient, threadRecipient, threadId, body, timestamp, slideDeck);
   }
 
   private static void updateBadge(Context context, int count) {
@@ -0,0 +1,125 @@
+package org.thoughtcrime.securesms.notifications;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The notification items for every unread message, oldest first, kept in memory between
+ * notification updates.
+ *
+ * The cache is populated from full message records once, and after that only reconciled against
+ * the list of unread message ids: items for messages that were read or deleted are dropped, and
+ * only messages that weren't seen before are loaded. A message whose content changes in place has
+ * its item invalidated, so it's loaded again too. It's repopulated when the lock state changes,
+ * since locked items don't carry the message body.
+ */
+class NotificationCache {
+
+  private LinkedHashMap<MessageKey, NotificationItem> items = new LinkedHashMap<>();
+
+  private boolean populated;
+  private boolean locked;
+
+  synchronized boolean isPopulated(boolean locked) {
+    return populated && this.locked == locked;
+  }
+
+  synchronized void populate(@NonNull LinkedHashMap<MessageKey, NotificationItem> unread, boolean locked) {
+    this.items     = new LinkedHashMap<>(unread);
+    this.populated = true;
+    this.locked    = locked;
+  }
+
+  synchronized void update(@NonNull List<MessageKey> unread, @NonNull ItemLoader loader) {
+    LinkedHashMap<MessageKey, NotificationItem> updated = new LinkedHashMap<>(unread.size());
+
+    for (MessageKey key : unread) {
+      NotificationItem item = items.get(key);
+
+      if (item == null) {
+        item = loader.load(key);
+      }
+
+      if (item != null) {
+        updated.put(key, item);
+      }
+    }
+
+    items = updated;
+  }
+
+  synchronized void invalidate(long id, boolean mms) {
+    Iterator<MessageKey> iterator = items.keySet().iterator();
+
+    while (iterator.hasNext()) {
+      MessageKey key = iterator.next();
+
+      if (key.getId() == id && key.isMms() == mms) {
+        iterator.remove();
+      }
+    }
+  }
+
+  synchronized @NonNull NotificationState getState() {
+    NotificationState state = new NotificationState();
+
+    for (Map.Entry<MessageKey, NotificationItem> entry : items.entrySet()) {
+      if (!entry.getValue().isThreadMuted()) {
+        state.addNotification(entry.getValue());
+      }
+    }
+
+    return state;
+  }
+
+  interface ItemLoader {
+    @Nullable NotificationItem load(@NonNull MessageKey key);
+  }
+
+  /**
+   * Identifies a message by row id and table. The received date is included because a row id can
+   * be reused once the newest row in a table is deleted.
+   */
+  static class MessageKey {
+
+    private final long    id;
+    private final boolean mms;
+    private final long    dateReceived;
+
+    MessageKey(long id, boolean mms, long dateReceived) {
+      this.id           = id;
+      this.mms          = mms;
+      this.dateReceived = dateReceived;
+    }
+
+    long getId() {
+      return id;
+    }
+
+    boolean isMms() {
+      return mms;
+    }
+
+    long getDateReceived() {
+      return dateReceived;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof MessageKey)) return false;
+
+      MessageKey that = (MessageKey) other;
+      return this.id == that.id && this.mms == that.mms && this.dateReceived == that.dateReceived;
+    }
+
+    @Override
+    public int hashCode() {
+      return ((int) (id ^ (id >>> 32)) * 31 + (mms ? 1 : 0)) * 31 + (int) (dateReceived ^ (dateReceived >>> 32));
+    }
+  }
+}
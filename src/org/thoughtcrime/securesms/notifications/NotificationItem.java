@@ -66,6 +66,10 @@ public class NotificationItem {
     return slideDeck;
   }
 
+  boolean isThreadMuted() {
+    return threadRecipient != null && threadRecipient.isMuted();
+  }
+
   public PendingIntent getPendingIntent(Context context) {
     Intent     intent           = new Intent(context, ConversationActivity.class);
     Recipient  notifyRecipients = threadRecipient != null ? threadRecipient : conversationRecipient;
@@ -23,14 +23,23 @@ import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.MemoryFile;
 import android.os.ParcelFileDescriptor;
+import android.os.ProxyFileDescriptorCallback;
+import android.os.storage.StorageManager;
 import android.provider.OpenableColumns;
 import android.support.annotation.NonNull;
+import android.support.annotation.RequiresApi;
+import android.system.ErrnoException;
+import android.system.OsConstants;
 import org.thoughtcrime.securesms.logging.Log;
 
 import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.database.AttachmentDatabase;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.mms.PartUriParser;
 import org.thoughtcrime.securesms.service.KeyCachingService;
@@ -52,6 +61,8 @@ public class PartProvider extends ContentProvider {
 
   private static final UriMatcher uriMatcher;
 
+  private static Handler proxyHandler;
+
   static {
     uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
     uriMatcher.addURI("org.thoughtcrime.provider.securesms", "part/*/#", SINGLE_ROW);
@@ -158,10 +169,28 @@ public class PartProvider extends ContentProvider {
   }
 
   private ParcelFileDescriptor getParcelStreamForAttachment(AttachmentId attachmentId) throws IOException {
-    long       plaintextLength = Util.getStreamLength(DatabaseFactory.getAttachmentDatabase(getContext()).getAttachmentStream(attachmentId, 0));
-    MemoryFile memoryFile      = new MemoryFile(attachmentId.toString(), Util.toIntExact(plaintextLength));
+    AttachmentDatabase database   = DatabaseFactory.getAttachmentDatabase(getContext());
+    DatabaseAttachment attachment = database.getAttachment(attachmentId);
+
+    if (attachment == null || !attachment.hasData()) {
+      throw new FileNotFoundException("No data for attachment: " + attachmentId);
+    }
 
-    InputStream  in  = DatabaseFactory.getAttachmentDatabase(getContext()).getAttachmentStream(attachmentId, 0);
+    long plaintextLength = attachment.getSize();
+
+    if (plaintextLength <= 0) {
+      try (InputStream in = database.getAttachmentStream(attachmentId, 0)) {
+        plaintextLength = Util.getStreamLength(in);
+      }
+    }
+
+    if (Build.VERSION.SDK_INT >= 26) {
+      return getProxyStreamForAttachment(attachmentId, plaintextLength);
+    }
+
+    MemoryFile memoryFile = new MemoryFile(attachmentId.toString(), Util.toIntExact(plaintextLength));
+
+    InputStream  in  = database.getAttachmentStream(attachmentId, 0);
     OutputStream out = memoryFile.getOutputStream();
 
     Util.copy(in, out);
@@ -170,4 +199,94 @@ public class PartProvider extends ContentProvider {
 
     return MemoryFileUtil.getParcelFileDescriptor(memoryFile);
   }
+
+  @RequiresApi(26)
+  private ParcelFileDescriptor getProxyStreamForAttachment(AttachmentId attachmentId, long plaintextLength) throws IOException {
+    StorageManager storageManager = getContext().getSystemService(StorageManager.class);
+
+    return storageManager.openProxyFileDescriptor(ParcelFileDescriptor.MODE_READ_ONLY,
+                                                  new AttachmentProxyCallback(DatabaseFactory.getAttachmentDatabase(getContext()), attachmentId, plaintextLength),
+                                                  getProxyHandler());
+  }
+
+  private static synchronized Handler getProxyHandler() {
+    if (proxyHandler == null) {
+      HandlerThread thread = new HandlerThread("PartProvider");
+      thread.start();
+
+      proxyHandler = new Handler(thread.getLooper());
+    }
+
+    return proxyHandler;
+  }
+
+  /**
+   * Serves reads of a proxy file descriptor by decrypting the requested range on demand.
+   * Sequential reads continue from the open stream, and a read at any other offset reopens the
+   * stream there, so only one buffer's worth of plaintext is in memory at a time.
+   */
+  @RequiresApi(26)
+  private static class AttachmentProxyCallback extends ProxyFileDescriptorCallback {
+
+    private final AttachmentDatabase database;
+    private final AttachmentId       attachmentId;
+    private final long               size;
+
+    private InputStream stream;
+    private long        position;
+
+    AttachmentProxyCallback(@NonNull AttachmentDatabase database, @NonNull AttachmentId attachmentId, long size) {
+      this.database     = database;
+      this.attachmentId = attachmentId;
+      this.size         = size;
+    }
+
+    @Override
+    public long onGetSize() {
+      return size;
+    }
+
+    @Override
+    public int onRead(long offset, int length, byte[] data) throws ErrnoException {
+      if (offset >= size) return 0;
+
+      try {
+        if (stream == null || position != offset) {
+          closeStream();
+
+          stream   = database.getAttachmentStream(attachmentId, offset);
+          position = offset;
+        }
+
+        int total = 0;
+
+        while (total < length) {
+          int read = stream.read(data, total, length - total);
+
+          if (read == -1) break;
+
+          total    += read;
+          position += read;
+        }
+
+        return total;
+      } catch (IOException e) {
+        Log.w(TAG, e);
+        closeStream();
+        throw new ErrnoException("onRead", OsConstants.EIO);
+      }
+    }
+
+    @Override
+    public void onRelease() {
+      closeStream();
+    }
+
+    private void closeStream() {
+      if (stream != null) {
+        Util.close(stream);
+        stream = null;
+      }
+    }
+  }
 }
@@ -7,6 +7,7 @@ import android.support.annotation.Nullable;
 import org.thoughtcrime.securesms.logging.Log;
 
 import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.backup.BackupManifest;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.whispersystems.libsignal.util.ByteUtil;
 
@@ -14,6 +15,9 @@ import java.io.File;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
 
 public class BackupUtil {
@@ -38,11 +42,24 @@ public class BackupUtil {
     BackupInfo latestBackup    = null;
 
     for (File backup : backups) {
+      if (isDelta(backup)) continue;
+
       long backupTimestamp = getBackupTimestamp(backup);
 
       if (latestBackup == null || (backupTimestamp != -1 && backupTimestamp > latestBackup.getTimestamp())) {
-        latestBackup = new BackupInfo(backupTimestamp, backup.length(), backup);
+        latestBackup = new BackupInfo(backupTimestamp, backup.length(), backup, Collections.<File>emptyList());
+      }
+    }
+
+    if (latestBackup != null) {
+      List<File> deltas    = getDeltas(latestBackup.getFile());
+      long       timestamp = latestBackup.getTimestamp();
+
+      if (!deltas.isEmpty()) {
+        timestamp = Math.max(timestamp, deltas.get(deltas.size() - 1).lastModified());
       }
+
+      latestBackup = new BackupInfo(timestamp, latestBackup.getSize(), latestBackup.getFile(), deltas);
     }
 
     return latestBackup;
@@ -65,7 +82,7 @@ public class BackupUtil {
   public static void deleteOldBackups() {
     try {
       File   backupDirectory = StorageUtil.getBackupDirectory();
-      File[] backups         = backupDirectory.listFiles();
+      File[] backups         = backupDirectory.listFiles(file -> !isDelta(file));
 
       if (backups != null && backups.length > 2) {
         Arrays.sort(backups, (left, right) -> {
@@ -82,6 +99,12 @@ public class BackupUtil {
         for (int i=2;i<backups.length;i++) {
           Log.i(TAG, "Deleting: " + backups[i].getAbsolutePath());
 
+          for (File delta : getDeltas(backups[i])) {
+            if (!delta.delete()) {
+              Log.w(TAG, "Delete failed: " + delta.getAbsolutePath());
+            }
+          }
+
           if (!backups[i].delete()) {
             Log.w(TAG, "Delete failed: " + backups[i].getAbsolutePath());
           }
@@ -105,6 +128,26 @@ public class BackupUtil {
     return result;
   }
 
+  /**
+   * @return The deltas written on top of a base backup, in the order they have to be restored.
+   */
+  public static @NonNull List<File> getDeltas(@NonNull File backup) {
+    List<File> deltas = new LinkedList<>();
+
+    for (int sequence=1;;sequence++) {
+      File delta = new File(backup.getParentFile(), BackupManifest.getDeltaName(backup.getName(), sequence));
+
+      if (!delta.exists()) break;
+      else                 deltas.add(delta);
+    }
+
+    return deltas;
+  }
+
+  private static boolean isDelta(@NonNull File file) {
+    return file.getName().endsWith(".delta");
+  }
+
   private static long getBackupTimestamp(File backup) {
     String   name  = backup.getName();
     String[] prefixSuffix = name.split("[.]");
@@ -135,14 +178,16 @@ public class BackupUtil {
 
   public static class BackupInfo {
 
-    private final long timestamp;
-    private final long size;
-    private final File file;
+    private final long       timestamp;
+    private final long       size;
+    private final File       file;
+    private final List<File> deltas;
 
-    BackupInfo(long timestamp, long size, File file) {
+    BackupInfo(long timestamp, long size, File file, List<File> deltas) {
       this.timestamp = timestamp;
       this.size      = size;
       this.file      = file;
+      this.deltas    = deltas;
     }
 
     public long getTimestamp() {
@@ -156,5 +201,9 @@ public class BackupUtil {
     public File getFile() {
       return file;
     }
+
+    public List<File> getDeltas() {
+      return deltas;
+    }
   }
 }
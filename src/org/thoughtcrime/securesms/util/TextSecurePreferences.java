@@ -139,6 +139,7 @@ public class TextSecurePreferences {
 
   public  static final String BACKUP_ENABLED    = "pref_backup_enabled";
   private static final String BACKUP_PASSPHRASE = "pref_backup_passphrase";
+  private static final String BACKUP_KEY_CACHE  = "pref_backup_key_cache";
   private static final String BACKUP_TIME       = "pref_backup_next_time";
   public  static final String BACKUP_NOW        = "pref_backup_create";
 
@@ -218,6 +219,14 @@ public class TextSecurePreferences {
     return getStringPreference(context, BACKUP_PASSPHRASE, null);
   }
 
+  public static void setBackupKeyCache(@NonNull Context context, @Nullable String sealedKey) {
+    setStringPreference(context, BACKUP_KEY_CACHE, sealedKey);
+  }
+
+  public static @Nullable String getBackupKeyCache(@NonNull Context context) {
+    return getStringPreference(context, BACKUP_KEY_CACHE, null);
+  }
+
   public static void setBackupEnabled(@NonNull Context context, boolean value) {
     setBooleanPreference(context, BACKUP_ENABLED, value);
   }
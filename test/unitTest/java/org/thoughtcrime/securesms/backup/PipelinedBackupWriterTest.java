@@ -0,0 +1,217 @@
+package org.thoughtcrime.securesms.backup;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.thoughtcrime.securesms.util.Conversions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PipelinedBackupWriterTest {
+
+  private static final byte[] CIPHER_KEY = new byte[32];
+  private static final byte[] MAC_KEY    = new byte[32];
+  private static final byte[] IV         = new byte[16];
+
+  static {
+    Random random = new Random(1);
+    random.nextBytes(CIPHER_KEY);
+    random.nextBytes(MAC_KEY);
+    random.nextBytes(IV);
+  }
+
+  @Test
+  public void testOutputMatchesSerialWriter() throws Exception {
+    byte[] small = randomBytes(100 * 1024);
+    byte[] large = randomBytes(3 * 1024 * 1024);
+
+    ByteArrayOutputStream serialOutput = new ByteArrayOutputStream();
+    SerialWriter          serial       = new SerialWriter(serialOutput);
+
+    ByteArrayOutputStream pipelinedOutput = new ByteArrayOutputStream();
+    PipelinedBackupWriter pipelined       = new PipelinedBackupWriter(pipelinedOutput, CIPHER_KEY, MAC_KEY, IV, 4);
+
+    for (int i=0;i<5000;i++) {
+      BackupProtos.BackupFrame frame = statementFrame(i);
+
+      serial.write(frame);
+      pipelined.write(frame);
+
+      if (i % 1000 == 0) {
+        byte[] attachment = i % 2000 == 0 ? small : large;
+
+        serial.write(attachmentFrame(i, attachment.length), new ByteArrayInputStream(attachment));
+        pipelined.write(attachmentFrame(i, attachment.length), new ByteArrayInputStream(attachment), attachment.length);
+      }
+    }
+
+    serial.write(BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+    pipelined.write(BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+    pipelined.close();
+
+    assertArrayEquals(serialOutput.toByteArray(), pipelinedOutput.toByteArray());
+  }
+
+  @Test(timeout = 10000)
+  public void testWriterThreadFailureIsRethrown() throws Exception {
+    PipelinedBackupWriter pipelined = new PipelinedBackupWriter(new ByteArrayOutputStream(), CIPHER_KEY, MAC_KEY, IV, 2);
+    InputStream           broken    = new InputStream() {
+      @Override
+      public int read() {
+        throw new IllegalStateException("broken stream");
+      }
+    };
+
+    pipelined.write(attachmentFrame(0, 2 * 1024 * 1024), broken, 2 * 1024 * 1024);
+
+    try {
+      for (int i=0;i<100000;i++) {
+        pipelined.write(statementFrame(i));
+      }
+
+      pipelined.close();
+      fail();
+    } catch (IllegalStateException e) {
+      assertEquals("broken stream", e.getMessage());
+    }
+  }
+
+  @Test
+  @Ignore("Benchmark, prints timings. Run by hand when changing the writer.")
+  public void testThroughputAgainstSerialWriter() throws Exception {
+    byte[] attachment = randomBytes(512 * 1024);
+    int    frames     = 50000;
+
+    long         serialStart = System.nanoTime();
+    SerialWriter serial      = new SerialWriter(new NullOutputStream());
+
+    for (int i=0;i<frames;i++) {
+      serial.write(statementFrame(i));
+      if (i % 500 == 0) serial.write(attachmentFrame(i, attachment.length), new ByteArrayInputStream(attachment));
+    }
+
+    long serialTime = System.nanoTime() - serialStart;
+
+    long                  pipelinedStart = System.nanoTime();
+    PipelinedBackupWriter pipelined      = new PipelinedBackupWriter(new NullOutputStream(), CIPHER_KEY, MAC_KEY, IV, Runtime.getRuntime().availableProcessors());
+
+    for (int i=0;i<frames;i++) {
+      pipelined.write(statementFrame(i));
+      if (i % 500 == 0) pipelined.write(attachmentFrame(i, attachment.length), new ByteArrayInputStream(attachment), attachment.length);
+    }
+
+    pipelined.close();
+
+    long pipelinedTime = System.nanoTime() - pipelinedStart;
+
+    System.out.println("Serial export:    " + (serialTime / 1000000) + "ms");
+    System.out.println("Pipelined export: " + (pipelinedTime / 1000000) + "ms");
+  }
+
+  private static BackupProtos.BackupFrame statementFrame(int i) {
+    return BackupProtos.BackupFrame.newBuilder()
+                                   .setStatement(BackupProtos.SqlStatement.newBuilder()
+                                                                          .setStatement("INSERT INTO sms VALUES (?,?)")
+                                                                          .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(i))
+                                                                          .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter("Message body number " + i)))
+                                   .build();
+  }
+
+  private static BackupProtos.BackupFrame attachmentFrame(int i, int length) {
+    return BackupProtos.BackupFrame.newBuilder()
+                                   .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                         .setRowId(i)
+                                                                         .setAttachmentId(i)
+                                                                         .setLength(length))
+                                   .build();
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * The single-threaded frame writer the exporter used before it was pipelined.
+   */
+  private static class SerialWriter {
+
+    private final OutputStream outputStream;
+    private final Cipher       cipher;
+    private final Mac          mac;
+    private final byte[]       iv;
+
+    private int counter;
+
+    private SerialWriter(OutputStream outputStream) throws GeneralSecurityException {
+      this.outputStream = outputStream;
+      this.cipher       = Cipher.getInstance("AES/CTR/NoPadding");
+      this.mac          = Mac.getInstance("HmacSHA256");
+      this.iv           = IV.clone();
+      this.counter      = Conversions.byteArrayToInt(iv);
+
+      mac.init(new SecretKeySpec(MAC_KEY, "HmacSHA256"));
+    }
+
+    private void write(BackupProtos.BackupFrame frame) throws GeneralSecurityException, IOException {
+      Conversions.intToByteArray(iv, 0, counter++);
+      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(CIPHER_KEY, "AES"), new IvParameterSpec(iv));
+
+      byte[] frameCiphertext = cipher.doFinal(frame.toByteArray());
+      byte[] frameMac        = mac.doFinal(frameCiphertext);
+
+      outputStream.write(Conversions.intToByteArray(frameCiphertext.length + 10));
+      outputStream.write(frameCiphertext);
+      outputStream.write(frameMac, 0, 10);
+    }
+
+    private void write(BackupProtos.BackupFrame frame, InputStream in) throws GeneralSecurityException, IOException {
+      write(frame);
+
+      Conversions.intToByteArray(iv, 0, counter++);
+      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(CIPHER_KEY, "AES"), new IvParameterSpec(iv));
+      mac.update(iv);
+
+      byte[] buffer = new byte[8192];
+      int    read;
+
+      while ((read = in.read(buffer)) != -1) {
+        byte[] ciphertext = cipher.update(buffer, 0, read);
+
+        if (ciphertext != null) {
+          outputStream.write(ciphertext);
+          mac.update(ciphertext);
+        }
+      }
+
+      byte[] remainder = cipher.doFinal();
+      outputStream.write(remainder);
+      mac.update(remainder);
+
+      outputStream.write(mac.doFinal(), 0, 10);
+    }
+  }
+
+  private static class NullOutputStream extends OutputStream {
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(byte[] b, int off, int len) {}
+  }
+}
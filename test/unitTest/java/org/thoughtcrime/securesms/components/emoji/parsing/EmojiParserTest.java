@@ -0,0 +1,274 @@
+package org.thoughtcrime.securesms.components.emoji.parsing;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EmojiParserTest extends BaseUnitTest {
+
+  private static final String[] WORDS = {"hey", "are", "you", "coming", "tonight", "?", "lol", "ok", "see", "you", "there", "!", "thanks", "so", "much", "haha", "what", "time", "\u00e9t\u00e9", "\u4f60\u597d"};
+
+  private static final String[] EMOJI = buildEmojiList();
+
+  private static String[] buildEmojiList() {
+    List<String> emoji = new LinkedList<>();
+
+    for (int codePoint = 0x1F600; codePoint <= 0x1F64F; codePoint++) emoji.add(new String(Character.toChars(codePoint)));
+    for (int codePoint = 0x1F440; codePoint <= 0x1F4FF; codePoint++) emoji.add(new String(Character.toChars(codePoint)));
+
+    emoji.add("\u263a\ufe0f");
+    emoji.add("\u2764\ufe0f");
+    emoji.add("\u2639\ufe0f");
+    emoji.add("\ud83c\uddfa\ud83c\uddf8");
+    emoji.add("\ud83c\udde9\ud83c\uddea");
+    emoji.add("\ud83d\udc68\u200d\ud83d\udc69\u200d\ud83d\udc67");
+    emoji.add("\ud83d\udc68\u200d\ud83d\udc69\u200d\ud83d\udc67\u200d\ud83d\udc66");
+    emoji.add("\ud83c\udff3\ufe0f\u200d\ud83c\udf08");
+
+    return emoji.toArray(new String[0]);
+  }
+
+  private static String[] buildInputEmoji() {
+    List<String> input = new LinkedList<>();
+
+    for (String emoji : EMOJI) input.add(emoji);
+
+    input.add("\u263a");
+    input.add("\u2764");
+    input.add("\ud83d\udc4d\ud83c\udffd");
+    input.add("\ud83d\udc4b\ud83c\udfff");
+    input.add("\ud83d\udc68\u200d\ud83d\udc69");
+    input.add("\ud83c\uddfa");
+
+    return input.toArray(new String[0]);
+  }
+
+  private static EmojiTree buildTree(Map<String, EmojiDrawInfo> drawInfos) {
+    EmojiTree tree = new EmojiTree();
+
+    for (int i = 0; i < EMOJI.length; i++) {
+      EmojiDrawInfo drawInfo = new EmojiDrawInfo(null, i);
+      drawInfos.put(EMOJI[i], drawInfo);
+      tree.add(EMOJI[i], drawInfo);
+    }
+
+    return tree;
+  }
+
+  private static List<String> buildCorpus(long seed, int messages, float emojiRatio) {
+    Random       random  = new Random(seed);
+    String[]     emoji   = buildInputEmoji();
+    List<String> corpus  = new LinkedList<>();
+
+    for (int i = 0; i < messages; i++) {
+      StringBuilder message = new StringBuilder();
+      int           tokens  = 1 + random.nextInt(30);
+
+      for (int j = 0; j < tokens; j++) {
+        if (random.nextFloat() < emojiRatio) {
+          message.append(emoji[random.nextInt(emoji.length)]);
+        } else {
+          if (message.length() > 0) message.append(' ');
+          message.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+      }
+
+      corpus.add(message.toString());
+    }
+
+    return corpus;
+  }
+
+  private static void assertSameCandidates(EmojiParser.CandidateList expected, EmojiParser.CandidateList actual) {
+    assertEquals(expected.allEmojis, actual.allEmojis);
+    assertEquals(expected.size(), actual.size());
+
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.list.get(i).getStartIndex(), actual.list.get(i).getStartIndex());
+      assertEquals(expected.list.get(i).getEndIndex(), actual.list.get(i).getEndIndex());
+      assertSame(expected.list.get(i).getDrawInfo(), actual.list.get(i).getDrawInfo());
+    }
+  }
+
+  @Test public void testFindsEmojiAndModifiers() {
+    Map<String, EmojiDrawInfo> drawInfos = new HashMap<>();
+    EmojiParser                parser    = new EmojiParser(buildTree(drawInfos));
+
+    String                    text       = "hi \ud83d\udc4d\ud83c\udffd and \u2764 \ud83d\udc68\u200d\ud83d\udc69\u200d\ud83d\udc67\u200d\ud83d\udc66";
+    EmojiParser.CandidateList candidates = parser.findCandidates(text);
+
+    assertEquals(3, candidates.size());
+    assertFalse(candidates.allEmojis);
+
+    assertEquals(3, candidates.list.get(0).getStartIndex());
+    assertEquals(7, candidates.list.get(0).getEndIndex());
+    assertSame(drawInfos.get("\ud83d\udc4d"), candidates.list.get(0).getDrawInfo());
+
+    assertEquals(12, candidates.list.get(1).getStartIndex());
+    assertEquals(13, candidates.list.get(1).getEndIndex());
+    assertSame(drawInfos.get("\u2764\ufe0f"), candidates.list.get(1).getDrawInfo());
+
+    assertEquals(14, candidates.list.get(2).getStartIndex());
+    assertEquals(text.length(), candidates.list.get(2).getEndIndex());
+    assertSame(drawInfos.get("\ud83d\udc68\u200d\ud83d\udc69\u200d\ud83d\udc67\u200d\ud83d\udc66"), candidates.list.get(2).getDrawInfo());
+  }
+
+  @Test public void testAllEmojis() {
+    EmojiParser parser = new EmojiParser(buildTree(new HashMap<>()));
+
+    assertTrue(parser.findCandidates("\ud83d\ude00\u263a\ufe0f\ud83c\uddfa\ud83c\uddf8").allEmojis);
+    assertFalse(parser.findCandidates("\ud83d\ude00 ").allEmojis);
+    assertFalse(parser.findCandidates("").allEmojis);
+    assertFalse(parser.findCandidates(null).allEmojis);
+  }
+
+  @Test public void testTreeChangesAfterParsing() {
+    EmojiTree   tree   = buildTree(new HashMap<>());
+    EmojiParser parser = new EmojiParser(tree);
+
+    assertEquals(0, parser.findCandidates("\u2615").size());
+
+    tree.add("\u2615", new EmojiDrawInfo(null, 0));
+
+    assertEquals(1, parser.findCandidates("\u2615").size());
+  }
+
+  @Test public void testMatchesPreviousParser() {
+    Map<String, EmojiDrawInfo> drawInfos = new HashMap<>();
+    EmojiParser                parser    = new EmojiParser(buildTree(drawInfos));
+    PrefixWalkParser           previous  = new PrefixWalkParser(drawInfos);
+
+    for (float emojiRatio : new float[] {0f, 0.1f, 0.5f, 1f}) {
+      for (String message : buildCorpus(31337, 500, emojiRatio)) {
+        assertSameCandidates(previous.findCandidates(message), parser.findCandidates(message));
+      }
+    }
+  }
+
+  @Ignore("Prints per-message parse times for both parsers, enable to compare them.")
+  @Test public void testParserBenchmark() {
+    Map<String, EmojiDrawInfo> drawInfos = new HashMap<>();
+    EmojiParser                parser    = new EmojiParser(buildTree(drawInfos));
+    PrefixWalkParser           previous  = new PrefixWalkParser(drawInfos);
+
+    String[] names  = {"plain text", "chat", "emoji heavy"};
+    float[]  ratios = {0f, 0.1f, 0.6f};
+
+    for (int i = 0; i < names.length; i++) {
+      List<String> corpus = buildCorpus(i, 2000, ratios[i]);
+      long         chars  = 0;
+
+      for (String message : corpus) chars += message.length();
+
+      for (int warmup = 0; warmup < 3; warmup++) {
+        timePrevious(previous, corpus);
+        time(parser, corpus);
+      }
+
+      long previousNanos = timePrevious(previous, corpus);
+      long nanos         = time(parser, corpus);
+
+      System.out.println("EmojiParser, " + names[i] + " (" + chars + " chars): " + (previousNanos / corpus.size()) + "ns/message with prefix re-walks, " +
+                         (nanos / corpus.size()) + "ns/message compiled");
+    }
+  }
+
+  private static long time(EmojiParser parser, List<String> corpus) {
+    long start = System.nanoTime();
+    for (String message : corpus) parser.findCandidates(message);
+    return System.nanoTime() - start;
+  }
+
+  private static long timePrevious(PrefixWalkParser parser, List<String> corpus) {
+    long start = System.nanoTime();
+    for (String message : corpus) parser.findCandidates(message);
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * The parser as it was before the tree was compiled: a {@link Character} keyed tree, walked from
+   * the root again for every candidate end position.
+   */
+  private static class PrefixWalkParser {
+
+    private static final char TERMINATOR = '\ufe0f';
+
+    private final Node root = new Node();
+
+    PrefixWalkParser(Map<String, EmojiDrawInfo> emoji) {
+      for (Map.Entry<String, EmojiDrawInfo> entry : emoji.entrySet()) {
+        Node node = root;
+
+        for (char c : entry.getKey().toCharArray()) {
+          if (!node.children.containsKey(c)) node.children.put(c, new Node());
+          node = node.children.get(c);
+        }
+
+        node.emoji = entry.getValue();
+      }
+    }
+
+    EmojiParser.CandidateList findCandidates(CharSequence text) {
+      List<EmojiParser.Candidate> results   = new LinkedList<>();
+      boolean                     allEmojis = text.length() > 0;
+
+      for (int i = 0; i < text.length(); i++) {
+        int best = -1;
+
+        for (int j = i + 1; j <= text.length(); j++) {
+          Node node = walk(text, i, j);
+
+          if (node == null) break;
+          if (getEmoji(text, node, j) != null) best = j;
+        }
+
+        if (best != -1) {
+          EmojiDrawInfo drawInfo = getEmoji(text, walk(text, i, best), best);
+
+          if (best + 2 <= text.length() && Fitzpatrick.fitzpatrickFromUnicode(text, best) != null) {
+            best += 2;
+          }
+
+          results.add(new EmojiParser.Candidate(i, best, drawInfo));
+          i = best - 1;
+        } else {
+          allEmojis = false;
+        }
+      }
+
+      return new EmojiParser.CandidateList(results, allEmojis);
+    }
+
+    private Node walk(CharSequence text, int start, int end) {
+      Node node = root;
+
+      for (int i = start; i < end && node != null; i++) {
+        node = node.children.get(text.charAt(i));
+      }
+
+      return node;
+    }
+
+    private EmojiDrawInfo getEmoji(CharSequence text, Node node, int end) {
+      if      (node.emoji != null)                                                               return node.emoji;
+      else if (text.charAt(end - 1) != TERMINATOR && node.children.containsKey(TERMINATOR)) return node.children.get(TERMINATOR).emoji;
+      else                                                                                       return null;
+    }
+
+    private static class Node {
+      private final Map<Character, Node> children = new HashMap<>();
+      private       EmojiDrawInfo        emoji;
+    }
+  }
+}
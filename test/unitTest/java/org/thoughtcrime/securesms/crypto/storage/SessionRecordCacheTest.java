@@ -0,0 +1,405 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionStore;
+import org.whispersystems.libsignal.state.impl.InMemorySignalProtocolStore;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionRecordCacheTest extends BaseUnitTest {
+
+  private static final long NEVER = TimeUnit.DAYS.toMillis(1);
+
+  private static SignalProtocolAddress member(int i, int deviceId) {
+    return new SignalProtocolAddress("+1555" + String.format("%07d", i), deviceId);
+  }
+
+  private static byte[] record(int i) {
+    return new byte[] {(byte) i, (byte) (i >> 8), 42};
+  }
+
+  @Test public void testStoredRecordsAreWrittenBackInOneBatch() {
+    FakePersistence    persistence = new FakePersistence();
+    SessionRecordCache cache       = new SessionRecordCache(persistence, NEVER);
+
+    for (int i = 0; i < 100; i++) {
+      cache.put(member(i, 1), record(i));
+    }
+
+    assertEquals(0, persistence.writes);
+    assertEquals(100, cache.getPendingCount());
+
+    cache.flush();
+
+    assertEquals(1, persistence.writes);
+    assertEquals(100, persistence.rows.size());
+    assertEquals(0, cache.getPendingCount());
+
+    for (int i = 0; i < 100; i++) {
+      assertArrayEquals(record(i), cache.get(member(i, 1)));
+    }
+
+    assertEquals(0, persistence.loads);
+  }
+
+  @Test public void testPendingRecordsAreNotReadStaleAfterEviction() {
+    FakePersistence    persistence = new FakePersistence();
+    SessionRecordCache cache       = new SessionRecordCache(persistence, NEVER);
+
+    for (int i = 0; i < 2000; i++) {
+      persistence.rows.put(member(i, 1), record(0));
+      cache.put(member(i, 1), record(i));
+    }
+
+    for (int i = 0; i < 2000; i++) {
+      assertArrayEquals(record(i), cache.get(member(i, 1)));
+    }
+
+    assertEquals(0, persistence.loads);
+
+    cache.flush();
+
+    for (int i = 0; i < 2000; i++) {
+      assertArrayEquals(record(i), cache.get(member(i, 1)));
+    }
+  }
+
+  @Test public void testMissingRecordsAreRemembered() {
+    FakePersistence    persistence = new FakePersistence();
+    SessionRecordCache cache       = new SessionRecordCache(persistence, NEVER);
+
+    assertNull(cache.get(member(1, 1)));
+    assertNull(cache.get(member(1, 1)));
+    assertEquals(1, persistence.loads);
+  }
+
+  @Test public void testDeletesAreWrittenBack() {
+    FakePersistence        persistence = new FakePersistence();
+    SessionRecordCache     cache       = new SessionRecordCache(persistence, NEVER);
+    TextSecureSessionStore store       = new TextSecureSessionStore(cache);
+    String                 name        = member(1, 1).getName();
+
+    for (int deviceId = 1; deviceId <= 3; deviceId++) {
+      store.storeSession(new SignalProtocolAddress(name, deviceId), new SessionRecord());
+    }
+
+    store.storeSession(member(2, 1), new SessionRecord());
+
+    assertEquals(Arrays.asList(2, 3), store.getSubDeviceSessions(name));
+
+    store.deleteAllSessions(name);
+
+    assertTrue(store.getSubDeviceSessions(name).isEmpty());
+    assertNull(cache.get(new SignalProtocolAddress(name, 1)));
+    assertEquals(1, persistence.rows.size());
+
+    store.deleteSession(member(2, 1));
+
+    assertTrue(persistence.rows.isEmpty());
+  }
+
+  @Test public void testArchiveSiblingSessions() throws Exception {
+    FakePersistence        persistence = new FakePersistence();
+    TextSecureSessionStore store       = new TextSecureSessionStore(new SessionRecordCache(persistence, NEVER));
+    ProtocolStore          local       = new ProtocolStore(store);
+
+    initializeSession(local, member(1, 1));
+    initializeSession(local, member(1, 2));
+
+    assertTrue(store.containsSession(member(1, 1)));
+    assertTrue(store.containsSession(member(1, 2)));
+
+    store.archiveSiblingSessions(member(1, 1));
+
+    assertTrue(store.containsSession(member(1, 1)));
+    assertFalse(store.containsSession(member(1, 2)));
+    assertEquals(1, store.loadSession(member(1, 2)).getPreviousSessionStates().size());
+  }
+
+  @Test public void testGroupEncryptionWritesOncePerMessage() throws Exception {
+    int                         members     = 100;
+    int                         rounds      = 20;
+    List<SignalProtocolAddress> addresses   = new LinkedList<>();
+    FakePersistence             legacyRows  = new FakePersistence();
+    FakePersistence             cachedRows  = new FakePersistence();
+    TextSecureSessionStore      cachedStore = new TextSecureSessionStore(new SessionRecordCache(cachedRows, NEVER));
+    ProtocolStore               legacy      = new ProtocolStore(new LockedSessionStore(legacyRows));
+    ProtocolStore               cached      = new ProtocolStore(cachedStore);
+
+    for (int i = 0; i < members; i++) {
+      addresses.add(member(i, 1));
+      initializeSession(legacy, member(i, 1));
+      initializeSession(cached, member(i, 1));
+    }
+
+    cachedStore.flush();
+
+    legacyRows.reset();
+    cachedRows.reset();
+
+    byte[] message = new byte[160];
+
+    for (int round = 0; round < rounds; round++) {
+      for (SignalProtocolAddress address : addresses) {
+        new SessionCipher(legacy, address).encrypt(message);
+      }
+
+      for (SignalProtocolAddress address : addresses) {
+        new SessionCipher(cached, address).encrypt(message);
+      }
+
+      cachedStore.flush();
+    }
+
+    assertEquals(rounds * members, legacyRows.rowWrites);
+    assertEquals(rounds, cachedRows.writes);
+    assertEquals(0, cachedRows.loads);
+
+    for (SignalProtocolAddress address : addresses) {
+      assertArrayEquals(cachedStore.loadSession(address).serialize(), cachedRows.rows.get(address));
+    }
+  }
+
+  @Ignore("Timing comparison only, the write counts are asserted by testGroupEncryptionWritesOncePerMessage.")
+  @Test public void testGroupEncryptionBenchmark() throws Exception {
+    int                         members     = 100;
+    int                         rounds      = 20;
+    List<SignalProtocolAddress> addresses   = new LinkedList<>();
+    FakePersistence             legacyRows  = new FakePersistence();
+    FakePersistence             cachedRows  = new FakePersistence();
+    TextSecureSessionStore      cachedStore = new TextSecureSessionStore(new SessionRecordCache(cachedRows, NEVER));
+    ProtocolStore               legacy      = new ProtocolStore(new LockedSessionStore(legacyRows));
+    ProtocolStore               cached      = new ProtocolStore(cachedStore);
+
+    for (int i = 0; i < members; i++) {
+      addresses.add(member(i, 1));
+      initializeSession(legacy, member(i, 1));
+      initializeSession(cached, member(i, 1));
+    }
+
+    cachedStore.flush();
+
+    legacyRows.reset();
+    cachedRows.reset();
+
+    byte[] message     = new byte[160];
+    long   legacyNanos = 0;
+    long   cachedNanos = 0;
+
+    for (int round = 0; round < rounds; round++) {
+      long start = System.nanoTime();
+
+      for (SignalProtocolAddress address : addresses) {
+        new SessionCipher(legacy, address).encrypt(message);
+      }
+
+      legacyNanos += System.nanoTime() - start;
+      start        = System.nanoTime();
+
+      for (SignalProtocolAddress address : addresses) {
+        new SessionCipher(cached, address).encrypt(message);
+      }
+
+      cachedStore.flush();
+      cachedNanos += System.nanoTime() - start;
+    }
+
+    System.out.println("Encrypting to " + members + " members, current store: " + TimeUnit.NANOSECONDS.toMicros(legacyNanos / rounds) + "us/message, " +
+                       (legacyRows.loads + legacyRows.rowWrites) / rounds + " queries/message");
+    System.out.println("Encrypting to " + members + " members, cached store: " + TimeUnit.NANOSECONDS.toMicros(cachedNanos / rounds) + "us/message, " +
+                       (cachedRows.loads + cachedRows.writes) / rounds + " queries/message");
+  }
+
+  private static void initializeSession(@NonNull ProtocolStore store, @NonNull SignalProtocolAddress address) throws Exception {
+    IdentityKeyPair identity     = KeyHelper.generateIdentityKeyPair();
+    ECKeyPair       preKey       = Curve.generateKeyPair();
+    ECKeyPair       signedPreKey = Curve.generateKeyPair();
+    byte[]          signature    = Curve.calculateSignature(identity.getPrivateKey(), signedPreKey.getPublicKey().serialize());
+
+    new SessionBuilder(store, address).process(new PreKeyBundle(1, address.getDeviceId(), 1, preKey.getPublicKey(),
+                                                                1, signedPreKey.getPublicKey(), signature,
+                                                                identity.getPublicKey()));
+  }
+
+  /**
+   * The store as it was before it had a cache: every call is a database round trip, behind a
+   * single lock.
+   */
+  private static class LockedSessionStore implements SessionStore {
+
+    private static final Object LOCK = new Object();
+
+    private final FakePersistence persistence;
+
+    private LockedSessionStore(@NonNull FakePersistence persistence) {
+      this.persistence = persistence;
+    }
+
+    @Override
+    public SessionRecord loadSession(SignalProtocolAddress address) {
+      synchronized (LOCK) {
+        try {
+          byte[] record = persistence.load(address);
+          return record != null ? new SessionRecord(record) : new SessionRecord();
+        } catch (IOException e) {
+          throw new AssertionError(e);
+        }
+      }
+    }
+
+    @Override
+    public List<Integer> getSubDeviceSessions(String name) {
+      synchronized (LOCK) {
+        return persistence.getDevices(name);
+      }
+    }
+
+    @Override
+    public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+      synchronized (LOCK) {
+        Map<SignalProtocolAddress, byte[]> records = new HashMap<>();
+        records.put(address, record.serialize());
+        persistence.write(records);
+      }
+    }
+
+    @Override
+    public boolean containsSession(SignalProtocolAddress address) {
+      synchronized (LOCK) {
+        return persistence.load(address) != null;
+      }
+    }
+
+    @Override
+    public void deleteSession(SignalProtocolAddress address) {
+      synchronized (LOCK) {
+        Map<SignalProtocolAddress, byte[]> records = new HashMap<>();
+        records.put(address, null);
+        persistence.write(records);
+      }
+    }
+
+    @Override
+    public void deleteAllSessions(String name) {
+      for (int deviceId : getSubDeviceSessions(name)) {
+        deleteSession(new SignalProtocolAddress(name, deviceId));
+      }
+    }
+  }
+
+  private static class ProtocolStore extends InMemorySignalProtocolStore {
+
+    private final SessionStore sessionStore;
+
+    private ProtocolStore(@NonNull SessionStore sessionStore) {
+      super(KeyHelper.generateIdentityKeyPair(), KeyHelper.generateRegistrationId(false));
+      this.sessionStore = sessionStore;
+    }
+
+    @Override
+    public SessionRecord loadSession(SignalProtocolAddress address) {
+      return sessionStore.loadSession(address);
+    }
+
+    @Override
+    public List<Integer> getSubDeviceSessions(String name) {
+      return sessionStore.getSubDeviceSessions(name);
+    }
+
+    @Override
+    public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+      sessionStore.storeSession(address, record);
+    }
+
+    @Override
+    public boolean containsSession(SignalProtocolAddress address) {
+      return sessionStore.containsSession(address);
+    }
+
+    @Override
+    public void deleteSession(SignalProtocolAddress address) {
+      sessionStore.deleteSession(address);
+    }
+
+    @Override
+    public void deleteAllSessions(String name) {
+      sessionStore.deleteAllSessions(name);
+    }
+  }
+
+  private static class FakePersistence implements SessionRecordCache.Persistence {
+
+    private final Map<SignalProtocolAddress, byte[]> rows = new HashMap<>();
+
+    private int loads;
+    private int writes;
+    private int rowWrites;
+
+    @Override
+    public synchronized @Nullable byte[] load(@NonNull SignalProtocolAddress address) {
+      loads++;
+      return rows.get(address);
+    }
+
+    @Override
+    public synchronized void write(@NonNull Map<SignalProtocolAddress, byte[]> records) {
+      writes++;
+      rowWrites += records.size();
+
+      for (Map.Entry<SignalProtocolAddress, byte[]> entry : records.entrySet()) {
+        if (entry.getValue() == null) rows.remove(entry.getKey());
+        else                          rows.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    @Override
+    public synchronized @NonNull List<Integer> getDevices(@NonNull String name) {
+      List<Integer> devices = new LinkedList<>();
+
+      for (SignalProtocolAddress address : rows.keySet()) {
+        if (address.getName().equals(name)) devices.add(address.getDeviceId());
+      }
+
+      Collections.sort(devices);
+      return devices;
+    }
+
+    @Override
+    public synchronized @NonNull List<SignalProtocolAddress> getAll() {
+      return new LinkedList<>(rows.keySet());
+    }
+
+    private synchronized void reset() {
+      loads     = 0;
+      writes    = 0;
+      rowWrites = 0;
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AttachmentSummaryTest extends BaseUnitTest {
+
+  private static final char   ESCAPE = 27;
+  private static final char   RECORD = 30;
+  private static final char   FIELD  = 31;
+  private static final String NULL   = "" + ESCAPE + '0';
+
+  private static String record(String... fields) {
+    StringBuilder builder = new StringBuilder();
+
+    for (int i = 0; i < fields.length; i++) {
+      if (i > 0) builder.append(FIELD);
+      builder.append(fields[i]);
+    }
+
+    return builder.toString();
+  }
+
+  @Test public void testDecodeNoAttachments() {
+    assertTrue(AttachmentSummary.decode(null).isEmpty());
+    assertTrue(AttachmentSummary.decode("").isEmpty());
+  }
+
+  @Test public void testDecodeRecords() {
+    String summary = record("1", "5", "7", "1", "0", "image/jpeg", "0", "100", "photo.jpg", NULL, "key", "relay", NULL, "0", "640", "480", "0") +
+                     RECORD +
+                     record("2", "6", "7", "0", "1", "audio/aac", "2", "0", NULL, "loc", NULL, NULL, "preflight", "1", "0", "0", "1");
+
+    List<DatabaseAttachment> attachments = AttachmentSummary.decode(summary);
+
+    assertEquals(2, attachments.size());
+
+    DatabaseAttachment first = attachments.get(0);
+    assertEquals(1, first.getAttachmentId().getRowId());
+    assertEquals(5, first.getAttachmentId().getUniqueId());
+    assertEquals(7, first.getMmsId());
+    assertTrue(first.hasData());
+    assertFalse(first.hasThumbnail());
+    assertEquals("image/jpeg", first.getContentType());
+    assertEquals(100, first.getSize());
+    assertEquals("photo.jpg", first.getFileName());
+    assertNull(first.getLocation());
+    assertEquals("key", first.getKey());
+    assertEquals("relay", first.getRelay());
+    assertNull(first.getFastPreflightId());
+    assertEquals(640, first.getWidth());
+    assertEquals(480, first.getHeight());
+    assertFalse(first.isQuote());
+
+    DatabaseAttachment second = attachments.get(1);
+    assertEquals(2, second.getAttachmentId().getRowId());
+    assertFalse(second.hasData());
+    assertTrue(second.hasThumbnail());
+    assertEquals(2, second.getTransferState());
+    assertNull(second.getFileName());
+    assertEquals("loc", second.getLocation());
+    assertEquals("preflight", second.getFastPreflightId());
+    assertTrue(second.isVoiceNote());
+    assertTrue(second.isQuote());
+  }
+
+  @Test public void testDecodeEscapedText() {
+    String fileName = "a" + ESCAPE + 'f' + "b" + ESCAPE + 'r' + "c" + ESCAPE + ESCAPE + '0';
+    String summary  = record("1", "5", "7", "1", "0", "image/jpeg", "0", "100", fileName, NULL, NULL, NULL, NULL, "0", "0", "0", "0");
+
+    List<DatabaseAttachment> attachments = AttachmentSummary.decode(summary);
+
+    assertEquals(1, attachments.size());
+    assertEquals("a" + FIELD + "b" + RECORD + "c" + ESCAPE + '0', attachments.get(0).getFileName());
+  }
+}
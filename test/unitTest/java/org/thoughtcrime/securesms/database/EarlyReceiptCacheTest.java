@@ -0,0 +1,240 @@
+package org.thoughtcrime.securesms.database;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EarlyReceiptCacheTest extends BaseUnitTest {
+
+  private static final long UNBOUNDED = Long.MAX_VALUE;
+
+  private static Address member(int i) {
+    return Address.fromSerialized("+1555" + String.format("%07d", i));
+  }
+
+  @Test public void testRemoveMissing() {
+    EarlyReceiptCache cache = new EarlyReceiptCache(UNBOUNDED, null);
+
+    assertTrue(cache.remove(1000).isEmpty());
+  }
+
+  @Test public void testIncrementAndRemove() {
+    EarlyReceiptCache cache = new EarlyReceiptCache(UNBOUNDED, null);
+
+    cache.increment(1000, member(1));
+    cache.increment(1000, member(1), 2);
+    cache.increment(1000, member(2));
+    cache.increment(2000, member(1));
+
+    Map<Address, Long> receipts = cache.remove(1000);
+
+    assertEquals(2, receipts.size());
+    assertEquals(3, (long) receipts.get(member(1)));
+    assertEquals(1, (long) receipts.get(member(2)));
+    assertTrue(cache.remove(1000).isEmpty());
+    assertEquals(1, cache.size());
+  }
+
+  @Test public void testLargeGroupBurst() {
+    EarlyReceiptCache cache = new EarlyReceiptCache(UNBOUNDED, null);
+
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < 1000; i++) {
+        cache.increment(1000, member(i));
+      }
+    }
+
+    Map<Address, Long> receipts = cache.remove(1000);
+
+    assertEquals(1000, receipts.size());
+
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(2, (long) receipts.get(member(i)));
+    }
+
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getEstimatedBytes());
+  }
+
+  @Test public void testConcurrentBurstsForManyMessages() throws Exception {
+    final EarlyReceiptCache cache    = new EarlyReceiptCache(UNBOUNDED, null);
+    final ExecutorService   executor = Executors.newFixedThreadPool(8);
+    final CountDownLatch    start    = new CountDownLatch(1);
+    final List<Future<?>>   futures  = new LinkedList<>();
+
+    for (int thread = 0; thread < 8; thread++) {
+      final int offset = thread;
+
+      futures.add(executor.submit(() -> {
+        start.await();
+
+        for (int message = 0; message < 200; message++) {
+          for (int i = offset; i < 400; i += 8) {
+            cache.increment(message, member(i));
+          }
+        }
+
+        return null;
+      }));
+    }
+
+    start.countDown();
+
+    for (Future<?> future : futures) {
+      future.get();
+    }
+
+    executor.shutdown();
+
+    assertEquals(200, cache.size());
+
+    for (int message = 0; message < 200; message++) {
+      Map<Address, Long> receipts = cache.remove(message);
+
+      assertEquals(400, receipts.size());
+
+      for (long count : receipts.values()) {
+        assertEquals(1, count);
+      }
+    }
+
+    assertEquals(0, cache.size());
+  }
+
+  @Test public void testEvictsLeastRecentlyUsedWhenFull() {
+    EarlyReceiptCache probe = new EarlyReceiptCache(UNBOUNDED, null);
+    probe.increment(0, member(0));
+
+    long              entryBytes = probe.getEstimatedBytes();
+    EarlyReceiptCache cache      = new EarlyReceiptCache(entryBytes * 4, null);
+
+    for (int i = 0; i < 1000; i++) {
+      cache.increment(i, member(0));
+      cache.increment(0, member(0));
+    }
+
+    assertTrue(cache.getEstimatedBytes() <= entryBytes * 4);
+    assertTrue(cache.size() <= 4);
+    assertFalse(cache.remove(0).isEmpty());
+    assertFalse(cache.remove(999).isEmpty());
+  }
+
+  @Test public void testLargeEntryIsKeptWhenItExceedsTheBound() {
+    EarlyReceiptCache cache = new EarlyReceiptCache(1024, null);
+
+    for (int i = 0; i < 500; i++) {
+      cache.increment(1000, member(i));
+    }
+
+    assertEquals(500, cache.remove(1000).size());
+  }
+
+  @Test public void testPersistenceRestoresAfterRestart() {
+    FakePersistence   persistence = new FakePersistence();
+    EarlyReceiptCache cache       = new EarlyReceiptCache(UNBOUNDED, persistence);
+
+    for (int i = 0; i < 300; i++) {
+      cache.increment(1000, member(i));
+    }
+
+    cache.increment(2000, member(1), 5);
+    cache.increment(3000, member(1));
+    cache.remove(3000);
+
+    EarlyReceiptCache restarted = new EarlyReceiptCache(UNBOUNDED, persistence);
+
+    assertEquals(300, restarted.remove(1000).size());
+    assertEquals(5, (long) restarted.remove(2000).get(member(1)));
+    assertTrue(restarted.remove(3000).isEmpty());
+    assertTrue(persistence.rows.isEmpty());
+  }
+
+  @Test public void testEvictionIsPersisted() {
+    FakePersistence   persistence = new FakePersistence();
+    EarlyReceiptCache probe       = new EarlyReceiptCache(UNBOUNDED, null);
+    probe.increment(0, member(0));
+
+    EarlyReceiptCache cache = new EarlyReceiptCache(probe.getEstimatedBytes() * 2, persistence);
+
+    for (int i = 0; i < 100; i++) {
+      cache.increment(i, member(0));
+    }
+
+    assertEquals(cache.size(), persistence.rows.size());
+  }
+
+  @Test public void testPersistenceIsNotCalledUnderCacheLocks() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    final EarlyReceiptCache[] cache       = new EarlyReceiptCache[1];
+    final FakePersistence     persistence = new FakePersistence() {
+      @Override
+      public void update(long timestamp, @NonNull Address origin, long count) {
+        super.update(timestamp, origin, count);
+
+        if (origin.equals(member(1))) {
+          try {
+            executor.submit(() -> cache[0].increment(timestamp, member(2))).get(5, TimeUnit.SECONDS);
+            executor.submit(() -> cache[0].remove(timestamp + 1)).get(5, TimeUnit.SECONDS);
+          } catch (Exception e) {
+            throw new AssertionError(e);
+          }
+        }
+      }
+    };
+
+    cache[0] = new EarlyReceiptCache(UNBOUNDED, persistence);
+    cache[0].increment(1000, member(1));
+
+    executor.shutdown();
+
+    assertEquals(2, cache[0].remove(1000).size());
+    assertTrue(persistence.rows.isEmpty());
+  }
+
+  private static class FakePersistence implements EarlyReceiptCache.Persistence {
+
+    private final Map<Long, Map<Address, Long>> rows = new HashMap<>();
+
+    @Override
+    public synchronized void restore(@NonNull EarlyReceiptCache.Restorer restorer) {
+      for (Map.Entry<Long, Map<Address, Long>> row : rows.entrySet()) {
+        for (Map.Entry<Address, Long> receipt : row.getValue().entrySet()) {
+          restorer.restore(row.getKey(), receipt.getKey(), receipt.getValue());
+        }
+      }
+    }
+
+    @Override
+    public synchronized void update(long timestamp, @NonNull Address origin, long count) {
+      Map<Address, Long> receipts = rows.get(timestamp);
+
+      if (receipts == null) {
+        receipts = new HashMap<>();
+        rows.put(timestamp, receipts);
+      }
+
+      receipts.put(origin, count);
+    }
+
+    @Override
+    public synchronized void remove(long timestamp) {
+      rows.remove(timestamp);
+    }
+  }
+}
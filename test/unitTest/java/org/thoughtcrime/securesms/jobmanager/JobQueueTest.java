@@ -0,0 +1,217 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.jobmanager.requirements.SimpleRequirement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class JobQueueTest {
+
+  @Test
+  public void testUngroupedJobsAreFifo() {
+    JobQueue queue = new JobQueue();
+    TestJob  first = new TestJob(null, null);
+    TestJob  second = new TestJob(null, null);
+
+    queue.add(first);
+    queue.add(second);
+
+    assertSame(first, queue.getNext());
+    assertSame(second, queue.getNext());
+  }
+
+  @Test
+  public void testGroupedJobsRunSerially() {
+    JobQueue queue      = new JobQueue();
+    TestJob  groupOne   = new TestJob("group", null);
+    TestJob  groupTwo   = new TestJob("group", null);
+    TestJob  ungrouped  = new TestJob(null, null);
+
+    queue.add(groupOne);
+    queue.add(groupTwo);
+    queue.add(ungrouped);
+
+    assertSame(groupOne, queue.getNext());
+    assertSame(ungrouped, queue.getNext());
+
+    queue.setGroupIdAvailable("group");
+
+    assertSame(groupTwo, queue.getNext());
+  }
+
+  @Test
+  public void testBlockedJobRunsAfterRequirementChange() {
+    JobQueue        queue       = new JobQueue();
+    TestRequirement requirement = new TestRequirement(false);
+    TestJob         blocked     = new TestJob(null, requirement);
+    TestJob         ready       = new TestJob(null, null);
+
+    queue.add(blocked);
+    queue.add(ready);
+
+    assertSame(ready, queue.getNext());
+
+    requirement.present = true;
+    queue.onRequirementStatusChanged();
+
+    assertSame(blocked, queue.getNext());
+  }
+
+  @Test
+  public void testBlockedGroupHeadHoldsBackGroup() {
+    JobQueue        queue       = new JobQueue();
+    TestRequirement requirement = new TestRequirement(false);
+    TestJob         groupOne    = new TestJob("group", requirement);
+    TestJob         groupTwo    = new TestJob("group", null);
+    TestJob         ungrouped   = new TestJob(null, null);
+    TestJob         later       = new TestJob(null, null);
+
+    queue.add(groupOne);
+    queue.add(groupTwo);
+    queue.add(ungrouped);
+
+    assertSame(ungrouped, queue.getNext());
+
+    queue.add(later);
+
+    assertSame(later, queue.getNext());
+
+    requirement.present = true;
+    queue.onRequirementStatusChanged();
+
+    assertSame(groupOne, queue.getNext());
+    queue.setGroupIdAvailable("group");
+    assertSame(groupTwo, queue.getNext());
+  }
+
+  @Test
+  public void testPushedJobRunsFirst() {
+    JobQueue queue    = new JobQueue();
+    TestJob  grouped  = new TestJob("group", null);
+    TestJob  waiting  = new TestJob("group", null);
+    TestJob  other    = new TestJob(null, null);
+
+    queue.add(grouped);
+    queue.add(waiting);
+
+    assertSame(grouped, queue.getNext());
+
+    queue.add(other);
+    queue.push(grouped);
+
+    assertSame(grouped, queue.getNext());
+    assertSame(other, queue.getNext());
+  }
+
+  @Test
+  public void testReplacedJobKeepsGroup() {
+    JobQueue queue     = new JobQueue();
+    TestJob  header    = new TestJob("group", null);
+    TestJob  waiting   = new TestJob("group", null);
+    TestJob  loaded    = new TestJob("group", new TestRequirement(false));
+    TestJob  ungrouped = new TestJob(null, null);
+
+    queue.add(header);
+    queue.add(waiting);
+
+    assertSame(header, queue.getNext());
+
+    queue.replace(header, loaded);
+    queue.push(loaded);
+    queue.add(ungrouped);
+
+    assertSame(ungrouped, queue.getNext());
+
+    ((TestRequirement)loaded.getRequirements().get(0)).present = true;
+    queue.onRequirementStatusChanged();
+
+    assertSame(loaded, queue.getNext());
+    queue.setGroupIdAvailable("group");
+    assertSame(waiting, queue.getNext());
+  }
+
+  @Test
+  public void testDispatchCostDoesNotGrowWithBlockedJobs() {
+    assertEquals(5, countEvaluationsPerDispatch(10, 5));
+    assertEquals(5, countEvaluationsPerDispatch(100_000, 5));
+  }
+
+  /**
+   * Queues up blocked jobs, half of them at the head of a group with another job behind them, and
+   * then counts how many times requirements are checked while handing out the ready ones.
+   */
+  private static int countEvaluationsPerDispatch(int blockedCount, int readyCount) {
+    JobQueue        queue   = new JobQueue();
+    TestRequirement blocked = new TestRequirement(false);
+    TestRequirement ready   = new TestRequirement(true);
+
+    for (int i = 0; i < blockedCount; i++) {
+      if (i % 2 == 0) {
+        queue.add(new TestJob(null, blocked));
+      } else {
+        queue.add(new TestJob("group-" + i, blocked));
+        queue.add(new TestJob("group-" + i, null));
+      }
+    }
+
+    for (int i = 0; i < readyCount; i++) {
+      queue.add(new TestJob(null, ready));
+    }
+
+    blocked.evaluations = 0;
+    ready.evaluations   = 0;
+
+    for (int i = 0; i < readyCount; i++) {
+      assertEquals(ready, queue.getNext().getRequirements().get(0));
+    }
+
+    return blocked.evaluations + ready.evaluations;
+  }
+
+  private static class TestRequirement extends SimpleRequirement {
+    private volatile boolean present;
+    private          int     evaluations;
+
+    private TestRequirement(boolean present) {
+      this.present = present;
+    }
+
+    @Override
+    public boolean isPresent() {
+      evaluations++;
+      return present;
+    }
+  }
+
+  private static class TestJob extends Job {
+
+    private TestJob(String groupId, TestRequirement requirement) {
+      super(buildParameters(groupId, requirement));
+    }
+
+    private static JobParameters buildParameters(String groupId, TestRequirement requirement) {
+      JobParameters.Builder builder = JobParameters.newBuilder().withGroupId(groupId);
+
+      if (requirement != null) {
+        builder.withRequirement(requirement);
+      }
+
+      return builder.create();
+    }
+
+    @Override
+    public void onAdded() {}
+
+    @Override
+    protected void onRun() {}
+
+    @Override
+    public boolean onShouldRetry(Exception exception) {
+      return false;
+    }
+
+    @Override
+    public void onCanceled() {}
+  }
+}
@@ -0,0 +1,227 @@
+package org.thoughtcrime.securesms.jobmanager.persistence;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.jobmanager.JobParameters;
+import org.thoughtcrime.securesms.jobmanager.requirements.SimpleRequirement;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class BinaryJobSerializerTest {
+
+  private final BinaryJobSerializer serializer = new BinaryJobSerializer.Builder(mock(Context.class))
+                                                                        .withJob(1, TestJob.class, new TestJob.Factory())
+                                                                        .withRequirement(1, TestRequirement.class, context -> new TestRequirement())
+                                                                        .build();
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    TestJob job      = new TestJob(createParameters(), 1234L, -1L, "body");
+    TestJob restored = (TestJob)serializer.deserialize(null, false, serializer.serialize(job));
+
+    assertEquals(job.getGroupId(), restored.getGroupId());
+    assertEquals(job.getRetryCount(), restored.getRetryCount());
+    assertEquals(job.getRetryUntil(), restored.getRetryUntil());
+    assertEquals(job.needsWakeLock(), restored.needsWakeLock());
+    assertEquals(job.getWakeLockTimeout(), restored.getWakeLockTimeout());
+    assertEquals(1, restored.getRequirements().size());
+    assertTrue(restored.getRequirements().get(0) instanceof TestRequirement);
+    assertTrue(restored.isPersistent());
+    assertEquals(1234L, restored.messageId);
+    assertEquals(-1L, restored.smsMessageId);
+    assertEquals("body", restored.body);
+  }
+
+  @Test
+  public void testReadsJavaSerializedRecords() throws IOException {
+    TestJob job      = new TestJob(createParameters(), 5678L, 42L, null);
+    byte[]  legacy   = new JavaJobSerializer().serialize(job);
+    TestJob restored = (TestJob)serializer.deserialize(null, false, legacy);
+
+    assertEquals(5678L, restored.messageId);
+    assertEquals(42L, restored.smsMessageId);
+    assertEquals(job.getRetryUntil(), restored.getRetryUntil());
+  }
+
+  @Test
+  public void testUnregisteredJobFallsBackToJavaSerialization() throws IOException {
+    UnregisteredJob job        = new UnregisteredJob();
+    byte[]          serialized = serializer.serialize(job);
+
+    assertEquals((byte)0xAC, serialized[0]);
+    assertTrue(serializer.deserialize(null, false, serialized) instanceof UnregisteredJob);
+  }
+
+  @Test
+  public void testHeaderRequirementsFromTypes() {
+    byte[] types = serializer.getRequirementTypes(createParameters().getRequirements());
+
+    assertArrayEquals(new byte[] {1}, types);
+
+    JobHeader header = new JobHeader(1, "__TEST_GROUP__", serializer.createRequirements(types), false, null);
+
+    assertEquals(1, header.getRequirements().size());
+    assertTrue(header.getRequirements().get(0) instanceof TestRequirement);
+    assertTrue(header.isRequirementsMet());
+
+    assertNull(serializer.getRequirementTypes(JobParameters.newBuilder().withRequirement(new UnregisteredRequirement()).create().getRequirements()));
+    assertNull(serializer.createRequirements(new byte[] {1, 2}));
+  }
+
+  @Test
+  public void testFieldsAboveMaximumAreSkipped() throws IOException {
+    ByteArrayOutputStream bytes  = new ByteArrayOutputStream();
+    CodedOutputStream     output = CodedOutputStream.newInstance(bytes);
+
+    output.writeUInt64(1, 1234L);
+    output.writeUInt64((1 << 29) - 1, 5678L);
+    output.writeString(JobInput.MAX_FIELD + 1, "skipped");
+    output.writeString(2, "body");
+    output.flush();
+
+    JobInput input = new JobInput(CodedInputStream.newInstance(bytes.toByteArray()));
+
+    assertEquals(1234L, input.getLong(1, -1));
+    assertEquals("body", input.getString(2));
+    assertFalse(input.has(JobInput.MAX_FIELD + 1));
+    assertNull(input.getString(JobInput.MAX_FIELD + 1));
+  }
+
+  @Test
+  public void testSmallerThanJavaSerialization() throws IOException {
+    TestJob job = new TestJob(createParameters(), 1234L, 5678L, "body");
+
+    assertTrue(serializer.serialize(job).length < new JavaJobSerializer().serialize(job).length);
+  }
+
+  @Test
+  @Ignore("Prints store+load times against Java serialization, run it by hand.")
+  public void testBenchmarkAgainstJavaSerialization() throws IOException {
+    JavaJobSerializer javaSerializer = new JavaJobSerializer();
+    TestJob           job            = new TestJob(createParameters(), 1234L, 5678L, "body");
+    int               iterations     = 20000;
+
+    long   javaStart = System.nanoTime();
+    byte[] javaBytes = null;
+
+    for (int i=0;i<iterations;i++) {
+      javaBytes = javaSerializer.serialize(job);
+      javaSerializer.deserialize(null, false, javaBytes);
+    }
+
+    long   javaTime    = System.nanoTime() - javaStart;
+    long   binaryStart = System.nanoTime();
+    byte[] binaryBytes = null;
+
+    for (int i=0;i<iterations;i++) {
+      binaryBytes = serializer.serialize(job);
+      serializer.deserialize(null, false, binaryBytes);
+    }
+
+    long binaryTime = System.nanoTime() - binaryStart;
+
+    System.out.println("Java:   " + javaBytes.length + " bytes/job, " + (javaTime / iterations) + "ns per store+load");
+    System.out.println("Binary: " + binaryBytes.length + " bytes/job, " + (binaryTime / iterations) + "ns per store+load");
+  }
+
+  private static JobParameters createParameters() {
+    return JobParameters.newBuilder()
+                        .withPersistence()
+                        .withGroupId("__TEST_GROUP__")
+                        .withRequirement(new TestRequirement())
+                        .withRetryCount(7)
+                        .create();
+  }
+
+  private static class TestRequirement extends SimpleRequirement {
+    @Override
+    public boolean isPresent() {
+      return true;
+    }
+  }
+
+  private static class UnregisteredRequirement extends SimpleRequirement {
+    @Override
+    public boolean isPresent() {
+      return false;
+    }
+  }
+
+  private static class TestJob extends Job implements BinarySerializableJob {
+
+    private final long   messageId;
+    private final long   smsMessageId;
+    private final String body;
+
+    private TestJob(JobParameters parameters, long messageId, long smsMessageId, String body) {
+      super(parameters);
+      this.messageId    = messageId;
+      this.smsMessageId = smsMessageId;
+      this.body         = body;
+    }
+
+    @Override
+    public void writeFields(@NonNull JobOutput output) throws IOException {
+      output.writeLong(1, messageId)
+            .writeLong(2, smsMessageId)
+            .writeString(3, body);
+    }
+
+    @Override
+    public void onAdded() {}
+
+    @Override
+    protected void onRun() {}
+
+    @Override
+    public boolean onShouldRetry(Exception exception) {
+      return false;
+    }
+
+    @Override
+    public void onCanceled() {}
+
+    private static class Factory implements BinaryJobSerializer.JobFactory {
+      @Override
+      public @NonNull Job create(@NonNull JobParameters parameters, @NonNull JobInput input) {
+        return new TestJob(parameters, input.getLong(1, -1), input.getLong(2, -1), input.getString(3));
+      }
+    }
+  }
+
+  private static class UnregisteredJob extends Job {
+
+    private UnregisteredJob() {
+      super(JobParameters.newBuilder().withPersistence().create());
+    }
+
+    @Override
+    public void onAdded() {}
+
+    @Override
+    protected void onRun() {}
+
+    @Override
+    public boolean onShouldRetry(Exception exception) {
+      return false;
+    }
+
+    @Override
+    public void onCanceled() {}
+  }
+}
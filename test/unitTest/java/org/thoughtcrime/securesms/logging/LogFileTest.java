@@ -0,0 +1,226 @@
+package org.thoughtcrime.securesms.logging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+import org.thoughtcrime.securesms.util.Conversions;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LogFileTest extends BaseUnitTest {
+
+  private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz");
+
+  private byte[] secret;
+  private File   file;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    secret = new byte[32];
+    new SecureRandom().nextBytes(secret);
+
+    file = File.createTempFile("log-", null);
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test public void testEntriesAreReadBack() throws Exception {
+    long           timestamp = System.currentTimeMillis();
+    String         prefix    = DATE_FORMAT.format(new Date(timestamp));
+    LogFile.Writer writer    = new LogFile.Writer(secret, file);
+
+    writer.writeEntry(timestamp, 'I', "Tag", "first", null);
+    writer.writeEntry(timestamp, 'W', "Other", "second", "java.lang.Exception: oops\n\tat Foo.bar(Foo.java:1)\n");
+    writer.writeEntry(timestamp, 'I', "Tag", "third", null);
+
+    assertTrue(writer.hasPendingEntries());
+    writer.close();
+
+    String expected = prefix + " I Tag: first\n" +
+                      prefix + " W Other: second\n" +
+                      prefix + " W Other: java.lang.Exception: oops\n" +
+                      prefix + " W Other: \tat Foo.bar(Foo.java:1)\n" +
+                      prefix + " I Tag: third\n";
+
+    assertEquals(expected, new LogFile.Reader(secret, file).readAll());
+    assertTrue(LogFile.isCurrentFormat(file));
+  }
+
+  @Test public void testEntriesSpanningBlocksAndWritersAreReadBack() throws Exception {
+    LogFile.Writer writer = new LogFile.Writer(secret, file);
+
+    for (int i = 0; i < 5000; i++) {
+      writer.writeEntry(i, 'D', "Tag" + (i % 7), "message " + i, null);
+    }
+
+    writer.close();
+
+    writer = new LogFile.Writer(secret, file);
+
+    assertEquals(file.length(), writer.getLogSize());
+
+    writer.writeEntry(5000, 'D', "Tag" + (5000 % 7), "message 5000", null);
+    writer.close();
+
+    String[] lines = new LogFile.Reader(secret, file).readAll().split("\n");
+
+    assertEquals(5001, lines.length);
+
+    for (int i = 0; i < lines.length; i++) {
+      assertTrue(lines[i].endsWith(" D Tag" + (i % 7) + ": message " + i));
+    }
+  }
+
+  @Test public void testLogSizeIncludesPendingEntries() throws Exception {
+    LogFile.Writer writer = new LogFile.Writer(secret, file);
+    long           empty  = writer.getLogSize();
+
+    writer.writeEntry(0, 'I', "Tag", "message", null);
+
+    assertTrue(writer.getLogSize() > empty);
+    assertEquals(empty, file.length());
+
+    writer.flush();
+
+    assertFalse(writer.hasPendingEntries());
+    assertEquals(file.length(), writer.getLogSize());
+
+    writer.close();
+  }
+
+  @Test public void testLegacyFilesAreStillRead() throws Exception {
+    LegacyWriter writer = new LegacyWriter(secret, file);
+
+    writer.writeEntry("2018-01-01 00:00:00.000 UTC I Tag: first");
+    writer.writeEntry("2018-01-01 00:00:00.000 UTC I Tag: second");
+    writer.close();
+
+    assertFalse(LogFile.isCurrentFormat(file));
+    assertEquals("2018-01-01 00:00:00.000 UTC I Tag: first\n" +
+                 "2018-01-01 00:00:00.000 UTC I Tag: second\n",
+                 new LogFile.Reader(secret, file).readAll());
+  }
+
+  @Ignore("Writes 20000 entries twice and prints entries/sec, too slow for every run.")
+  @Test public void testWriterBenchmark() throws Exception {
+    int    entries    = 20000;
+    String stackTrace = getStackTrace(new Exception("benchmark"));
+
+    for (int warmup = 0; warmup < 2; warmup++) {
+      timeLegacy(entries, stackTrace);
+      time(entries, stackTrace);
+    }
+
+    long legacyNanos = timeLegacy(entries, stackTrace);
+    long legacySize  = file.length();
+    long nanos       = time(entries, stackTrace);
+    long size        = file.length();
+
+    System.out.println("LogFile, " + entries + " entries, per entry encryption: " + (entries * 1000000000L / legacyNanos) + " entries/sec, " + legacySize + " bytes");
+    System.out.println("LogFile, " + entries + " entries, block encryption: " + (entries * 1000000000L / nanos) + " entries/sec, " + size + " bytes");
+  }
+
+  private long timeLegacy(int entries, String stackTrace) throws Exception {
+    file.delete();
+
+    long         start  = System.nanoTime();
+    LegacyWriter writer = new LegacyWriter(secret, file);
+
+    for (int i = 0; i < entries; i++) {
+      String prefix = DATE_FORMAT.format(new Date(i)) + " I Tag" + (i % 20) + ": ";
+
+      writer.writeEntry(prefix + "message number " + i);
+
+      if (i % 100 == 0) {
+        for (String line : stackTrace.split("\\n")) {
+          writer.writeEntry(prefix + line);
+        }
+      }
+    }
+
+    writer.close();
+    return System.nanoTime() - start;
+  }
+
+  private long time(int entries, String stackTrace) throws IOException {
+    file.delete();
+
+    long           start  = System.nanoTime();
+    LogFile.Writer writer = new LogFile.Writer(secret, file);
+
+    for (int i = 0; i < entries; i++) {
+      writer.writeEntry(i, 'I', "Tag" + (i % 20), "message number " + i, i % 100 == 0 ? stackTrace : null);
+    }
+
+    writer.close();
+    return System.nanoTime() - start;
+  }
+
+  private static String getStackTrace(Throwable t) {
+    StringWriter stackTrace = new StringWriter();
+    t.printStackTrace(new PrintWriter(stackTrace));
+    return stackTrace.toString();
+  }
+
+  /**
+   * The writer as it was before entries were batched: every line is encrypted and flushed on its
+   * own, with a new cipher key and random source each time.
+   */
+  private static class LegacyWriter {
+
+    private final byte[]               secret;
+    private final Cipher               cipher;
+    private final BufferedOutputStream outputStream;
+
+    private LegacyWriter(byte[] secret, File file) throws Exception {
+      this.secret       = secret;
+      this.cipher       = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      this.outputStream = new BufferedOutputStream(new FileOutputStream(file, true));
+    }
+
+    private void writeEntry(String entry) throws IOException {
+      byte[] iv = new byte[16];
+      new SecureRandom().nextBytes(iv);
+
+      try {
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(iv));
+        byte[] ciphertext = cipher.doFinal(entry.getBytes());
+
+        outputStream.write(iv);
+        outputStream.write(Conversions.intToByteArray(ciphertext.length));
+        outputStream.write(ciphertext);
+        outputStream.flush();
+      } catch (Exception e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private void close() throws IOException {
+      outputStream.close();
+    }
+  }
+}
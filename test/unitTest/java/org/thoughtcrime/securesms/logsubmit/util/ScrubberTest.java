@@ -0,0 +1,181 @@
+package org.thoughtcrime.securesms.logsubmit.util;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+public class ScrubberTest extends BaseUnitTest {
+
+  private static final Pattern E164_PATTERN  = Pattern.compile("\\+\\d{10,15}");
+  private static final Pattern EMAIL_PATTERN = Pattern.compile("[a-z]+@example\\.com", Pattern.CASE_INSENSITIVE);
+
+  private static String buildLog(long seed, int minLength) {
+    Random        random = new Random(seed);
+    StringBuilder log    = new StringBuilder(minLength + 1024);
+
+    while (log.length() < minLength) {
+      log.append("2018-06-01 12:00:00.000 EDT I JobManager: ");
+
+      switch (random.nextInt(4)) {
+        case 0:  log.append("Sending to +1555").append(1000000 + random.nextInt(9000000)).append(" and +4420").append(10000000 + random.nextInt(90000000)); break;
+        case 1:  log.append("Contact Someone@Example.com updated");                                                                                           break;
+        default: log.append("Running job ").append(random.nextInt(100000)).append(" after ").append(random.nextInt(1000)).append("ms");                       break;
+      }
+
+      log.append(random.nextBoolean() ? "\n" : "\r\n");
+    }
+
+    return log.toString();
+  }
+
+  @Test public void testCensorsMatches() {
+    assertEquals("call +*********89 now", new Scrubber().scrub("call +15555551289 now"));
+    assertEquals("no numbers +1234 here\n", new Scrubber().scrub("no numbers +1234 here\n"));
+    assertEquals("", new Scrubber().scrub(""));
+  }
+
+  @Test public void testMatchesPreviousScrubber() {
+    String log = buildLog(31337, 256 * 1024);
+
+    assertEquals(new LegacyScrubber(E164_PATTERN).scrub(log), new Scrubber().scrub(log));
+    assertEquals(new LegacyScrubber(E164_PATTERN, EMAIL_PATTERN).scrub(log), new Scrubber(E164_PATTERN, EMAIL_PATTERN).scrub(log));
+  }
+
+  @Test public void testMatchesAcrossReads() throws IOException {
+    String         log      = buildLog(1, 64 * 1024);
+    LegacyScrubber previous = new LegacyScrubber(E164_PATTERN, EMAIL_PATTERN);
+    StringBuilder  out      = new StringBuilder();
+    int            matches  = new Scrubber(E164_PATTERN, EMAIL_PATTERN).scrub(new TrickleReader(log, 7), out);
+
+    assertEquals(previous.scrub(log), out.toString());
+    assertEquals(previous.matches, matches);
+  }
+
+  @Test public void testMatchesAcrossBufferWithoutLineBreak() throws IOException {
+    for (int offset = 1; offset < 12; offset++) {
+      String        filler   = new String(new char[Scrubber.BUFFER_SIZE - offset]).replace('\0', 'x');
+      String        log      = filler + "+15555551289 " + filler + "+15555551289";
+      String        scrubbed = filler + "+*********89 " + filler + "+*********89";
+      StringBuilder out      = new StringBuilder();
+
+      assertEquals(scrubbed, new Scrubber().scrub(log));
+      assertEquals(2, new Scrubber().scrub(new TrickleReader(log, 7), out));
+      assertEquals(scrubbed, out.toString());
+    }
+  }
+
+  @Ignore("Scrubs a 4MB log repeatedly with both scrubbers, for comparing timings by hand.")
+  @Test public void testScrubberBenchmark() throws IOException {
+    String log = buildLog(42, 4 * 1024 * 1024);
+
+    benchmark("default patterns", log, E164_PATTERN);
+    benchmark("two patterns", log, E164_PATTERN, EMAIL_PATTERN);
+  }
+
+  private static void benchmark(String name, String log, Pattern... patterns) throws IOException {
+    int rounds = 5;
+
+    for (int warmup = 0; warmup < 3; warmup++) {
+      timePrevious(patterns, log);
+      time(patterns, log);
+    }
+
+    long previousNanos = 0;
+    long nanos         = 0;
+
+    for (int round = 0; round < rounds; round++) {
+      previousNanos += timePrevious(patterns, log);
+      nanos         += time(patterns, log);
+    }
+
+    System.out.println("Scrubber, " + name + ", " + (log.length() / 1024) + "KB log: " + (previousNanos / rounds / 1000000) + "ms with a pass per pattern, " +
+                       (nanos / rounds / 1000000) + "ms streaming");
+  }
+
+  private static long timePrevious(Pattern[] patterns, String log) {
+    long start = System.nanoTime();
+    new LegacyScrubber(patterns).scrub(log);
+    return System.nanoTime() - start;
+  }
+
+  private static long time(Pattern[] patterns, String log) throws IOException {
+    long start = System.nanoTime();
+    new Scrubber(patterns).scrub(new StringReader(log), new StringBuilder(log.length()));
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Hands out at most a few characters per read, so matches are split across reads.
+   */
+  private static class TrickleReader extends Reader {
+
+    private final Reader in;
+    private final int    maxRead;
+
+    private TrickleReader(String text, int maxRead) {
+      this.in      = new StringReader(text);
+      this.maxRead = maxRead;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) throws IOException {
+      return in.read(buffer, offset, Math.min(length, maxRead));
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * The scrubber as it was before it streamed: a full pass over the whole string for every
+   * pattern, with a log line built for every match.
+   */
+  private static class LegacyScrubber {
+
+    private final Pattern[] patterns;
+
+    private int matches;
+
+    private LegacyScrubber(Pattern... patterns) {
+      this.patterns = patterns;
+    }
+
+    private String scrub(final String in) {
+      String out = in;
+      for (Pattern pattern : patterns) {
+        Matcher       matcher       = pattern.matcher(out);
+        StringBuilder builder       = new StringBuilder();
+        int           lastEndingPos = 0;
+
+        while (matcher.find()) {
+          builder.append(out.substring(lastEndingPos, matcher.start()));
+
+          final String censored = matcher.group().substring(0,1)                                      +
+                                  new String(new char[matcher.group().length()-3]).replace("\0", "*") +
+                                  matcher.group().substring(matcher.group().length()-2);
+          builder.append(censored);
+
+          lastEndingPos = matcher.end();
+          matches++;
+
+          String message = "replacing a match on /" + pattern.toString() + "/ => " + censored;
+          if (message.isEmpty()) throw new AssertionError();
+        }
+        builder.append(out.substring(lastEndingPos));
+        out = builder.toString();
+      }
+      return out;
+    }
+  }
+}
@@ -0,0 +1,228 @@
+package org.thoughtcrime.securesms.notifications;
+
+import android.text.SpannableString;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
+import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
+import org.thoughtcrime.securesms.mms.SlideDeck;
+import org.thoughtcrime.securesms.notifications.NotificationCache.MessageKey;
+import org.thoughtcrime.securesms.recipients.Recipient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class NotificationCacheTest extends BaseUnitTest {
+
+  private final Recipient                                individual = mock(Recipient.class);
+  private final Map<Long, Recipient>                     threads    = new LinkedHashMap<>();
+  private final LinkedHashMap<MessageKey, MessageRecord> database   = new LinkedHashMap<>();
+
+  private long received = 1000;
+  private int  loads;
+
+  private Recipient thread(long threadId) {
+    Recipient recipient = threads.get(threadId);
+
+    if (recipient == null) {
+      recipient = mock(Recipient.class);
+      threads.put(threadId, recipient);
+    }
+
+    return recipient;
+  }
+
+  private MessageKey insert(long id, boolean mms, long threadId) {
+    MessageRecord record;
+
+    if (mms) {
+      SlideDeck slideDeck = mock(SlideDeck.class);
+      when(slideDeck.getSlides()).thenReturn(Collections.emptyList());
+
+      record = mock(MediaMmsMessageRecord.class);
+      when(record.isMms()).thenReturn(true);
+      when(((MediaMmsMessageRecord) record).getSlideDeck()).thenReturn(slideDeck);
+      when(((MediaMmsMessageRecord) record).getSharedContacts()).thenReturn(Collections.emptyList());
+    } else {
+      record = mock(SmsMessageRecord.class);
+    }
+
+    long dateReceived = received++;
+
+    when(record.getId()).thenReturn(id);
+    when(record.getDateReceived()).thenReturn(dateReceived);
+    when(record.getTimestamp()).thenReturn(dateReceived);
+    when(record.getThreadId()).thenReturn(threadId);
+    when(record.getIndividualRecipient()).thenReturn(individual);
+    when(record.getRecipient()).thenReturn(thread(threadId));
+    when(record.getDisplayBody()).thenReturn(mock(SpannableString.class));
+
+    MessageKey key = MessageNotifier.getMessageKey(record);
+    database.put(key, record);
+    return key;
+  }
+
+  private void markRead(long threadId) {
+    List<MessageKey> read = new LinkedList<>();
+
+    for (Map.Entry<MessageKey, MessageRecord> entry : database.entrySet()) {
+      if (entry.getValue().getThreadId() == threadId) read.add(entry.getKey());
+    }
+
+    for (MessageKey key : read) {
+      database.remove(key);
+    }
+  }
+
+  private NotificationItem load(MessageRecord record) {
+    return MessageNotifier.constructNotificationItem(context, record, false, threads);
+  }
+
+  private void populate(NotificationCache cache) {
+    LinkedHashMap<MessageKey, NotificationItem> items = new LinkedHashMap<>();
+
+    for (MessageRecord record : database.values()) {
+      items.put(MessageNotifier.getMessageKey(record), load(record));
+    }
+
+    cache.populate(items, false);
+  }
+
+  private NotificationState update(NotificationCache cache) {
+    cache.update(new ArrayList<>(database.keySet()), key -> {
+      loads++;
+      MessageRecord record = database.get(key);
+      return record != null ? load(record) : null;
+    });
+
+    return cache.getState();
+  }
+
+  private NotificationState rebuild() {
+    NotificationCache cache = new NotificationCache();
+    populate(cache);
+    return cache.getState();
+  }
+
+  private static void assertSameState(NotificationState expected, NotificationState actual) {
+    assertEquals(expected.getMessageCount(), actual.getMessageCount());
+    assertEquals(new ArrayList<>(expected.getThreads()), new ArrayList<>(actual.getThreads()));
+    assertEquals(expected.getNotifications().size(), actual.getNotifications().size());
+
+    for (int i = 0; i < expected.getNotifications().size(); i++) {
+      NotificationItem expectedItem = expected.getNotifications().get(i);
+      NotificationItem actualItem   = actual.getNotifications().get(i);
+
+      assertEquals(expectedItem.getId(), actualItem.getId());
+      assertEquals(expectedItem.isMms(), actualItem.isMms());
+      assertEquals(expectedItem.getThreadId(), actualItem.getThreadId());
+      assertSame(expectedItem.getText(), actualItem.getText());
+    }
+  }
+
+  @Test public void testMatchesFullRebuild() {
+    NotificationCache cache = new NotificationCache();
+
+    insert(1, false, 10);
+    MessageKey mms = insert(1, true, 20);
+    insert(2, false, 10);
+
+    populate(cache);
+    assertSameState(rebuild(), cache.getState());
+
+    insert(3, false, 30);
+    assertSameState(rebuild(), update(cache));
+    assertEquals(1, loads);
+
+    markRead(10);
+    assertSameState(rebuild(), update(cache));
+
+    database.remove(mms);
+    assertSameState(rebuild(), update(cache));
+
+    insert(4, true, 20);
+    insert(5, false, 30);
+    assertSameState(rebuild(), update(cache));
+    assertEquals(3, loads);
+  }
+
+  @Test public void testMutedThreadsAreSkipped() {
+    NotificationCache cache = new NotificationCache();
+
+    insert(1, false, 10);
+    insert(2, false, 20);
+    populate(cache);
+
+    when(thread(20).isMuted()).thenReturn(true);
+    assertSameState(rebuild(), update(cache));
+    assertEquals(1, cache.getState().getMessageCount());
+
+    when(thread(20).isMuted()).thenReturn(false);
+    assertSameState(rebuild(), update(cache));
+    assertEquals(2, cache.getState().getMessageCount());
+    assertEquals(0, loads);
+  }
+
+  @Test public void testReusedRowIdIsReloaded() {
+    NotificationCache cache = new NotificationCache();
+
+    MessageKey original = insert(1, false, 10);
+    populate(cache);
+
+    database.remove(original);
+    insert(1, false, 20);
+
+    NotificationState state = update(cache);
+
+    assertSameState(rebuild(), state);
+    assertEquals(20, state.getNotifications().get(0).getThreadId());
+    assertEquals(1, loads);
+  }
+
+  @Test public void testChangedMessageIsReloadedOnceInvalidated() {
+    NotificationCache cache = new NotificationCache();
+
+    insert(1, false, 10);
+    MessageKey changed = insert(1, true, 10);
+    populate(cache);
+
+    SpannableString body = mock(SpannableString.class);
+    when(database.get(changed).getDisplayBody()).thenReturn(body);
+
+    update(cache);
+    assertEquals(0, loads);
+
+    cache.invalidate(1, true);
+
+    NotificationState state = update(cache);
+
+    assertSameState(rebuild(), state);
+    assertSame(body, state.getNotifications().get(1).getText());
+    assertEquals(1, loads);
+  }
+
+  @Test public void testRepopulatedWhenLockStateChanges() {
+    NotificationCache cache = new NotificationCache();
+
+    assertFalse(cache.isPopulated(false));
+
+    insert(1, false, 10);
+    populate(cache);
+
+    assertTrue(cache.isPopulated(false));
+    assertFalse(cache.isPopulated(true));
+  }
+}